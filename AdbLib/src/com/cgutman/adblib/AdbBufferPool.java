@@ -0,0 +1,122 @@
+package com.cgutman.adblib;
+
+import java.util.ArrayDeque;
+
+/**
+ * A size-classed pool of byte arrays used for ADB message payloads.
+ * Arrays are handed out with a power-of-two length that is at least the
+ * requested size, so a returned array can serve any later request of the
+ * same class. Arrays that are never released are simply garbage collected.
+ */
+public class AdbBufferPool {
+
+	/** The smallest size class (512 bytes) as a power of two */
+	private static final int MIN_CLASS_SHIFT = 9;
+
+	/** The largest pooled size class (1 MB) as a power of two */
+	private static final int MAX_CLASS_SHIFT = 20;
+
+	/** The number of free arrays kept per size class */
+	private final int maxPerClass;
+
+	/** Free arrays indexed by size class */
+	private final ArrayDeque<byte[]>[] freeLists;
+
+	/** Number of arrays allocated because no free array was available */
+	private long allocated;
+
+	/** Number of requests satisfied with a released array */
+	private long reused;
+
+	/**
+	 * Creates a new pool.
+	 * @param maxPerClass The number of free arrays to keep for each size class
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public AdbBufferPool(int maxPerClass)
+	{
+		this.maxPerClass = maxPerClass;
+		this.freeLists = new ArrayDeque[MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1];
+		for (int i = 0; i < freeLists.length; i++)
+			freeLists[i] = new ArrayDeque<byte[]>();
+	}
+
+	/**
+	 * Returns the size class index for the given size, or -1 if the size
+	 * is too large to be pooled.
+	 */
+	private static int classIndex(int size)
+	{
+		int shift = MIN_CLASS_SHIFT;
+		while ((1 << shift) < size) {
+			if (++shift > MAX_CLASS_SHIFT)
+				return -1;
+		}
+		return shift - MIN_CLASS_SHIFT;
+	}
+
+	/**
+	 * Gets an array of at least the specified size.
+	 * @param size Minimum length of the array
+	 * @return An array whose length may exceed the requested size
+	 */
+	public byte[] acquire(int size)
+	{
+		int index = classIndex(size);
+		if (index < 0) {
+			synchronized (this) {
+				allocated++;
+			}
+			return new byte[size];
+		}
+
+		synchronized (this) {
+			byte[] buffer = freeLists[index].poll();
+			if (buffer != null) {
+				reused++;
+				return buffer;
+			}
+			allocated++;
+		}
+		return new byte[1 << (index + MIN_CLASS_SHIFT)];
+	}
+
+	/**
+	 * Returns an array obtained from {@link #acquire(int)} to the pool.
+	 * The caller must not use the array afterwards.
+	 * @param buffer Array to return
+	 */
+	public void release(byte[] buffer)
+	{
+		if (buffer == null)
+			return;
+
+		/* Only arrays that exactly match a size class can be reused */
+		int index = classIndex(buffer.length);
+		if (index < 0 || buffer.length != 1 << (index + MIN_CLASS_SHIFT))
+			return;
+
+		synchronized (this) {
+			if (freeLists[index].size() < maxPerClass)
+				freeLists[index].push(buffer);
+		}
+	}
+
+	/**
+	 * Gets the number of arrays allocated by this pool.
+	 * @return Number of allocations
+	 */
+	public synchronized long getAllocatedCount()
+	{
+		return allocated;
+	}
+
+	/**
+	 * Gets the number of requests served with a released array.
+	 * @return Number of reused arrays
+	 */
+	public synchronized long getReusedCount()
+	{
+		return reused;
+	}
+}
@@ -0,0 +1,349 @@
+package com.cgutman.adblib;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * This class moves the packets of one AdbConnection over a non-blocking
+ * channel driven by an {@link AdbSelector}. Incoming packets are parsed
+ * incrementally and handed to the connection on the selector thread.
+ * Outgoing packets are copied into a queue and written in batches with
+ * gathering writes, so writers never touch the socket themselves.
+ */
+class AdbChannelTransport {
+
+	/** Size of the buffer that socket reads go into */
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	/** The largest number of queued packets written by a single call */
+	private static final int MAX_GATHER = 64;
+
+	/** The connection whose packets this transport carries */
+	private final AdbConnection conn;
+
+	/** The channel to the remote peer */
+	private final SocketChannel channel;
+
+	/** The selector that drives the channel */
+	private final AdbSelector selector;
+
+	/** The selection key of the channel, only used on the selector thread */
+	private SelectionKey key;
+
+	/** Buffer for socket reads, only used on the selector thread */
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+	/** The header of the message being received */
+	private final byte[] header = new byte[AdbProtocol.ADB_HEADER_LENGTH];
+
+	/** Number of header bytes received so far */
+	private int headerFill;
+
+	/** Number of payload bytes received so far */
+	private int payloadFill;
+
+	/** The message being received, reused for every packet */
+	private final AdbProtocol.AdbMessage msg = new AdbProtocol.AdbMessage();
+
+	/** Packets waiting to be written, guarded by itself */
+	private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+
+	/** Reusable array for gathering writes, only used on the selector thread */
+	private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+	/** Specifies whether a flush has been handed to the selector thread, guarded by writeQueue */
+	private boolean flushPending;
+
+	/** Specifies whether the transport no longer accepts packets, guarded by writeQueue */
+	private boolean closed;
+
+	/** Specifies whether the connection has been cleaned up, guarded by this */
+	private boolean finished;
+
+	/** Flushes the write queue on the selector thread */
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flushQueue();
+			} catch (IOException | RuntimeException e) {
+				shutdown();
+			}
+		}
+	};
+
+	/**
+	 * Creates a transport for the connection over the given channel.
+	 * @param conn The connection whose packets are carried
+	 * @param channel A connected channel, which is switched to non-blocking mode
+	 * @param selector The selector that drives the channel
+	 * @throws IOException If the channel cannot be configured
+	 */
+	AdbChannelTransport(AdbConnection conn, SocketChannel channel, AdbSelector selector) throws IOException
+	{
+		this.conn = conn;
+		this.channel = channel;
+		this.selector = selector;
+
+		channel.configureBlocking(false);
+
+		/* Disable Nagle because we're sending tiny packets */
+		channel.socket().setTcpNoDelay(true);
+	}
+
+	/**
+	 * Registers the channel with the selector so packets start flowing.
+	 */
+	void start()
+	{
+		if (!selector.isRunning()) {
+			shutdown();
+			return;
+		}
+
+		selector.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					key = selector.register(channel, AdbChannelTransport.this);
+
+					/* Send anything queued before registration */
+					flushQueue();
+				} catch (IOException e) {
+					shutdown();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queues a message made of a header and a copy of the payload.
+	 * @param cmd Command identifier
+	 * @param arg0 First argument
+	 * @param arg1 Second argument
+	 * @param payload Array containing the payload, or null
+	 * @param offset Offset of the payload in the array
+	 * @param length Length of the payload
+	 * @param flush Specifies whether to send the queued packets now
+	 * @throws IOException If the transport is closed
+	 */
+	void send(int cmd, int arg0, int arg1, byte[] payload, int offset, int length, boolean flush) throws IOException
+	{
+		int payloadLength = payload != null ? length : 0;
+		byte[] packet = conn.bufferPool.acquire(AdbProtocol.ADB_HEADER_LENGTH + payloadLength);
+
+		AdbProtocol.writeHeader(packet, cmd, arg0, arg1, payload, offset, length, conn.usesChecksum());
+		if (payloadLength != 0)
+			System.arraycopy(payload, offset, packet, AdbProtocol.ADB_HEADER_LENGTH, payloadLength);
+
+		enqueue(ByteBuffer.wrap(packet, 0, AdbProtocol.ADB_HEADER_LENGTH + payloadLength), flush);
+	}
+
+	/**
+	 * Queues a complete prebuilt packet and flushes it.
+	 * @param packet The packet to send
+	 * @throws IOException If the transport is closed
+	 */
+	void sendPacket(byte[] packet) throws IOException
+	{
+		enqueue(ByteBuffer.wrap(packet), true);
+	}
+
+	/**
+	 * Adds a packet to the write queue and hands a flush to the selector
+	 * thread unless one is already pending.
+	 */
+	private void enqueue(ByteBuffer buffer, boolean flush) throws IOException
+	{
+		synchronized (writeQueue) {
+			if (closed) {
+				conn.bufferPool.release(buffer.array());
+				throw new IOException("Connection closed");
+			}
+
+			writeQueue.add(buffer);
+
+			if (!flush || flushPending)
+				return;
+			flushPending = true;
+		}
+
+		selector.execute(flushTask);
+	}
+
+	/**
+	 * Writes as much of the queue as the socket accepts and waits for
+	 * the channel to become writable if anything is left.
+	 * Called on the selector thread.
+	 */
+	private void flushQueue() throws IOException
+	{
+		int count;
+		synchronized (writeQueue) {
+			flushPending = false;
+			if (key == null || closed)
+				return;
+
+			count = 0;
+			for (ByteBuffer buffer : writeQueue) {
+				gather[count++] = buffer;
+				if (count == MAX_GATHER)
+					break;
+			}
+		}
+
+		if (count != 0)
+			channel.write(gather, 0, count);
+
+		boolean pending;
+		synchronized (writeQueue) {
+			/* Recycle the packets that went out completely */
+			for (int i = 0; i < count; i++) {
+				if (gather[i].hasRemaining())
+					break;
+				writeQueue.poll();
+				conn.bufferPool.release(gather[i].array());
+			}
+			pending = !writeQueue.isEmpty();
+		}
+
+		for (int i = 0; i < count; i++)
+			gather[i] = null;
+
+		if (pending)
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		else
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Handles readiness of the channel. Called on the selector thread.
+	 * @param key The selection key of the channel
+	 */
+	void onSelected(SelectionKey key)
+	{
+		try {
+			if (key.isReadable())
+				readMessages();
+			if (key.isValid() && key.isWritable())
+				flushQueue();
+		} catch (Exception e) {
+			/* The connection is cleaned up the same way as when its
+			 * connection thread dies */
+			if (!(e instanceof EOFException))
+				e.printStackTrace();
+			shutdown();
+		}
+	}
+
+	/**
+	 * Reads what the socket has available and dispatches every
+	 * message that is complete.
+	 */
+	private void readMessages() throws Exception
+	{
+		readBuffer.clear();
+		if (channel.read(readBuffer) < 0)
+			throw new EOFException("Stream closed");
+		readBuffer.flip();
+
+		while (readBuffer.hasRemaining())
+		{
+			if (headerFill < header.length) {
+				int count = Math.min(readBuffer.remaining(), header.length - headerFill);
+				readBuffer.get(header, headerFill, count);
+				headerFill += count;
+				if (headerFill < header.length)
+					break;
+
+				msg.parseHeader(header, conn.bufferPool);
+				payloadFill = 0;
+			}
+
+			if (payloadFill < msg.payloadLength) {
+				int count = Math.min(readBuffer.remaining(), msg.payloadLength - payloadFill);
+				readBuffer.get(msg.payload, payloadFill, count);
+				payloadFill += count;
+				if (payloadFill < msg.payloadLength)
+					break;
+			}
+
+			/* The message is complete, start the next one */
+			headerFill = 0;
+			conn.handleMessage(msg);
+		}
+	}
+
+	/**
+	 * Closes the transport. The connection is cleaned up on the selector
+	 * thread and this routine waits for that to finish.
+	 */
+	void close()
+	{
+		if (selector.inSelectorThread()) {
+			shutdown();
+			return;
+		}
+
+		selector.execute(new Runnable() {
+			@Override
+			public void run() {
+				shutdown();
+			}
+		});
+
+		synchronized (this) {
+			while (!finished && selector.isRunning()) {
+				try {
+					wait(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+
+		/* The selector is gone, so nobody else will clean up */
+		shutdown();
+	}
+
+	/**
+	 * Closes the channel, drops queued packets and cleans up the
+	 * connection. Only the first call has any effect.
+	 */
+	void shutdown()
+	{
+		synchronized (writeQueue) {
+			if (closed)
+				return;
+			closed = true;
+
+			ByteBuffer buffer;
+			while ((buffer = writeQueue.poll()) != null)
+				conn.bufferPool.release(buffer.array());
+		}
+
+		if (key != null)
+			key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {}
+
+		/* Drop a partially received payload */
+		if (msg.payload != null) {
+			conn.bufferPool.release(msg.payload);
+			msg.payload = null;
+		}
+
+		conn.onTransportClosed();
+
+		synchronized (this) {
+			finished = true;
+			notifyAll();
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package com.cgutman.adblib;
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
@@ -9,6 +11,8 @@ import java.io.UnsupportedEncodingException;
 import java.net.ConnectException;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.HashMap;
 
 /**
@@ -38,15 +42,33 @@ public class AdbConnection implements Closeable {
 
 	/**
 	 * The output stream that this class uses to read from
-	 * the socket.
+	 * the socket. All writes go through {@link #sendMessage}.
 	 */
-	OutputStream outputStream;
+	private OutputStream outputStream;
+
+	/** Serializes writers so packets from different streams never interleave */
+	private final Object writeLock = new Object();
+
+	/** Reusable header array for outgoing packets, guarded by writeLock */
+	private final byte[] writeHeader = new byte[AdbProtocol.ADB_HEADER_LENGTH];
+
+	/** Pool for received payloads, released by the consumers of AdbStream */
+	final AdbBufferPool bufferPool = new AdbBufferPool(16);
+
+	/** Size of the buffers wrapping the socket streams */
+	private static final int SOCKET_BUFFER_SIZE = 16 * 1024;
 
 	/**
 	 * The backend thread that handles responding to ADB packets.
 	 */
 	private Thread connectionThread;
 
+	/**
+	 * The non-blocking transport when this connection is driven by an
+	 * {@link AdbSelector}, or null when it has a connection thread.
+	 */
+	private AdbChannelTransport transport;
+
 	/**
 	 * Specifies whether a connect has been attempted
 	 */
@@ -63,6 +85,12 @@ public class AdbConnection implements Closeable {
 	 */
 	private int maxData;
 
+	/**
+	 * Specifies whether the negotiated protocol version skips payload
+	 * checksums. Packets before the peer's CNXN always carry them.
+	 */
+	private volatile boolean skipChecksum;
+
 	/**
 	 * An initialized ADB crypto object that contains a key pair.
 	 */
@@ -90,7 +118,6 @@ public class AdbConnection implements Closeable {
 	{
 		openStreams = new HashMap<Integer, AdbStream>();
 		lastLocalId = 0;
-		connectionThread = createConnectionThread();
 	}
 
 	/**
@@ -108,8 +135,9 @@ public class AdbConnection implements Closeable {
 		newConn.crypto = crypto;
 
 		newConn.socket = socket;
-		newConn.inputStream = socket.getInputStream();
-		newConn.outputStream = socket.getOutputStream();
+		newConn.inputStream = new BufferedInputStream(socket.getInputStream(), SOCKET_BUFFER_SIZE);
+		newConn.outputStream = new BufferedOutputStream(socket.getOutputStream(), SOCKET_BUFFER_SIZE);
+		newConn.connectionThread = newConn.createConnectionThread();
 
 		/* Disable Nagle because we're sending tiny packets */
 		socket.setTcpNoDelay(true);
@@ -117,6 +145,29 @@ public class AdbConnection implements Closeable {
 		return newConn;
 	}
 
+	/**
+	 * Creates a AdbConnection object that is driven by a selector thread
+	 * instead of a connection thread of its own. The channel is switched to
+	 * non-blocking mode; the blocking API of the connection and its streams
+	 * is unchanged.
+	 * @param channel A connected channel to the target device.
+	 * @param crypto The crypto object that stores the key pair for authentication.
+	 * @param selector The selector that performs I/O for the connection.
+	 * @return A new AdbConnection object.
+	 * @throws IOException If the channel cannot be configured
+	 */
+	public static AdbConnection create(SocketChannel channel, AdbCrypto crypto, AdbSelector selector) throws IOException
+	{
+		AdbConnection newConn = new AdbConnection();
+
+		newConn.crypto = crypto;
+
+		newConn.socket = channel.socket();
+		newConn.transport = new AdbChannelTransport(newConn, channel, selector);
+
+		return newConn;
+	}
+
 	/**
 	 * Creates a new connection thread.
 	 * @return A new connection thread.
@@ -128,97 +179,28 @@ public class AdbConnection implements Closeable {
 		return new Thread(new Runnable() {
 			@Override
 			public void run() {
+				/* The message and header are reused for every packet */
+				AdbProtocol.AdbMessage msg = new AdbProtocol.AdbMessage();
+				byte[] header = new byte[AdbProtocol.ADB_HEADER_LENGTH];
 				while (!connectionThread.isInterrupted())
 				{
 					try {
 						/* Read and parse a message off the socket's input stream */
-						AdbProtocol.AdbMessage msg = AdbProtocol.AdbMessage.parseAdbMessage(inputStream);
-
-						/* Verify magic and checksum */
-						if (!AdbProtocol.validateMessage(msg))
-							continue;
-
-						switch (msg.command) {
-						/* Stream-oriented commands */
-							case AdbProtocol.CMD_OKAY:
-							case AdbProtocol.CMD_WRTE:
-							case AdbProtocol.CMD_CLSE:
-							/* We must ignore all packets when not connected */
-								if (!conn.connected)
-									continue;
-
-							/* Get the stream object corresponding to the packet */
-								AdbStream waitingStream = openStreams.get(msg.arg1);
-								if (waitingStream == null)
-									continue;
-
-								synchronized (waitingStream) {
-									if (msg.command == AdbProtocol.CMD_OKAY) {
-									/* We're ready for writes */
-										waitingStream.updateRemoteId(msg.arg0);
-										waitingStream.readyForWrite();
-
-									/* Unwait an open/write */
-										waitingStream.notify();
-									} else if (msg.command == AdbProtocol.CMD_WRTE) {
-									/* Got some data from our partner */
-										waitingStream.addPayload(msg.payload);
-
-									/* Tell it we're ready for more */
-										waitingStream.sendReady();
-									} else if (msg.command == AdbProtocol.CMD_CLSE) {
-									/* He doesn't like us anymore :-( */
-										conn.openStreams.remove(msg.arg1);
-
-									/* Notify readers and writers */
-										waitingStream.notifyClose();
-									}
-								}
-
-								break;
-
-							case AdbProtocol.CMD_AUTH:
-
-								byte[] packet;
-
-								if (msg.arg0 == AdbProtocol.AUTH_TYPE_TOKEN) {
-								/* This is an authentication challenge */
-									if (conn.sentSignature) {
-									/* We've already tried our signature, so send our public key */
-										packet = AdbProtocol.generateAuth(AdbProtocol.AUTH_TYPE_RSA_PUBLIC,
-												conn.crypto.getAdbPublicKeyPayload());
-									} else {
-									/* We'll sign the token */
-										packet = AdbProtocol.generateAuth(AdbProtocol.AUTH_TYPE_SIGNATURE,
-												conn.crypto.signAdbTokenPayload(msg.payload));
-										conn.sentSignature = true;
-									}
-
-								/* Write the AUTH reply */
-									conn.outputStream.write(packet);
-									conn.outputStream.flush();
-								}
-								break;
-
-							case AdbProtocol.CMD_CNXN:
-								synchronized (conn) {
-								/* We need to store the max data size */
-									conn.maxData = msg.arg1;
-
-								/* Mark us as connected and unwait anyone waiting on the connection */
-									conn.connected = true;
-									conn.notifyAll();
-								}
-								break;
-
-							default:
-							/* Unrecognized packet, just drop it */
-								break;
-						}
+						msg.read(inputStream, header, bufferPool);
 					}catch (SocketTimeoutException e){
 						if(conn.connectAttempted && !conn.connected){
 							break;
 						}
+						continue;
+					} catch (Exception e) {
+						/* The cleanup is taken care of by a combination of this thread
+						 * and close() */
+						e.printStackTrace();
+						break;
+					}
+
+					try {
+						handleMessage(msg);
 					} catch (Exception e) {
 						/* The cleanup is taken care of by a combination of this thread
 						 * and close() */
@@ -228,18 +210,134 @@ public class AdbConnection implements Closeable {
 				}
 
 				/* This thread takes care of cleaning up pending streams */
-				synchronized (conn) {
-					cleanupStreams();
-					conn.notifyAll();
-					conn.connectAttempted = false;
-
-					ConnectionOnClosedListener listener = conn.onClosedListener;
-					if(listener != null)listener.onClosed();
-				}
+				onTransportClosed();
 			}
 		});
 	}
 
+	/**
+	 * Handles a message received from the peer. This is called by the
+	 * connection thread or the selector thread, whichever drives the
+	 * connection. The payload goes back to the pool afterwards unless it
+	 * was handed to a stream.
+	 * @param msg The message to handle
+	 * @throws Exception If the connection can't be used anymore
+	 */
+	void handleMessage(AdbProtocol.AdbMessage msg) throws Exception
+	{
+		try {
+			/* Verify magic and checksum. A newer peer already leaves the checksum
+			 * out of its AUTH and CNXN replies, before we know its version. */
+			boolean checkPayload = connected ? !skipChecksum : msg.checksum != 0;
+			if (!AdbProtocol.validateMessage(msg, checkPayload))
+				return;
+
+			switch (msg.command) {
+			/* Stream-oriented commands */
+				case AdbProtocol.CMD_OKAY:
+				case AdbProtocol.CMD_WRTE:
+				case AdbProtocol.CMD_CLSE:
+				/* We must ignore all packets when not connected */
+					if (!connected)
+						return;
+
+				/* Get the stream object corresponding to the packet */
+					AdbStream waitingStream = openStreams.get(msg.arg1);
+					if (waitingStream == null)
+						return;
+
+					synchronized (waitingStream) {
+						if (msg.command == AdbProtocol.CMD_OKAY) {
+						/* We're ready for writes */
+							waitingStream.updateRemoteId(msg.arg0);
+							waitingStream.readyForWrite();
+
+						/* Unwait an open/write */
+							waitingStream.notify();
+						} else if (msg.command == AdbProtocol.CMD_WRTE) {
+						/* Got some data from our partner, the stream owns the payload now */
+							boolean ready = waitingStream.addPayload(new AdbPayload(msg.payload, msg.payloadLength, bufferPool));
+							msg.payload = null;
+
+						/* Tell it we're ready for more, unless the reader has fallen behind */
+							if (ready)
+								waitingStream.sendReady();
+						} else if (msg.command == AdbProtocol.CMD_CLSE) {
+						/* He doesn't like us anymore :-( */
+							openStreams.remove(msg.arg1);
+
+						/* Notify readers and writers */
+							waitingStream.notifyClose();
+						}
+					}
+
+					break;
+
+				case AdbProtocol.CMD_AUTH:
+
+					byte[] packet;
+
+					if (msg.arg0 == AdbProtocol.AUTH_TYPE_TOKEN) {
+					/* This is an authentication challenge */
+						if (sentSignature) {
+						/* We've already tried our signature, so send our public key */
+							packet = AdbProtocol.generateAuth(AdbProtocol.AUTH_TYPE_RSA_PUBLIC,
+									crypto.getAdbPublicKeyPayload());
+						} else {
+						/* We'll sign the token */
+							packet = AdbProtocol.generateAuth(AdbProtocol.AUTH_TYPE_SIGNATURE,
+									crypto.signAdbTokenPayload(Arrays.copyOf(msg.payload, msg.payloadLength)));
+							sentSignature = true;
+						}
+
+					/* Write the AUTH reply */
+						sendPacket(packet);
+					}
+					break;
+
+				case AdbProtocol.CMD_CNXN:
+					synchronized (this) {
+					/* We need to store the max data size */
+						maxData = msg.arg1;
+
+					/* The peer replies with the lower of the two versions */
+						skipChecksum = Math.min(msg.arg0, AdbProtocol.CONNECT_VERSION) >= AdbProtocol.VERSION_SKIP_CHECKSUM;
+
+					/* Mark us as connected and unwait anyone waiting on the connection */
+						connected = true;
+						notifyAll();
+					}
+					break;
+
+				default:
+				/* Unrecognized packet, just drop it */
+					break;
+			}
+		} finally {
+			/* Payloads that weren't handed to a stream go back to the pool */
+			if (msg.payload != null) {
+				bufferPool.release(msg.payload);
+				msg.payload = null;
+			}
+		}
+	}
+
+	/**
+	 * Cleans up pending streams and notifies waiters once the connection
+	 * has stopped. Called once by the thread that drove the connection.
+	 */
+	void onTransportClosed()
+	{
+		synchronized (this) {
+			cleanupStreams();
+			notifyAll();
+			connectAttempted = false;
+
+			ConnectionOnClosedListener listener = onClosedListener;
+			if(listener != null)listener.onClosed();
+		}
+	}
+
 	/**
 	 * Gets the max data size that the remote client supports.
 	 * A connection must have been attempted before calling this routine.
@@ -278,12 +376,14 @@ public class AdbConnection implements Closeable {
 			throw new IllegalStateException("Already connected");
 
 		/* Write the CONNECT packet */
-		outputStream.write(AdbProtocol.generateConnect());
-		outputStream.flush();
+		sendPacket(AdbProtocol.generateConnect());
 
 		/* Start the connection thread to respond to the peer */
 		connectAttempted = true;
-		connectionThread.start();
+		if (transport != null)
+			transport.start();
+		else
+			connectionThread.start();
 
 		/* Wait for the connection to go live */
 		synchronized (this) {
@@ -329,22 +429,89 @@ public class AdbConnection implements Closeable {
 		openStreams.put(localId, stream);
 
 		/* Send the open */
-		outputStream.write(AdbProtocol.generateOpen(localId, destination));
-		outputStream.flush();
+		byte[] dest = (destination + "\0").getBytes("UTF-8");
+		sendMessage(AdbProtocol.CMD_OPEN, localId, 0, dest, 0, dest.length, true);
 		
-		/* Wait for the connection thread to receive the OKAY */
+		/* Wait for the connection thread to receive the OKAY. A short-lived
+		 * stream may already be closed again by the time we get here. */
 		synchronized (stream) {
-			stream.wait();
+			while (!stream.isOpened() && !stream.isClosed())
+				stream.wait();
 		}
 		
 		/* Check if the open was rejected */
-		if (stream.isClosed())
+		if (!stream.isOpened())
 			throw new ConnectException("Stream open actively rejected by remote peer");
 		
 		/* We're fully setup now */
 		return stream;
 	}
 
+	/**
+	 * Sends a message made of a header and a payload without combining them
+	 * into a new array. Writers on all streams are serialized here.
+	 * @param cmd Command identifier
+	 * @param arg0 First argument
+	 * @param arg1 Second argument
+	 * @param payload Array containing the payload, or null
+	 * @param offset Offset of the payload in the array
+	 * @param length Length of the payload
+	 * @param flush Specifies whether to send the packet immediately
+	 * @throws IOException If the socket fails while sending the packet
+	 */
+	void sendMessage(int cmd, int arg0, int arg1, byte[] payload, int offset, int length, boolean flush) throws IOException
+	{
+		if (transport != null) {
+			transport.send(cmd, arg0, arg1, payload, offset, length, flush);
+			return;
+		}
+
+		synchronized (writeLock) {
+			AdbProtocol.writeHeader(writeHeader, cmd, arg0, arg1, payload, offset, length, !skipChecksum);
+			outputStream.write(writeHeader);
+			if (payload != null && length > 0)
+				outputStream.write(payload, offset, length);
+			if (flush)
+				outputStream.flush();
+		}
+	}
+
+	/**
+	 * Sends a complete prebuilt packet and flushes it.
+	 * @param packet The packet to send
+	 * @throws IOException If the socket fails while sending the packet
+	 */
+	void sendPacket(byte[] packet) throws IOException
+	{
+		if (transport != null) {
+			transport.sendPacket(packet);
+			return;
+		}
+
+		synchronized (writeLock) {
+			outputStream.write(packet);
+			outputStream.flush();
+		}
+	}
+
+	/**
+	 * Retrieves whether packets on this connection carry payload checksums.
+	 * @return False once a peer supporting {@link AdbProtocol#VERSION_SKIP_CHECKSUM} has connected
+	 */
+	boolean usesChecksum()
+	{
+		return !skipChecksum;
+	}
+
+	/**
+	 * Gets the pool that received payloads are taken from.
+	 * @return The buffer pool of this connection
+	 */
+	public AdbBufferPool getBufferPool()
+	{
+		return bufferPool;
+	}
+
 	/**
 	 * This function terminates all I/O on streams associated with this ADB connection
 	 */
@@ -367,6 +534,13 @@ public class AdbConnection implements Closeable {
 	 */
 	@Override
 	public void close() throws IOException {
+		/* A selector-driven connection is cleaned up on the selector thread */
+		if (transport != null) {
+			connected = false;
+			transport.close();
+			return;
+		}
+
 		/* If the connection thread hasn't spawned yet, there's nothing to do */
 		if (connectionThread == null)
 			return;
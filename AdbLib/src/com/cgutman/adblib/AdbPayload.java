@@ -0,0 +1,86 @@
+package com.cgutman.adblib;
+
+/**
+ * The payload of a WRTE message received on an {@link AdbStream}.
+ * The data lives in a pooled array that may be longer than the payload.
+ * Whoever obtains the payload from {@link AdbStream#readPayload()} owns it
+ * and should call {@link #release()} once the data has been consumed, so
+ * the array can be reused for later messages.
+ */
+public final class AdbPayload {
+
+	/** The pooled array holding the data */
+	private byte[] data;
+
+	/** The number of valid bytes at the start of the array */
+	private final int length;
+
+	/** The pool the array is returned to */
+	private final AdbBufferPool pool;
+
+	AdbPayload(byte[] data, int length, AdbBufferPool pool)
+	{
+		this.data = data;
+		this.length = length;
+		this.pool = pool;
+	}
+
+	/**
+	 * Gets the array holding the payload. Only the first
+	 * {@link #getLength()} bytes are valid.
+	 * @return The payload array, or null if the payload was released
+	 */
+	public byte[] getData()
+	{
+		return data;
+	}
+
+	/**
+	 * Gets the length of the payload.
+	 * @return Number of valid bytes
+	 */
+	public int getLength()
+	{
+		return length;
+	}
+
+	/**
+	 * Returns the payload's array to the pool. The data must not be
+	 * used afterwards. Releasing more than once has no effect.
+	 */
+	public void release()
+	{
+		byte[] buffer;
+		synchronized (this) {
+			buffer = data;
+			data = null;
+		}
+		if (buffer != null && pool != null)
+			pool.release(buffer);
+	}
+
+	/**
+	 * Takes the data out of the payload as an array of exactly
+	 * {@link #getLength()} bytes. The pooled array is handed over
+	 * without copying when its length already matches.
+	 * @return The payload data
+	 */
+	byte[] detach()
+	{
+		byte[] buffer;
+		synchronized (this) {
+			buffer = data;
+			data = null;
+		}
+		if (buffer == null)
+			return null;
+		if (buffer.length == length)
+			return buffer;
+
+		byte[] copy = new byte[length];
+		System.arraycopy(buffer, 0, copy, 0, length);
+		if (pool != null)
+			pool.release(buffer);
+		return copy;
+	}
+}
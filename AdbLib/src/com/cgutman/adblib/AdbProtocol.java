@@ -24,10 +24,19 @@ public class AdbProtocol {
 	public static final int CMD_CNXN = 0x4e584e43;
 	
 	/** The current version of the ADB protocol */
-	public static final int CONNECT_VERSION = 0x01000000;
+	public static final int CONNECT_VERSION = 0x01000001;
 	
-	/** The maximum data payload supported by the ADB implementation */
-	public static final int CONNECT_MAXDATA = 4096;
+	/** The first protocol version in which payload checksums are neither
+	 * sent nor verified. Older peers reply with 0x01000000 and keep them. */
+	public static final int VERSION_SKIP_CHECKSUM = 0x01000001;
+	
+	/** The maximum data payload supported by the ADB implementation. The peer
+	 * replies with its own limit, which is 4096 on older devices, and writes
+	 * never exceed the smaller of the two. */
+	public static final int CONNECT_MAXDATA = 256 * 1024;
+	
+	/** The largest payload accepted from the peer (the adbd limit) */
+	static final int MAX_PAYLOAD_LENGTH = 1024 * 1024;
 	
 	/** The payload sent with the connect message */
 	public static byte[] CONNECT_PAYLOAD;
@@ -73,18 +82,36 @@ public class AdbProtocol {
 	 */
 	private static int getPayloadChecksum(byte[] payload)
 	{
-		int checksum = 0;
+		return getPayloadChecksum(payload, 0, payload.length);
+	}
+	
+	/**
+	 * This function performs a checksum on part of an array of ADB payload data.
+	 * @param payload Array containing the payload
+	 * @param offset Offset of the payload in the array
+	 * @param length Length of the payload
+	 * @return The checksum of the payload
+	 */
+	static int getPayloadChecksum(byte[] payload, int offset, int length)
+	{
+		int end = offset + length;
+		int i = offset;
 		
-		for (byte b : payload)
+		/* Independent sums avoid a serial dependency between iterations,
+		 * so the JIT can unroll and vectorize the loop */
+		int sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+		for (; i <= end - 4; i += 4)
 		{
 			/* We have to manually "unsign" these bytes because Java sucks */
-			if (b >= 0)
-				checksum += b;
-			else
-				checksum += b+256;
+			sum0 += payload[i] & 0xFF;
+			sum1 += payload[i + 1] & 0xFF;
+			sum2 += payload[i + 2] & 0xFF;
+			sum3 += payload[i + 3] & 0xFF;
 		}
+		for (; i < end; i++)
+			sum0 += payload[i] & 0xFF;
 		
-		return checksum;
+		return sum0 + sum1 + sum2 + sum3;
 	}
 	
 	/**
@@ -94,14 +121,26 @@ public class AdbProtocol {
 	 * @return True if the message was valid, false otherwise
 	 */
 	public static boolean validateMessage(AdbMessage msg)
+	{
+		return validateMessage(msg, true);
+	}
+	
+	/**
+	 * This function validate the ADB message by checking its command and
+	 * magic, and optionally its payload checksum.
+	 * @param msg ADB message to validate
+	 * @param checkPayload False if the negotiated version skips checksums
+	 * @return True if the message was valid, false otherwise
+	 */
+	static boolean validateMessage(AdbMessage msg, boolean checkPayload)
 	{
 		/* Magic is cmd ^ 0xFFFFFFFF */
 		if (msg.command != (msg.magic ^ 0xFFFFFFFF))
 			return false;
 		
-		if (msg.payloadLength != 0)
+		if (checkPayload && msg.payloadLength != 0)
 		{
-			if (getPayloadChecksum(msg.payload) != msg.checksum)
+			if (getPayloadChecksum(msg.payload, 0, msg.payloadLength) != msg.checksum)
 				return false;
 		}
 		
@@ -164,6 +203,64 @@ public class AdbProtocol {
 		return message.array();
 	}
 	
+	/**
+	 * Writes an ADB message header into an existing array, so that the
+	 * header and payload can be sent without building a combined message.
+	 * @param header Array of at least {@link #ADB_HEADER_LENGTH} bytes to fill
+	 * @param cmd Command identifier
+	 * @param arg0 First argument
+	 * @param arg1 Second argument
+	 * @param payload Array containing the payload, or null
+	 * @param offset Offset of the payload in the array
+	 * @param length Length of the payload
+	 * @param checksum False to leave the checksum field zero, as peers on
+	 * {@link #VERSION_SKIP_CHECKSUM} or later expect
+	 */
+	static void writeHeader(byte[] header, int cmd, int arg0, int arg1, byte[] payload, int offset, int length, boolean checksum)
+	{
+		putInt(header, 0, cmd);
+		putInt(header, 4, arg0);
+		putInt(header, 8, arg1);
+		putInt(header, 12, payload != null ? length : 0);
+		putInt(header, 16, payload != null && checksum ? getPayloadChecksum(payload, offset, length) : 0);
+		putInt(header, 20, cmd ^ 0xFFFFFFFF);
+	}
+	
+	/** Stores a little-endian int */
+	static void putInt(byte[] buffer, int offset, int value)
+	{
+		buffer[offset] = (byte) value;
+		buffer[offset + 1] = (byte) (value >> 8);
+		buffer[offset + 2] = (byte) (value >> 16);
+		buffer[offset + 3] = (byte) (value >> 24);
+	}
+	
+	/** Loads a little-endian int */
+	static int getInt(byte[] buffer, int offset)
+	{
+		return (buffer[offset] & 0xFF) | (buffer[offset + 1] & 0xFF) << 8
+				| (buffer[offset + 2] & 0xFF) << 16 | (buffer[offset + 3] & 0xFF) << 24;
+	}
+	
+	/**
+	 * Fills an array completely from the stream.
+	 * @throws IOException If the stream ends or fails while reading
+	 */
+	private static void readFully(InputStream in, byte[] buffer, int length) throws IOException
+	{
+		int dataRead = 0;
+		do
+		{
+			int bytesRead = in.read(buffer, dataRead, length - dataRead);
+			
+			if (bytesRead < 0)
+				throw new IOException("Stream closed");
+			else
+				dataRead += bytesRead;
+		}
+		while (dataRead < length);
+	}
+	
 	/**
 	 * Generates a connect message with default parameters.
 	 * @return Byte array containing the message
@@ -263,48 +360,63 @@ public class AdbProtocol {
 		public static AdbMessage parseAdbMessage(InputStream in) throws IOException
 		{
 			AdbMessage msg = new AdbMessage();
-			ByteBuffer packet = ByteBuffer.allocate(ADB_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
-			
+			msg.read(in, new byte[ADB_HEADER_LENGTH], null);
+			return msg;
+		}
+		
+		/**
+		 * Read the next ADB message from the supplied input stream into this
+		 * object, so one message object can be reused for every packet.
+		 * The payload array comes from the pool and may be longer than
+		 * {@link #payloadLength}; whoever ends up owning it must release it.
+		 * This message is NOT validated.
+		 * @param in InputStream object to read data from
+		 * @param header Scratch array of {@link #ADB_HEADER_LENGTH} bytes
+		 * @param pool Pool to take the payload array from, or null to allocate it
+		 * @throws IOException If the stream fails while reading
+		 */
+		void read(InputStream in, byte[] header, AdbBufferPool pool) throws IOException
+		{
 			/* Read the header first */
-			int dataRead = 0;
-			do
-			{
-				int bytesRead = in.read(packet.array(), dataRead, 24 - dataRead);
-				
-				if (bytesRead < 0)
-					throw new IOException("Stream closed");
-				else
-					dataRead += bytesRead;
-			}
-			while (dataRead < ADB_HEADER_LENGTH);
-			
-			/* Pull out header fields */
-			msg.command = packet.getInt();
-			msg.arg0 = packet.getInt();
-			msg.arg1 = packet.getInt();
-			msg.payloadLength = packet.getInt();
-			msg.checksum = packet.getInt();
-			msg.magic = packet.getInt();
+			readFully(in, header, ADB_HEADER_LENGTH);
+			parseHeader(header, pool);
 			
 			/* If there's a payload supplied, read that too */
-			if (msg.payloadLength != 0)
+			if (payloadLength != 0)
 			{
-				msg.payload = new byte[msg.payloadLength];
-				
-				dataRead = 0;
-				do
-				{
-					int bytesRead = in.read(msg.payload, dataRead, msg.payloadLength - dataRead);
-					
-					if (bytesRead < 0)
-						throw new IOException("Stream closed");
-					else
-						dataRead += bytesRead;
+				try {
+					readFully(in, payload, payloadLength);
+				} catch (IOException e) {
+					if (pool != null)
+						pool.release(payload);
+					payload = null;
+					throw e;
 				}
-				while (dataRead < msg.payloadLength);
 			}
+		}
+		
+		/**
+		 * Pull the fields out of a complete header and allocate the payload
+		 * array, which is left for the caller to fill.
+		 * @param header Array holding the {@link #ADB_HEADER_LENGTH} header bytes
+		 * @param pool Pool to take the payload array from, or null to allocate it
+		 * @throws IOException If the header announces an invalid payload length
+		 */
+		void parseHeader(byte[] header, AdbBufferPool pool) throws IOException
+		{
+			command = getInt(header, 0);
+			arg0 = getInt(header, 4);
+			arg1 = getInt(header, 8);
+			payloadLength = getInt(header, 12);
+			checksum = getInt(header, 16);
+			magic = getInt(header, 20);
+			payload = null;
 			
-			return msg;
+			if (payloadLength < 0 || payloadLength > MAX_PAYLOAD_LENGTH)
+				throw new IOException("Invalid payload length " + payloadLength);
+			
+			if (payloadLength != 0)
+				payload = pool != null ? pool.acquire(payloadLength) : new byte[payloadLength];
 		}
 	}
 }
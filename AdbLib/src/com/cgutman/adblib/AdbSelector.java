@@ -0,0 +1,177 @@
+package com.cgutman.adblib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class drives any number of non-blocking ADB connections from a
+ * single thread. Connections created with
+ * {@link AdbConnection#create(SocketChannel, AdbCrypto, AdbSelector)} are
+ * read and written by this thread instead of each having a connection
+ * thread of its own. The blocking AdbConnection and AdbStream API works
+ * the same on top of it.
+ */
+public class AdbSelector implements Closeable {
+
+	/** The selector watching the channels of all connections */
+	private final Selector selector;
+
+	/** The thread that performs all I/O for the connections */
+	private final Thread selectorThread;
+
+	/** Work handed to the selector thread by other threads */
+	private final ConcurrentLinkedQueue<Runnable> tasks;
+
+	/** Specifies whether the selector thread should keep running */
+	private volatile boolean running;
+
+	/**
+	 * Internal constructor to initialize some internal state
+	 */
+	private AdbSelector(Selector selector)
+	{
+		this.selector = selector;
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+		this.running = true;
+		this.selectorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runLoop();
+			}
+		}, "AdbSelector");
+		this.selectorThread.setDaemon(true);
+	}
+
+	/**
+	 * Creates a selector and starts its thread.
+	 * @return A new AdbSelector object
+	 * @throws IOException If the selector cannot be opened
+	 */
+	public static AdbSelector open() throws IOException
+	{
+		AdbSelector newSelector = new AdbSelector(Selector.open());
+		newSelector.selectorThread.start();
+		return newSelector;
+	}
+
+	/**
+	 * Runs a task on the selector thread.
+	 * @param task The task to run
+	 */
+	void execute(Runnable task)
+	{
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Retrieves whether the calling thread is the selector thread
+	 * @return True if called on the selector thread
+	 */
+	boolean inSelectorThread()
+	{
+		return Thread.currentThread() == selectorThread;
+	}
+
+	/**
+	 * Retrieves whether the selector thread still accepts work
+	 * @return True if the selector is running
+	 */
+	boolean isRunning()
+	{
+		return running;
+	}
+
+	/**
+	 * Registers a channel with this selector. Must be called on the selector thread.
+	 * @param channel The channel to watch
+	 * @param transport The transport that handles events on the channel
+	 * @return The selection key of the channel
+	 * @throws ClosedChannelException If the channel is already closed
+	 */
+	SelectionKey register(SocketChannel channel, AdbChannelTransport transport) throws ClosedChannelException
+	{
+		return channel.register(selector, SelectionKey.OP_READ, transport);
+	}
+
+	/**
+	 * The main loop of the selector thread
+	 */
+	private void runLoop()
+	{
+		while (running)
+		{
+			try {
+				selector.select();
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+
+			runTasks();
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext())
+			{
+				SelectionKey key = keys.next();
+				keys.remove();
+				((AdbChannelTransport) key.attachment()).onSelected(key);
+			}
+		}
+		running = false;
+
+		/* Let queued work finish, then shut down the remaining connections */
+		runTasks();
+		ArrayList<AdbChannelTransport> transports = new ArrayList<AdbChannelTransport>();
+		for (SelectionKey key : selector.keys())
+			transports.add((AdbChannelTransport) key.attachment());
+		for (AdbChannelTransport transport : transports)
+			transport.shutdown();
+
+		try {
+			selector.close();
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Runs the tasks handed to the selector thread so far
+	 */
+	private void runTasks()
+	{
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+		{
+			/* A failing task must not stop the other connections */
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Stops the selector thread. All connections that it drives are closed.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		running = false;
+		selector.wakeup();
+
+		if (!inSelectorThread()) {
+			try {
+				selectorThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -2,6 +2,11 @@ package com.cgutman.adblib;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -12,6 +17,10 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class AdbStream implements Closeable {
 	
+	/** The default number of received bytes that may wait unread before
+	 * OKAYs are withheld from the peer */
+	public static final int DEFAULT_RECEIVE_WINDOW = 1024 * 1024;
+	
 	/** The AdbConnection object that the stream communicates over */
 	private AdbConnection adbConn;
 	
@@ -25,11 +34,38 @@ public class AdbStream implements Closeable {
 	private AtomicBoolean writeReady;
 	
 	/** A queue of data from the target's write packets */
-	private Queue<byte[]> readQueue;
+	private Queue<AdbPayload> readQueue;
 	
 	/** Indicates whether the connection is closed already */
 	private boolean isClosed;
 	
+	/** Serializes writers and guards the coalescing buffer */
+	private final Object writeLock = new Object();
+	
+	/** Small writes collected into one packet, or null if nothing is pending */
+	private byte[] pendingData;
+	
+	/** The number of bytes in pendingData */
+	private int pendingLength;
+	
+	/** Received bytes that may wait unread before the peer is throttled */
+	private volatile int receiveWindow = DEFAULT_RECEIVE_WINDOW;
+	
+	/** The number of bytes in readQueue, guarded by readQueue */
+	private int queuedBytes;
+	
+	/** Indicates that the OKAY for the last write was withheld, guarded by readQueue */
+	private boolean readyWithheld;
+	
+	/** Serializes the stream views and guards the payload they consume */
+	private final Object viewLock = new Object();
+	
+	/** The payload being consumed by the stream views, or null */
+	private AdbPayload viewPayload;
+	
+	/** The read position in viewPayload */
+	private int viewOffset;
+	
 	/**
 	 * Creates a new AdbStream object on the specified AdbConnection
 	 * with the given local ID.
@@ -40,34 +76,89 @@ public class AdbStream implements Closeable {
 	{
 		this.adbConn = adbConn;
 		this.localId = localId;
-		this.readQueue = new ConcurrentLinkedQueue<byte[]>();
+		this.readQueue = new ConcurrentLinkedQueue<AdbPayload>();
 		this.writeReady = new AtomicBoolean(false);
 		this.isClosed = false;
 	}
 	
 	/**
 	 * Called by the connection thread to indicate newly received data.
+	 * The peer sends no more data until it gets an OKAY, so the OKAY is
+	 * withheld while the unread data exceeds the receive window and sent
+	 * by the reader once it catches up.
 	 * @param payload Data inside the write message
+	 * @return True if the OKAY should be sent now
 	 */
-	void addPayload(byte[] payload)
+	boolean addPayload(AdbPayload payload)
 	{
 		synchronized (readQueue) {
+			/* Nothing arrives after the peer's close, so this stream was closed by us */
+			if (isClosed) {
+				payload.release();
+				return false;
+			}
 			readQueue.add(payload);
+			queuedBytes += payload.getLength();
 			readQueue.notifyAll();
+			
+			if (queuedBytes > receiveWindow) {
+				readyWithheld = true;
+				return false;
+			}
+			return true;
 		}
 	}
 	
 	/**
-	 * Called by the connection thread to send an OKAY packet, allowing the
-	 * other side to continue transmission.
+	 * Sets how many received bytes may wait unread before the peer is
+	 * throttled. A slow reader then holds back the peer instead of
+	 * letting received data pile up in memory.
+	 * @param bytes The receive window in bytes, 0 to allow only one packet at a time
+	 * @throws IOException If the connection fails while sending a withheld OKAY
+	 */
+	public void setReceiveWindow(int bytes) throws IOException
+	{
+		if (bytes < 0)
+			throw new IllegalArgumentException("Negative receive window");
+		
+		receiveWindow = bytes;
+		sendWithheldReady();
+	}
+	
+	/**
+	 * Gets the receive window of the stream.
+	 * @return The receive window in bytes
+	 */
+	public int getReceiveWindow()
+	{
+		return receiveWindow;
+	}
+	
+	/**
+	 * Sends the OKAY that was withheld from the peer once the unread
+	 * data fits in the receive window again.
+	 */
+	private void sendWithheldReady() throws IOException
+	{
+		synchronized (readQueue) {
+			if (!readyWithheld || queuedBytes > receiveWindow || isClosed)
+				return;
+			readyWithheld = false;
+		}
+		
+		sendReady();
+	}
+	
+	/**
+	 * Called by the connection thread, or by a reader that caught up with a
+	 * throttled peer, to send an OKAY packet, allowing the other side to
+	 * continue transmission.
 	 * @throws IOException If the connection fails while sending the packet
 	 */
 	void sendReady() throws IOException
 	{
-		/* Generate and send a READY packet */
-		byte[] packet = AdbProtocol.generateReady(localId, remoteId);
-		adbConn.outputStream.write(packet);
-		adbConn.outputStream.flush();
+		/* Send a READY packet */
+		adbConn.sendMessage(AdbProtocol.CMD_OKAY, localId, remoteId, null, 0, 0, true);
 	}
 	
 	/**
@@ -79,6 +170,16 @@ public class AdbStream implements Closeable {
 		this.remoteId = remoteId;
 	}
 	
+	/**
+	 * Retrieves whether the peer has accepted the stream
+	 * @return True once an OKAY has been received
+	 */
+	boolean isOpened()
+	{
+		/* The peer never uses 0 as a stream ID */
+		return remoteId != 0;
+	}
+	
 	/**
 	 * Called by the connection thread to indicate the stream is okay to send data.
 	 */
@@ -112,22 +213,229 @@ public class AdbStream implements Closeable {
 	 */
 	public byte[] read() throws InterruptedException, IOException
 	{
-		byte[] data = null;
+		return readPayload().detach();
+	}
+	
+	/**
+	 * Reads a pending write payload from the other side without copying it.
+	 * The caller owns the returned payload and should release it once the
+	 * data has been consumed.
+	 * @return The payload of the write
+	 * @throws InterruptedException If we are unable to wait for data
+	 * @throws IOException If the stream fails while waiting
+	 */
+	public AdbPayload readPayload() throws InterruptedException, IOException
+	{
+		AdbPayload data = takePayload();
+		if (data == null)
+			throw new IOException("Stream closed");
+		
+		return data;
+	}
+	
+	/**
+	 * Takes the next payload from the queue and lets the peer continue
+	 * if it was throttled.
+	 * @return The payload, or null once the stream is closed and drained
+	 */
+	private AdbPayload takePayload() throws InterruptedException
+	{
+		AdbPayload data;
 		
 		synchronized (readQueue) {
-			/* Wait for the connection to close or data to be received */
-			while (!isClosed && (data = readQueue.poll()) == null) {
+			/* Wait for data to be received, data sent before the close is still returned */
+			while ((data = readQueue.poll()) == null) {
+				if (isClosed)
+					return null;
 				readQueue.wait();
 			}
-			
-			if (isClosed) {
-				throw new IOException("Stream closed");
-			}
+			queuedBytes -= data.getLength();
+		}
+		
+		try {
+			sendWithheldReady();
+		} catch (IOException e) {
+			/* The connection is going away, which closes this stream as well */
 		}
 		
 		return data;
 	}
 	
+	/**
+	 * Gets the payload the stream views read from next. Called with viewLock held.
+	 * @return The payload, or null at the end of the stream
+	 */
+	private AdbPayload nextViewPayload() throws InterruptedException
+	{
+		while (viewPayload == null || viewOffset >= viewPayload.getLength()) {
+			if (viewPayload != null)
+				viewPayload.release();
+			
+			viewPayload = takePayload();
+			viewOffset = 0;
+			if (viewPayload == null)
+				return null;
+		}
+		
+		return viewPayload;
+	}
+	
+	/**
+	 * Gets an InputStream that reads the data received on this stream.
+	 * It reports the end of the stream once the peer has closed it and
+	 * all data has been read. Closing it closes this stream. The
+	 * InputStream, the channel and readPayload() should not be mixed.
+	 * @return An InputStream view of this stream
+	 */
+	public InputStream getInputStream()
+	{
+		return new InputStream() {
+			@Override
+			public int read() throws IOException {
+				synchronized (viewLock) {
+					AdbPayload payload = nextPayload();
+					if (payload == null)
+						return -1;
+					return payload.getData()[viewOffset++] & 0xFF;
+				}
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0)
+					return 0;
+				
+				synchronized (viewLock) {
+					AdbPayload payload = nextPayload();
+					if (payload == null)
+						return -1;
+					
+					int count = Math.min(len, payload.getLength() - viewOffset);
+					System.arraycopy(payload.getData(), viewOffset, b, off, count);
+					viewOffset += count;
+					return count;
+				}
+			}
+			
+			@Override
+			public int available() {
+				int count = 0;
+				synchronized (viewLock) {
+					if (viewPayload != null)
+						count = viewPayload.getLength() - viewOffset;
+				}
+				synchronized (readQueue) {
+					return count + queuedBytes;
+				}
+			}
+			
+			@Override
+			public void close() throws IOException {
+				AdbStream.this.close();
+			}
+			
+			private AdbPayload nextPayload() throws IOException {
+				try {
+					return nextViewPayload();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Gets a channel that reads the data received on this stream, copying
+	 * straight from the received payloads into the caller's buffers. It
+	 * reports the end of the stream once the peer has closed it and all
+	 * data has been read. Closing it closes this stream.
+	 * @return A ReadableByteChannel view of this stream
+	 */
+	public ReadableByteChannel getReadableChannel()
+	{
+		return new ReadableByteChannel() {
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				if (!dst.hasRemaining())
+					return 0;
+				
+				synchronized (viewLock) {
+					AdbPayload payload;
+					try {
+						payload = nextViewPayload();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException();
+					}
+					if (payload == null)
+						return -1;
+					
+					int count = Math.min(dst.remaining(), payload.getLength() - viewOffset);
+					dst.put(payload.getData(), viewOffset, count);
+					viewOffset += count;
+					return count;
+				}
+			}
+			
+			@Override
+			public boolean isOpen() {
+				return !isClosed;
+			}
+			
+			@Override
+			public void close() throws IOException {
+				AdbStream.this.close();
+			}
+		};
+	}
+	
+	/**
+	 * Gets an OutputStream that writes to this stream. Writes are
+	 * coalesced into full packets until the OutputStream is flushed.
+	 * Closing it flushes it and closes this stream.
+	 * @return An OutputStream view of this stream
+	 */
+	public OutputStream getOutputStream()
+	{
+		return new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[]{(byte) b}, 0, 1);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				try {
+					AdbStream.this.write(b, off, len, false);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			
+			@Override
+			public void flush() throws IOException {
+				try {
+					AdbStream.this.flush();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+			
+			@Override
+			public void close() throws IOException {
+				try {
+					if (!isClosed)
+						flush();
+				} finally {
+					AdbStream.this.close();
+				}
+			}
+		};
+	}
+	
 	/**
 	 * Sends a write packet with a given String payload.
 	 * @param payload Payload in the form of a String
@@ -153,13 +461,93 @@ public class AdbStream implements Closeable {
 	}
 	
 	/**
-	 * Queues a write packet and optionally sends it immediately.
+	 * Queues data for writing and optionally sends it immediately.
 	 * @param payload Payload in the form of a byte array
-	 * @param flush Specifies whether to send the packet immediately
+	 * @param flush Specifies whether to send the data immediately
 	 * @throws IOException If the stream fails while sending data
 	 * @throws InterruptedException If we are unable to wait to send data
 	 */
 	public void write(byte[] payload, boolean flush) throws IOException, InterruptedException
+	{
+		write(payload, 0, payload.length, flush);
+	}
+	
+	/**
+	 * Queues part of a byte array for writing and optionally sends it immediately.
+	 * Data written without flushing is coalesced with later writes into packets
+	 * of the maximum size the peer accepts, and large writes are split into
+	 * such packets. Each packet still waits for the OKAY of the previous one.
+	 * @param payload Array containing the payload
+	 * @param offset Offset of the payload in the array
+	 * @param length Length of the payload
+	 * @param flush Specifies whether to send the data immediately
+	 * @throws IOException If the stream fails while sending data
+	 * @throws InterruptedException If we are unable to wait to send data
+	 */
+	public void write(byte[] payload, int offset, int length, boolean flush) throws IOException, InterruptedException
+	{
+		int maxData = Math.min(adbConn.getMaxData(), AdbProtocol.CONNECT_MAXDATA);
+		
+		synchronized (writeLock) {
+			while (length > 0) {
+				if (pendingLength == 0 && length >= maxData) {
+					/* Full packets go straight from the caller's array */
+					sendWrite(payload, offset, maxData);
+					offset += maxData;
+					length -= maxData;
+					continue;
+				}
+				
+				/* Collect the rest until the packet is full or flushed */
+				if (pendingData == null)
+					pendingData = adbConn.bufferPool.acquire(maxData);
+				int count = Math.min(length, maxData - pendingLength);
+				System.arraycopy(payload, offset, pendingData, pendingLength, count);
+				pendingLength += count;
+				offset += count;
+				length -= count;
+				
+				if (pendingLength == maxData)
+					sendPending();
+			}
+			
+			if (flush)
+				sendPending();
+		}
+	}
+	
+	/**
+	 * Sends any data queued by writes that were not flushed.
+	 * @throws IOException If the stream fails while sending data
+	 * @throws InterruptedException If we are unable to wait to send data
+	 */
+	public void flush() throws IOException, InterruptedException
+	{
+		synchronized (writeLock) {
+			sendPending();
+		}
+	}
+	
+	/**
+	 * Sends the coalesced data as one packet. Called with writeLock held.
+	 */
+	private void sendPending() throws IOException, InterruptedException
+	{
+		if (pendingLength == 0)
+			return;
+		
+		sendWrite(pendingData, 0, pendingLength);
+		
+		adbConn.bufferPool.release(pendingData);
+		pendingData = null;
+		pendingLength = 0;
+	}
+	
+	/**
+	 * Waits for the OKAY of the previous packet and sends a WRTE packet.
+	 * Called with writeLock held.
+	 */
+	private void sendWrite(byte[] payload, int offset, int length) throws IOException, InterruptedException
 	{
 		synchronized (this) {
 			/* Make sure we're ready for a write */
@@ -171,16 +559,13 @@ public class AdbStream implements Closeable {
 			}
 		}
 		
-		/* Generate a WRITE packet and send it */
-		byte[] packet = AdbProtocol.generateWrite(localId, remoteId, payload);
-		adbConn.outputStream.write(packet);
-		
-		if (flush)
-			adbConn.outputStream.flush();
+		/* Send a WRITE packet straight from the array */
+		adbConn.sendMessage(AdbProtocol.CMD_WRTE, localId, remoteId, payload, offset, length, true);
 	}
 
 	/**
 	 * Closes the stream. This sends a close message to the peer.
+	 * Data that was written without flushing is discarded.
 	 * @throws IOException If the stream fails while sending the close message.
 	 */
 	@Override
@@ -194,9 +579,15 @@ public class AdbStream implements Closeable {
 			notifyClose();
 		}
 		
-		byte[] packet = AdbProtocol.generateClose(localId, remoteId);
-		adbConn.outputStream.write(packet);
-		adbConn.outputStream.flush();
+		/* Nobody can read the queued payloads anymore */
+		synchronized (readQueue) {
+			AdbPayload payload;
+			while ((payload = readQueue.poll()) != null)
+				payload.release();
+			queuedBytes = 0;
+		}
+		
+		adbConn.sendMessage(AdbProtocol.CMD_CLSE, localId, remoteId, null, 0, 0, true);
 	}
 
 	/**
@@ -0,0 +1,474 @@
+package com.cgutman.adblib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class is a client for the ADB file sync service ("sync:").
+ * The service answers requests in the order they were sent, so several
+ * requests are written before the first reply is read where possible.
+ * File data is streamed as DATA frames without waiting for the device
+ * between frames; the stream packs them into packets of the negotiated
+ * maximum size. An AdbSync object must not be used by several threads at
+ * once, and should be closed after any I/O error because the position in
+ * the reply stream is lost.
+ */
+public class AdbSync implements Closeable {
+
+	/** The largest DATA frame the sync service accepts */
+	public static final int MAX_DATA = 64 * 1024;
+
+	/** The longest remote path the sync service accepts */
+	public static final int MAX_PATH = 1024;
+
+	/** Request and reply identifiers, as little-endian ASCII */
+	private static final int ID_STAT = id("STAT");
+	private static final int ID_LIST = id("LIST");
+	private static final int ID_SEND = id("SEND");
+	private static final int ID_RECV = id("RECV");
+	private static final int ID_DENT = id("DENT");
+	private static final int ID_DATA = id("DATA");
+	private static final int ID_DONE = id("DONE");
+	private static final int ID_OKAY = id("OKAY");
+	private static final int ID_FAIL = id("FAIL");
+	private static final int ID_QUIT = id("QUIT");
+
+	/** File type bits of a mode */
+	private static final int S_IFMT = 0170000;
+	private static final int S_IFDIR = 0040000;
+	private static final int S_IFREG = 0100000;
+
+	/**
+	 * Receives progress updates during a push or pull.
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called after each DATA frame.
+		 * @param transferred Bytes transferred so far
+		 * @param total Size of the file, or -1 if it is unknown
+		 */
+		void onProgress(long transferred, long total);
+	}
+
+	/**
+	 * The attributes of a remote file as reported by STAT or LIST.
+	 */
+	public static final class Entry {
+		private final String name;
+		private final int mode;
+		private final long size;
+		private final long mtime;
+
+		Entry(String name, int mode, long size, long mtime)
+		{
+			this.name = name;
+			this.mode = mode;
+			this.size = size;
+			this.mtime = mtime;
+		}
+
+		/**
+		 * Gets the file name. For STAT this is the requested path.
+		 * @return The name of the file
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * Gets the mode, including the file type bits.
+		 * @return The mode, or 0 if the file does not exist
+		 */
+		public int getMode()
+		{
+			return mode;
+		}
+
+		/**
+		 * Gets the size. The sync service reports only the low 32 bits.
+		 * @return The size in bytes
+		 */
+		public long getSize()
+		{
+			return size;
+		}
+
+		/**
+		 * Gets the modification time.
+		 * @return Seconds since the epoch
+		 */
+		public long getModifiedTime()
+		{
+			return mtime;
+		}
+
+		/**
+		 * Retrieves whether the file exists
+		 * @return True if the file exists
+		 */
+		public boolean exists()
+		{
+			return mode != 0;
+		}
+
+		/**
+		 * Retrieves whether the file is a directory
+		 * @return True if the file is a directory
+		 */
+		public boolean isDirectory()
+		{
+			return (mode & S_IFMT) == S_IFDIR;
+		}
+
+		/**
+		 * Retrieves whether the file is a regular file
+		 * @return True if the file is a regular file
+		 */
+		public boolean isFile()
+		{
+			return (mode & S_IFMT) == S_IFREG;
+		}
+	}
+
+	/** The sync stream */
+	private final AdbStream stream;
+
+	/** Scratch array for frame headers */
+	private final byte[] header = new byte[20];
+
+	/** Buffer for DATA frames of a push, allocated on first use */
+	private byte[] dataBuffer;
+
+	/** The payload being consumed, or null */
+	private AdbPayload current;
+
+	/** The read position in the current payload */
+	private int currentOffset;
+
+	/**
+	 * Creates a sync client on an open sync stream.
+	 * @param stream A stream opened to "sync:"
+	 */
+	public AdbSync(AdbStream stream)
+	{
+		this.stream = stream;
+	}
+
+	/**
+	 * Opens the sync service on a connection.
+	 * @param connection The connection to the device
+	 * @return A new AdbSync object
+	 * @throws IOException If the stream fails to open
+	 * @throws InterruptedException If we are unable to wait for the stream to open
+	 */
+	public static AdbSync open(AdbConnection connection) throws IOException, InterruptedException
+	{
+		return new AdbSync(connection.open("sync:"));
+	}
+
+	/**
+	 * Gets the attributes of a remote file.
+	 * @param path The remote path
+	 * @return The attributes, which report a mode of 0 if the file does not exist
+	 * @throws IOException If the stream fails
+	 * @throws InterruptedException If we are unable to wait for the stream
+	 */
+	public Entry stat(String path) throws IOException, InterruptedException
+	{
+		writeRequest(ID_STAT, path, true);
+		return readStat(path);
+	}
+
+	/**
+	 * Gets the attributes of several remote files. All requests are sent
+	 * before the first reply is read.
+	 * @param paths The remote paths
+	 * @return The attributes in the order of the paths
+	 * @throws IOException If the stream fails
+	 * @throws InterruptedException If we are unable to wait for the stream
+	 */
+	public List<Entry> stat(List<String> paths) throws IOException, InterruptedException
+	{
+		for (String path : paths)
+			writeRequest(ID_STAT, path, false);
+		stream.flush();
+
+		List<Entry> entries = new ArrayList<Entry>(paths.size());
+		for (String path : paths)
+			entries.add(readStat(path));
+		return entries;
+	}
+
+	/**
+	 * Lists a remote directory.
+	 * @param path The remote directory
+	 * @return The directory entries, including "." and ".." if the device reports them
+	 * @throws IOException If the stream fails
+	 * @throws InterruptedException If we are unable to wait for the stream
+	 */
+	public List<Entry> list(String path) throws IOException, InterruptedException
+	{
+		writeRequest(ID_LIST, path, true);
+
+		List<Entry> entries = new ArrayList<Entry>();
+		while (true) {
+			/* DENT and DONE: id, mode, size, time, name length. FAIL only
+			 * has an id and a length. */
+			readFully(header, 0, 8);
+			int id = AdbProtocol.getInt(header, 0);
+			if (id == ID_FAIL)
+				throw new IOException(readString(AdbProtocol.getInt(header, 4)));
+			readFully(header, 8, 12);
+			if (id == ID_DONE)
+				return entries;
+			if (id != ID_DENT)
+				throw new IOException("Unexpected sync reply " + Integer.toHexString(id));
+
+			int mode = AdbProtocol.getInt(header, 4);
+			long size = AdbProtocol.getInt(header, 8) & 0xFFFFFFFFL;
+			long mtime = AdbProtocol.getInt(header, 12) & 0xFFFFFFFFL;
+			String name = readString(AdbProtocol.getInt(header, 16));
+			entries.add(new Entry(name, mode, size, mtime));
+		}
+	}
+
+	/**
+	 * Writes a remote file from a channel. The data is streamed in DATA
+	 * frames of {@link #MAX_DATA} bytes without waiting for the device.
+	 * @param source The channel to read the file contents from until it ends
+	 * @param size The number of bytes the source will provide, or -1 if
+	 * unknown; only used for progress reporting
+	 * @param remotePath The remote path
+	 * @param permissions The permission bits of the remote file, such as 0644
+	 * @param mtime Modification time of the remote file in seconds since the epoch
+	 * @param listener Receives progress updates, or null
+	 * @return The number of bytes written
+	 * @throws IOException If the source or the stream fails, or the device rejects the file
+	 * @throws InterruptedException If we are unable to wait for the stream
+	 */
+	public long push(ReadableByteChannel source, long size, String remotePath, int permissions,
+			long mtime, ProgressListener listener) throws IOException, InterruptedException
+	{
+		writeRequest(ID_SEND, remotePath + "," + (S_IFREG | (permissions & 0777)), false);
+
+		if (dataBuffer == null)
+			dataBuffer = new byte[MAX_DATA];
+		ByteBuffer buffer = ByteBuffer.wrap(dataBuffer);
+
+		long sent = 0;
+		boolean eof = false;
+		while (!eof) {
+			/* Fill a whole frame, channels may return less than requested */
+			buffer.clear();
+			while (buffer.hasRemaining()) {
+				if (source.read(buffer) < 0) {
+					eof = true;
+					break;
+				}
+			}
+			if (buffer.position() == 0)
+				break;
+
+			writeFrame(ID_DATA, buffer.position(), false);
+			stream.write(dataBuffer, 0, buffer.position(), false);
+			sent += buffer.position();
+
+			if (listener != null)
+				listener.onProgress(sent, size);
+		}
+
+		writeFrame(ID_DONE, (int) mtime, true);
+
+		/* The device confirms the whole file at once */
+		readFully(header, 0, 8);
+		int id = AdbProtocol.getInt(header, 0);
+		if (id == ID_FAIL)
+			throw new IOException(readString(AdbProtocol.getInt(header, 4)));
+		if (id != ID_OKAY)
+			throw new IOException("Unexpected sync reply " + Integer.toHexString(id));
+
+		return sent;
+	}
+
+	/**
+	 * Reads a remote file into a channel. The file is stat'ed in the same
+	 * round trip so progress can report its size.
+	 * @param remotePath The remote path
+	 * @param target The channel to write the file contents to
+	 * @param listener Receives progress updates, or null
+	 * @return The number of bytes read
+	 * @throws IOException If the target or the stream fails, or the device can't read the file
+	 * @throws InterruptedException If we are unable to wait for the stream
+	 */
+	public long pull(String remotePath, WritableByteChannel target, ProgressListener listener) throws IOException, InterruptedException
+	{
+		if (listener != null)
+			writeRequest(ID_STAT, remotePath, false);
+		writeRequest(ID_RECV, remotePath, true);
+
+		long size = -1;
+		if (listener != null) {
+			Entry entry = readStat(remotePath);
+			if (entry.exists())
+				size = entry.getSize();
+		}
+
+		long received = 0;
+		while (true) {
+			readFully(header, 0, 8);
+			int id = AdbProtocol.getInt(header, 0);
+			int length = AdbProtocol.getInt(header, 4);
+			if (id == ID_DONE)
+				return received;
+			if (id == ID_FAIL)
+				throw new IOException(readString(length));
+			if (id != ID_DATA || length < 0)
+				throw new IOException("Unexpected sync reply " + Integer.toHexString(id));
+
+			transferTo(target, length);
+			received += length;
+
+			if (listener != null)
+				listener.onProgress(received, size);
+		}
+	}
+
+	/**
+	 * Ends the sync session and closes the stream.
+	 * @throws IOException If the stream fails to close
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		try {
+			if (!stream.isClosed())
+				writeFrame(ID_QUIT, 0, true);
+		} catch (IOException e) {
+			/* The stream is closed below either way */
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		if (current != null) {
+			current.release();
+			current = null;
+		}
+
+		stream.close();
+	}
+
+	/**
+	 * Reads a STAT reply.
+	 */
+	private Entry readStat(String path) throws IOException, InterruptedException
+	{
+		/* id, mode, size, time */
+		readFully(header, 0, 16);
+		int id = AdbProtocol.getInt(header, 0);
+		if (id != ID_STAT)
+			throw new IOException("Unexpected sync reply " + Integer.toHexString(id));
+
+		return new Entry(path, AdbProtocol.getInt(header, 4),
+				AdbProtocol.getInt(header, 8) & 0xFFFFFFFFL, AdbProtocol.getInt(header, 12) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Writes a request that carries a path.
+	 */
+	private void writeRequest(int id, String path, boolean flush) throws IOException, InterruptedException
+	{
+		byte[] data = path.getBytes("UTF-8");
+		if (data.length > MAX_PATH)
+			throw new IOException("Path too long: " + path);
+
+		writeFrame(id, data.length, false);
+		stream.write(data, 0, data.length, flush);
+	}
+
+	/**
+	 * Writes a frame header made of an id and a length or argument.
+	 */
+	private void writeFrame(int id, int value, boolean flush) throws IOException, InterruptedException
+	{
+		AdbProtocol.putInt(header, 0, id);
+		AdbProtocol.putInt(header, 4, value);
+		stream.write(header, 0, 8, flush);
+	}
+
+	/**
+	 * Gets the payload to read from next, waiting for one if the current
+	 * payload has been consumed.
+	 */
+	private AdbPayload nextPayload() throws IOException, InterruptedException
+	{
+		if (current != null && currentOffset < current.getLength())
+			return current;
+
+		if (current != null) {
+			current.release();
+			current = null;
+		}
+
+		current = stream.readPayload();
+		currentOffset = 0;
+		return current;
+	}
+
+	/**
+	 * Fills part of an array from the reply stream.
+	 */
+	private void readFully(byte[] buffer, int offset, int length) throws IOException, InterruptedException
+	{
+		while (length > 0) {
+			AdbPayload payload = nextPayload();
+			int count = Math.min(length, payload.getLength() - currentOffset);
+			System.arraycopy(payload.getData(), currentOffset, buffer, offset, count);
+			currentOffset += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Moves bytes from the reply stream to a channel without copying them.
+	 */
+	private void transferTo(WritableByteChannel target, int length) throws IOException, InterruptedException
+	{
+		while (length > 0) {
+			AdbPayload payload = nextPayload();
+			int count = Math.min(length, payload.getLength() - currentOffset);
+			ByteBuffer buffer = ByteBuffer.wrap(payload.getData(), currentOffset, count);
+			while (buffer.hasRemaining())
+				target.write(buffer);
+			currentOffset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Reads a UTF-8 string of the given length from the reply stream.
+	 */
+	private String readString(int length) throws IOException, InterruptedException
+	{
+		if (length < 0 || length > MAX_DATA)
+			throw new IOException("Invalid sync string length " + length);
+
+		byte[] data = new byte[length];
+		readFully(data, 0, length);
+		return new String(data, "UTF-8");
+	}
+
+	/**
+	 * Builds a request identifier from its four ASCII characters.
+	 */
+	private static int id(String name)
+	{
+		return name.charAt(0) | name.charAt(1) << 8 | name.charAt(2) << 16 | name.charAt(3) << 24;
+	}
+}
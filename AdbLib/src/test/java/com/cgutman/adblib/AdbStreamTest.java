@@ -0,0 +1,163 @@
+package com.cgutman.adblib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Checks the receive window and the stream views of AdbStream against
+ * {@link FakeAdbd}, over both the socket and the selector transport.
+ */
+@RunWith(Parameterized.class)
+public class AdbStreamTest {
+
+	@Parameters(name = "selector {0}")
+	public static Collection<Object[]> transports()
+	{
+		return Arrays.asList(new Object[][] { { false }, { true } });
+	}
+
+	private static final int MAX_DATA = 64 * 1024;
+	private static final int WINDOW = 256 * 1024;
+	private static final long TOTAL = 8 * 1024 * 1024;
+
+	private final boolean useSelector;
+	private FakeAdbd device;
+	private AdbSelector selector;
+	private AdbConnection conn;
+
+	public AdbStreamTest(boolean useSelector)
+	{
+		this.useSelector = useSelector;
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		device = new FakeAdbd(AdbProtocol.CONNECT_VERSION, MAX_DATA);
+		if (useSelector) {
+			selector = AdbSelector.open();
+			conn = device.connect(selector);
+		} else {
+			conn = device.connect();
+		}
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		conn.close();
+		if (selector != null)
+			selector.close();
+		device.close();
+		assertEquals("packets with a bad magic or checksum", 0, device.getProtocolErrors());
+	}
+
+	/**
+	 * Waits until the device has stopped sending on a stream and returns
+	 * how much it sent.
+	 */
+	private static long awaitStalled(FakeAdbd.FakeStream stream) throws InterruptedException
+	{
+		long sent = -1;
+		for (int i = 0; i < 100; i++) {
+			Thread.sleep(50);
+			long now = stream.getBytesSent();
+			if (now == sent && stream.isWaitingForOkay())
+				return now;
+			sent = now;
+		}
+		throw new AssertionError("The device kept sending");
+	}
+
+	@Test
+	public void withholdsOkayWhileWindowIsFull() throws Exception
+	{
+		AdbStream stream = conn.open("source:" + TOTAL);
+		stream.setReceiveWindow(WINDOW);
+		FakeAdbd.FakeStream source = device.getStream("source:" + TOTAL);
+
+		/* Nobody reads, so the device stops once the backlog exceeds the
+		 * window. Data sent before the window was lowered may add to it. */
+		long sent = awaitStalled(source);
+		assertTrue("sent " + sent, sent > WINDOW);
+		assertTrue("sent " + sent, sent <= AdbStream.DEFAULT_RECEIVE_WINDOW + MAX_DATA);
+
+		InputStream in = stream.getInputStream();
+		assertEquals(sent, in.available());
+
+		/* Reading down to the window sends the withheld OKAY */
+		byte[] buffer = new byte[8192];
+		long read = 0;
+		while (sent - read > WINDOW)
+			read += in.read(buffer);
+		long resumed = awaitStalled(source);
+		assertTrue("resumed at " + resumed, resumed > sent);
+		/* The unread bytes also include the rest of the payload being read */
+		assertTrue("resumed at " + resumed, resumed - read <= WINDOW + 2 * MAX_DATA);
+
+		/* A reader that keeps up receives everything */
+		int count;
+		while ((count = in.read(buffer)) > 0)
+			read += count;
+		assertEquals(TOTAL, read);
+		assertEquals(TOTAL, source.getBytesSent());
+		assertTrue(stream.isClosed());
+	}
+
+	@Test
+	public void zeroWindowAllowsOnePacketAtATime() throws Exception
+	{
+		AdbStream stream = conn.open("source:" + TOTAL);
+		stream.setReceiveWindow(0);
+		FakeAdbd.FakeStream source = device.getStream("source:" + TOTAL);
+		awaitStalled(source);
+
+		/* Once the backlog is drained the device may send exactly one more packet */
+		InputStream in = stream.getInputStream();
+		byte[] buffer = new byte[8192];
+		for (int left = in.available(); left > 0; )
+			left -= in.read(buffer, 0, Math.min(left, buffer.length));
+		awaitStalled(source);
+		assertEquals(MAX_DATA, in.available());
+
+		stream.close();
+	}
+
+	@Test
+	public void outputStreamAndChannelRoundTrip() throws Exception
+	{
+		int length = 1000 * 1000;
+		AdbStream stream = conn.open("sink:" + length);
+
+		OutputStream out = stream.getOutputStream();
+		byte[] line = "0123456789".getBytes("UTF-8");
+		for (int i = 0; i < length / line.length; i++)
+			out.write(line);
+		out.flush();
+
+		ReadableByteChannel channel = stream.getReadableChannel();
+		ByteBuffer reply = ByteBuffer.allocate(16);
+		while (channel.read(reply) >= 0) {
+		}
+		assertEquals("OKAY", new String(reply.array(), 0, reply.position(), "UTF-8"));
+		assertTrue(stream.isClosed());
+
+		channel.close();
+		assertFalse(channel.isOpen());
+	}
+}
@@ -0,0 +1,184 @@
+package com.cgutman.adblib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Runs AdbSync against {@link FakeAdbd} on both protocol versions, with
+ * and without payload checksums.
+ */
+@RunWith(Parameterized.class)
+public class AdbSyncTest {
+
+	@Parameters(name = "version {0}")
+	public static Collection<Object[]> versions()
+	{
+		return Arrays.asList(new Object[][] {
+			{ "0x01000000", 0x01000000 },
+			{ "0x01000001", 0x01000001 },
+		});
+	}
+
+	private final int version;
+	private FakeAdbd device;
+	private AdbConnection conn;
+	private AdbSync sync;
+
+	public AdbSyncTest(String name, int version)
+	{
+		this.version = version;
+	}
+
+	@Before
+	public void setUp() throws Exception
+	{
+		device = new FakeAdbd(version, AdbProtocol.CONNECT_MAXDATA);
+		device.mkdir("/data");
+		conn = device.connect();
+		sync = AdbSync.open(conn);
+	}
+
+	@After
+	public void tearDown() throws Exception
+	{
+		sync.close();
+		conn.close();
+		device.close();
+		assertEquals("packets with a bad magic or checksum", 0, device.getProtocolErrors());
+	}
+
+	@Test
+	public void negotiatesChecksums()
+	{
+		assertEquals(version < FakeAdbd.VERSION_SKIP_CHECKSUM, conn.usesChecksum());
+	}
+
+	@Test
+	public void pushAndPullRoundTrip() throws Exception
+	{
+		byte[] data = new byte[20 * 1024 * 1024 + 123];
+		new Random(7).nextBytes(data);
+
+		final List<Long> pushed = new ArrayList<Long>();
+		long sent = sync.push(Channels.newChannel(new ByteArrayInputStream(data)), data.length,
+				"/data/big.bin", 0640, 1600000000L, new AdbSync.ProgressListener() {
+			@Override
+			public void onProgress(long transferred, long total) {
+				pushed.add(transferred);
+			}
+		});
+		assertEquals(data.length, sent);
+		assertEquals(Long.valueOf(data.length), pushed.get(pushed.size() - 1));
+
+		FakeAdbd.FakeFile file = device.getFile("/data/big.bin");
+		assertNotNull(file);
+		assertEquals(FakeAdbd.S_IFREG | 0640, file.mode);
+		assertEquals(1600000000L, file.mtime);
+		assertArrayEquals(data, file.data);
+
+		final long[] last = new long[2];
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		long received = sync.pull("/data/big.bin", Channels.newChannel(out), new AdbSync.ProgressListener() {
+			@Override
+			public void onProgress(long transferred, long total) {
+				last[0] = transferred;
+				last[1] = total;
+			}
+		});
+		assertEquals(data.length, received);
+		assertEquals(data.length, last[0]);
+		assertEquals(data.length, last[1]);
+		assertArrayEquals(data, out.toByteArray());
+	}
+
+	@Test
+	public void pushesEmptyFile() throws Exception
+	{
+		long sent = sync.push(Channels.newChannel(new ByteArrayInputStream(new byte[0])), 0,
+				"/data/empty", 0644, 0, null);
+		assertEquals(0, sent);
+		assertEquals(0, device.getFile("/data/empty").data.length);
+	}
+
+	@Test
+	public void statsFilesAndDirectories() throws Exception
+	{
+		device.putFile("/data/a.txt", 0644, 1234, new byte[42]);
+
+		AdbSync.Entry file = sync.stat("/data/a.txt");
+		assertTrue(file.exists());
+		assertTrue(file.isFile());
+		assertEquals(42, file.getSize());
+		assertEquals(1234, file.getModifiedTime());
+		assertEquals(FakeAdbd.S_IFREG | 0644, file.getMode());
+
+		List<AdbSync.Entry> entries = sync.stat(Arrays.asList("/data", "/missing", "/data/a.txt"));
+		assertEquals(3, entries.size());
+		assertTrue(entries.get(0).isDirectory());
+		assertFalse(entries.get(1).exists());
+		assertEquals(42, entries.get(2).getSize());
+	}
+
+	@Test
+	public void listsDirectory() throws Exception
+	{
+		device.putFile("/data/a.txt", 0644, 1, new byte[1]);
+		device.putFile("/data/b.txt", 0600, 2, new byte[2]);
+		device.mkdir("/data/sub");
+		device.putFile("/data/sub/c.txt", 0644, 3, new byte[3]);
+
+		List<String> names = new ArrayList<String>();
+		for (AdbSync.Entry entry : sync.list("/data")) {
+			names.add(entry.getName());
+			if (entry.getName().equals("b.txt")) {
+				assertEquals(2, entry.getSize());
+				assertEquals(2, entry.getModifiedTime());
+			}
+			if (entry.getName().equals("sub"))
+				assertTrue(entry.isDirectory());
+		}
+		assertEquals(Arrays.asList(".", "..", "a.txt", "b.txt", "sub"), names);
+	}
+
+	@Test
+	public void failuresLeaveSessionUsable() throws Exception
+	{
+		try {
+			sync.pull("/nope", Channels.newChannel(new ByteArrayOutputStream()), null);
+			fail("pull of a missing file succeeded");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("No such file"));
+		}
+
+		try {
+			sync.push(Channels.newChannel(new ByteArrayInputStream(new byte[10])), 10, "/nodir/x", 0644, 0, null);
+			fail("push into a missing directory succeeded");
+		} catch (IOException e) {
+			assertTrue(e.getMessage().contains("No such file"));
+		}
+
+		device.putFile("/data/a.txt", 0644, 0, new byte[5]);
+		assertEquals(5, sync.stat("/data/a.txt").getSize());
+	}
+}
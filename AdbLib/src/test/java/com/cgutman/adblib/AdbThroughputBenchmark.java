@@ -0,0 +1,100 @@
+package com.cgutman.adblib;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Measures stream throughput over loopback against {@link FakeAdbd}.
+ * Uploads are made of 1 KB writes, once flushed one by one as every
+ * write was sent before write coalescing, and once without flushing so
+ * the stream packs them into packets of the negotiated size. Downloads
+ * read payloads straight from the stream. Each case runs against a
+ * device that accepts 256 KB payloads and one limited to 4096 bytes.
+ *
+ * Run with "gradle :AdbLib:benchmark". The first argument overrides the
+ * number of megabytes moved per case (8 by default).
+ */
+public class AdbThroughputBenchmark {
+
+	private static final int WRITE_SIZE = 1024;
+
+	public static void main(String[] args) throws Exception
+	{
+		int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		long total = megabytes * 1024L * 1024L;
+
+		for (int maxData : new int[] { AdbProtocol.CONNECT_MAXDATA, 4096 }) {
+			try (FakeAdbd device = new FakeAdbd(AdbProtocol.CONNECT_VERSION, maxData)) {
+				AdbConnection conn = device.connect();
+
+				/* Warm up the JIT before measuring */
+				upload(conn, total / 4, false);
+				upload(conn, total / 4, true);
+				download(conn, total / 4);
+
+				System.out.printf("maxData=%d: upload flushed %.1f MB/s, upload coalesced %.1f MB/s, download %.1f MB/s%n",
+						conn.getMaxData(),
+						rate(total, upload(conn, total, true)),
+						rate(total, upload(conn, total, false)),
+						rate(total, download(conn, total)));
+				conn.close();
+			}
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Sends length bytes in small writes and waits for the device to
+	 * confirm that it received all of them.
+	 * @return The elapsed time in nanoseconds
+	 */
+	private static long upload(AdbConnection conn, long length, boolean flushEach) throws IOException, InterruptedException
+	{
+		AdbStream stream = conn.open("sink:" + length);
+		byte[] chunk = new byte[WRITE_SIZE];
+
+		long start = System.nanoTime();
+		for (long sent = 0; sent < length; sent += chunk.length)
+			stream.write(chunk, 0, (int) Math.min(chunk.length, length - sent), flushEach);
+		stream.flush();
+
+		InputStream in = stream.getInputStream();
+		byte[] reply = new byte[4];
+		for (int n = 0; n < reply.length; ) {
+			int count = in.read(reply, n, reply.length - n);
+			if (count < 0)
+				throw new IOException("Sink closed early");
+			n += count;
+		}
+		long elapsed = System.nanoTime() - start;
+
+		stream.close();
+		return elapsed;
+	}
+
+	/**
+	 * Receives length bytes from the device.
+	 * @return The elapsed time in nanoseconds
+	 */
+	private static long download(AdbConnection conn, long length) throws IOException, InterruptedException
+	{
+		AdbStream stream = conn.open("source:" + length);
+
+		long start = System.nanoTime();
+		long received = 0;
+		while (received < length) {
+			AdbPayload payload = stream.readPayload();
+			received += payload.getLength();
+			payload.release();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		stream.close();
+		return elapsed;
+	}
+
+	private static double rate(long bytes, long nanos)
+	{
+		return bytes / 1048576.0 / (nanos / 1e9);
+	}
+}
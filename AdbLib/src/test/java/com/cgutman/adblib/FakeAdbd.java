@@ -0,0 +1,671 @@
+package com.cgutman.adblib;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal adbd that runs inside the test process. It accepts
+ * connections without authentication, negotiates the protocol version and
+ * maximum payload the way a device does, and counts every packet whose
+ * magic or checksum is wrong for the negotiated version. Like adbd, it
+ * sends the next WRTE of a stream only after the OKAY for the previous one.
+ * Streams can be opened to these services:
+ * - "sync:" serves the file sync protocol from an in-memory file system
+ * - "source:N" sends N zero bytes and closes
+ * - "sink:N" reads N bytes, replies "OKAY" and closes
+ */
+class FakeAdbd implements Closeable {
+
+	static final int A_CNXN = 0x4e584e43;
+	static final int A_OPEN = 0x4e45504f;
+	static final int A_OKAY = 0x59414b4f;
+	static final int A_CLSE = 0x45534c43;
+	static final int A_WRTE = 0x45545257;
+
+	/** The first version in which checksums are neither sent nor checked */
+	static final int VERSION_SKIP_CHECKSUM = 0x01000001;
+
+	static final int S_IFDIR = 0040000;
+	static final int S_IFREG = 0100000;
+
+	private static final int ID_STAT = 0x54415453;
+	private static final int ID_LIST = 0x5453494c;
+	private static final int ID_SEND = 0x444e4553;
+	private static final int ID_RECV = 0x56434552;
+	private static final int ID_DENT = 0x544e4544;
+	private static final int ID_DONE = 0x454e4f44;
+	private static final int ID_DATA = 0x41544144;
+	private static final int ID_OKAY = 0x59414b4f;
+	private static final int ID_FAIL = 0x4c494146;
+	private static final int ID_QUIT = 0x54495551;
+
+	/** The largest DATA frame of the sync protocol */
+	private static final int SYNC_MAX_DATA = 64 * 1024;
+
+	/** A file or directory of the in-memory file system */
+	static final class FakeFile {
+		final int mode;
+		final long mtime;
+		final byte[] data;
+
+		FakeFile(int mode, long mtime, byte[] data)
+		{
+			this.mode = mode;
+			this.mtime = mtime;
+			this.data = data;
+		}
+
+		boolean isDirectory()
+		{
+			return (mode & S_IFDIR) != 0;
+		}
+	}
+
+	private final ServerSocket server;
+	private final int version;
+	private final int maxData;
+	private final Thread acceptThread;
+
+	/** The in-memory file system, keyed by absolute path */
+	private final Map<String, FakeFile> files = Collections.synchronizedMap(new TreeMap<String, FakeFile>());
+
+	/** The most recently opened stream for each destination */
+	private final Map<String, FakeStream> streams = Collections.synchronizedMap(new HashMap<String, FakeStream>());
+
+	private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+	private final AtomicInteger protocolErrors = new AtomicInteger();
+	private volatile boolean closed;
+
+	/**
+	 * Starts a fake device on a free loopback port.
+	 * @param version The highest protocol version the device speaks
+	 * @param maxData The largest payload the device accepts
+	 */
+	FakeAdbd(int version, int maxData) throws IOException
+	{
+		this.version = version;
+		this.maxData = maxData;
+		this.server = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+		files.put("/", new FakeFile(S_IFDIR | 0755, 0, null));
+
+		acceptThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				acceptLoop();
+			}
+		}, "FakeAdbd");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	/**
+	 * Connects a new AdbConnection to this device.
+	 */
+	AdbConnection connect() throws IOException, InterruptedException
+	{
+		AdbConnection conn = AdbConnection.create(new Socket("127.0.0.1", server.getLocalPort()), null);
+		conn.connect();
+		return conn;
+	}
+
+	/**
+	 * Connects a new AdbConnection to this device over a channel driven
+	 * by the given selector.
+	 */
+	AdbConnection connect(AdbSelector selector) throws IOException, InterruptedException
+	{
+		SocketChannel channel = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getLocalPort()));
+		AdbConnection conn = AdbConnection.create(channel, null, selector);
+		conn.connect();
+		return conn;
+	}
+
+	/**
+	 * Gets the number of packets that had a bad magic or checksum.
+	 */
+	int getProtocolErrors()
+	{
+		return protocolErrors.get();
+	}
+
+	/**
+	 * Gets the most recently opened stream to a destination, or null.
+	 */
+	FakeStream getStream(String destination)
+	{
+		return streams.get(destination);
+	}
+
+	void mkdir(String path)
+	{
+		files.put(path, new FakeFile(S_IFDIR | 0755, 0, null));
+	}
+
+	void putFile(String path, int mode, long mtime, byte[] data)
+	{
+		files.put(path, new FakeFile(S_IFREG | mode, mtime, data));
+	}
+
+	FakeFile getFile(String path)
+	{
+		return files.get(path);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		closed = true;
+		server.close();
+		synchronized (sockets) {
+			for (Socket socket : sockets)
+				socket.close();
+		}
+	}
+
+	private void acceptLoop()
+	{
+		while (!closed) {
+			final Socket socket;
+			try {
+				socket = server.accept();
+			} catch (IOException e) {
+				return;
+			}
+			sockets.add(socket);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					new Connection(socket).run();
+				}
+			}, "FakeAdbd-connection");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private static int checksum(byte[] data, int offset, int length)
+	{
+		int sum = 0;
+		for (int i = offset; i < offset + length; i++)
+			sum += data[i] & 0xFF;
+		return sum;
+	}
+
+	/** One client connection */
+	private class Connection {
+		private final Socket socket;
+		private final OutputStream out;
+		private final DataInputStream in;
+		private final Map<Integer, FakeStream> byId = new HashMap<Integer, FakeStream>();
+		private final ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
+		private int nextId = 1;
+		private volatile boolean skipChecksum;
+		volatile int connMaxData;
+
+		Connection(Socket socket)
+		{
+			this.socket = socket;
+			try {
+				socket.setTcpNoDelay(true);
+				this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+				this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		synchronized void send(int cmd, int arg0, int arg1, byte[] payload, int offset, int length) throws IOException
+		{
+			header.clear();
+			header.putInt(cmd).putInt(arg0).putInt(arg1).putInt(length);
+			header.putInt(skipChecksum ? 0 : checksum(payload, offset, length));
+			header.putInt(~cmd);
+			out.write(header.array(), 0, 24);
+			if (length != 0)
+				out.write(payload, offset, length);
+			out.flush();
+		}
+
+		void send(int cmd, int arg0, int arg1) throws IOException
+		{
+			send(cmd, arg0, arg1, null, 0, 0);
+		}
+
+		void run()
+		{
+			byte[] head = new byte[24];
+			try {
+				while (true) {
+					in.readFully(head);
+					ByteBuffer h = ByteBuffer.wrap(head).order(ByteOrder.LITTLE_ENDIAN);
+					int cmd = h.getInt(), arg0 = h.getInt(), arg1 = h.getInt();
+					int length = h.getInt(), sum = h.getInt(), magic = h.getInt();
+					byte[] payload = new byte[length];
+					in.readFully(payload);
+
+					int expected = skipChecksum ? 0 : checksum(payload, 0, length);
+					if (magic != ~cmd || (length != 0 && sum != expected)) {
+						protocolErrors.incrementAndGet();
+						break;
+					}
+					dispatch(cmd, arg0, arg1, payload);
+				}
+			} catch (IOException e) {
+				/* The client went away */
+			}
+
+			List<FakeStream> open;
+			synchronized (byId) {
+				open = new ArrayList<FakeStream>(byId.values());
+				byId.clear();
+			}
+			for (FakeStream stream : open)
+				stream.peerClosed();
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+
+		private void dispatch(int cmd, int arg0, int arg1, byte[] payload) throws IOException
+		{
+			FakeStream stream;
+			switch (cmd) {
+			case A_CNXN:
+				int negotiated = Math.min(arg0, version);
+				connMaxData = Math.min(arg1, maxData);
+				byte[] banner = "device::ro.product.name=fake;\0".getBytes("UTF-8");
+				send(A_CNXN, negotiated, maxData, banner, 0, banner.length);
+				skipChecksum = negotiated >= VERSION_SKIP_CHECKSUM;
+				break;
+			case A_OPEN:
+				String destination = new String(payload, "UTF-8");
+				if (destination.endsWith("\0"))
+					destination = destination.substring(0, destination.length() - 1);
+				open(arg0, destination);
+				break;
+			case A_WRTE:
+				synchronized (byId) {
+					stream = byId.get(arg1);
+				}
+				if (stream != null) {
+					stream.received(payload);
+					send(A_OKAY, arg1, arg0);
+				}
+				break;
+			case A_OKAY:
+				synchronized (byId) {
+					stream = byId.get(arg1);
+				}
+				if (stream != null)
+					stream.okay.release();
+				break;
+			case A_CLSE:
+				synchronized (byId) {
+					stream = byId.remove(arg1);
+				}
+				if (stream != null) {
+					stream.peerClosed();
+					send(A_CLSE, arg1, arg0);
+				}
+				break;
+			default:
+				protocolErrors.incrementAndGet();
+				throw new IOException("Unexpected command " + Integer.toHexString(cmd));
+			}
+		}
+
+		private void open(int remoteId, final String destination) throws IOException
+		{
+			final Service service;
+			if (destination.equals("sync:")) {
+				service = new SyncService();
+			} else if (destination.startsWith("source:")) {
+				service = new SourceService(Long.parseLong(destination.substring(7)));
+			} else if (destination.startsWith("sink:")) {
+				service = new SinkService(Long.parseLong(destination.substring(5)));
+			} else {
+				send(A_CLSE, 0, remoteId);
+				return;
+			}
+
+			final FakeStream stream;
+			synchronized (byId) {
+				stream = new FakeStream(this, nextId++, remoteId);
+				byId.put(stream.localId, stream);
+			}
+			streams.put(destination, stream);
+			send(A_OKAY, stream.localId, remoteId);
+
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						service.run(stream);
+					} catch (IOException | InterruptedException e) {
+						/* The stream was closed by the client */
+					}
+					stream.close();
+				}
+			}, "FakeAdbd-" + destination);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void remove(FakeStream stream)
+		{
+			synchronized (byId) {
+				byId.remove(stream.localId);
+			}
+		}
+	}
+
+	/** The device end of a stream, used by the service thread */
+	static class FakeStream {
+		private final Connection conn;
+		final int localId;
+		final int remoteId;
+
+		private final LinkedBlockingQueue<byte[]> incoming = new LinkedBlockingQueue<byte[]>();
+		private byte[] current;
+		private int currentOffset;
+
+		final Semaphore okay = new Semaphore(0);
+		private final AtomicLong bytesSent = new AtomicLong();
+		private volatile boolean waitingForOkay;
+		private volatile boolean closed;
+
+		FakeStream(Connection conn, int localId, int remoteId)
+		{
+			this.conn = conn;
+			this.localId = localId;
+			this.remoteId = remoteId;
+		}
+
+		/**
+		 * Gets the number of payload bytes sent to the client so far.
+		 */
+		long getBytesSent()
+		{
+			return bytesSent.get();
+		}
+
+		/**
+		 * Retrieves whether the last WRTE is still waiting for its OKAY.
+		 */
+		boolean isWaitingForOkay()
+		{
+			return waitingForOkay;
+		}
+
+		void received(byte[] payload)
+		{
+			incoming.add(payload);
+		}
+
+		void peerClosed()
+		{
+			closed = true;
+			incoming.add(new byte[0]);
+			okay.release();
+		}
+
+		/**
+		 * Reads exactly length bytes sent by the client.
+		 */
+		byte[] read(int length) throws IOException, InterruptedException
+		{
+			byte[] data = new byte[length];
+			int filled = 0;
+			while (filled < length) {
+				if (current == null || currentOffset == current.length) {
+					current = incoming.take();
+					currentOffset = 0;
+					if (current.length == 0) {
+						incoming.add(current);
+						throw new EOFException("Stream closed");
+					}
+				}
+				int count = Math.min(length - filled, current.length - currentOffset);
+				System.arraycopy(current, currentOffset, data, filled, count);
+				currentOffset += count;
+				filled += count;
+			}
+			return data;
+		}
+
+		int readInt() throws IOException, InterruptedException
+		{
+			return ByteBuffer.wrap(read(4)).order(ByteOrder.LITTLE_ENDIAN).getInt();
+		}
+
+		/**
+		 * Sends data in packets of the negotiated size, waiting for the
+		 * OKAY of each packet before the next one.
+		 */
+		void write(byte[] data, int offset, int length) throws IOException, InterruptedException
+		{
+			while (length > 0) {
+				if (closed)
+					throw new EOFException("Stream closed");
+				int count = Math.min(length, conn.connMaxData);
+				waitingForOkay = true;
+				conn.send(A_WRTE, localId, remoteId, data, offset, count);
+				bytesSent.addAndGet(count);
+				okay.acquire();
+				waitingForOkay = false;
+				offset += count;
+				length -= count;
+			}
+		}
+
+		void write(byte[] data) throws IOException, InterruptedException
+		{
+			write(data, 0, data.length);
+		}
+
+		void close()
+		{
+			if (closed)
+				return;
+			closed = true;
+			conn.remove(this);
+			try {
+				conn.send(A_CLSE, localId, remoteId);
+			} catch (IOException e) {}
+		}
+	}
+
+	private interface Service {
+		void run(FakeStream stream) throws IOException, InterruptedException;
+	}
+
+	private static class SourceService implements Service {
+		private final long length;
+
+		SourceService(long length)
+		{
+			this.length = length;
+		}
+
+		@Override
+		public void run(FakeStream stream) throws IOException, InterruptedException
+		{
+			byte[] zeros = new byte[64 * 1024];
+			for (long left = length; left > 0; left -= zeros.length)
+				stream.write(zeros, 0, (int) Math.min(left, zeros.length));
+		}
+	}
+
+	private static class SinkService implements Service {
+		private final long length;
+
+		SinkService(long length)
+		{
+			this.length = length;
+		}
+
+		@Override
+		public void run(FakeStream stream) throws IOException, InterruptedException
+		{
+			for (long left = length; left > 0; left -= Math.min(left, 64 * 1024))
+				stream.read((int) Math.min(left, 64 * 1024));
+			stream.write("OKAY".getBytes("UTF-8"));
+		}
+	}
+
+	/** The file sync protocol over the in-memory file system */
+	private class SyncService implements Service {
+
+		@Override
+		public void run(FakeStream stream) throws IOException, InterruptedException
+		{
+			while (true) {
+				int id = stream.readInt();
+				int length = stream.readInt();
+				if (id == ID_QUIT)
+					return;
+				String arg = new String(stream.read(length), "UTF-8");
+
+				ByteArrayOutputStream reply = new ByteArrayOutputStream();
+				switch (id) {
+				case ID_STAT:
+					FakeFile file = files.get(arg);
+					if (file == null)
+						putInts(reply, ID_STAT, 0, 0, 0);
+					else
+						putInts(reply, ID_STAT, file.mode, size(file), (int) file.mtime);
+					break;
+				case ID_LIST:
+					list(arg, reply);
+					break;
+				case ID_SEND:
+					receiveFile(stream, arg, reply);
+					break;
+				case ID_RECV:
+					sendFile(arg, reply);
+					break;
+				default:
+					protocolErrors.incrementAndGet();
+					return;
+				}
+				stream.write(reply.toByteArray());
+			}
+		}
+
+		private void list(String path, ByteArrayOutputStream reply) throws IOException
+		{
+			String prefix = path.endsWith("/") ? path : path + "/";
+			FakeFile dir = files.get(path);
+			if (dir != null && dir.isDirectory()) {
+				putDent(reply, ".", dir);
+				putDent(reply, "..", dir);
+				synchronized (files) {
+					for (Map.Entry<String, FakeFile> entry : files.entrySet()) {
+						String name = entry.getKey();
+						if (name.startsWith(prefix) && name.length() > prefix.length()
+								&& name.indexOf('/', prefix.length()) < 0)
+							putDent(reply, name.substring(prefix.length()), entry.getValue());
+					}
+				}
+			}
+			putInts(reply, ID_DONE, 0, 0, 0, 0);
+		}
+
+		private void receiveFile(FakeStream stream, String arg, ByteArrayOutputStream reply) throws IOException, InterruptedException
+		{
+			int comma = arg.lastIndexOf(',');
+			String path = arg.substring(0, comma);
+			int mode = Integer.parseInt(arg.substring(comma + 1));
+
+			ByteArrayOutputStream data = new ByteArrayOutputStream();
+			int mtime;
+			while (true) {
+				int id = stream.readInt();
+				int length = stream.readInt();
+				if (id == ID_DONE) {
+					mtime = length;
+					break;
+				}
+				if (id != ID_DATA || length > SYNC_MAX_DATA) {
+					protocolErrors.incrementAndGet();
+					throw new EOFException("Bad DATA frame");
+				}
+				data.write(stream.read(length));
+			}
+
+			int slash = path.lastIndexOf('/');
+			FakeFile parent = files.get(slash <= 0 ? "/" : path.substring(0, slash));
+			if (parent == null || !parent.isDirectory()) {
+				putFail(reply, "No such file or directory");
+				return;
+			}
+			files.put(path, new FakeFile(mode, mtime & 0xFFFFFFFFL, data.toByteArray()));
+			putInts(reply, ID_OKAY, 0);
+		}
+
+		private void sendFile(String path, ByteArrayOutputStream reply) throws IOException
+		{
+			FakeFile file = files.get(path);
+			if (file == null || file.isDirectory()) {
+				putFail(reply, "No such file or directory");
+				return;
+			}
+			for (int offset = 0; offset < file.data.length; offset += SYNC_MAX_DATA) {
+				int count = Math.min(SYNC_MAX_DATA, file.data.length - offset);
+				putInts(reply, ID_DATA, count);
+				reply.write(file.data, offset, count);
+			}
+			putInts(reply, ID_DONE, 0);
+		}
+
+		private int size(FakeFile file)
+		{
+			return file.data == null ? 0 : file.data.length;
+		}
+
+		private void putDent(ByteArrayOutputStream reply, String name, FakeFile file) throws IOException
+		{
+			byte[] bytes = name.getBytes("UTF-8");
+			putInts(reply, ID_DENT, file.mode, size(file), (int) file.mtime, bytes.length);
+			reply.write(bytes);
+		}
+
+		private void putFail(ByteArrayOutputStream reply, String message) throws IOException
+		{
+			byte[] bytes = message.getBytes("UTF-8");
+			putInts(reply, ID_FAIL, bytes.length);
+			reply.write(bytes);
+		}
+
+		private void putInts(ByteArrayOutputStream reply, int... values)
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(4 * values.length).order(ByteOrder.LITTLE_ENDIAN);
+			for (int value : values)
+				buffer.putInt(value);
+			reply.write(buffer.array(), 0, buffer.position());
+		}
+	}
+}
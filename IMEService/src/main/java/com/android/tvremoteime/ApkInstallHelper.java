@@ -0,0 +1,276 @@
+package com.android.tvremoteime;
+
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInstaller;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 通过 PackageInstaller 会话安装应用包
+ * 上传的数据直接写入安装会话，不需要先保存成文件再交给系统安装器读取
+ */
+public class ApkInstallHelper {
+    private static final String ACTION_INSTALL_RESULT = "com.android.tvremoteime.INSTALL_RESULT";
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // 每写入多少字节更新一次暂存进度
+    private static final long PROGRESS_STEP = 1024 * 1024;
+    // 保留最近的安装结果数量
+    private static final int MAX_RESULTS = 16;
+
+    public static final String STATUS_UPLOADING = "uploading";
+    public static final String STATUS_INSTALLING = "installing";
+    public static final String STATUS_PENDING_USER_ACTION = "pending_user_action";
+    public static final String STATUS_SUCCESS = "success";
+    public static final String STATUS_FAILURE = "failure";
+
+    /**
+     * 安装结果
+     */
+    public static class InstallResult {
+        private final int sessionId;
+        private final String name;
+        private volatile String status = STATUS_UPLOADING;
+        private volatile String message;
+        private volatile String packageName;
+        private volatile long bytesWritten;
+        private volatile long totalBytes;
+        private volatile float sessionProgress;
+
+        InstallResult(int sessionId, String name, long totalBytes) {
+            this.sessionId = sessionId;
+            this.name = name;
+            this.totalBytes = totalBytes;
+        }
+
+        public int getSessionId() {
+            return sessionId;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public boolean isFinished() {
+            return STATUS_SUCCESS.equals(status) || STATUS_FAILURE.equals(status);
+        }
+
+        public JSONObject toJSONObject() {
+            JSONObject obj = new JSONObject();
+            try {
+                obj.put("sessionId", sessionId);
+                obj.put("name", name);
+                obj.put("status", status);
+                obj.put("bytesWritten", bytesWritten);
+                obj.put("totalBytes", totalBytes);
+                obj.put("uploadProgress", totalBytes > 0 ? (double) bytesWritten / totalBytes : 0);
+                obj.put("sessionProgress", sessionProgress);
+                if (packageName != null) obj.put("packageName", packageName);
+                if (message != null) obj.put("message", message);
+            } catch (JSONException e) {
+                e.printStackTrace();
+            }
+            return obj;
+        }
+    }
+
+    private static final Map<Integer, InstallResult> results = new LinkedHashMap<Integer, InstallResult>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, InstallResult> eldest) {
+            return size() > MAX_RESULTS;
+        }
+    };
+    private static BroadcastReceiver resultReceiver = null;
+    private static PackageInstaller.SessionCallback sessionCallback = null;
+
+    /**
+     * 将数据流写入新的安装会话并提交
+     * @param context Android context
+     * @param in 应用包数据
+     * @param length 数据长度，未知时为-1
+     * @param name 应用包名称（仅用于显示）
+     * @param waitMillis 提交后等待安装结果的最长时间
+     * @return 安装结果，等待超时时状态可能仍为 installing 或 pending_user_action
+     * @throws IOException 写入会话失败时抛出，此时会话已被放弃
+     */
+    public static InstallResult install(Context context, InputStream in, long length, String name, long waitMillis) throws IOException {
+        Context appContext = context.getApplicationContext();
+        ensureReceiver(appContext);
+
+        PackageInstaller installer = appContext.getPackageManager().getPackageInstaller();
+        PackageInstaller.SessionParams params = new PackageInstaller.SessionParams(
+                PackageInstaller.SessionParams.MODE_FULL_INSTALL);
+        if (length > 0) params.setSize(length);
+
+        int sessionId = installer.createSession(params);
+        InstallResult result = new InstallResult(sessionId, name, length);
+        synchronized (results) {
+            results.put(sessionId, result);
+        }
+
+        PackageInstaller.Session session = null;
+        try {
+            session = installer.openSession(sessionId);
+            OutputStream out = session.openWrite("base.apk", 0, length > 0 ? length : -1);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                long written = 0;
+                long nextProgress = PROGRESS_STEP;
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                    written += n;
+                    result.bytesWritten = written;
+                    if (written >= nextProgress && length > 0) {
+                        session.setStagingProgress((float) written / length);
+                        nextProgress = written + PROGRESS_STEP;
+                    }
+                }
+                if (length > 0 && written != length) {
+                    throw new IOException(String.format("数据不完整：%d/%d", written, length));
+                }
+                if (length <= 0) result.totalBytes = written;
+                session.fsync(out);
+            } finally {
+                out.close();
+            }
+
+            result.status = STATUS_INSTALLING;
+            Intent intent = new Intent(ACTION_INSTALL_RESULT);
+            intent.setPackage(appContext.getPackageName());
+            int flags = PendingIntent.FLAG_UPDATE_CURRENT;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+                // 安装器需要往Intent里填充结果
+                flags |= PendingIntent.FLAG_MUTABLE;
+            }
+            PendingIntent pendingIntent = PendingIntent.getBroadcast(appContext, sessionId, intent, flags);
+            session.commit(pendingIntent.getIntentSender());
+            Log.i(IMEService.TAG, String.format("已提交应用包[%s]安装会话[%d]，共%d字节", name, sessionId, result.bytesWritten));
+        } catch (IOException | RuntimeException ex) {
+            result.status = STATUS_FAILURE;
+            result.message = ex.getMessage();
+            if (session != null) session.abandon();
+            Log.e(IMEService.TAG, String.format("安装应用包[%s]出错", name), ex);
+            throw ex instanceof IOException ? (IOException) ex : new IOException(ex);
+        } finally {
+            if (session != null) session.close();
+        }
+
+        waitForResult(result, waitMillis);
+        return result;
+    }
+
+    /**
+     * 获取安装结果
+     */
+    public static InstallResult getResult(int sessionId) {
+        synchronized (results) {
+            return results.get(sessionId);
+        }
+    }
+
+    private static void waitForResult(InstallResult result, long waitMillis) {
+        long deadline = System.currentTimeMillis() + waitMillis;
+        synchronized (result) {
+            while (!result.isFinished()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) break;
+                try {
+                    result.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+    }
+
+    private static synchronized void ensureReceiver(Context context) {
+        if (resultReceiver != null) return;
+        resultReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onInstallResult(context, intent);
+            }
+        };
+        IntentFilter filter = new IntentFilter(ACTION_INSTALL_RESULT);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            context.registerReceiver(resultReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
+        } else {
+            context.registerReceiver(resultReceiver, filter);
+        }
+
+        sessionCallback = new PackageInstaller.SessionCallback() {
+            @Override
+            public void onCreated(int sessionId) {
+            }
+
+            @Override
+            public void onBadgingChanged(int sessionId) {
+            }
+
+            @Override
+            public void onActiveChanged(int sessionId, boolean active) {
+            }
+
+            @Override
+            public void onProgressChanged(int sessionId, float progress) {
+                InstallResult result = getResult(sessionId);
+                if (result != null) result.sessionProgress = progress;
+            }
+
+            @Override
+            public void onFinished(int sessionId, boolean success) {
+                InstallResult result = getResult(sessionId);
+                if (result != null) result.sessionProgress = 1f;
+            }
+        };
+        context.getPackageManager().getPackageInstaller()
+                .registerSessionCallback(sessionCallback, new Handler(Looper.getMainLooper()));
+    }
+
+    private static void onInstallResult(Context context, Intent intent) {
+        int sessionId = intent.getIntExtra(PackageInstaller.EXTRA_SESSION_ID, -1);
+        int status = intent.getIntExtra(PackageInstaller.EXTRA_STATUS, PackageInstaller.STATUS_FAILURE);
+        InstallResult result = getResult(sessionId);
+        if (result == null) return;
+
+        if (status == PackageInstaller.STATUS_PENDING_USER_ACTION) {
+            // 需要用户确认安装
+            result.status = STATUS_PENDING_USER_ACTION;
+            Intent confirm = intent.getParcelableExtra(Intent.EXTRA_INTENT);
+            if (confirm != null) {
+                confirm.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+                try {
+                    context.startActivity(confirm);
+                } catch (Exception ex) {
+                    Log.e(IMEService.TAG, "无法打开安装确认界面", ex);
+                }
+            }
+            return;
+        }
+
+        result.packageName = intent.getStringExtra(PackageInstaller.EXTRA_PACKAGE_NAME);
+        result.message = intent.getStringExtra(PackageInstaller.EXTRA_STATUS_MESSAGE);
+        result.status = status == PackageInstaller.STATUS_SUCCESS ? STATUS_SUCCESS : STATUS_FAILURE;
+        Log.i(IMEService.TAG, String.format("应用包[%s]安装结果：%s %s", result.name, result.status,
+                result.message == null ? "" : result.message));
+        synchronized (result) {
+            result.notifyAll();
+        }
+    }
+}
@@ -13,6 +13,7 @@ import android.util.Log;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -144,7 +145,39 @@ public class AppPackagesHelper {
         return  applicationInfo;
     }
 
+    /**
+     * 安装应用包，会话写入在后台线程进行，调用后立即返回，可在主线程调用
+     */
     public static void installPackage(final File apkFile, final Context context){
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                installPackageSync(apkFile, context);
+            }
+        }, "ApkInstall");
+        thread.start();
+    }
+
+    private static void installPackageSync(File apkFile, Context context){
+        //优先通过安装会话安装，Android 7.0以上不允许通过file://地址交给系统安装器
+        try {
+            FileInputStream ins = new FileInputStream(apkFile);
+            try {
+                ApkInstallHelper.install(context, ins, apkFile.length(), apkFile.getName(), 0);
+                return;
+            } finally {
+                ins.close();
+            }
+        }catch (Exception ex){
+            Log.e(IMEService.TAG, String.format("通过安装会话安装应用包[%s]出错", apkFile.getName()), ex);
+        }
+        installPackageByIntent(apkFile, context);
+    }
+
+    /**
+     * 通过file://地址交给系统安装器安装
+     */
+    public static void installPackageByIntent(File apkFile, Context context){
         try {
             Uri uri = Uri.fromFile(apkFile);
             Intent intent = new Intent();
@@ -0,0 +1,182 @@
+package com.android.tvremoteime.adb;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+
+/**
+ * AdbHelper的有界命令队列
+ * 队列满时等待一小段时间，仍然没有空间则丢弃最旧的命令；
+ * 取出命令时把连续的按键合并成一条 input keyevent a b c，连续的文本合并成一条 input text
+ */
+class AdbCommandQueue {
+    // 一条合并命令最多包含的按键数
+    static final int MAX_MERGED_KEYS = 16;
+
+    /**
+     * 队列中的一条命令：输入命令或原始shell命令
+     */
+    static final class Entry {
+        final InjectCommand input;
+        final String shell;
+        // 最早入队时间，用于统计端到端延迟
+        final long enqueueTime;
+        // 合并进来的原始命令数
+        final int count;
+
+        private Entry(InjectCommand input, String shell, long enqueueTime, int count) {
+            this.input = input;
+            this.shell = shell;
+            this.enqueueTime = enqueueTime;
+            this.count = count;
+        }
+
+        static Entry input(InjectCommand command) {
+            return new Entry(command, null, SystemClock.uptimeMillis(), 1);
+        }
+
+        static Entry shell(String line) {
+            return new Entry(null, line, SystemClock.uptimeMillis(), 1);
+        }
+
+        String toShellCommand() {
+            return input != null ? input.toShellCommand() : shell;
+        }
+
+        @Override
+        public String toString() {
+            return toShellCommand();
+        }
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Entry> deque;
+
+    private long enqueued = 0;
+    private long dropped = 0;
+    private long executed = 0;
+    private long executedCommands = 0;
+    private int maxDepth = 0;
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+    private long lastLatency = 0;
+
+    AdbCommandQueue(int capacity) {
+        this.capacity = capacity;
+        this.deque = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * 加入一条命令
+     * @param timeoutMillis 队列满时最多等待的时间，超时后丢弃最旧的命令
+     * @return 是否没有丢弃命令
+     */
+    boolean offer(Entry entry, long timeoutMillis) throws InterruptedException {
+        if (entry.input != null && entry.input.type == InjectCommand.TEXT && entry.input.text.isEmpty()) return true;
+        boolean dropOldest = false;
+        synchronized (deque) {
+            long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+            while (deque.size() >= capacity) {
+                long wait = deadline - SystemClock.uptimeMillis();
+                if (wait <= 0) {
+                    deque.poll();
+                    dropped++;
+                    dropOldest = true;
+                    break;
+                }
+                deque.wait(wait);
+            }
+            deque.add(entry);
+            enqueued++;
+            if (deque.size() > maxDepth) maxDepth = deque.size();
+            deque.notifyAll();
+        }
+        return !dropOldest;
+    }
+
+    /**
+     * 取出下一条命令，并与紧跟其后的同类命令合并
+     */
+    Entry take() throws InterruptedException {
+        synchronized (deque) {
+            while (deque.isEmpty()) {
+                deque.wait();
+            }
+            Entry entry = deque.poll();
+            Entry next = deque.peek();
+            if (entry.input == null || next == null || next.input == null || next.input.type != entry.input.type) {
+                deque.notifyAll();
+                return entry;
+            }
+            if (entry.input.type == InjectCommand.KEY) {
+                int[] keys = new int[MAX_MERGED_KEYS];
+                int length = 0;
+                int count = 0;
+                for (int key : entry.input.args) keys[length++] = key;
+                count += entry.count;
+                while ((next = deque.peek()) != null && next.input != null && next.input.type == InjectCommand.KEY
+                        && length + next.input.args.length <= MAX_MERGED_KEYS) {
+                    deque.poll();
+                    for (int key : next.input.args) keys[length++] = key;
+                    count += next.count;
+                }
+                int[] merged = new int[length];
+                System.arraycopy(keys, 0, merged, 0, length);
+                entry = new Entry(InjectCommand.keys(merged), null, entry.enqueueTime, count);
+            } else if (entry.input.type == InjectCommand.TEXT) {
+                StringBuilder text = new StringBuilder(entry.input.text);
+                int count = entry.count;
+                while ((next = deque.peek()) != null && next.input != null && next.input.type == InjectCommand.TEXT) {
+                    deque.poll();
+                    text.append(next.input.text);
+                    count += next.count;
+                }
+                entry = new Entry(InjectCommand.text(text.toString()), null, entry.enqueueTime, count);
+            }
+            deque.notifyAll();
+            return entry;
+        }
+    }
+
+    /**
+     * 命令执行完成后调用，统计从入队到完成的延迟
+     */
+    void onExecuted(Entry entry) {
+        long latency = SystemClock.uptimeMillis() - entry.enqueueTime;
+        synchronized (deque) {
+            executed++;
+            executedCommands += entry.count;
+            totalLatency += latency;
+            lastLatency = latency;
+            if (latency > maxLatency) maxLatency = latency;
+        }
+    }
+
+    void clear() {
+        synchronized (deque) {
+            deque.clear();
+            deque.notifyAll();
+        }
+    }
+
+    JSONObject getStats() throws JSONException {
+        JSONObject data = new JSONObject();
+        synchronized (deque) {
+            data.put("depth", deque.size());
+            data.put("maxDepth", maxDepth);
+            data.put("capacity", capacity);
+            data.put("enqueued", enqueued);
+            data.put("dropped", dropped);
+            data.put("executed", executed);
+            // 平均每条执行的命令包含的原始命令数
+            data.put("mergeRatio", executed == 0 ? 0 : (double) executedCommands / executed);
+            data.put("avgLatency", executed == 0 ? 0 : totalLatency / executed);
+            data.put("maxLatency", maxLatency);
+            data.put("lastLatency", lastLatency);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,297 @@
+package com.android.tvremoteime.adb;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cgutman.adblib.AdbBase64;
+import com.cgutman.adblib.AdbConnection;
+import com.cgutman.adblib.AdbCrypto;
+import com.cgutman.adblib.Base64;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 在后台维护到adb服务的连接
+ * 密钥对只生成一次并保存在应用私有目录，adb服务记住授权后重启应用不需要再次确认；
+ * 连接失败时按指数退避重试，连接断开后立即重新连接，连接期间定时检查连接是否可用。
+ * 发送命令时只取当前连接，不在输入路径上建立连接
+ */
+class AdbConnectionManager {
+    private static final String TAG = "AdbConnectionManager";
+    private static final int CONNECT_TIMEOUT = 3000;
+    private static final int SOCKET_TIMEOUT = 10 * 1000;
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 60 * 1000;
+    private static final long HEALTH_CHECK_INTERVAL = 30 * 1000;
+
+    interface Listener {
+        void onConnected(AdbConnection connection);
+        void onDisconnected();
+        /**
+         * 检查连接是否可用，在管理线程中调用
+         */
+        boolean checkHealth(AdbConnection connection);
+    }
+
+    private final String host;
+    private final int port;
+    private final File keyDir;
+    private final Listener listener;
+    private final Object lock = new Object();
+
+    private AdbCrypto crypto = null;
+    private volatile AdbConnection connection = null;
+    private Socket socket = null;
+    private volatile boolean running = false;
+    private boolean connecting = false;
+    private long nextAttemptTime = 0;
+    private long backoff = MIN_BACKOFF;
+    private Thread thread = null;
+
+    private long connects = 0;
+    private long failures = 0;
+    private long healthCheckFailures = 0;
+    private long lastConnectTime = 0;
+
+    AdbConnectionManager(String host, int port, File keyDir, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.keyDir = keyDir;
+        this.listener = listener;
+    }
+
+    void start() {
+        synchronized (lock) {
+            if (running) return;
+            running = true;
+            nextAttemptTime = 0;
+            backoff = MIN_BACKOFF;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "AdbConnectionManager");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(CONNECT_TIMEOUT);
+            } catch (InterruptedException ignored) {
+            }
+            thread = null;
+        }
+        disconnect(connection);
+    }
+
+    /**
+     * 当前连接，未连接时返回null
+     */
+    AdbConnection getConnection() {
+        return connection;
+    }
+
+    /**
+     * 等待正在进行的连接完成；处于退避等待中时不等待，直接返回null
+     */
+    AdbConnection awaitConnection(long timeoutMillis) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        synchronized (lock) {
+            while (running && connection == null
+                    && (connecting || nextAttemptTime <= SystemClock.uptimeMillis())) {
+                long wait = deadline - SystemClock.uptimeMillis();
+                if (wait <= 0) break;
+                lock.wait(wait);
+            }
+            return connection;
+        }
+    }
+
+    private void loop() {
+        while (running) {
+            AdbConnection current = connection;
+            try {
+                if (current == null) {
+                    synchronized (lock) {
+                        long wait = nextAttemptTime - SystemClock.uptimeMillis();
+                        if (wait > 0) {
+                            lock.wait(wait);
+                            continue;
+                        }
+                        connecting = true;
+                    }
+                    AdbConnection conn = connect();
+                    synchronized (lock) {
+                        connecting = false;
+                        if (conn != null) {
+                            backoff = MIN_BACKOFF;
+                        } else {
+                            nextAttemptTime = SystemClock.uptimeMillis() + backoff;
+                            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+                        }
+                        lock.notifyAll();
+                    }
+                    if (conn != null) listener.onConnected(conn);
+                } else {
+                    synchronized (lock) {
+                        if (connection == current && running) lock.wait(HEALTH_CHECK_INTERVAL);
+                    }
+                    if (running && connection == current && !listener.checkHealth(current)) {
+                        Log.w(TAG, "adb连接已不可用，重新连接");
+                        healthCheckFailures++;
+                        disconnect(current);
+                    }
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        synchronized (lock) {
+            connecting = false;
+            lock.notifyAll();
+        }
+    }
+
+    private AdbConnection connect() {
+        long start = SystemClock.uptimeMillis();
+        Socket socket = new Socket();
+        try {
+            AdbCrypto crypto = getCrypto();
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(SOCKET_TIMEOUT);
+            final AdbConnection conn = AdbConnection.create(socket, crypto);
+            final AtomicBoolean closed = new AtomicBoolean(false);
+            conn.setOnClosedListener(new AdbConnection.ConnectionOnClosedListener() {
+                @Override
+                public void onClosed() {
+                    closed.set(true);
+                    onConnectionClosed(conn);
+                }
+            });
+            conn.connect();
+            synchronized (lock) {
+                // 连接成功后马上又断开
+                if (closed.get()) throw new IOException("Connection closed");
+                this.connection = conn;
+                this.socket = socket;
+            }
+            connects++;
+            lastConnectTime = SystemClock.uptimeMillis() - start;
+            Log.i(TAG, "adb已连接成功，用时" + lastConnectTime + "ms");
+            return conn;
+        } catch (IOException | InterruptedException e) {
+            Log.w(TAG, "adb连接失败：" + e.toString());
+            failures++;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            return null;
+        }
+    }
+
+    /**
+     * 在连接线程中回调，不能在这里调用 AdbConnection.close()
+     */
+    private void onConnectionClosed(AdbConnection conn) {
+        Socket socket;
+        synchronized (lock) {
+            // 连接过程中断开的由 connect() 处理
+            if (connection != conn) return;
+            socket = this.socket;
+            connection = null;
+            this.socket = null;
+            // 连接中断后立即重连，之后的失败再按退避等待
+            nextAttemptTime = 0;
+            lock.notifyAll();
+        }
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        listener.onDisconnected();
+    }
+
+    private void disconnect(AdbConnection conn) {
+        if (conn == null) return;
+        try {
+            // 会触发 onConnectionClosed
+            conn.close();
+        } catch (IOException e) {
+            Log.w(TAG, "关闭adb连接失败：" + e.getMessage());
+        }
+    }
+
+    /**
+     * 读取保存的密钥对，没有时生成并保存
+     */
+    private AdbCrypto getCrypto() {
+        if (crypto != null) return crypto;
+        AdbBase64 base64 = new AdbBase64() {
+            @Override
+            public String encodeToString(byte[] data) {
+                return Base64.encodeToString(data, 16);
+            }
+        };
+        File privateKey = new File(keyDir, "adbkey");
+        File publicKey = new File(keyDir, "adbkey.pub");
+        if (privateKey.exists() && publicKey.exists()) {
+            try {
+                crypto = AdbCrypto.loadAdbKeyPair(base64, privateKey, publicKey);
+                return crypto;
+            } catch (Exception e) {
+                Log.w(TAG, "读取adb密钥失败，重新生成：" + e.toString());
+            }
+        }
+        try {
+            crypto = AdbCrypto.generateAdbKeyPair(base64);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "无法生成adb密钥", e);
+            return null;
+        }
+        // 先写临时文件，避免写入中断留下不完整的密钥
+        File privateTemp = new File(keyDir, "adbkey.tmp");
+        File publicTemp = new File(keyDir, "adbkey.pub.tmp");
+        try {
+            crypto.saveAdbKeyPair(privateTemp, publicTemp);
+            if (!privateTemp.renameTo(privateKey) || !publicTemp.renameTo(publicKey)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "保存adb密钥失败：" + e.getMessage());
+            privateTemp.delete();
+            publicTemp.delete();
+        }
+        return crypto;
+    }
+
+    JSONObject getStats() throws JSONException {
+        JSONObject data = new JSONObject();
+        data.put("connected", connection != null);
+        data.put("connects", connects);
+        data.put("failures", failures);
+        data.put("healthCheckFailures", healthCheckFailures);
+        data.put("lastConnectTime", lastConnectTime);
+        synchronized (lock) {
+            data.put("backoff", connection == null ? Math.max(0, nextAttemptTime - SystemClock.uptimeMillis()) : 0);
+        }
+        return data;
+    }
+}
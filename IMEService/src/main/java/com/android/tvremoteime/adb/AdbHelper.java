@@ -1,21 +1,18 @@
 package com.android.tvremoteime.adb;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.tvremoteime.Environment;
 import com.android.tvremoteime.R;
 import com.android.tvremoteime.server.RemoteServer;
-import com.cgutman.adblib.AdbBase64;
 import com.cgutman.adblib.AdbConnection;
-import com.cgutman.adblib.AdbCrypto;
-import com.cgutman.adblib.AdbStream;
-import com.cgutman.adblib.Base64;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.IOException;
-import java.net.Socket;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayDeque;
 
 /**
  * Created by kingt on 2018/3/7.
@@ -23,11 +20,23 @@ import java.util.ArrayDeque;
 
 public class AdbHelper {
     private static String TAG = "AdbHelper";
-    private AdbConnection connection = null;
+    //有命令时最多等待正在进行的连接这么久
+    private static final long CONNECT_WAIT = 3000;
+    private static final int QUEUE_CAPACITY = 64;
+    //队列满时调用方最多等待这么久，之后丢弃最旧的命令
+    private static final long QUEUE_WAIT = 100;
+    //等待input命令执行完再取下一批，期间到达的按键会被合并
+    private static final long INPUT_COMMAND_TIMEOUT = 5000;
+    //连接在后台维护，发送命令时不再建立连接
+    private AdbConnectionManager connectionManager = null;
     private String host;
     private int port;
 
-    private ArrayDeque<Object> sendDataDeque = new ArrayDeque<>();
+    private final AdbCommandQueue commandQueue = new AdbCommandQueue(QUEUE_CAPACITY);
+    //所有命令都写入少量长期打开的shell流，不再为每条命令打开新的流
+    private final AdbShellPool shellPool = new AdbShellPool();
+    //按键、点击等输入优先交给常驻的注入进程，不可用时回退到input命令
+    private InputInjectorClient injector = null;
     private Thread sendDataThread = null;
     private boolean running = false;
     private Context context;
@@ -43,24 +52,55 @@ public class AdbHelper {
         this.context = context;
         this.host = host;
         this.port = port;
+        if(this.injector == null) this.injector = new InputInjectorClient(context);
         this.running = true;
+        this.connectionManager = new AdbConnectionManager(host, port, context.getFilesDir(), createConnectionListener());
+        this.connectionManager.start();
         this.initSDThread();
     }
 
+    private AdbConnectionManager.Listener createConnectionListener(){
+        return new AdbConnectionManager.Listener() {
+            @Override
+            public void onConnected(AdbConnection connection) {
+                Context context = AdbHelper.this.context;
+                if(context != null) Environment.toastInHandler(context, context.getString(R.string.app_name)  + "和adb服务已连接成功。");
+            }
+
+            @Override
+            public void onDisconnected() {
+                Log.i(TAG, "adb已断开连接。");
+                Context context = AdbHelper.this.context;
+                if(context != null) Environment.toastInHandler(context, context.getString(R.string.app_name)  + "和adb服务已断开连接。");
+            }
+
+            @Override
+            public boolean checkHealth(AdbConnection connection) {
+                try {
+                    AdbShellSession.Command command = shellPool.execute(connection, "true");
+                    return command.await(5000) != null && command.getExitCode() == 0;
+                } catch (IOException | InterruptedException e) {
+                    return false;
+                }
+            }
+        };
+    }
+
+    private boolean isConnected(){
+        AdbConnectionManager manager = connectionManager;
+        return manager != null && manager.getConnection() != null;
+    }
+
     public void stop() {
         this.running = false;
         this.context = null;
-        if(this.connection != null){
-            try {
-                this.connection.close();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            this.connection = null;
-        }
-        synchronized (sendDataDeque) {
-            sendDataDeque.notifyAll();
+        if(injector != null) injector.close();
+        shellPool.close();
+        if(this.connectionManager != null){
+            this.connectionManager.stop();
+            this.connectionManager = null;
         }
+        commandQueue.clear();
         if(sendDataThread != null && sendDataThread.isAlive()) {
             sendDataThread.interrupt();
             try {
@@ -77,52 +117,41 @@ public class AdbHelper {
             sendDataThread = new Thread(new Runnable() {
                 @Override
                 public void run() {
-                    Object data = 0;
                     while (running) {
-                        synchronized (sendDataDeque) {
-                            try {
-                                if(sendDataDeque.size() == 0)
-                                    sendDataDeque.wait();
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                            if (sendDataDeque.size() > 0) {
-                                data = sendDataDeque.pop();
-                            }else{
-                                continue;
-                            }
-                        }
-                        String msg = null;
-                        if(data instanceof Integer){
-                            msg = "shell:input keyevent " + String.valueOf(data);
-                        }else if(data instanceof String){
-                            String strData = (String) data;
-                            // 如果是以 "shell:" 开头，则直接作为原始命令发送
-                            if(strData.startsWith("shell:")){
-                                msg = strData;
-                            }else{
-                                msg = "shell:input text \"" + strData.replaceAll("\"", "\\\"").replaceAll("\\\\", "\\\\") + "\"";
-                            }
-                        }else{
+                        AdbCommandQueue.Entry entry;
+                        try {
+                            entry = commandQueue.take();
+                        } catch (InterruptedException e) {
                             continue;
                         }
+                        InjectCommand command = entry.input;
                         try {
-                            if(connection != null || try2Connect()){
-                                AdbStream stream = connection.open(msg);
+                            AdbConnectionManager manager = connectionManager;
+                            AdbConnection connection = manager == null ? null : manager.awaitConnection(CONNECT_WAIT);
+                            if(connection != null){
+                                if(command == null){
+                                    shellPool.execute(connection, entry.shell);
+                                }else{
+                                    //只有未能注入的部分（如合并按键中失败的按键）回退到input命令
+                                    InjectCommand remaining = injector.inject(shellPool, connection, command);
+                                    if(remaining != null){
+                                        shellPool.execute(connection, remaining.toShellCommand()).await(INPUT_COMMAND_TIMEOUT);
+                                    }
+                                }
+                                commandQueue.onExecuted(entry);
                                 if(Environment.needDebug){
-                                    Environment.debug(TAG, "已成功发送adb命令：" + msg);
-                                    //Environment.toastInHandler(adbHelper.context, "TVRemoteIME成功向adb服务发送命令。"  + msg);
+                                    Environment.debug(TAG, "已成功发送adb命令：" + entry);
+                                    //Environment.toastInHandler(adbHelper.context, "TVRemoteIME成功向adb服务发送命令。"  + entry);
                                 }
                             }else {
                                 if(Environment.needDebug){
-                                    Environment.debug(TAG, "未发送adb命令：" + msg);
+                                    Environment.debug(TAG, "未发送adb命令：" + entry);
                                     //Environment.toastInHandler(adbHelper.context, "TVRemoteIME向adb服务发送命令时失败。");
                                 }
                             }
-                            //stream.close();
                         } catch (Exception e) {
                             if(Environment.needDebug){
-                                Environment.debug(TAG, "发送adb命令时出错：" + msg, e);
+                                Environment.debug(TAG, "发送adb命令时出错：" + entry, e);
                                 //Environment.toastInHandler(adbHelper.context, "TVRemoteIME向adb服务发送命令时出错。" + e.toString());
                             }
                         }
@@ -133,56 +162,99 @@ public class AdbHelper {
         }
     }
 
-    private boolean try2Connect()
-    {
-        try {
-            Socket socket = new Socket(this.host, this.port);
-            socket.setSoTimeout(1000 * 10);
-            AdbCrypto crypto = null;
-            try {
-                crypto = AdbCrypto.generateAdbKeyPair(new AdbBase64() {
-                    @Override
-                    public String encodeToString(byte[] data) {
-                        return Base64.encodeToString(data, 16);
-                    }
-                });
-            } catch (NoSuchAlgorithmException e) {
-                e.printStackTrace();
-            }
+    /**
+     * 在shell中执行命令并等待输出
+     * @param command shell命令
+     * @param timeoutMillis 等待输出的超时时间
+     * @return 命令输出，超时返回null
+     */
+    public String executeShell(String command, long timeoutMillis) throws IOException, InterruptedException {
+        AdbConnectionManager manager = connectionManager;
+        AdbConnection conn = manager == null ? null : manager.getConnection();
+        if(conn == null) throw new IOException("adb not connected");
+        return shellPool.execute(conn, command).await(timeoutMillis);
+    }
 
-            final AdbHelper adbHelper = this;
-            if (connection == null) {
-                connection = AdbConnection.create(socket, crypto);
-                connection.setOnClosedListener(new AdbConnection.ConnectionOnClosedListener() {
-                    @Override
-                    public void onClosed() {
-                        Log.i(TAG, "adb已断开连接。");
-                        Environment.toastInHandler(adbHelper.context, context.getString(R.string.app_name)  + "和adb服务已断开连接。");
-                        try {
-                            connection.close();
-                            connection = null;
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                });
-            }
+    /**
+     * shell流数量、命令延迟和注入进程统计
+     */
+    public JSONObject getShellStats() throws JSONException {
+        JSONObject data = shellPool.getStats();
+        AdbConnectionManager manager = connectionManager;
+        if(manager != null) data.put("connection", manager.getStats());
+        data.put("queue", commandQueue.getStats());
+        if(injector != null) data.put("injector", injector.getStats());
+        return data;
+    }
+
+    /**
+     * 分别用注入进程和input命令注入count次无效按键（KEYCODE_UNKNOWN），比较延迟
+     */
+    public JSONObject benchmarkInput(int count) throws IOException, InterruptedException, JSONException {
+        AdbConnectionManager manager = connectionManager;
+        AdbConnection conn = manager == null ? null : manager.getConnection();
+        if(conn == null) throw new IOException("adb not connected");
+        InjectCommand command = InjectCommand.key(0);
+        long[] injectorTimes = new long[count];
+        long[] shellTimes = new long[count];
+        int injectorCount = 0;
+        for(int i = 0; i < count; i++){
+            long start = SystemClock.uptimeMillis();
+            if(injector == null || injector.inject(shellPool, conn, command) != null) break;
+            injectorTimes[injectorCount++] = SystemClock.uptimeMillis() - start;
+        }
+        for(int i = 0; i < count; i++){
+            long start = SystemClock.uptimeMillis();
+            if(shellPool.execute(conn, command.toShellCommand()).await(10 * 1000) == null) throw new IOException("input command timeout");
+            shellTimes[i] = SystemClock.uptimeMillis() - start;
+        }
+        JSONObject data = new JSONObject();
+        data.put("count", count);
+        data.put("injector", createLatencyStats(injectorTimes, injectorCount));
+        data.put("shell", createLatencyStats(shellTimes, count));
+        return data;
+    }
 
-            connection.connect();
-            Log.i(TAG, "adb已连接成功。");
-            Environment.toastInHandler(adbHelper.context, context.getString(R.string.app_name)  + "和adb服务已连接成功。");
-            return true;
-        }catch(Exception e) {
-            Log.e(TAG, "adb连接失败，错误信息。" + e.toString(), e);
-            connection = null;
-            return false;
+    private static JSONObject createLatencyStats(long[] times, int count) throws JSONException {
+        JSONObject data = new JSONObject();
+        long total = 0, max = 0;
+        for(int i = 0; i < count; i++){
+            total += times[i];
+            if(times[i] > max) max = times[i];
         }
+        data.put("count", count);
+        data.put("avg", count == 0 ? 0 : (double) total / count);
+        data.put("max", max);
+        return data;
     }
 
+    /**
+     * 加入发送队列
+     * @param data 按键码(Integer)、{@link InjectCommand}、以"shell:"开头的原始命令或要输入的文本
+     */
     public void sendData(Object data){
-        sendDataDeque.push(data);
-        synchronized (sendDataDeque) {
-            sendDataDeque.notifyAll();
+        AdbCommandQueue.Entry entry;
+        if(data instanceof Integer){
+            entry = AdbCommandQueue.Entry.input(InjectCommand.key((Integer) data));
+        }else if(data instanceof InjectCommand){
+            entry = AdbCommandQueue.Entry.input((InjectCommand) data);
+        }else if(data instanceof String){
+            String strData = (String) data;
+            // 如果是以 "shell:" 开头，则直接作为原始命令发送
+            if(strData.startsWith("shell:")){
+                entry = AdbCommandQueue.Entry.shell(strData.substring("shell:".length()));
+            }else{
+                entry = AdbCommandQueue.Entry.input(InjectCommand.text(strData));
+            }
+        }else{
+            return;
+        }
+        try {
+            if(!commandQueue.offer(entry, QUEUE_WAIT)){
+                Log.w(TAG, "adb命令队列已满，丢弃了最早的命令");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -204,7 +276,7 @@ public static boolean initService(Context context){
 				instance.init(context, RemoteServer.getLocalIPAddress(context), Environment.adbServerPort);
 			}
 			// Only return true if actually connected to ADB
-			return instance.connection != null;
+			return instance.isConnected();
 		}
 		return false;
 	}
@@ -0,0 +1,132 @@
+package com.android.tvremoteime.adb;
+
+import android.util.Log;
+
+import com.cgutman.adblib.AdbConnection;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 少量长期打开的 shell: 流
+ * 命令发给等待中命令最少的流，所有流都在忙时再打开新的流（不超过上限）；
+ * 流被关闭或连接变化时自动重新打开
+ */
+class AdbShellPool implements AdbShellSession.Listener {
+    private static final String TAG = "AdbShellPool";
+    private static final int MAX_SESSIONS = 2;
+    // 命令超过这个时间仍未结束，认为流已卡死
+    private static final long STUCK_TIMEOUT = 15000;
+
+    private AdbConnection connection;
+    private final List<AdbShellSession> sessions = new ArrayList<>();
+
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong totalLatency = new AtomicLong();
+    private volatile long maxLatency = 0;
+    private volatile long lastLatency = 0;
+
+    /**
+     * 在shell中执行一条命令，流已断开时重新打开一次
+     */
+    AdbShellSession.Command execute(AdbConnection connection, String line) throws IOException, InterruptedException {
+        commands.incrementAndGet();
+        for (int attempt = 0; ; attempt++) {
+            AdbShellSession session = acquire(connection);
+            try {
+                return session.exec(line);
+            } catch (IOException e) {
+                session.close();
+                if (attempt > 0) {
+                    failed.incrementAndGet();
+                    throw e;
+                }
+                Log.i(TAG, "adb shell流已断开，重新打开：" + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized AdbShellSession acquire(AdbConnection connection) throws IOException, InterruptedException {
+        if (connection != this.connection) {
+            // 旧连接上的流都已失效
+            closeSessions();
+            this.connection = connection;
+        }
+        AdbShellSession best = null;
+        for (int i = sessions.size() - 1; i >= 0; i--) {
+            AdbShellSession session = sessions.get(i);
+            long age = session.getOldestPendingAge();
+            if (age > STUCK_TIMEOUT) {
+                // 关闭后等待中的命令都会失败，之后按需重新打开
+                Log.w(TAG, "adb shell流上的命令已等待" + age + "ms，关闭并重新打开");
+                session.close();
+                sessions.remove(session);
+            } else if (session.isClosed()) {
+                sessions.remove(i);
+            } else if (best == null || session.getPendingCount() < best.getPendingCount()) {
+                best = session;
+            }
+        }
+        if (best == null || (best.getPendingCount() > 0 && sessions.size() < MAX_SESSIONS)) {
+            AdbShellSession session = AdbShellSession.open(connection, this);
+            opened.incrementAndGet();
+            sessions.add(session);
+            best = session;
+        }
+        return best;
+    }
+
+    synchronized void close() {
+        closeSessions();
+        connection = null;
+    }
+
+    private void closeSessions() {
+        List<AdbShellSession> list = new ArrayList<>(sessions);
+        sessions.clear();
+        for (AdbShellSession session : list) session.close();
+    }
+
+    @Override
+    public void onCompleted(AdbShellSession.Command command) {
+        completed.incrementAndGet();
+        totalLatency.addAndGet(command.latency);
+        lastLatency = command.latency;
+        if (command.latency > maxLatency) maxLatency = command.latency;
+    }
+
+    @Override
+    public synchronized void onClosed(AdbShellSession session) {
+        sessions.remove(session);
+    }
+
+    synchronized int getOpenCount() {
+        int count = 0;
+        for (AdbShellSession session : sessions) {
+            if (!session.isClosed()) count++;
+        }
+        return count;
+    }
+
+    JSONObject getStats() throws JSONException {
+        JSONObject data = new JSONObject();
+        long done = completed.get();
+        data.put("streamsOpen", getOpenCount());
+        data.put("streamsOpened", opened.get());
+        data.put("commands", commands.get());
+        data.put("completed", done);
+        data.put("failed", failed.get());
+        data.put("avgLatency", done == 0 ? 0 : totalLatency.get() / done);
+        data.put("maxLatency", maxLatency);
+        data.put("lastLatency", lastLatency);
+        return data;
+    }
+}
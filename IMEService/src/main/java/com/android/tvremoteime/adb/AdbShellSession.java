@@ -0,0 +1,219 @@
+package com.android.tvremoteime.adb;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cgutman.adblib.AdbConnection;
+import com.cgutman.adblib.AdbStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 一个长期打开的交互式 shell: 流
+ * 命令按行写入同一个shell进程，每条命令后跟一条输出结束标记的echo，
+ * 读取线程按标记把输出和退出码分配给对应的命令，不需要为每条命令打开新的流
+ */
+class AdbShellSession {
+    private static final String TAG = "AdbShellSession";
+    // 回显的命令中标记被引号隔开（":END""12:$?"），不会与真正的输出 :END12:0 混淆
+    private static final Pattern END_MARKER = Pattern.compile(":END(\\d+):(-?\\d+)");
+
+    /**
+     * 一条已发送的命令
+     */
+    static class Command {
+        final int id;
+        final String line;
+        // 打开流时的初始化命令不计入统计
+        final boolean internal;
+        final long startTime = SystemClock.uptimeMillis();
+        final StringBuilder output = new StringBuilder();
+        final CountDownLatch done = new CountDownLatch(1);
+        int exitCode = -1;
+        long latency = -1;
+        IOException error;
+
+        Command(int id, String line, boolean internal) {
+            this.id = id;
+            this.line = line;
+            this.internal = internal;
+        }
+
+        /**
+         * 等待命令执行完成
+         * @return 命令输出，超时返回null
+         */
+        String await(long timeoutMillis) throws IOException, InterruptedException {
+            if (!done.await(timeoutMillis, TimeUnit.MILLISECONDS)) return null;
+            if (error != null) throw error;
+            return output.toString();
+        }
+
+        int getExitCode() {
+            return exitCode;
+        }
+    }
+
+    interface Listener {
+        void onCompleted(Command command);
+        void onClosed(AdbShellSession session);
+    }
+
+    private final AdbStream stream;
+    private final Listener listener;
+    private final ArrayDeque<Command> pending = new ArrayDeque<>();
+    private final Object writeLock = new Object();
+    private int nextId = 1;
+    private volatile boolean closed = false;
+
+    private AdbShellSession(AdbStream stream, Listener listener) {
+        this.stream = stream;
+        this.listener = listener;
+    }
+
+    /**
+     * 打开交互式shell并关闭回显和提示符
+     */
+    static AdbShellSession open(AdbConnection connection, Listener listener) throws IOException, InterruptedException {
+        AdbShellSession session = new AdbShellSession(connection.open("shell:"), listener);
+        session.startReader();
+        session.exec("stty -echo 2>/dev/null; PS1=''", true);
+        return session;
+    }
+
+    private void startReader() {
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                try {
+                    while (!closed) {
+                        byte[] data = stream.read();
+                        for (byte b : data) {
+                            if (b == '\n') {
+                                onLine(new String(line.toByteArray(), "UTF-8"));
+                                line.reset();
+                            } else if (b != '\r') {
+                                line.write(b);
+                            }
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    Log.i(TAG, "adb shell流已关闭：" + e.getMessage());
+                }
+                close();
+            }
+        }, "AdbShellReader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void onLine(String text) {
+        Matcher matcher = END_MARKER.matcher(text);
+        Command completed = null;
+        synchronized (pending) {
+            Command head = pending.peek();
+            if (matcher.find()) {
+                int id = Integer.parseInt(matcher.group(1));
+                // 标记前面没有结束的命令（正常不会出现）一并结束
+                while (head != null && head.id <= id) {
+                    pending.poll();
+                    if (head.id == id) {
+                        head.exitCode = Integer.parseInt(matcher.group(2));
+                        String prefix = text.substring(0, matcher.start());
+                        if (!prefix.isEmpty()) head.output.append(prefix);
+                        completed = head;
+                        break;
+                    }
+                    finish(head, null);
+                    head = pending.peek();
+                }
+            } else if (head != null && !text.contains("\":END\"\"") && !text.equals(head.line)) {
+                // 不能关闭回显时跳过回显的命令行
+                head.output.append(text).append('\n');
+            }
+        }
+        if (completed != null) finish(completed, null);
+    }
+
+    private void finish(Command command, IOException error) {
+        command.error = error;
+        command.latency = SystemClock.uptimeMillis() - command.startTime;
+        command.done.countDown();
+        if (error == null && !command.internal) listener.onCompleted(command);
+    }
+
+    /**
+     * 发送一条命令，不等待执行结果
+     */
+    Command exec(String line) throws IOException, InterruptedException {
+        return exec(line, false);
+    }
+
+    private Command exec(String line, boolean internal) throws IOException, InterruptedException {
+        // 命令中的换行会被shell当作多条命令
+        line = line.replace('\n', ' ').replace('\r', ' ');
+        // 写入顺序必须和等待队列的顺序一致；写入时不占用队列锁，读取线程可以继续分配输出
+        synchronized (writeLock) {
+            Command command;
+            synchronized (pending) {
+                if (closed) throw new IOException("Stream closed");
+                command = new Command(nextId++, line, internal);
+                pending.add(command);
+            }
+            try {
+                stream.write((line + "\necho \":END\"\"" + command.id + ":$?\"\n").getBytes("UTF-8"));
+            } catch (IOException e) {
+                synchronized (pending) {
+                    pending.remove(command);
+                }
+                throw e;
+            }
+            return command;
+        }
+    }
+
+    int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * 最早一条未完成命令已等待的时间，没有未完成命令时为0
+     */
+    long getOldestPendingAge() {
+        synchronized (pending) {
+            Command head = pending.peek();
+            return head == null ? 0 : SystemClock.uptimeMillis() - head.startTime;
+        }
+    }
+
+    boolean isClosed() {
+        return closed || stream.isClosed();
+    }
+
+    void close() {
+        Command[] failed;
+        synchronized (pending) {
+            if (closed) return;
+            closed = true;
+            failed = pending.toArray(new Command[pending.size()]);
+            pending.clear();
+        }
+        try {
+            stream.close();
+        } catch (IOException ignored) {
+        }
+        for (Command command : failed) {
+            finish(command, new IOException("Stream closed"));
+        }
+        listener.onClosed(this);
+    }
+}
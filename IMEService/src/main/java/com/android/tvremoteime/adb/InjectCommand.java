@@ -0,0 +1,76 @@
+package com.android.tvremoteime.adb;
+
+/**
+ * 一条输入注入命令
+ * 常驻的 {@link InputInjector} 可用时直接注入，否则转换成 input 命令在shell中执行
+ */
+public final class InjectCommand {
+    public static final int KEY = 1;
+    public static final int TAP = 2;
+    public static final int SWIPE = 3;
+    public static final int TEXT = 4;
+
+    final int type;
+    final int[] args;
+    final String text;
+
+    private InjectCommand(int type, int[] args, String text) {
+        this.type = type;
+        this.args = args;
+        this.text = text;
+    }
+
+    public static InjectCommand key(int keyCode) {
+        return new InjectCommand(KEY, new int[]{keyCode}, null);
+    }
+
+    /**
+     * 多个按键依次按下抬起，由命令队列合并连续按键时使用
+     */
+    static InjectCommand keys(int[] keyCodes) {
+        return new InjectCommand(KEY, keyCodes, null);
+    }
+
+    public static InjectCommand tap(int x, int y) {
+        return new InjectCommand(TAP, new int[]{x, y}, null);
+    }
+
+    /**
+     * 起点和终点相同时即为长按
+     */
+    public static InjectCommand swipe(int startX, int startY, int endX, int endY, int duration) {
+        return new InjectCommand(SWIPE, new int[]{startX, startY, endX, endY, duration}, null);
+    }
+
+    public static InjectCommand text(String text) {
+        return new InjectCommand(TEXT, new int[0], text);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * 回退时使用的shell命令
+     */
+    String toShellCommand() {
+        switch (type) {
+            case KEY:
+                StringBuilder command = new StringBuilder("input keyevent");
+                for (int keyCode : args) command.append(' ').append(keyCode);
+                return command.toString();
+            case TAP:
+                return "input tap " + args[0] + " " + args[1];
+            case SWIPE:
+                return "input swipe " + args[0] + " " + args[1] + " " + args[2] + " " + args[3] + " " + args[4];
+            default:
+                // 单引号内不做任何转义，文本中的单引号写成 '\''
+                return "input text '" + text.replace("'", "'\\''") + "'";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toShellCommand();
+    }
+}
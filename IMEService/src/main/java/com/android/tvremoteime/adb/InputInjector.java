@@ -0,0 +1,241 @@
+package com.android.tvremoteime.adb;
+
+import android.hardware.input.InputManager;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.InputDevice;
+import android.view.InputEvent;
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * 常驻的输入注入进程
+ * 由 {@link InputInjectorClient} 通过adb shell用 app_process 启动一次（以shell用户运行），
+ * 之后在本机回环地址上接收二进制命令并直接调用 InputManager 注入，
+ * 省去每条 input 命令都要启动一个新的 app_process 虚拟机的开销
+ *
+ * 协议（大端序）：
+ * 握手：客户端发送 int MAGIC, int VERSION, UTF 令牌；服务端回复 int VERSION, byte 是否认证成功
+ * 命令：客户端发送 byte 操作码和参数，服务端执行后回复 byte 状态
+ * （STATUS_OK；STATUS_FAILED 表示没有注入任何事件，可以回退；STATUS_PARTIAL 表示只注入了一部分，不能再回退）
+ * - OP_PING
+ * - OP_KEY   int keyCode
+ * - OP_TAP   int x, int y
+ * - OP_SWIPE int startX, int startY, int endX, int endY, int duration
+ * - OP_TEXT  UTF text
+ * - OP_QUIT  退出进程，不回复
+ */
+public class InputInjector {
+    private static final String TAG = "InputInjector";
+
+    static final int MAGIC = 0x54564931; // "TVI1"
+    static final int VERSION = 2;
+    // 令牌通过环境变量传入，/proc/<pid>/cmdline 对其他应用可读，environ 则不可读
+    static final String TOKEN_ENV = "TVREMOTEIME_INJECTOR_TOKEN";
+
+    static final byte OP_PING = 0;
+    static final byte OP_KEY = 1;
+    static final byte OP_TAP = 2;
+    static final byte OP_SWIPE = 3;
+    static final byte OP_TEXT = 4;
+    static final byte OP_QUIT = 5;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_FAILED = 1;
+    static final byte STATUS_PARTIAL = 2;
+
+    // InputManager.INJECT_INPUT_EVENT_MODE_ASYNC
+    private static final int INJECT_MODE_ASYNC = 0;
+    // 长时间没有客户端连接时自动退出
+    private static final int IDLE_TIMEOUT = 10 * 60 * 1000;
+
+    private final Object inputManager;
+    private final Method injectMethod;
+    private final KeyCharacterMap keyCharacterMap = KeyCharacterMap.load(KeyCharacterMap.VIRTUAL_KEYBOARD);
+
+    private InputInjector() throws ReflectiveOperationException {
+        Class<?> cls;
+        try {
+            // Android 14 起 getInstance 移到了 InputManagerGlobal
+            cls = Class.forName("android.hardware.input.InputManagerGlobal");
+        } catch (ClassNotFoundException e) {
+            cls = InputManager.class;
+        }
+        inputManager = cls.getDeclaredMethod("getInstance").invoke(null);
+        injectMethod = cls.getMethod("injectInputEvent", InputEvent.class, int.class);
+    }
+
+    /**
+     * 参数：端口；令牌从环境变量 {@link #TOKEN_ENV} 读取
+     */
+    public static void main(String[] args) {
+        try {
+            int port = Integer.parseInt(args[0]);
+            String token = System.getenv(TOKEN_ENV);
+            if (token == null || token.isEmpty()) throw new IllegalArgumentException("缺少令牌");
+            InputInjector injector = new InputInjector();
+            ServerSocket server = new ServerSocket(port, 1, InetAddress.getByName("127.0.0.1"));
+            server.setSoTimeout(IDLE_TIMEOUT);
+            Log.i(TAG, "输入注入进程已启动，port=" + port);
+            try {
+                while (true) {
+                    Socket socket;
+                    try {
+                        socket = server.accept();
+                    } catch (SocketTimeoutException e) {
+                        break;
+                    }
+                    if (!injector.serve(socket, token)) break;
+                }
+            } finally {
+                server.close();
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "输入注入进程出错", e);
+        }
+        Log.i(TAG, "输入注入进程已退出");
+        System.exit(0);
+    }
+
+    /**
+     * 处理一个客户端连接
+     * @return 收到退出命令时返回false
+     */
+    private boolean serve(Socket socket, String token) {
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            boolean authorized = in.readInt() == MAGIC;
+            in.readInt();
+            authorized = token.equals(in.readUTF()) && authorized;
+            out.writeInt(VERSION);
+            out.writeByte(authorized ? 1 : 0);
+            out.flush();
+            if (!authorized) return true;
+
+            while (true) {
+                byte op = in.readByte();
+                byte status;
+                switch (op) {
+                    case OP_PING:
+                        status = STATUS_OK;
+                        break;
+                    case OP_KEY:
+                        status = injectKey(in.readInt());
+                        break;
+                    case OP_TAP:
+                        status = injectTap(in.readInt(), in.readInt());
+                        break;
+                    case OP_SWIPE:
+                        status = injectSwipe(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+                        break;
+                    case OP_TEXT:
+                        status = injectText(in.readUTF());
+                        break;
+                    case OP_QUIT:
+                        return false;
+                    default:
+                        throw new IOException("Unknown op " + op);
+                }
+                out.writeByte(status);
+                out.flush();
+            }
+        } catch (EOFException e) {
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "客户端连接出错：" + e.getMessage());
+            return true;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private boolean inject(InputEvent event) {
+        try {
+            return (Boolean) injectMethod.invoke(inputManager, event, INJECT_MODE_ASYNC);
+        } catch (ReflectiveOperationException e) {
+            Log.e(TAG, "注入输入事件失败", e);
+            return false;
+        }
+    }
+
+    /**
+     * 第一个事件就失败时返回 STATUS_FAILED，之后的事件失败时返回 STATUS_PARTIAL
+     */
+    private static byte status(boolean first, boolean rest) {
+        return !first ? STATUS_FAILED : rest ? STATUS_OK : STATUS_PARTIAL;
+    }
+
+    private byte injectKey(int keyCode) {
+        long now = SystemClock.uptimeMillis();
+        if (!inject(new KeyEvent(now, now, KeyEvent.ACTION_DOWN, keyCode, 0, 0,
+                KeyCharacterMap.VIRTUAL_KEYBOARD, 0, 0, InputDevice.SOURCE_KEYBOARD))) return STATUS_FAILED;
+        return status(true, inject(new KeyEvent(now, now, KeyEvent.ACTION_UP, keyCode, 0, 0,
+                KeyCharacterMap.VIRTUAL_KEYBOARD, 0, 0, InputDevice.SOURCE_KEYBOARD)));
+    }
+
+    private boolean injectMotion(int action, long downTime, long eventTime, float x, float y) {
+        MotionEvent event = MotionEvent.obtain(downTime, eventTime, action, x, y, 0);
+        event.setSource(InputDevice.SOURCE_TOUCHSCREEN);
+        try {
+            return inject(event);
+        } finally {
+            event.recycle();
+        }
+    }
+
+    private byte injectTap(int x, int y) {
+        long now = SystemClock.uptimeMillis();
+        if (!injectMotion(MotionEvent.ACTION_DOWN, now, now, x, y)) return STATUS_FAILED;
+        return status(true, injectMotion(MotionEvent.ACTION_UP, now, now, x, y));
+    }
+
+    /**
+     * 与 input swipe 相同：按下后在duration内线性移动到终点再抬起
+     */
+    private byte injectSwipe(int startX, int startY, int endX, int endY, int duration) {
+        long downTime = SystemClock.uptimeMillis();
+        long endTime = downTime + Math.max(0, duration);
+        if (!injectMotion(MotionEvent.ACTION_DOWN, downTime, downTime, startX, startY)) return STATUS_FAILED;
+        long now = SystemClock.uptimeMillis();
+        while (now < endTime) {
+            float alpha = (float) (now - downTime) / (endTime - downTime);
+            injectMotion(MotionEvent.ACTION_MOVE, downTime, now,
+                    startX + (endX - startX) * alpha, startY + (endY - startY) * alpha);
+            SystemClock.sleep(5);
+            now = SystemClock.uptimeMillis();
+        }
+        return status(true, injectMotion(MotionEvent.ACTION_UP, downTime, now, endX, endY));
+    }
+
+    /**
+     * 虚拟键盘上没有的字符（如中文）无法注入，在注入任何事件之前返回 STATUS_FAILED 由客户端回退
+     */
+    private byte injectText(String text) {
+        KeyEvent[] events = keyCharacterMap.getEvents(text.toCharArray());
+        if (events == null) return STATUS_FAILED;
+        for (int i = 0; i < events.length; i++) {
+            if (!inject(KeyEvent.changeTimeRepeat(events[i], SystemClock.uptimeMillis(), 0))) {
+                return status(i > 0, false);
+            }
+        }
+        return STATUS_OK;
+    }
+}
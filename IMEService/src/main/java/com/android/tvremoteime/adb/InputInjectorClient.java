@@ -0,0 +1,252 @@
+package com.android.tvremoteime.adb;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.cgutman.adblib.AdbConnection;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.UUID;
+
+/**
+ * 常驻输入注入进程 {@link InputInjector} 的客户端
+ * 第一次注入时通过adb shell启动注入进程，之后命令经本机回环连接发送；
+ * 注入进程不可用或无法注入时返回未注入的部分，由调用方回退到 input 命令
+ */
+class InputInjectorClient {
+    private static final String TAG = "InputInjectorClient";
+    private static final int PORT = 9968;
+    private static final int CONNECT_TIMEOUT = 500;
+    private static final int READ_TIMEOUT = 10 * 1000;
+    private static final long START_TIMEOUT = 3000;
+    // 启动失败后暂时只使用 input 命令
+    private static final long RETRY_INTERVAL = 60 * 1000;
+
+    private final String apkPath;
+    private final String token;
+
+    private Socket socket;
+    private DataInputStream in;
+    private DataOutputStream out;
+    private long retryTime = 0;
+
+    private long started = 0;
+    private long injected = 0;
+    private long failed = 0;
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+
+    InputInjectorClient(Context context) {
+        this.apkPath = context.getApplicationInfo().sourceDir;
+        this.token = loadToken(new File(context.getFilesDir(), "injector.token"));
+    }
+
+    /**
+     * 令牌保存在应用私有目录，应用重启后仍能连接之前启动的注入进程
+     */
+    private static String loadToken(File file) {
+        try {
+            if (file.exists()) {
+                byte[] data = new byte[(int) Math.min(file.length(), 128)];
+                try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+                    input.readFully(data);
+                }
+                String token = new String(data, "UTF-8").trim();
+                if (!token.isEmpty()) return token;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "读取注入进程令牌失败：" + e.getMessage());
+        }
+        String token = UUID.randomUUID().toString().replace("-", "");
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(token.getBytes("UTF-8"));
+        } catch (IOException e) {
+            Log.w(TAG, "保存注入进程令牌失败：" + e.getMessage());
+        }
+        return token;
+    }
+
+    /**
+     * 通过注入进程执行命令
+     * @return 未能注入的部分，应回退到 input 命令；全部注入时为null。
+     *         合并的按键只返回没有注入成功的那些，已注入的按键不会重复输入；
+     *         只注入了一部分事件的命令（STATUS_PARTIAL）也不再回退
+     */
+    synchronized InjectCommand inject(AdbShellPool shellPool, AdbConnection connection, InjectCommand command) {
+        if (!ensureConnected(shellPool, connection)) return command;
+        long start = SystemClock.uptimeMillis();
+        int replies = command.type == InjectCommand.KEY ? command.args.length : 1;
+        // 第i个命令是否已（至少部分）注入，不需要回退
+        boolean[] succeeded = new boolean[replies];
+        boolean partial = false;
+        try {
+            switch (command.type) {
+                case InjectCommand.KEY:
+                    // 合并的多个按键一次写出，再依次读取结果
+                    for (int keyCode : command.args) {
+                        out.writeByte(InputInjector.OP_KEY);
+                        out.writeInt(keyCode);
+                    }
+                    break;
+                case InjectCommand.TAP:
+                    out.writeByte(InputInjector.OP_TAP);
+                    break;
+                case InjectCommand.SWIPE:
+                    out.writeByte(InputInjector.OP_SWIPE);
+                    break;
+                default:
+                    out.writeByte(InputInjector.OP_TEXT);
+                    out.writeUTF(command.text);
+                    break;
+            }
+            if (command.type != InjectCommand.KEY) {
+                for (int arg : command.args) out.writeInt(arg);
+            }
+            out.flush();
+            for (int i = 0; i < replies; i++) {
+                byte status = in.readByte();
+                succeeded[i] = status != InputInjector.STATUS_FAILED;
+                if (status == InputInjector.STATUS_PARTIAL) partial = true;
+            }
+        } catch (IOException e) {
+            // 没有读到结果的部分按未注入处理
+            Log.w(TAG, "注入进程连接已断开：" + e.getMessage());
+            disconnect();
+        }
+        int count = 0;
+        for (boolean ok : succeeded) {
+            if (ok) count++;
+        }
+        if (partial) {
+            Log.w(TAG, "命令只注入了一部分，不再回退到input命令");
+        }
+        if (count < replies || partial) {
+            failed++;
+            if (count == replies) return null;
+            if (command.type != InjectCommand.KEY || count == 0) return command;
+            int[] remaining = new int[replies - count];
+            for (int i = 0, j = 0; i < replies; i++) {
+                if (!succeeded[i]) remaining[j++] = command.args[i];
+            }
+            return InjectCommand.keys(remaining);
+        }
+        long latency = SystemClock.uptimeMillis() - start;
+        injected++;
+        totalLatency += latency;
+        if (latency > maxLatency) maxLatency = latency;
+        return null;
+    }
+
+    private boolean ensureConnected(AdbShellPool shellPool, AdbConnection connection) {
+        if (socket != null) return true;
+        if (SystemClock.uptimeMillis() < retryTime) return false;
+        try {
+            connect();
+            return true;
+        } catch (IOException ignored) {
+        }
+        try {
+            // 先结束旧版本或令牌不同的注入进程；没有nohup时 $(command -v nohup) 为空
+            shellPool.execute(connection, "pkill -f " + InputInjector.class.getName() + " 2>/dev/null; "
+                    + InputInjector.TOKEN_ENV + "=" + token + " CLASSPATH=" + apkPath
+                    + " $(command -v nohup) app_process /system/bin "
+                    + InputInjector.class.getName() + " " + PORT
+                    + " </dev/null >/dev/null 2>&1 &").await(START_TIMEOUT);
+            started++;
+            long deadline = SystemClock.uptimeMillis() + START_TIMEOUT;
+            while (SystemClock.uptimeMillis() < deadline) {
+                SystemClock.sleep(100);
+                try {
+                    connect();
+                    Log.i(TAG, "注入进程已启动");
+                    return true;
+                } catch (IOException ignored) {
+                }
+            }
+            Log.w(TAG, "注入进程启动失败，暂时使用input命令");
+        } catch (IOException | InterruptedException e) {
+            Log.w(TAG, "无法启动注入进程：" + e.getMessage());
+        }
+        retryTime = SystemClock.uptimeMillis() + RETRY_INTERVAL;
+        return false;
+    }
+
+    private void connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress("127.0.0.1", PORT), CONNECT_TIMEOUT);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(InputInjector.MAGIC);
+            out.writeInt(InputInjector.VERSION);
+            out.writeUTF(token);
+            out.flush();
+            int version = in.readInt();
+            if (in.readByte() != 1) throw new IOException("Injector rejected token");
+            if (version != InputInjector.VERSION) {
+                // 应用升级后旧的注入进程仍在运行
+                out.writeByte(InputInjector.OP_QUIT);
+                out.flush();
+                throw new IOException("Injector version " + version);
+            }
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void disconnect() {
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        socket = null;
+        in = null;
+        out = null;
+    }
+
+    /**
+     * 停止注入进程
+     */
+    synchronized void close() {
+        if (socket != null) {
+            try {
+                out.writeByte(InputInjector.OP_QUIT);
+                out.flush();
+            } catch (IOException ignored) {
+            }
+        }
+        disconnect();
+        retryTime = 0;
+    }
+
+    synchronized JSONObject getStats() throws JSONException {
+        JSONObject data = new JSONObject();
+        data.put("connected", socket != null);
+        data.put("started", started);
+        data.put("injected", injected);
+        data.put("failed", failed);
+        data.put("avgLatency", injected == 0 ? 0 : totalLatency / injected);
+        data.put("maxLatency", maxLatency);
+        return data;
+    }
+}
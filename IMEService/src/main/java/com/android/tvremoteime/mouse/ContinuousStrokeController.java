@@ -0,0 +1,213 @@
+package com.android.tvremoteime.mouse;
+
+import android.accessibilityservice.AccessibilityService;
+import android.accessibilityservice.GestureDescription;
+import android.annotation.TargetApi;
+import android.graphics.Path;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * 连续手势控制 - 基于 StrokeDescription.continueStroke (API 26+)
+ * 手指在整个拖拽/滚动过程中保持按下，按固定节拍把累积的位移作为下一段笔划发出，
+ * 代替原来一次次独立的定长滑动
+ */
+@TargetApi(Build.VERSION_CODES.O)
+class ContinuousStrokeController {
+    private static final String TAG = "ContinuousStroke";
+
+    // 每段笔划的时长，也就是输出节拍(ms)
+    static final int SEGMENT_DURATION = 40;
+    // 拖拽模式下无输入多久后自动抬起手指，防止手指一直“粘”在屏幕上
+    static final long DRAG_IDLE_TIMEOUT = 3000;
+    // 流式滚动模式下无输入多久后自动抬起
+    static final long SCROLL_IDLE_TIMEOUT = 200;
+
+    private final AccessibilityService service;
+    private final Handler handler;
+
+    private GestureDescription.StrokeDescription currentStroke;
+    private boolean active = false;
+    private boolean dispatching = false;
+    private boolean endRequested = false;
+    private boolean scrollMode = false;
+    private long idleTimeout;
+    private long lastInputTime;
+
+    // 上一段笔划的终点，下一段必须从这里开始
+    private int lastX;
+    private int lastY;
+    // 目标位置（累积的位移）
+    private int targetX;
+    private int targetY;
+
+    private int segmentCount = 0;
+
+    ContinuousStrokeController(AccessibilityService service, Handler handler) {
+        this.service = service;
+        this.handler = handler;
+    }
+
+    synchronized boolean isActive() {
+        return active;
+    }
+
+    synchronized boolean isScrollMode() {
+        return active && scrollMode;
+    }
+
+    synchronized int getSegmentCount() {
+        return segmentCount;
+    }
+
+    /**
+     * 在指定位置按下手指
+     * @param scrollMode 是否为流式滚动模式（更短的空闲超时）
+     * @return 是否成功
+     */
+    synchronized boolean start(int x, int y, boolean scrollMode) {
+        if (active) {
+            return false;
+        }
+        this.active = true;
+        this.endRequested = false;
+        this.scrollMode = scrollMode;
+        this.idleTimeout = scrollMode ? SCROLL_IDLE_TIMEOUT : DRAG_IDLE_TIMEOUT;
+        this.lastInputTime = SystemClock.uptimeMillis();
+        this.lastX = this.targetX = x;
+        this.lastY = this.targetY = y;
+        this.segmentCount = 0;
+
+        currentStroke = new GestureDescription.StrokeDescription(createPath(x, y, x, y), 0, SEGMENT_DURATION, true);
+        if (!dispatchSegment()) {
+            reset();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 更新手指目标位置，位移会在下一个节拍发出
+     */
+    synchronized void moveTo(int x, int y) {
+        if (!active) {
+            return;
+        }
+        targetX = x;
+        targetY = y;
+        lastInputTime = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * 相对移动手指目标位置
+     */
+    synchronized void moveBy(int dx, int dy) {
+        moveTo(targetX + dx, targetY + dy);
+    }
+
+    synchronized int[] getTarget() {
+        return new int[]{targetX, targetY};
+    }
+
+    /**
+     * 抬起手指，未发出的位移会在最后一段笔划里发出
+     */
+    synchronized void end() {
+        if (!active) {
+            return;
+        }
+        endRequested = true;
+        if (!dispatching) {
+            emitNextSegment();
+        }
+    }
+
+    /**
+     * 上一段笔划完成后发出下一段
+     */
+    private synchronized void emitNextSegment() {
+        dispatching = false;
+        if (!active || currentStroke == null) {
+            return;
+        }
+
+        boolean idle = SystemClock.uptimeMillis() - lastInputTime > idleTimeout;
+        boolean willContinue = !endRequested && !idle;
+
+        currentStroke = currentStroke.continueStroke(
+                createPath(lastX, lastY, targetX, targetY), 0, SEGMENT_DURATION, willContinue);
+        lastX = targetX;
+        lastY = targetY;
+        if (!willContinue) {
+            active = false;
+        }
+        if (!dispatchSegment()) {
+            reset();
+        }
+    }
+
+    private boolean dispatchSegment() {
+        // 回调只对发出它的那一段笔划有效，手势结束后又开始新手势时，旧的回调要忽略
+        final GestureDescription.StrokeDescription stroke = currentStroke;
+        GestureDescription gesture = new GestureDescription.Builder()
+                .addStroke(stroke)
+                .build();
+        dispatching = service.dispatchGesture(gesture, new AccessibilityService.GestureResultCallback() {
+            @Override
+            public void onCompleted(GestureDescription gestureDescription) {
+                segmentCompleted(stroke);
+            }
+
+            @Override
+            public void onCancelled(GestureDescription gestureDescription) {
+                segmentCancelled(stroke);
+            }
+        }, handler);
+        if (!dispatching) {
+            Log.e(TAG, "dispatchGesture rejected the stroke segment");
+        }
+        return dispatching;
+    }
+
+    private synchronized void segmentCompleted(GestureDescription.StrokeDescription stroke) {
+        if (stroke != currentStroke) {
+            return;
+        }
+        segmentCount++;
+        if (active) {
+            emitNextSegment();
+        } else {
+            dispatching = false;
+            currentStroke = null;
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Continuous stroke finished, segments=" + segmentCount);
+            }
+        }
+    }
+
+    private synchronized void segmentCancelled(GestureDescription.StrokeDescription stroke) {
+        if (stroke != currentStroke) {
+            return;
+        }
+        Log.w(TAG, "Continuous stroke cancelled after " + segmentCount + " segments");
+        reset();
+    }
+
+    private synchronized void reset() {
+        active = false;
+        dispatching = false;
+        endRequested = false;
+        currentStroke = null;
+    }
+
+    private static Path createPath(int fromX, int fromY, int toX, int toY) {
+        Path path = new Path();
+        path.moveTo(fromX, fromY);
+        if (fromX != toX || fromY != toY) {
+            path.lineTo(toX, toY);
+        }
+        return path;
+    }
+}
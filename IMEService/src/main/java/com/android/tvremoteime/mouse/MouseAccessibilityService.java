@@ -11,8 +11,10 @@ import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.WindowManager;
 import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
 
 import com.android.tvremoteime.adb.AdbHelper;
+import com.android.tvremoteime.adb.InjectCommand;
 
 /**
  * 辅助功能服务 - 用于模拟鼠标/触控板操作
@@ -36,6 +38,14 @@ public class MouseAccessibilityService extends AccessibilityService {
     private Runnable hideCursorRunnable;
     private boolean isCursorHidden = false;
 
+    // 连续手势（拖拽/流式滚动），API 26+
+    private ContinuousStrokeController strokeController;
+    // 流式滚动时手指位移相对于触摸板位移的放大倍数
+    private static final int SCROLL_STREAM_FACTOR = 3;
+
+    // 界面元素模型，用于按元素遥控
+    private UiTreeModel uiTreeModel;
+
     public static MouseAccessibilityService getInstance() {
         return instance;
     }
@@ -49,6 +59,9 @@ public class MouseAccessibilityService extends AccessibilityService {
         super.onCreate();
         Log.i(TAG, "MouseAccessibilityService created");
         mainHandler = new Handler(Looper.getMainLooper());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            strokeController = new ContinuousStrokeController(this, mainHandler);
+        }
     }
 
     @Override
@@ -59,6 +72,7 @@ public class MouseAccessibilityService extends AccessibilityService {
 
         initScreenSize();
         initCursorOverlay();
+        uiTreeModel = new UiTreeModel(this);
 
         // 初始化AdbHelper作为回退方案
         if (AdbHelper.getInstance() == null) {
@@ -73,7 +87,10 @@ public class MouseAccessibilityService extends AccessibilityService {
 
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
-        // 不需要处理辅助功能事件
+        // 只用于维护界面元素模型
+        if (uiTreeModel != null) {
+            uiTreeModel.onAccessibilityEvent(event);
+        }
     }
 
     @Override
@@ -85,6 +102,13 @@ public class MouseAccessibilityService extends AccessibilityService {
     public void onDestroy() {
         super.onDestroy();
         instance = null;
+        if (strokeController != null) {
+            strokeController.end();
+        }
+        if (uiTreeModel != null) {
+            uiTreeModel.quit();
+            uiTreeModel = null;
+        }
         if (cursorOverlay != null) {
             cursorOverlay.hide();
             cursorOverlay = null;
@@ -242,6 +266,105 @@ Log.i(TAG, "Screen size: " + screenWidth + "x" + screenHeight);
         return performSwipe(mouseX, startY, mouseX, endY, 200);
     }
 
+    /**
+     * 是否支持连续手势（拖拽/流式滚动）
+     */
+    public boolean isContinuousStrokeSupported() {
+        return strokeController != null;
+    }
+
+    /**
+     * 是否正在拖拽或流式滚动
+     */
+    public boolean isStrokeActive() {
+        return strokeController != null && strokeController.isActive();
+    }
+
+    /**
+     * 在当前鼠标位置按下并开始拖拽
+     * @return 是否成功
+     */
+    public boolean dragStart() {
+        resetHideTimer();
+        if (strokeController == null) {
+            Log.e(TAG, "continueStroke requires API 26+");
+            return false;
+        }
+        if (strokeController.isScrollMode()) {
+            strokeController.end();
+        }
+        return strokeController.start(mouseX, mouseY, false);
+    }
+
+    /**
+     * 拖拽中移动，光标和手指一起移动
+     * @param dx X方向移动距离
+     * @param dy Y方向移动距离
+     * @return 新的鼠标位置 [x, y]，未在拖拽中返回null
+     */
+    public int[] dragMove(int dx, int dy) {
+        if (strokeController == null || !strokeController.isActive()) {
+            return null;
+        }
+        int[] pos = moveMouse(dx, dy);
+        strokeController.moveTo(pos[0], pos[1]);
+        return pos;
+    }
+
+    /**
+     * 结束拖拽，抬起手指
+     */
+    public boolean dragEnd() {
+        resetHideTimer();
+        if (strokeController == null) {
+            return false;
+        }
+        strokeController.end();
+        return true;
+    }
+
+    /**
+     * 流式滚动：手指在光标处保持按下，随滚动位移连续移动，停止输入后自动抬起
+     * @param dy 滚动距离 (正数向下，负数向上)
+     * @return 是否成功
+     */
+    public boolean scrollStream(int dy) {
+        resetHideTimer();
+        if (strokeController == null) {
+            // 不支持连续手势时退回到普通滚动
+            return scroll(dy);
+        }
+        if (!strokeController.isActive()) {
+            if (!strokeController.start(mouseX, mouseY, true)) {
+                return false;
+            }
+        } else if (!strokeController.isScrollMode()) {
+            // 正在拖拽中，不打断
+            return false;
+        }
+
+        int[] target = strokeController.getTarget();
+        int endY = target[1] + dy * SCROLL_STREAM_FACTOR;
+        if (endY <= 0 || endY >= screenHeight - 1) {
+            // 手指到达屏幕边缘，抬起后下一次滚动从光标处重新按下
+            strokeController.moveTo(target[0], Math.max(0, Math.min(screenHeight - 1, endY)));
+            strokeController.end();
+        } else {
+            strokeController.moveTo(target[0], endY);
+        }
+        return true;
+    }
+
+    /**
+     * 立即结束流式滚动
+     */
+    public boolean scrollStreamEnd() {
+        if (strokeController != null && strokeController.isScrollMode()) {
+            strokeController.end();
+        }
+        return true;
+    }
+
     /**
      * 执行点击手势
      */
@@ -289,8 +412,7 @@ Log.i(TAG, "Screen size: " + screenWidth + "x" + screenHeight);
             Log.w(TAG, "performClickViaShell: AdbHelper isRunning: " + adbHelper.isRunning());
         }
         if (adbHelper != null && adbHelper.isRunning()) {
-            String command = String.format("shell:input tap %d %d", x, y);
-            adbHelper.sendData(command);
+            adbHelper.sendData(InjectCommand.tap(x, y));
             Log.w(TAG, "ADB click executed at " + x + "," + y);
             return true;
         }
@@ -352,8 +474,7 @@ Log.i(TAG, "Screen size: " + screenWidth + "x" + screenHeight);
         // 尝试使用AdbHelper
         AdbHelper adbHelper = AdbHelper.getInstance();
         if (adbHelper != null && adbHelper.isRunning()) {
-            String command = String.format("shell:input swipe %d %d %d %d %d", x, y, x, y, duration);
-            adbHelper.sendData(command);
+            adbHelper.sendData(InjectCommand.swipe(x, y, x, y, duration));
             Log.d(TAG, "ADB long click executed at " + x + "," + y + " duration=" + duration);
             return true;
         }
@@ -402,6 +523,51 @@ Log.i(TAG, "Screen size: " + screenWidth + "x" + screenHeight);
         }, null);
     }
 
+    /**
+     * 获取界面元素模型
+     */
+    public UiTreeModel getUiTreeModel() {
+        return uiTreeModel;
+    }
+
+    /**
+     * 点击界面元素：光标移动到元素中心，优先执行辅助功能点击，失败时退回手势点击
+     * @param id 元素ID
+     * @return 是否成功
+     */
+    public boolean clickUiNode(int id) throws Exception {
+        UiTreeModel model = uiTreeModel;
+        if (model == null) {
+            return false;
+        }
+        UiTreeModel.UiNode node = model.getNode(id);
+        if (node == null) {
+            return false;
+        }
+        moveMouseTo(node.centerX(), node.centerY());
+        if (model.performAction(id, AccessibilityNodeInfo.ACTION_CLICK)) {
+            return true;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return performClickViaShell(mouseX, mouseY);
+        }
+        return performClick(mouseX, mouseY);
+    }
+
+    /**
+     * 移动鼠标到绝对位置
+     */
+    private void moveMouseTo(int x, int y) {
+        mouseX = Math.max(0, Math.min(screenWidth - 1, x));
+        mouseY = Math.max(0, Math.min(screenHeight - 1, y));
+        mainHandler.post(() -> {
+            if (cursorOverlay != null) {
+                cursorOverlay.updatePosition(mouseX, mouseY);
+            }
+        });
+        resetHideTimer();
+    }
+
     /**
      * 获取当前鼠标位置
      */
@@ -502,8 +668,7 @@ Log.i(TAG, "Screen size: " + screenWidth + "x" + screenHeight);
         // 尝试使用AdbHelper
         AdbHelper adbHelper = AdbHelper.getInstance();
         if (adbHelper != null && adbHelper.isRunning()) {
-            String command = String.format("shell:input swipe %d %d %d %d 200", startX, startY, endX, endY);
-            adbHelper.sendData(command);
+            adbHelper.sendData(InjectCommand.swipe(startX, startY, endX, endY, 200));
             Log.d(TAG, "ADB swipe executed from " + startX + "," + startY + " to " + endX + "," + endY);
             return true;
         }
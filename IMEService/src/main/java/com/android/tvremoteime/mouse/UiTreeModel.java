@@ -0,0 +1,613 @@
+package com.android.tvremoteime.mouse;
+
+import android.accessibilityservice.AccessibilityService;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import android.view.accessibility.AccessibilityEvent;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 当前活动窗口的界面元素模型
+ * 窗口切换时整棵树重建，内容变化事件只重新遍历变化的子树，
+ * 对外提供可点击/可获得焦点元素的快照和增量变化
+ *
+ * 所有状态只在工作线程中访问，HTTP线程通过 runOnWorker 同步调用
+ */
+public class UiTreeModel {
+    private static final String TAG = "UiTreeModel";
+
+    // 合并短时间内连续的事件
+    private static final long EVENT_DEBOUNCE = 50;
+    // 超过该时间没有客户端访问则停止跟踪，避免空闲时消耗CPU
+    private static final long TRACKING_IDLE_TIMEOUT = 60 * 1000;
+    // 保留的增量版本数，更早的版本需要重新获取快照
+    private static final int MAX_DELTA_HISTORY = 64;
+    // 单棵树最多遍历的节点数
+    private static final int MAX_NODES = 2000;
+    private static final long WORKER_TIMEOUT = 2000;
+
+    /**
+     * 界面元素
+     */
+    public static class UiNode {
+        final int id;
+        final long key;
+        long parentKey;
+        final List<Long> children = new ArrayList<>();
+        final Rect bounds = new Rect();
+        String text;
+        String desc;
+        String className;
+        String viewId;
+        boolean clickable;
+        boolean focusable;
+        boolean focused;
+        boolean visible;
+
+        UiNode(int id, long key) {
+            this.id = id;
+            this.key = key;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public int centerX() {
+            return bounds.centerX();
+        }
+
+        public int centerY() {
+            return bounds.centerY();
+        }
+
+        boolean isInteresting() {
+            return visible && (clickable || focusable) && !bounds.isEmpty();
+        }
+
+        boolean sameContent(UiNode o) {
+            return bounds.equals(o.bounds)
+                    && TextUtils.equals(text, o.text)
+                    && TextUtils.equals(desc, o.desc)
+                    && TextUtils.equals(className, o.className)
+                    && TextUtils.equals(viewId, o.viewId)
+                    && clickable == o.clickable
+                    && focusable == o.focusable
+                    && focused == o.focused
+                    && visible == o.visible;
+        }
+
+        JSONObject toJSONObject() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("id", id);
+            obj.put("x", bounds.left);
+            obj.put("y", bounds.top);
+            obj.put("w", bounds.width());
+            obj.put("h", bounds.height());
+            if (!TextUtils.isEmpty(text)) obj.put("text", text);
+            if (!TextUtils.isEmpty(desc)) obj.put("desc", desc);
+            if (!TextUtils.isEmpty(className)) obj.put("cls", className);
+            if (!TextUtils.isEmpty(viewId)) obj.put("viewId", viewId);
+            if (clickable) obj.put("c", true);
+            if (focusable) obj.put("f", true);
+            if (focused) obj.put("fd", true);
+            return obj;
+        }
+    }
+
+    private static class Delta {
+        final long version;
+        final Set<Integer> changedIds;
+
+        Delta(long version, Set<Integer> changedIds) {
+            this.version = version;
+            this.changedIds = changedIds;
+        }
+    }
+
+    private final AccessibilityService service;
+    private final HandlerThread workerThread;
+    private final Handler worker;
+
+    // 以下字段只在工作线程访问
+    private final Map<Long, UiNode> nodes = new HashMap<>();
+    private final Map<Integer, UiNode> nodesById = new HashMap<>();
+    private final Map<Long, Integer> keyIds = new HashMap<>();
+    private final ArrayDeque<Delta> deltas = new ArrayDeque<>();
+    private final List<AccessibilityNodeInfo> pendingSources = new ArrayList<>();
+    private long rootKey = 0;
+    private long focusedKey = 0;
+    private int nextId = 1;
+    private long version = 0;
+    private boolean tracking = false;
+    private boolean fullRebuildPending = false;
+    private boolean updateScheduled = false;
+
+    // 统计
+    private volatile long lastAccessTime = 0;
+    private int fullRebuilds = 0;
+    private int incrementalUpdates = 0;
+    private long lastRebuildTime = 0;
+    private long lastUpdateTime = 0;
+    private int lastDeltaSize = 0;
+
+    private final Runnable updateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            processPendingUpdates();
+        }
+    };
+
+    public UiTreeModel(AccessibilityService service) {
+        this.service = service;
+        this.workerThread = new HandlerThread("UiTreeModel");
+        this.workerThread.start();
+        this.worker = new Handler(workerThread.getLooper());
+    }
+
+    public void quit() {
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                tracking = false;
+                clearPendingSources();
+                nodes.clear();
+                nodesById.clear();
+            }
+        });
+        workerThread.quitSafely();
+    }
+
+    /**
+     * 由辅助功能服务在主线程调用
+     */
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        if (SystemClock.uptimeMillis() - lastAccessTime > TRACKING_IDLE_TIMEOUT) {
+            // 没有客户端在使用，不跟踪
+            return;
+        }
+        final int eventType = event.getEventType();
+        final AccessibilityNodeInfo source;
+        switch (eventType) {
+            case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+            case AccessibilityEvent.TYPE_WINDOWS_CHANGED:
+                source = null;
+                break;
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+            case AccessibilityEvent.TYPE_VIEW_FOCUSED:
+            case AccessibilityEvent.TYPE_VIEW_SELECTED:
+                source = event.getSource();
+                if (source == null) return;
+                break;
+            default:
+                return;
+        }
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!tracking) {
+                    if (source != null) source.recycle();
+                    return;
+                }
+                if (source == null) {
+                    fullRebuildPending = true;
+                    clearPendingSources();
+                } else if (fullRebuildPending) {
+                    source.recycle();
+                } else {
+                    pendingSources.add(source);
+                }
+                if (!updateScheduled) {
+                    updateScheduled = true;
+                    worker.postDelayed(updateRunnable, EVENT_DEBOUNCE);
+                }
+            }
+        });
+    }
+
+    /**
+     * 获取快照JSON
+     */
+    public String getSnapshot() throws Exception {
+        return runOnWorker(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                ensureTracking();
+                JSONObject data = new JSONObject();
+                data.put("version", version);
+                JSONArray items = new JSONArray();
+                for (UiNode node : nodesById.values()) {
+                    if (node.isInteresting()) items.put(node.toJSONObject());
+                }
+                data.put("nodes", items);
+                data.put("stats", getStats());
+                return data.toString();
+            }
+        });
+    }
+
+    /**
+     * 获取某版本之后的增量JSON，版本过旧时返回完整快照并标记reset
+     */
+    public String getDelta(final long since) throws Exception {
+        return runOnWorker(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                boolean wasTracking = tracking;
+                ensureTracking();
+                Delta oldest = deltas.peekFirst();
+                boolean reset = !wasTracking || since > version
+                        || (since < version && (oldest == null || oldest.version > since + 1));
+
+                JSONObject data = new JSONObject();
+                data.put("version", version);
+                data.put("since", since);
+                JSONArray upserts = new JSONArray();
+                JSONArray removed = new JSONArray();
+                if (reset) {
+                    data.put("reset", true);
+                    for (UiNode node : nodesById.values()) {
+                        if (node.isInteresting()) upserts.put(node.toJSONObject());
+                    }
+                } else {
+                    Set<Integer> changed = new HashSet<>();
+                    for (Delta delta : deltas) {
+                        if (delta.version > since) changed.addAll(delta.changedIds);
+                    }
+                    for (Integer id : changed) {
+                        UiNode node = nodesById.get(id);
+                        if (node != null && node.isInteresting()) {
+                            upserts.put(node.toJSONObject());
+                        } else {
+                            removed.put(id);
+                        }
+                    }
+                }
+                data.put("nodes", upserts);
+                data.put("removed", removed);
+                return data.toString();
+            }
+        });
+    }
+
+    /**
+     * 获取元素
+     */
+    public UiNode getNode(final int id) throws Exception {
+        return runOnWorker(new Callable<UiNode>() {
+            @Override
+            public UiNode call() {
+                ensureTracking();
+                return nodesById.get(id);
+            }
+        });
+    }
+
+    /**
+     * 对元素执行辅助功能操作
+     */
+    public boolean performAction(final int id, final int action) throws Exception {
+        Boolean result = runOnWorker(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                UiNode node = nodesById.get(id);
+                if (node == null) return false;
+                AccessibilityNodeInfo info = findNodeInfo(node.key);
+                if (info == null) return false;
+                try {
+                    return info.performAction(action);
+                } finally {
+                    info.recycle();
+                }
+            }
+        });
+        return result != null && result;
+    }
+
+    private JSONObject getStats() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("nodeCount", nodes.size());
+        stats.put("fullRebuilds", fullRebuilds);
+        stats.put("incrementalUpdates", incrementalUpdates);
+        stats.put("lastRebuildMs", lastRebuildTime);
+        stats.put("lastUpdateMs", lastUpdateTime);
+        stats.put("lastDeltaSize", lastDeltaSize);
+        return stats;
+    }
+
+    private <T> T runOnWorker(final Callable<T> callable) throws Exception {
+        lastAccessTime = SystemClock.uptimeMillis();
+        final Object[] result = new Object[1];
+        final Exception[] error = new Exception[1];
+        final CountDownLatch latch = new CountDownLatch(1);
+        worker.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = callable.call();
+                } catch (Exception e) {
+                    error[0] = e;
+                } finally {
+                    latch.countDown();
+                }
+            }
+        });
+        if (!latch.await(WORKER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException("ui tree worker timeout");
+        }
+        if (error[0] != null) throw error[0];
+        @SuppressWarnings("unchecked")
+        T value = (T) result[0];
+        return value;
+    }
+
+    private void ensureTracking() {
+        if (!tracking) {
+            tracking = true;
+            fullRebuild();
+        } else if (fullRebuildPending || !pendingSources.isEmpty()) {
+            // 有未处理的事件，先处理再返回，保证数据是最新的
+            worker.removeCallbacks(updateRunnable);
+            processPendingUpdates();
+        }
+    }
+
+    private void processPendingUpdates() {
+        updateScheduled = false;
+        if (!tracking) {
+            clearPendingSources();
+            return;
+        }
+        if (SystemClock.uptimeMillis() - lastAccessTime > TRACKING_IDLE_TIMEOUT) {
+            // 客户端已经不再访问，停止跟踪并释放内存
+            tracking = false;
+            clearPendingSources();
+            nodes.clear();
+            nodesById.clear();
+            keyIds.clear();
+            deltas.clear();
+            return;
+        }
+        if (fullRebuildPending) {
+            fullRebuild();
+            return;
+        }
+
+        long start = SystemClock.uptimeMillis();
+        Set<Integer> changed = new HashSet<>();
+        boolean needFullRebuild = false;
+        for (AccessibilityNodeInfo source : pendingSources) {
+            if (!needFullRebuild && !updateSubtree(source, changed)) {
+                needFullRebuild = true;
+            }
+            source.recycle();
+        }
+        pendingSources.clear();
+        if (needFullRebuild) {
+            fullRebuild();
+            return;
+        }
+        incrementalUpdates++;
+        lastUpdateTime = SystemClock.uptimeMillis() - start;
+        commitDelta(changed);
+    }
+
+    private void fullRebuild() {
+        fullRebuildPending = false;
+        clearPendingSources();
+        long start = SystemClock.uptimeMillis();
+        Set<Integer> changed = new HashSet<>();
+        Set<Long> oldKeys = new HashSet<>(nodes.keySet());
+        Map<Long, UiNode> oldNodes = new HashMap<>(nodes);
+        nodes.clear();
+        rootKey = 0;
+
+        AccessibilityNodeInfo root = service.getRootInActiveWindow();
+        if (root != null) {
+            rootKey = keyOf(root);
+            int[] budget = new int[]{MAX_NODES};
+            walk(root, 0, oldNodes, changed, budget);
+            root.recycle();
+        }
+        oldKeys.removeAll(nodes.keySet());
+        removeKeys(oldKeys, changed);
+
+        fullRebuilds++;
+        lastRebuildTime = SystemClock.uptimeMillis() - start;
+        commitDelta(changed);
+    }
+
+    /**
+     * 只重新遍历变化的子树
+     * @return false 表示无法增量更新，需要整棵树重建
+     */
+    private boolean updateSubtree(AccessibilityNodeInfo source, Set<Integer> changed) {
+        if (!source.refresh()) {
+            // 节点已经不存在了，等父节点的变化事件或者整树重建
+            return true;
+        }
+        long key = keyOf(source);
+        UiNode existing = nodes.get(key);
+        if (existing == null) {
+            return false;
+        }
+
+        Set<Long> oldKeys = new HashSet<>();
+        collectSubtreeKeys(key, oldKeys);
+        Map<Long, UiNode> oldNodes = new HashMap<>();
+        for (Long k : oldKeys) {
+            oldNodes.put(k, nodes.remove(k));
+        }
+
+        int[] budget = new int[]{MAX_NODES - nodes.size()};
+        walk(source, existing.parentKey, oldNodes, changed, budget);
+
+        oldKeys.removeAll(nodes.keySet());
+        removeKeys(oldKeys, changed);
+        return true;
+    }
+
+    private void walk(AccessibilityNodeInfo info, long parentKey, Map<Long, UiNode> oldNodes,
+                      Set<Integer> changed, int[] budget) {
+        if (budget[0]-- <= 0) return;
+
+        long key = keyOf(info);
+        UiNode node = new UiNode(idOf(key), key);
+        node.parentKey = parentKey;
+        info.getBoundsInScreen(node.bounds);
+        node.text = info.getText() == null ? null : info.getText().toString();
+        node.desc = info.getContentDescription() == null ? null : info.getContentDescription().toString();
+        node.className = shortClassName(info.getClassName());
+        node.viewId = info.getViewIdResourceName();
+        node.clickable = info.isClickable() || info.isLongClickable();
+        node.focusable = info.isFocusable();
+        node.focused = info.isFocused() || info.isAccessibilityFocused();
+        node.visible = info.isVisibleToUser();
+
+        UiNode old = oldNodes.get(key);
+        if (old == null || !old.sameContent(node)) {
+            changed.add(node.id);
+        }
+        if (node.focused && focusedKey != key) {
+            // 焦点移动时旧节点不一定会产生事件，在这里同步清除
+            UiNode previous = nodes.get(focusedKey);
+            if (previous != null && previous.focused) {
+                previous.focused = false;
+                changed.add(previous.id);
+            }
+            focusedKey = key;
+        }
+        nodes.put(key, node);
+        nodesById.put(node.id, node);
+
+        int count = info.getChildCount();
+        for (int i = 0; i < count; i++) {
+            AccessibilityNodeInfo child = info.getChild(i);
+            if (child == null) continue;
+            long childKey = keyOf(child);
+            if (!nodes.containsKey(childKey)) {
+                node.children.add(childKey);
+                walk(child, key, oldNodes, changed, budget);
+            }
+            child.recycle();
+        }
+    }
+
+    private void collectSubtreeKeys(long key, Set<Long> keys) {
+        UiNode node = nodes.get(key);
+        if (node == null || !keys.add(key)) return;
+        for (Long child : node.children) {
+            collectSubtreeKeys(child, keys);
+        }
+    }
+
+    private void removeKeys(Set<Long> keys, Set<Integer> changed) {
+        for (Long k : keys) {
+            Integer id = keyIds.remove(k);
+            if (id != null) {
+                nodesById.remove(id);
+                changed.add(id);
+            }
+        }
+    }
+
+    private void commitDelta(Set<Integer> changed) {
+        lastDeltaSize = changed.size();
+        if (changed.isEmpty()) return;
+        version++;
+        deltas.addLast(new Delta(version, changed));
+        while (deltas.size() > MAX_DELTA_HISTORY) {
+            deltas.removeFirst();
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "ui tree v" + version + " changed=" + changed.size() + " nodes=" + nodes.size());
+        }
+    }
+
+    private AccessibilityNodeInfo findNodeInfo(long key) {
+        AccessibilityNodeInfo root = service.getRootInActiveWindow();
+        if (root == null) return null;
+        // 沿着模型中记录的父节点链从根向下查找，只需访问路径上的节点
+        List<Long> path = new ArrayList<>();
+        UiNode node = nodes.get(key);
+        while (node != null) {
+            path.add(0, node.key);
+            if (node.key == rootKey) break;
+            node = nodes.get(node.parentKey);
+        }
+        if (path.isEmpty() || path.get(0) != keyOf(root)) {
+            root.recycle();
+            return null;
+        }
+        AccessibilityNodeInfo current = root;
+        for (int depth = 1; depth < path.size(); depth++) {
+            AccessibilityNodeInfo next = null;
+            long wanted = path.get(depth);
+            for (int i = 0; i < current.getChildCount(); i++) {
+                AccessibilityNodeInfo child = current.getChild(i);
+                if (child == null) continue;
+                if (keyOf(child) == wanted) {
+                    next = child;
+                    break;
+                }
+                child.recycle();
+            }
+            current.recycle();
+            if (next == null) return null;
+            current = next;
+        }
+        return current;
+    }
+
+    private int idOf(long key) {
+        Integer id = keyIds.get(key);
+        if (id == null) {
+            id = nextId++;
+            keyIds.put(key, id);
+        }
+        return id;
+    }
+
+    private void clearPendingSources() {
+        Iterator<AccessibilityNodeInfo> it = pendingSources.iterator();
+        while (it.hasNext()) {
+            it.next().recycle();
+            it.remove();
+        }
+    }
+
+    /**
+     * AccessibilityNodeInfo 的 hashCode/equals 基于源节点ID，同一个View多次获取结果一致
+     */
+    private static long keyOf(AccessibilityNodeInfo info) {
+        return ((long) info.getWindowId() << 32) | (info.hashCode() & 0xffffffffL);
+    }
+
+    private static String shortClassName(CharSequence className) {
+        if (className == null) return null;
+        String name = className.toString();
+        int p = name.lastIndexOf('.');
+        return p >= 0 ? name.substring(p + 1) : name;
+    }
+}
@@ -0,0 +1,230 @@
+package com.android.tvremoteime.server;
+
+import android.util.Log;
+
+import com.android.tvremoteime.IMEService;
+import com.android.tvremoteime.util.BoundedInputStream;
+import com.android.tvremoteime.util.TarStreamReader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * 边接收边解压上传的ZIP或tar（含tar.gz）数据流，逐个条目写入目标目录
+ * 每个条目的路径都经过 SecurityManager 校验，不允许写到外部存储以外
+ */
+public class ArchiveExtractor {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // 保留最近的解压任务数量
+    private static final int MAX_JOBS = 16;
+    // 最多记录的出错条目数
+    private static final int MAX_ERRORS = 20;
+
+    public static final String STATUS_EXTRACTING = "extracting";
+    public static final String STATUS_SUCCESS = "success";
+    public static final String STATUS_FAILURE = "failure";
+
+    private static final Map<String, ArchiveExtractor> jobs = new LinkedHashMap<String, ArchiveExtractor>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ArchiveExtractor> eldest) {
+            return size() > MAX_JOBS;
+        }
+    };
+
+    private final String id;
+    private final File targetDir;
+    private final BoundedInputStream body;
+    private final long totalBytes;
+    private final boolean overwrite;
+    private final SecurityManager securityManager = SecurityManager.getInstance();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private volatile String status = STATUS_EXTRACTING;
+    private volatile String format = null;
+    private volatile String currentEntry = null;
+    private volatile String message = null;
+    private volatile int files = 0;
+    private volatile int dirs = 0;
+    private volatile int skipped = 0;
+    private volatile long bytesWritten = 0;
+    private final List<String> errors = new ArrayList<>();
+
+    /**
+     * @param id 任务标识，用于查询进度
+     * @param targetDir 解压到的目录
+     * @param body 请求体
+     * @param totalBytes 请求体长度
+     * @param overwrite 是否覆盖已存在的文件
+     */
+    public ArchiveExtractor(String id, File targetDir, BoundedInputStream body, long totalBytes, boolean overwrite) {
+        this.id = id;
+        this.targetDir = targetDir;
+        this.body = body;
+        this.totalBytes = totalBytes;
+        this.overwrite = overwrite;
+        synchronized (jobs) {
+            jobs.put(id, this);
+        }
+    }
+
+    /**
+     * 获取解压任务
+     */
+    public static ArchiveExtractor getJob(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    /**
+     * 在当前线程中解压，出错时剩余的请求体会被读完丢弃
+     */
+    public void extract() {
+        long start = System.currentTimeMillis();
+        try {
+            InputStream in = detectFormat(new BufferedInputStream(body, BUFFER_SIZE));
+            if ("zip".equals(format)) {
+                extractZip(new ZipInputStream(in));
+            } else {
+                extractTar(new TarStreamReader(in));
+            }
+            body.drain();
+            currentEntry = null;
+            status = STATUS_SUCCESS;
+            Log.i(IMEService.TAG, String.format("已解压%d个文件、%d个目录到[%s]，耗时%dms",
+                    files, dirs, targetDir.getPath(), System.currentTimeMillis() - start));
+        } catch (IOException | RuntimeException ex) {
+            message = ex.getMessage();
+            status = STATUS_FAILURE;
+            Log.e(IMEService.TAG, String.format("解压到[%s]出错", targetDir.getPath()), ex);
+            try {
+                body.drain();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 根据开头的字节判断格式：ZIP、gzip压缩的tar或tar
+     */
+    private InputStream detectFormat(BufferedInputStream in) throws IOException {
+        in.mark(4);
+        int b0 = in.read(), b1 = in.read(), b2 = in.read(), b3 = in.read();
+        in.reset();
+        if (b0 == 'P' && b1 == 'K' && (b2 == 3 || b2 == 5) && (b3 == 4 || b3 == 6)) {
+            format = "zip";
+            return in;
+        }
+        if (b0 == 0x1f && b1 == 0x8b) {
+            format = "tar.gz";
+            return new GZIPInputStream(in, BUFFER_SIZE);
+        }
+        format = "tar";
+        return in;
+    }
+
+    private void extractZip(ZipInputStream zip) throws IOException {
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            writeEntry(entry.getName(), entry.isDirectory(), entry.getTime(), zip);
+            zip.closeEntry();
+        }
+    }
+
+    private void extractTar(TarStreamReader tar) throws IOException {
+        TarStreamReader.Entry entry;
+        while ((entry = tar.getNextEntry()) != null) {
+            writeEntry(entry.getName(), entry.isDirectory(), entry.getTime(), tar.getEntryStream());
+        }
+    }
+
+    private void writeEntry(String name, boolean isDirectory, long time, InputStream data) throws IOException {
+        currentEntry = name;
+        if (name == null || name.isEmpty()) return;
+        File file = securityManager.getSafeEntryFile(targetDir, name);
+        if (file == null) {
+            addError(name, "invalid path");
+            return;
+        }
+        if (isDirectory) {
+            if (file.isDirectory() || file.mkdirs()) {
+                dirs++;
+            } else {
+                addError(name, "mkdir failed");
+            }
+            return;
+        }
+
+        File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            addError(name, "mkdir failed");
+            return;
+        }
+        if (file.exists() && (!overwrite || file.isDirectory())) {
+            skipped++;
+            return;
+        }
+        OutputStream out = new FileOutputStream(file);
+        try {
+            int n;
+            while ((n = data.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                bytesWritten += n;
+            }
+        } finally {
+            out.close();
+        }
+        if (time > 0) file.setLastModified(time);
+        files++;
+    }
+
+    private void addError(String name, String error) {
+        synchronized (errors) {
+            if (errors.size() < MAX_ERRORS) errors.add(name + ": " + error);
+        }
+        skipped++;
+    }
+
+    public JSONObject toJSONObject() {
+        JSONObject obj = new JSONObject();
+        try {
+            obj.put("id", id);
+            obj.put("status", status);
+            if (format != null) obj.put("format", format);
+            obj.put("files", files);
+            obj.put("dirs", dirs);
+            obj.put("skipped", skipped);
+            obj.put("bytesRead", body.getBytesRead());
+            obj.put("totalBytes", totalBytes);
+            obj.put("bytesWritten", bytesWritten);
+            obj.put("progress", totalBytes > 0 ? (double) body.getBytesRead() / totalBytes : 0);
+            if (currentEntry != null) obj.put("currentEntry", currentEntry);
+            if (message != null) obj.put("message", message);
+            synchronized (errors) {
+                if (!errors.isEmpty()) obj.put("errors", new JSONArray(errors));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return obj;
+    }
+}
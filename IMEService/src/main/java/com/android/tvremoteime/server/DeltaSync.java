@@ -0,0 +1,282 @@
+package com.android.tvremoteime.server;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.tvremoteime.IMEService;
+import com.android.tvremoteime.util.RollingChecksum;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * rsync方式的增量同步
+ * 电视端把已有文件按固定大小分块，返回每块的弱校验值（可滚动计算）和MD5；
+ * 客户端在新文件中逐字节滚动查找相同的块，只发送不同的数据和块引用，
+ * 服务端据此在同目录的临时文件中重建新文件，校验通过后改名替换原文件
+ *
+ * 增量数据格式（大端序）:
+ * - 'L' 长度(int) 数据    - 新的数据
+ * - 'C' 块序号(int) 块数(int) - 从原文件复制连续的块，最后一块可以不足一个块大小
+ * - 'E'                  - 结束
+ */
+public class DeltaSync {
+    public static final int MIN_BLOCK_SIZE = 512;
+    public static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    private static final int MAX_CACHED_SIGNATURES = 16;
+    private static final int MAX_BLOCKS = 1024 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final int OP_LITERAL = 'L';
+    private static final int OP_COPY = 'C';
+    private static final int OP_END = 'E';
+
+    private static DeltaSync instance;
+
+    public static synchronized DeltaSync getInstance() {
+        if (instance == null) {
+            instance = new DeltaSync();
+        }
+        return instance;
+    }
+
+    /**
+     * 一个文件的块签名
+     */
+    static class Signature {
+        final long size;
+        final long mtime;
+        final int blockSize;
+        final int[] weak;
+        // 每块16字节的MD5
+        final byte[] strong;
+
+        Signature(long size, long mtime, int blockSize, int[] weak, byte[] strong) {
+            this.size = size;
+            this.mtime = mtime;
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        JSONObject toJSONObject() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("size", size);
+            obj.put("mtime", mtime);
+            obj.put("blockSize", blockSize);
+            JSONArray blocks = new JSONArray();
+            for (int i = 0; i < weak.length; i++) {
+                blocks.put(new JSONArray().put(weak[i] & 0xffffffffL).put(toHex(strong, i * 16, 16)));
+            }
+            obj.put("blocks", blocks);
+            return obj;
+        }
+    }
+
+    // 按路径缓存，文件大小、修改时间或块大小变化后重新计算
+    private final LinkedHashMap<String, Signature> signatures = new LinkedHashMap<String, Signature>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Signature> eldest) {
+            return size() > MAX_CACHED_SIGNATURES;
+        }
+    };
+
+    private DeltaSync() {
+    }
+
+    /**
+     * 按文件大小选择块大小：约为文件大小的平方根，按1KB对齐
+     */
+    public static int chooseBlockSize(long size) {
+        long blockSize = ((long) Math.sqrt(size) + 1023) / 1024 * 1024;
+        return (int) Math.max(2048, Math.min(128 * 1024, blockSize));
+    }
+
+    /**
+     * 计算或从缓存中取得文件的块签名
+     * @param blockSize 块大小，小于等于0时自动选择
+     */
+    public Signature getSignature(File file, int blockSize) throws IOException {
+        long size = file.length();
+        long mtime = file.lastModified();
+        if (blockSize <= 0) blockSize = chooseBlockSize(size);
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || size / blockSize >= MAX_BLOCKS) {
+            throw new IOException("invalid block size");
+        }
+        synchronized (signatures) {
+            Signature cached = signatures.get(file.getPath());
+            if (cached != null && cached.size == size && cached.mtime == mtime && cached.blockSize == blockSize) {
+                return cached;
+            }
+        }
+        Signature signature = computeSignature(file, size, mtime, blockSize);
+        synchronized (signatures) {
+            signatures.put(file.getPath(), signature);
+        }
+        return signature;
+    }
+
+    private static Signature computeSignature(File file, long size, long mtime, int blockSize) throws IOException {
+        long start = SystemClock.uptimeMillis();
+        int count = (int) ((size + blockSize - 1) / blockSize);
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * 16];
+        MessageDigest md5 = newDigest("MD5");
+        byte[] block = new byte[blockSize];
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+            for (int i = 0; i < count; i++) {
+                int length = (int) Math.min(blockSize, size - (long) i * blockSize);
+                readFully(in, block, length);
+                weak[i] = RollingChecksum.of(block, 0, length);
+                md5.update(block, 0, length);
+                System.arraycopy(md5.digest(), 0, strong, i * 16, 16);
+            }
+        }
+        if (file.lastModified() != mtime) throw new IOException("file changed while reading");
+        Log.d(IMEService.TAG, String.format("已计算文件[%s]块签名，%d块，耗时%dms",
+                file.getName(), count, SystemClock.uptimeMillis() - start));
+        return new Signature(size, mtime, blockSize, weak, strong);
+    }
+
+    /**
+     * 根据增量数据重建文件并替换原文件
+     * @param target 目标文件，不存在时增量数据只能包含新数据
+     * @param baseMtime 客户端取得签名时原文件的修改时间，原文件已变化时拒绝重建，小于0时不检查
+     * @param blockSize 签名的块大小
+     * @param delta 增量数据
+     * @param expectedSize 新文件大小，小于0时不检查
+     * @param expectedSha256 新文件的SHA-256，为空时不检查
+     * @return 重建结果
+     */
+    public JSONObject apply(File target, long baseMtime, int blockSize, InputStream delta,
+                            long expectedSize, String expectedSha256) throws IOException, JSONException {
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) throw new IOException("invalid block size");
+        boolean hasBase = target.isFile();
+        if (baseMtime >= 0 && (!hasBase || target.lastModified() != baseMtime)) {
+            throw new IOException("base file changed");
+        }
+        long start = SystemClock.uptimeMillis();
+        File tmp = new File(target.getParentFile(), "." + target.getName() + "." + UUID.randomUUID().toString().replace("-", "") + ".delta");
+        MessageDigest sha256 = newDigest("SHA-256");
+        long literalBytes = 0;
+        long copiedBytes = 0;
+        boolean success = false;
+        try (RandomAccessFile base = hasBase ? new RandomAccessFile(target, "r") : null;
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE)) {
+            long baseSize = hasBase ? base.length() : 0;
+            DataInputStream in = new DataInputStream(delta);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (true) {
+                int op = in.read();
+                if (op == OP_END) break;
+                if (op == OP_LITERAL) {
+                    int length = in.readInt();
+                    if (length < 0) throw new IOException("invalid literal length");
+                    while (length > 0) {
+                        int n = in.read(buffer, 0, Math.min(buffer.length, length));
+                        if (n < 0) throw new EOFException("delta truncated");
+                        out.write(buffer, 0, n);
+                        sha256.update(buffer, 0, n);
+                        length -= n;
+                        literalBytes += n;
+                    }
+                } else if (op == OP_COPY) {
+                    long offset = (long) in.readInt() * blockSize;
+                    long end = Math.min(baseSize, offset + (long) in.readInt() * blockSize);
+                    if (offset < 0 || offset >= end) throw new IOException("invalid block reference");
+                    base.seek(offset);
+                    while (offset < end) {
+                        int n = base.read(buffer, 0, (int) Math.min(buffer.length, end - offset));
+                        if (n < 0) throw new EOFException("base file truncated");
+                        out.write(buffer, 0, n);
+                        sha256.update(buffer, 0, n);
+                        offset += n;
+                        copiedBytes += n;
+                    }
+                } else {
+                    throw new IOException(op < 0 ? "delta truncated" : "invalid delta op: " + op);
+                }
+            }
+            success = true;
+        } finally {
+            if (!success) tmp.delete();
+        }
+
+        long size = literalBytes + copiedBytes;
+        String hash = toHex(sha256.digest(), 0, 32);
+        if ((expectedSize >= 0 && expectedSize != size)
+                || (expectedSha256 != null && !expectedSha256.isEmpty() && !expectedSha256.equalsIgnoreCase(hash))) {
+            tmp.delete();
+            throw new IOException("checksum mismatch");
+        }
+        synchronized (this) {
+            // 重建期间原文件被修改时放弃，不覆盖别人的修改
+            if (baseMtime >= 0 && target.lastModified() != baseMtime) {
+                tmp.delete();
+                throw new IOException("base file changed");
+            }
+            if (!tmp.renameTo(target)) {
+                tmp.delete();
+                throw new IOException("rename failed");
+            }
+        }
+        synchronized (signatures) {
+            signatures.remove(target.getPath());
+        }
+        Log.i(IMEService.TAG, String.format("已增量更新文件[%s]，新数据%d字节，复用%d字节，耗时%dms",
+                target.getPath(), literalBytes, copiedBytes, SystemClock.uptimeMillis() - start));
+
+        JSONObject result = new JSONObject();
+        result.put("size", size);
+        result.put("mtime", target.lastModified());
+        result.put("sha256", hash);
+        result.put("literalBytes", literalBytes);
+        result.put("copiedBytes", copiedBytes);
+        return result;
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int n = in.read(buffer, offset, length - offset);
+            if (n < 0) throw new EOFException("file truncated");
+            offset += n;
+        }
+    }
+
+    private static MessageDigest newDigest(String algorithm) throws IOException {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String toHex(byte[] data, int off, int len) {
+        char[] hex = "0123456789abcdef".toCharArray();
+        char[] out = new char[len * 2];
+        for (int i = 0; i < len; i++) {
+            out[i * 2] = hex[(data[off + i] >> 4) & 0xf];
+            out[i * 2 + 1] = hex[data[off + i] & 0xf];
+        }
+        return new String(out);
+    }
+}
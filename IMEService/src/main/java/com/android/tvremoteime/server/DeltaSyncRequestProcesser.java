@@ -0,0 +1,102 @@
+package com.android.tvremoteime.server;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.tvremoteime.IMEService;
+import com.android.tvremoteime.util.BoundedInputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * 增量更新电视上的大文件，只传输变化的部分，数据格式见 {@link DeltaSync}
+ *
+ * 端点:
+ * - GET  /file/delta/signature - 取得已有文件的块签名 (参数: path - 文件路径, blockSize - 块大小（可选）)
+ * - POST /file/delta/apply     - 请求体为增量数据，重建并替换文件 (参数: path, blockSize, mtime - 取得签名时的修改时间（可选）,
+ *                                size - 新文件大小（可选）, sha256 - 新文件的SHA-256（可选）)
+ */
+public class DeltaSyncRequestProcesser implements RequestProcesser {
+    private Context context;
+    private SecurityManager securityManager;
+
+    public DeltaSyncRequestProcesser(Context context){
+        this.context = context;
+        this.securityManager = SecurityManager.getInstance();
+    }
+
+    @Override
+    public boolean isRequest(NanoHTTPD.IHTTPSession session, String fileName) {
+        if(session.getMethod() == NanoHTTPD.Method.GET){
+            return "/file/delta/signature".equals(fileName);
+        }else if(session.getMethod() == NanoHTTPD.Method.POST){
+            return "/file/delta/apply".equals(fileName);
+        }
+        return false;
+    }
+
+    @Override
+    public NanoHTTPD.Response doResponse(NanoHTTPD.IHTTPSession session, String fileName, Map<String, String> params, Map<String, String> files) {
+        BoundedInputStream body = new BoundedInputStream(session.getInputStream(), Math.max(0, RemoteServer.getContentLength(session)));
+        try {
+            // Validate path to prevent path traversal
+            File file = TextUtils.isEmpty(params.get("path")) ? null : securityManager.getSafeFile(params.get("path"));
+            if(file == null || file.isDirectory()){
+                return createError("Invalid path");
+            }
+            if(session.getMethod() == NanoHTTPD.Method.GET){
+                if(!file.isFile()){
+                    return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND, "Error 404, file not found.");
+                }
+                DeltaSync.Signature signature = DeltaSync.getInstance().getSignature(file, parseInt(params.get("blockSize"), 0));
+                return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, signature.toJSONObject().toString());
+            }
+
+            if(RemoteServer.getContentLength(session) <= 0){
+                return createError("Content-Length required");
+            }
+            if(!file.getParentFile().isDirectory()){
+                return createError("Invalid path");
+            }
+            JSONObject data = DeltaSync.getInstance().apply(file,
+                    parseLong(params.get("mtime"), -1),
+                    parseInt(params.get("blockSize"), 0),
+                    body,
+                    parseLong(params.get("size"), -1),
+                    params.get("sha256"));
+            data.put("success", true);
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, data.toString());
+        }catch (IOException | NumberFormatException ex){
+            Log.e(IMEService.TAG, session.getMethod() + " " + fileName, ex);
+            return createError(String.valueOf(ex.getMessage()));
+        }catch (JSONException ex){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR,  "SERVER INTERNAL ERROR: JSONException: " + ex.getMessage());
+        }finally {
+            // 出错时读完剩余的请求体，保持连接可用
+            try {
+                body.drain();
+            }catch (IOException ignored){}
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue){
+        return TextUtils.isEmpty(value) ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static long parseLong(String value, long defaultValue){
+        return TextUtils.isEmpty(value) ? defaultValue : Long.parseLong(value);
+    }
+
+    private static NanoHTTPD.Response createError(String error){
+        return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                "{\"success\":false,\"error\":" + JSONObject.quote(error) + "}");
+    }
+}
@@ -0,0 +1,237 @@
+package com.android.tvremoteime.server;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.tvremoteime.IMEService;
+import com.android.tvremoteime.util.FileUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 统计目录占用空间
+ * 用少量线程的 ForkJoinPool 并行遍历目录树；每个目录直接包含的文件大小按目录修改时间缓存，
+ * 目录未变化时只需读取一次目录的修改时间，不再列出其中的文件
+ *
+ * 注意：直接覆盖写入已有文件不会改变目录的修改时间，这类变化要等缓存过期后才能统计到
+ */
+public class DirSizeCalculator {
+    private static final int PARALLELISM = 3;
+    // 缓存的最长有效时间
+    private static final long CACHE_TTL = 5 * 60 * 1000;
+    private static final int MAX_CACHED_DIRS = 50000;
+
+    private static DirSizeCalculator instance;
+
+    public static synchronized DirSizeCalculator getInstance() {
+        if (instance == null) {
+            instance = new DirSizeCalculator();
+        }
+        return instance;
+    }
+
+    /**
+     * 统计结果
+     */
+    public static class DirSize {
+        public final String name;
+        public final String path;
+        long bytes;
+        long files;
+        long dirs;
+
+        DirSize(File dir) {
+            this.name = dir.getName();
+            this.path = dir.getPath();
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        void add(DirSize o) {
+            bytes += o.bytes;
+            files += o.files;
+            dirs += o.dirs + 1;
+        }
+
+        public JSONObject toJSONObject(String root) throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("name", name);
+            obj.put("path", path.startsWith(root) ? path.substring(root.length()) : path);
+            obj.put("size", bytes);
+            obj.put("files", files);
+            obj.put("dirs", dirs);
+            return obj;
+        }
+    }
+
+    /**
+     * 逐个返回子目录统计结果的回调
+     */
+    public interface Listener {
+        /**
+         * @return false 表示停止统计
+         */
+        boolean onSubDir(DirSize size);
+    }
+
+    private static class CachedDir {
+        final long mtime;
+        final long time;
+        final long bytes;
+        final long files;
+        final String[] subdirs;
+
+        CachedDir(long mtime, long time, long bytes, long files, String[] subdirs) {
+            this.mtime = mtime;
+            this.time = time;
+            this.bytes = bytes;
+            this.files = files;
+            this.subdirs = subdirs;
+        }
+    }
+
+    private final ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+    private final ConcurrentHashMap<String, CachedDir> cache = new ConcurrentHashMap<>();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong listedDirs = new AtomicLong();
+
+    private DirSizeCalculator() {
+    }
+
+    private class SizeTask extends RecursiveTask<DirSize> {
+        private final File dir;
+        // 同一次统计的所有任务共用，统计中止后尚未遍历的目录直接跳过
+        private final AtomicBoolean cancelled;
+
+        SizeTask(File dir, AtomicBoolean cancelled) {
+            this.dir = dir;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        protected DirSize compute() {
+            DirSize size = new DirSize(dir);
+            if (cancelled.get()) return size;
+            CachedDir cached = getDir(dir);
+            if (cached == null) return size;
+            size.bytes = cached.bytes;
+            size.files = cached.files;
+            if (cached.subdirs.length == 0) return size;
+
+            List<SizeTask> tasks = new ArrayList<>(cached.subdirs.length);
+            for (String name : cached.subdirs) {
+                tasks.add(new SizeTask(new File(dir, name), cancelled));
+            }
+            invokeAll(tasks);
+            for (SizeTask task : tasks) {
+                size.add(task.join());
+            }
+            return size;
+        }
+    }
+
+    /**
+     * 获取目录自身的统计信息，目录未变化时直接使用缓存
+     */
+    private CachedDir getDir(File dir) {
+        String path = dir.getPath();
+        long mtime = dir.lastModified();
+        long now = SystemClock.uptimeMillis();
+        CachedDir cached = cache.get(path);
+        if (cached != null && cached.mtime == mtime && now - cached.time < CACHE_TTL) {
+            cacheHits.incrementAndGet();
+            return cached;
+        }
+
+        File[] children = dir.listFiles();
+        if (children == null) {
+            cache.remove(path);
+            return null;
+        }
+        listedDirs.incrementAndGet();
+        long bytes = 0, files = 0;
+        List<String> subdirs = new ArrayList<>();
+        for (File child : children) {
+            if (child.isDirectory()) {
+                // 不跟随符号链接，避免重复统计或循环
+                if (!FileUtils.isSymbolicLink(child)) subdirs.add(child.getName());
+            } else {
+                bytes += child.length();
+                files++;
+            }
+        }
+        if (cache.size() >= MAX_CACHED_DIRS) cache.clear();
+        cached = new CachedDir(mtime, now, bytes, files, subdirs.toArray(new String[subdirs.size()]));
+        cache.put(path, cached);
+        return cached;
+    }
+
+    /**
+     * 统计目录，每个直接子目录统计完成后按完成顺序回调
+     * @param dir 目录
+     * @param listener 子目录回调，可为null
+     * @return 目录的总计，被回调中止时返回null
+     */
+    public DirSize calculate(File dir, Listener listener) throws InterruptedException {
+        long start = SystemClock.uptimeMillis();
+        DirSize total = new DirSize(dir);
+        CachedDir cached = getDir(dir);
+        if (cached == null) return total;
+        total.bytes = cached.bytes;
+        total.files = cached.files;
+
+        CompletionService<DirSize> completion = new ExecutorCompletionService<>(pool);
+        List<Future<DirSize>> futures = new ArrayList<>(cached.subdirs.length);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        for (String name : cached.subdirs) {
+            final SizeTask task = new SizeTask(new File(dir, name), cancelled);
+            futures.add(completion.submit(new Callable<DirSize>() {
+                @Override
+                public DirSize call() {
+                    return task.invoke();
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                DirSize size = completion.take().get();
+                total.add(size);
+                if (listener != null && !listener.onSubDir(size)) return null;
+            }
+        } catch (ExecutionException e) {
+            Log.e(IMEService.TAG, String.format("统计目录[%s]出错", dir.getPath()), e.getCause());
+        } finally {
+            // cancel 不会中断已在运行的 SizeTask，由共享标志让它们停止遍历剩余的子目录
+            cancelled.set(true);
+            for (Future<DirSize> future : futures) future.cancel(false);
+        }
+        Log.d(IMEService.TAG, String.format("统计目录[%s]完成，%d个文件，耗时%dms",
+                dir.getPath(), total.files, SystemClock.uptimeMillis() - start));
+        return total;
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getListedDirs() {
+        return listedDirs.get();
+    }
+}
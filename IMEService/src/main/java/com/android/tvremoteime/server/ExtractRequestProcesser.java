@@ -0,0 +1,81 @@
+package com.android.tvremoteime.server;
+
+import android.content.Context;
+import android.text.TextUtils;
+
+import com.android.tvremoteime.util.BoundedInputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * 上传压缩包并直接解压：请求体就是ZIP或tar(.gz)数据，边接收边解压到目标目录，不落地临时文件
+ *
+ * 端点:
+ * - POST /file/extract         - 解压 (参数: path - 目标目录, id - 任务标识（可选，用于查询进度）, overwrite - 是否覆盖已有文件，默认true)
+ * - GET  /file/extract/status  - 查询解压进度 (参数: id)
+ */
+public class ExtractRequestProcesser implements RequestProcesser {
+    private Context context;
+    private SecurityManager securityManager;
+
+    public ExtractRequestProcesser(Context context){
+        this.context = context;
+        this.securityManager = SecurityManager.getInstance();
+    }
+
+    @Override
+    public boolean isRequest(NanoHTTPD.IHTTPSession session, String fileName) {
+        if(session.getMethod() == NanoHTTPD.Method.POST){
+            return "/file/extract".equals(fileName);
+        }else if(session.getMethod() == NanoHTTPD.Method.GET){
+            return "/file/extract/status".equals(fileName);
+        }
+        return false;
+    }
+
+    @Override
+    public NanoHTTPD.Response doResponse(NanoHTTPD.IHTTPSession session, String fileName, Map<String, String> params, Map<String, String> files) {
+        if(session.getMethod() == NanoHTTPD.Method.GET){
+            ArchiveExtractor job = TextUtils.isEmpty(params.get("id")) ? null : ArchiveExtractor.getJob(params.get("id"));
+            if(job == null){
+                return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND, "Error 404, file not found.");
+            }
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, job.toJSONObject().toString());
+        }
+
+        long length = RemoteServer.getContentLength(session);
+        if(length <= 0){
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, "{\"success\":false,\"error\":\"Content-Length required\"}");
+        }
+        BoundedInputStream body = new BoundedInputStream(session.getInputStream(), length);
+        // Validate path to prevent path traversal
+        File targetDir = securityManager.getSafeFile(params.get("path") == null ? "" : params.get("path"));
+        if(targetDir == null || !targetDir.isDirectory()){
+            try {
+                body.drain();
+            }catch (IOException ignored){}
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, "{\"success\":false,\"error\":\"Invalid path\"}");
+        }
+        String id = params.get("id");
+        if(TextUtils.isEmpty(id)) id = UUID.randomUUID().toString();
+
+        ArchiveExtractor job = new ArchiveExtractor(id, targetDir, body, length, !"false".equals(params.get("overwrite")));
+        job.extract();
+        try {
+            JSONObject data = new JSONObject();
+            data.put("success", ArchiveExtractor.STATUS_SUCCESS.equals(job.getStatus()));
+            data.put("extract", job.toJSONObject());
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, data.toString());
+        }catch (JSONException ex){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR,  "SERVER INTERNAL ERROR: JSONException: " + ex.getMessage());
+        }
+    }
+}
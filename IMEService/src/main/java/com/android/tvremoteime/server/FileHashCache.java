@@ -0,0 +1,268 @@
+package com.android.tvremoteime.server;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.tvremoteime.IMEService;
+import com.android.tvremoteime.util.BufferPool;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * 文件校验值（SHA-256 和 CRC32）计算与缓存
+ * 多个文件在线程池中并行计算，每个文件按大块顺序读取一次同时得到两种校验值；
+ * 结果按路径、大小和修改时间缓存，并保存到一个小的二进制文件中，重启后仍然有效
+ */
+public class FileHashCache {
+    private static final String STORE_NAME = "hash_cache.bin";
+    private static final int STORE_MAGIC = 0x48534843;
+    private static final int STORE_VERSION = 1;
+    private static final int MAX_ENTRIES = 20000;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private static FileHashCache instance;
+
+    public static synchronized FileHashCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new FileHashCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * 一个文件的校验值
+     */
+    public static class FileHash {
+        final long size;
+        final long mtime;
+        final String sha256;
+        final String crc32;
+
+        FileHash(long size, long mtime, String sha256, String crc32) {
+            this.size = size;
+            this.mtime = mtime;
+            this.sha256 = sha256;
+            this.crc32 = crc32;
+        }
+    }
+
+    private final File storeFile;
+    private final int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private final ExecutorService executor;
+    private final BufferPool bufferPool = new BufferPool(READ_BUFFER_SIZE, threads);
+    private final LinkedHashMap<String, FileHash> cache = new LinkedHashMap<String, FileHash>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileHash> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean loaded = false;
+    private boolean dirty = false;
+    // 同一时间最多排队一次保存，写临时文件和改名期间持有saveLock
+    private final AtomicBoolean saveScheduled = new AtomicBoolean(false);
+    private final Object saveLock = new Object();
+
+    private FileHashCache(Context context) {
+        this.storeFile = new File(context.getFilesDir(), STORE_NAME);
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FileHash-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 计算多个文件的校验值，未变化的文件直接使用缓存
+     * @param files 文件列表
+     * @param root 返回路径时去掉的前缀
+     * @return 每个文件的结果，顺序与输入一致
+     */
+    public List<JSONObject> hash(List<File> files, String root) throws InterruptedException, JSONException {
+        ensureLoaded();
+        List<JSONObject> results = new ArrayList<>(files.size());
+        List<Future<FileHash>> futures = new ArrayList<>(files.size());
+        for (final File file : files) {
+            final long size = file.length();
+            final long mtime = file.lastModified();
+            FileHash cached;
+            synchronized (cache) {
+                cached = cache.get(file.getPath());
+            }
+            if (cached != null && cached.size == size && cached.mtime == mtime) {
+                futures.add(null);
+                results.add(toJSONObject(file, cached, root).put("cached", true));
+                continue;
+            }
+            futures.add(executor.submit(new Callable<FileHash>() {
+                @Override
+                public FileHash call() throws Exception {
+                    return compute(file, size, mtime);
+                }
+            }));
+            results.add(null);
+        }
+
+        for (int i = 0; i < files.size(); i++) {
+            Future<FileHash> future = futures.get(i);
+            if (future == null) continue;
+            File file = files.get(i);
+            try {
+                FileHash hash = future.get();
+                synchronized (cache) {
+                    cache.put(file.getPath(), hash);
+                    dirty = true;
+                }
+                results.set(i, toJSONObject(file, hash, root).put("cached", false));
+            } catch (ExecutionException e) {
+                JSONObject item = new JSONObject();
+                item.put("path", relativePath(file, root));
+                item.put("error", String.valueOf(e.getCause().getMessage()));
+                results.set(i, item);
+            }
+        }
+        saveIfDirty();
+        return results;
+    }
+
+    private FileHash compute(File file, long size, long mtime) throws IOException, NoSuchAlgorithmException {
+        long start = SystemClock.uptimeMillis();
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        CRC32 crc32 = new CRC32();
+        byte[] buffer = bufferPool.acquire();
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                sha256.update(buffer, 0, n);
+                crc32.update(buffer, 0, n);
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+        Log.d(IMEService.TAG, String.format("已计算文件[%s]校验值，%d字节，耗时%dms",
+                file.getName(), size, SystemClock.uptimeMillis() - start));
+        return new FileHash(size, mtime, toHex(sha256.digest()), String.format("%08x", crc32.getValue()));
+    }
+
+    private static String toHex(byte[] data) {
+        char[] hex = "0123456789abcdef".toCharArray();
+        char[] out = new char[data.length * 2];
+        for (int i = 0; i < data.length; i++) {
+            out[i * 2] = hex[(data[i] >> 4) & 0xf];
+            out[i * 2 + 1] = hex[data[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    private static String relativePath(File file, String root) {
+        String path = file.getPath();
+        return path.startsWith(root) ? path.substring(root.length()) : path;
+    }
+
+    private static JSONObject toJSONObject(File file, FileHash hash, String root) throws JSONException {
+        JSONObject item = new JSONObject();
+        item.put("path", relativePath(file, root));
+        item.put("size", hash.size);
+        item.put("mtime", hash.mtime);
+        item.put("sha256", hash.sha256);
+        item.put("crc32", hash.crc32);
+        return item;
+    }
+
+    private void ensureLoaded() {
+        synchronized (cache) {
+            if (loaded) return;
+            loaded = true;
+            if (!storeFile.isFile()) return;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile)))) {
+                if (in.readInt() != STORE_MAGIC || in.readInt() != STORE_VERSION) return;
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String path = in.readUTF();
+                    cache.put(path, new FileHash(in.readLong(), in.readLong(), in.readUTF(), in.readUTF()));
+                }
+            } catch (IOException e) {
+                Log.e(IMEService.TAG, "加载文件校验值缓存出错", e);
+                cache.clear();
+            }
+        }
+    }
+
+    /**
+     * 有新的结果时在后台保存缓存
+     */
+    private void saveIfDirty() {
+        synchronized (cache) {
+            if (!dirty) return;
+            dirty = false;
+        }
+        if (!saveScheduled.compareAndSet(false, true)) return;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                // 先清除标记，保存期间的新结果会再排一次保存
+                saveScheduled.set(false);
+                synchronized (saveLock) {
+                    save();
+                }
+            }
+        });
+    }
+
+    private void save() {
+        List<Map.Entry<String, FileHash>> entries;
+        synchronized (cache) {
+            entries = new ArrayList<>(cache.entrySet());
+        }
+        File tmp = new File(storeFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(STORE_MAGIC);
+            out.writeInt(STORE_VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, FileHash> entry : entries) {
+                FileHash hash = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(hash.size);
+                out.writeLong(hash.mtime);
+                out.writeUTF(hash.sha256);
+                out.writeUTF(hash.crc32);
+            }
+        } catch (IOException e) {
+            Log.e(IMEService.TAG, "保存文件校验值缓存出错", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(storeFile)) tmp.delete();
+    }
+}
@@ -2,6 +2,7 @@ package com.android.tvremoteime.server;
 
 import android.content.Context;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
 
@@ -9,18 +10,26 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.lang.reflect.Array;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 import fi.iki.elonen.NanoHTTPD;
+import com.android.tvremoteime.util.BlockingPipe;
 import com.android.tvremoteime.util.FileUtils;
 
 /**
@@ -28,6 +37,10 @@ import com.android.tvremoteime.util.FileUtils;
  */
 
 public class FileRequestProcesser  implements RequestProcesser {
+    // 等待缩略图生成的最长时间
+    private static final long THUMBNAIL_TIMEOUT = 15 * 1000;
+    // 一次最多计算校验值的文件数
+    private static final int MAX_HASH_FILES = 10000;
     private Context context;
     private SecurityManager securityManager;
 
@@ -40,7 +53,12 @@ public class FileRequestProcesser  implements RequestProcesser {
     public boolean isRequest(NanoHTTPD.IHTTPSession session, String fileName) {
         if(session.getMethod() == NanoHTTPD.Method.GET){
             return fileName.startsWith("/file/dir/")
-                    || fileName.startsWith("/file/download/");
+                    || fileName.startsWith("/file/download/")
+                    || fileName.startsWith("/file/thumb/")
+                    || fileName.startsWith("/file/du/")
+                    || "/file/search".equals(fileName)
+                    || "/file/zip".equals(fileName)
+                    || "/file/hash".equals(fileName);
         }
         else if(session.getMethod() == NanoHTTPD.Method.POST){
             switch (fileName) {
@@ -48,6 +66,8 @@ public class FileRequestProcesser  implements RequestProcesser {
                 case "/file/cut":
                 case "/file/delete":
                 case "/file/upload":
+                case "/file/zip":
+                case "/file/hash":
                     return true;
             }
         }
@@ -61,6 +81,16 @@ public class FileRequestProcesser  implements RequestProcesser {
                 return responseDirData(fileName.substring("/file/dir/".length()));
             }else if(fileName.startsWith("/file/download/")){
                 return downloadFileData(fileName.substring("/file/download/".length()));
+            }else if(fileName.startsWith("/file/thumb/")){
+                return thumbnailData(session, fileName.substring("/file/thumb/".length()), params.get("w"));
+            }else if(fileName.startsWith("/file/du/")){
+                return dirSizeData(fileName.substring("/file/du/".length()), "1".equals(params.get("stream")));
+            }else if("/file/search".equals(fileName)){
+                return searchFiles(params);
+            }else if("/file/zip".equals(fileName)){
+                return zipFiles(params);
+            }else if("/file/hash".equals(fileName)){
+                return hashFiles(params);
             }
         }
         else if(session.getMethod() == NanoHTTPD.Method.POST) {
@@ -83,6 +113,10 @@ public class FileRequestProcesser  implements RequestProcesser {
                     return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.OK, "ok");
                 case "/file/upload":
                     return uploadFile(params, files);
+                case "/file/zip":
+                    return zipFiles(params);
+                case "/file/hash":
+                    return hashFiles(params);
             }
         }
         return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND, "Error 404, file not found.");
@@ -119,6 +153,7 @@ public class FileRequestProcesser  implements RequestProcesser {
                 }else {
                     item.put("size", file.length());
                     item.put("isMedia", FileUtils.isMediaFile(file.getName()));
+                    item.put("thumb", ThumbnailCache.isSupported(file.getName()));
                     files.put(item);
                 }
             }
@@ -151,6 +186,210 @@ public class FileRequestProcesser  implements RequestProcesser {
         }
     }
 
+    private NanoHTTPD.Response dirSizeData(String dirName, boolean stream){
+        // Validate path to prevent path traversal
+        final File dir = securityManager.getSafeFile(dirName);
+        if (dir == null) {
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.FORBIDDEN, "Invalid path");
+        }
+        if(!dir.isDirectory()){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND, "Error 404, file not found.");
+        }
+        final String root = Environment.getExternalStorageDirectory().getPath();
+        if(stream){
+            return streamDirSize(dir, root);
+        }
+
+        long start = SystemClock.uptimeMillis();
+        final List<DirSizeCalculator.DirSize> children = new ArrayList<>();
+        try {
+            DirSizeCalculator.DirSize total = DirSizeCalculator.getInstance().calculate(dir, new DirSizeCalculator.Listener() {
+                @Override
+                public boolean onSubDir(DirSizeCalculator.DirSize size) {
+                    children.add(size);
+                    return true;
+                }
+            });
+            Collections.sort(children, new Comparator<DirSizeCalculator.DirSize>() {
+                @Override
+                public int compare(DirSizeCalculator.DirSize d1, DirSizeCalculator.DirSize d2) {
+                    return Long.compare(d2.getBytes(), d1.getBytes());
+                }
+            });
+            JSONObject data = total.toJSONObject(root);
+            JSONArray dirs = new JSONArray();
+            for(DirSizeCalculator.DirSize size : children){
+                dirs.put(size.toJSONObject(root));
+            }
+            data.put("children", dirs);
+            data.put("took", SystemClock.uptimeMillis() - start);
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, data.toString());
+        }catch (JSONException ex){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR,  "SERVER INTERNAL ERROR: JSONException: " + ex.getMessage());
+        }catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR,  "SERVER INTERNAL ERROR: Interrupted");
+        }
+    }
+
+    /**
+     * 逐行返回子目录的统计结果（每行一个JSON对象），最后一行为总计
+     */
+    private NanoHTTPD.Response streamDirSize(final File dir, final String root){
+        final BlockingPipe pipe = new BlockingPipe(16);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final OutputStream out = pipe.getOutputStream();
+                try {
+                    final long start = SystemClock.uptimeMillis();
+                    DirSizeCalculator.DirSize total = DirSizeCalculator.getInstance().calculate(dir, new DirSizeCalculator.Listener() {
+                        @Override
+                        public boolean onSubDir(DirSizeCalculator.DirSize size) {
+                            try {
+                                out.write((size.toJSONObject(root).toString() + "\n").getBytes("UTF-8"));
+                                return true;
+                            } catch (IOException | JSONException e) {
+                                return false;
+                            }
+                        }
+                    });
+                    if(total != null) {
+                        JSONObject data = total.toJSONObject(root);
+                        data.put("done", true);
+                        data.put("took", SystemClock.uptimeMillis() - start);
+                        out.write((data.toString() + "\n").getBytes("UTF-8"));
+                    }
+                    out.close();
+                } catch (IOException | JSONException | InterruptedException e) {
+                    pipe.abort(new IOException(e));
+                }
+            }
+        }, "DirSize");
+        thread.setDaemon(true);
+        thread.start();
+        return RemoteServer.newChunkedResponse(NanoHTTPD.Response.Status.OK, "application/x-ndjson", pipe.getInputStream());
+    }
+
+    private NanoHTTPD.Response zipFiles(Map<String, String> params){
+        String paths = params.get("paths");
+        if(TextUtils.isEmpty(paths)){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.BAD_REQUEST, "paths required");
+        }
+        // Validate all paths at once to prevent path traversal
+        List<File> files = new ArrayList<>();
+        for(File file : securityManager.getSafeFiles(paths)){
+            if(file.exists()) files.add(file);
+        }
+        if(files.isEmpty()){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND, "Error 404, file not found.");
+        }
+        String name = params.get("name");
+        if(TextUtils.isEmpty(name)){
+            name = (files.size() == 1 ? files.get(0).getName() : "files") + ".zip";
+        }
+
+        NanoHTTPD.Response response = RemoteServer.newChunkedResponse(NanoHTTPD.Response.Status.OK,
+                "application/zip", new ZipStreamer(files).start());
+        try {
+            response.addHeader("Content-Disposition", "attachment; filename=\"" + name.replaceAll("[^\\x20-\\x7e]|\"", "_")
+                    + "\"; filename*=UTF-8''" + URLEncoder.encode(name, "UTF-8").replace("+", "%20"));
+        }catch (UnsupportedEncodingException ignored){}
+        return response;
+    }
+
+    private NanoHTTPD.Response hashFiles(Map<String, String> params){
+        String paths = params.get("paths");
+        if(TextUtils.isEmpty(paths)){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.BAD_REQUEST, "paths required");
+        }
+        // Validate all paths at once to prevent path traversal; directories are expanded recursively
+        List<File> files = new ArrayList<>();
+        ArrayDeque<File> pending = new ArrayDeque<>(securityManager.getSafeFiles(paths));
+        while(!pending.isEmpty() && files.size() < MAX_HASH_FILES){
+            File file = pending.poll();
+            if(file.isFile()){
+                files.add(file);
+            }else if(file.isDirectory()){
+                File[] children = file.listFiles();
+                if(children == null) continue;
+                for(File child : children){
+                    if(!child.isHidden() && !FileUtils.isSymbolicLink(child)) pending.add(child);
+                }
+            }
+        }
+
+        long start = SystemClock.uptimeMillis();
+        try {
+            String root = Environment.getExternalStorageDirectory().getPath();
+            JSONArray items = new JSONArray();
+            int cached = 0;
+            for(JSONObject item : FileHashCache.getInstance(this.context).hash(files, root)){
+                if(item.optBoolean("cached")) cached++;
+                items.put(item);
+            }
+            JSONObject data = new JSONObject();
+            data.put("files", items);
+            data.put("cached", cached);
+            data.put("hashed", files.size() - cached);
+            data.put("truncated", !pending.isEmpty());
+            data.put("took", SystemClock.uptimeMillis() - start);
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, data.toString());
+        }catch (JSONException ex){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR,  "SERVER INTERNAL ERROR: JSONException: " + ex.getMessage());
+        }catch (InterruptedException ex){
+            Thread.currentThread().interrupt();
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR,  "SERVER INTERNAL ERROR: Interrupted");
+        }
+    }
+
+    private NanoHTTPD.Response searchFiles(Map<String, String> params){
+        int offset = 0, limit = 50;
+        try {
+            if(!TextUtils.isEmpty(params.get("offset"))) offset = Integer.parseInt(params.get("offset"));
+            if(!TextUtils.isEmpty(params.get("limit"))) limit = Integer.parseInt(params.get("limit"));
+        }catch (NumberFormatException ignored){}
+        try {
+            JSONObject data = MediaIndex.getInstance(this.context).search(params.get("q"),
+                    MediaIndex.parseType(params.get("type")), offset, limit);
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, data.toString());
+        }catch (JSONException ex){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR,  "SERVER INTERNAL ERROR: JSONException: " + ex.getMessage());
+        }
+    }
+
+    private NanoHTTPD.Response thumbnailData(NanoHTTPD.IHTTPSession session, String fileName, String width){
+        // Validate path to prevent path traversal
+        File file = securityManager.getSafeFile(fileName);
+        if (file == null) {
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.FORBIDDEN, "Invalid path");
+        }
+        if(!file.isFile() || !ThumbnailCache.isSupported(file.getName())){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND, "Error 404, file not found.");
+        }
+        int w = ThumbnailCache.DEFAULT_WIDTH;
+        try {
+            if(!TextUtils.isEmpty(width)) w = Integer.parseInt(width);
+        }catch (NumberFormatException ignored){}
+        w = ThumbnailCache.normalizeWidth(w);
+
+        String etag = "\"" + ThumbnailCache.getKey(file, w) + "\"";
+        if(etag.equals(session.getHeaders().get("if-none-match"))){
+            NanoHTTPD.Response response = RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_MODIFIED, "");
+            response.addHeader("ETag", etag);
+            return response;
+        }
+        byte[] data = ThumbnailCache.getInstance().get(file, w, THUMBNAIL_TIMEOUT);
+        if(data == null){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND, "Error 404, file not found.");
+        }
+        NanoHTTPD.Response response = RemoteServer.newFixedLengthResponse(NanoHTTPD.Response.Status.OK,
+                "image/jpeg", new ByteArrayInputStream(data), data.length);
+        response.addHeader("ETag", etag);
+        response.addHeader("Cache-Control", "max-age=86400");
+        return response;
+    }
+
     private NanoHTTPD.Response uploadFile(Map<String, String> params, Map<String, String> files){
         String uploadFileName  = params.get("file");
         String uploadPathName  = params.get("path");
@@ -172,15 +411,9 @@ public class FileRequestProcesser  implements RequestProcesser {
     }
 
     private void batchDeleteFile(String paths){
-        String[] pathData = paths.split("\\|");
-        for(String p : pathData){
-            if(!TextUtils.isEmpty(p)) {
-                // Validate path to prevent path traversal
-                File path = securityManager.getSafeFile(p);
-                if (path != null) {
-                    RemoteServerFileManager.deleteFile(path);
-                }
-            }
+        // Validate all paths at once to prevent path traversal
+        for(File path : securityManager.getSafeFiles(paths)){
+            RemoteServerFileManager.deleteFile(path);
         }
     }
     private void batchCopyFile(String targetPath, String paths){
@@ -188,15 +421,9 @@ public class FileRequestProcesser  implements RequestProcesser {
         File targetPathFile = securityManager.getSafeFile(targetPath);
         if(targetPathFile == null || !targetPathFile.exists()) return;
 
-        String[] pathData = paths.split("\\|");
-        for(String p : pathData){
-            if(!TextUtils.isEmpty(p)) {
-                // Validate source path
-                File source = securityManager.getSafeFile(p);
-                if (source != null) {
-                    RemoteServerFileManager.copyFile(source, targetPathFile);
-                }
-            }
+        // Validate source paths
+        for(File source : securityManager.getSafeFiles(paths)){
+            RemoteServerFileManager.copyFile(source, targetPathFile);
         }
     }
     private void batchCutFile(String targetPath, String paths){
@@ -204,15 +431,9 @@ public class FileRequestProcesser  implements RequestProcesser {
         File targetPathFile = securityManager.getSafeFile(targetPath);
         if(targetPathFile == null || !targetPathFile.exists()) return;
 
-        String[] pathData = paths.split("\\|");
-        for(String p : pathData){
-            if(!TextUtils.isEmpty(p)) {
-                // Validate source path
-                File source = securityManager.getSafeFile(p);
-                if (source != null) {
-                    RemoteServerFileManager.cutFile(source, targetPathFile);
-                }
-            }
+        // Validate source paths
+        for(File source : securityManager.getSafeFiles(paths)){
+            RemoteServerFileManager.cutFile(source, targetPathFile);
         }
     }
 }
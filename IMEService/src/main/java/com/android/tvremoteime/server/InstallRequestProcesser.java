@@ -0,0 +1,90 @@
+package com.android.tvremoteime.server;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.tvremoteime.ApkInstallHelper;
+import com.android.tvremoteime.IMEService;
+import com.android.tvremoteime.util.BoundedInputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * 流式安装应用包：请求体就是APK数据，直接写入 PackageInstaller 会话，不落地临时文件
+ *
+ * 端点:
+ * - POST /install         - 安装 (参数: name - 应用包名称, wait - 等待安装结果的秒数，默认30)
+ * - GET  /install/status  - 查询安装进度和结果 (参数: sessionId)
+ */
+public class InstallRequestProcesser implements RequestProcesser {
+    private static final int DEFAULT_WAIT_SECONDS = 30;
+    private static final int MAX_WAIT_SECONDS = 120;
+    private Context context;
+
+    public InstallRequestProcesser(Context context){
+        this.context = context;
+    }
+
+    @Override
+    public boolean isRequest(NanoHTTPD.IHTTPSession session, String fileName) {
+        if(session.getMethod() == NanoHTTPD.Method.POST){
+            return "/install".equals(fileName);
+        }else if(session.getMethod() == NanoHTTPD.Method.GET){
+            return "/install/status".equals(fileName);
+        }
+        return false;
+    }
+
+    @Override
+    public NanoHTTPD.Response doResponse(NanoHTTPD.IHTTPSession session, String fileName, Map<String, String> params, Map<String, String> files) {
+        if(session.getMethod() == NanoHTTPD.Method.GET){
+            return responseStatus(params);
+        }
+
+        long length = RemoteServer.getContentLength(session);
+        if(length <= 0){
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, "{\"success\":false,\"error\":\"Content-Length required\"}");
+        }
+        String name = params.get("name");
+        if(TextUtils.isEmpty(name)) name = "upload.apk";
+        int waitSeconds = DEFAULT_WAIT_SECONDS;
+        try {
+            if(!TextUtils.isEmpty(params.get("wait"))) waitSeconds = Integer.parseInt(params.get("wait"));
+        }catch (NumberFormatException ignored){}
+        waitSeconds = Math.max(0, Math.min(MAX_WAIT_SECONDS, waitSeconds));
+
+        BoundedInputStream body = new BoundedInputStream(session.getInputStream(), length);
+        try {
+            ApkInstallHelper.InstallResult result = ApkInstallHelper.install(this.context, body, length, name, waitSeconds * 1000L);
+            JSONObject data = new JSONObject();
+            data.put("success", !ApkInstallHelper.STATUS_FAILURE.equals(result.getStatus()));
+            data.put("install", result.toJSONObject());
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, data.toString());
+        }catch (IOException | JSONException ex){
+            Log.e(IMEService.TAG, "POST /install", ex);
+            try {
+                body.drain();
+            }catch (IOException ignored){}
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                    "{\"success\":false,\"error\":" + JSONObject.quote(String.valueOf(ex.getMessage())) + "}");
+        }
+    }
+
+    private NanoHTTPD.Response responseStatus(Map<String, String> params){
+        ApkInstallHelper.InstallResult result = null;
+        try {
+            result = ApkInstallHelper.getResult(Integer.parseInt(params.get("sessionId")));
+        }catch (NumberFormatException ignored){}
+        if(result == null){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND, "Error 404, file not found.");
+        }
+        return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, result.toJSONObject().toString());
+    }
+}
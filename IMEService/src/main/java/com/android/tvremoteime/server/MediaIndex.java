@@ -0,0 +1,749 @@
+package com.android.tvremoteime.server;
+
+import android.content.Context;
+import android.os.Environment;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.tvremoteime.IMEService;
+import com.android.tvremoteime.util.FileUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 外部存储（含U盘等可移动存储）的文件索引
+ * 启动时先加载上次保存的二进制快照，再按目录修改时间核对变化；
+ * 之后通过 FileObserver 和定时的修改时间检查保持索引为最新
+ *
+ * 索引只在工作线程中修改，搜索在HTTP线程中持有读锁进行
+ */
+public class MediaIndex {
+    public static final byte TYPE_OTHER = 0;
+    public static final byte TYPE_VIDEO = 1;
+    public static final byte TYPE_AUDIO = 2;
+    public static final byte TYPE_IMAGE = 3;
+
+    private static final String SNAPSHOT_NAME = "media_index.bin";
+    private static final int SNAPSHOT_MAGIC = 0x4D494458;
+    private static final int SNAPSHOT_VERSION = 1;
+    // 索引有变化后延迟保存快照
+    private static final long SNAPSHOT_DELAY = 60 * 1000;
+    // 合并短时间内同一目录的多个文件事件
+    private static final long EVENT_DEBOUNCE = 500;
+    // 没有被监听的目录靠定时检查修改时间发现变化
+    private static final long VERIFY_INTERVAL = 10 * 60 * 1000;
+    // inotify 监听数量有限，超出部分只靠定时检查
+    private static final int MAX_WATCHED_DIRS = 4000;
+    private static final int MAX_FILES = 500000;
+    public static final int MAX_LIMIT = 200;
+    private static final int MAX_OFFSET = 5000;
+    private static final int OBSERVER_MASK = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.CLOSE_WRITE
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static MediaIndex instance;
+
+    public static synchronized MediaIndex getInstance(Context context) {
+        if (instance == null) {
+            instance = new MediaIndex(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private static class DirNode {
+        final String path;
+        final String name;
+        final DirNode parent;
+        long mtime = -1;
+        boolean removed = false;
+        final List<DirNode> subdirs = new ArrayList<>();
+        final List<FileEntry> files = new ArrayList<>();
+        FileObserver observer;
+
+        DirNode(DirNode parent, String path, String name) {
+            this.parent = parent;
+            this.path = path;
+            this.name = name;
+        }
+    }
+
+    private static class FileEntry {
+        int id;
+        final DirNode dir;
+        final String name;
+        final String lowerName;
+        long size;
+        long mtime;
+        final byte type;
+
+        FileEntry(DirNode dir, String name, long size, long mtime, byte type) {
+            this.dir = dir;
+            this.name = name;
+            this.lowerName = name.toLowerCase();
+            this.size = size;
+            this.mtime = mtime;
+            this.type = type;
+        }
+
+        String getPath() {
+            return dir.path + File.separator + name;
+        }
+    }
+
+    /**
+     * 可增长的int数组，用作词项的倒排列表
+     */
+    private static class IntList {
+        int[] values = new int[4];
+        int size = 0;
+
+        void add(int v) {
+            if (size == values.length) {
+                int[] n = new int[size * 2];
+                System.arraycopy(values, 0, n, 0, size);
+                values = n;
+            }
+            values[size++] = v;
+        }
+    }
+
+    private static class Stat {
+        final String name;
+        final boolean isDir;
+        final long size;
+        final long mtime;
+
+        Stat(File f) {
+            this.name = f.getName();
+            this.isDir = f.isDirectory();
+            this.size = isDir ? 0 : f.length();
+            this.mtime = f.lastModified();
+        }
+    }
+
+    private static class Match implements Comparable<Match> {
+        final FileEntry entry;
+        final int score;
+
+        Match(FileEntry entry, int score) {
+            this.entry = entry;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(Match o) {
+            if (score != o.score) return score > o.score ? -1 : 1;
+            if (entry.mtime != o.entry.mtime) return entry.mtime > o.entry.mtime ? -1 : 1;
+            return entry.name.compareTo(o.entry.name);
+        }
+    }
+
+    private final Context context;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final List<DirNode> roots = new ArrayList<>();
+    // 按id存放的文件，删除的文件置为null，数量较多时整体压缩
+    private final ArrayList<FileEntry> entries = new ArrayList<>();
+    private final TreeMap<String, IntList> tokens = new TreeMap<>();
+    private int liveFiles = 0;
+    private int watchedDirs = 0;
+    private final Set<DirNode> dirtyDirs = new LinkedHashSet<>();
+
+    private HandlerThread thread;
+    private Handler handler;
+    private volatile boolean indexing = false;
+
+    private MediaIndex(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * 启动后台索引
+     */
+    public synchronized void start() {
+        if (thread != null) return;
+        thread = new HandlerThread("MediaIndex", android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                initialize();
+            }
+        });
+    }
+
+    /**
+     * 停止后台索引，未保存的变化写入快照
+     */
+    public synchronized void stop() {
+        if (thread == null) return;
+        final HandlerThread t = thread;
+        handler.removeCallbacksAndMessages(null);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopObservers();
+                saveSnapshot();
+                t.quit();
+            }
+        });
+        thread = null;
+        handler = null;
+    }
+
+    private void initialize() {
+        long start = SystemClock.uptimeMillis();
+        // 重新启动时索引仍在内存中，不需要再加载快照
+        if (roots.isEmpty() && loadSnapshot()) {
+            Log.i(IMEService.TAG, String.format("已加载文件索引快照，共%d个文件，耗时%dms", liveFiles, SystemClock.uptimeMillis() - start));
+        }
+
+        List<String> volumes = getVolumePaths();
+        lock.writeLock().lock();
+        try {
+            // 移除已卸载的存储卷，加入新的存储卷
+            for (int i = roots.size() - 1; i >= 0; i--) {
+                if (!volumes.contains(roots.get(i).path)) {
+                    removeDir(roots.remove(i));
+                }
+            }
+            for (String volume : volumes) {
+                if (findRoot(volume) == null) {
+                    roots.add(new DirNode(null, volume, volume));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        indexing = true;
+        start = SystemClock.uptimeMillis();
+        for (DirNode root : new ArrayList<>(roots)) {
+            walk(root);
+        }
+        indexing = false;
+        Log.i(IMEService.TAG, String.format("文件索引已更新，共%d个文件，耗时%dms", liveFiles, SystemClock.uptimeMillis() - start));
+
+        saveSnapshot();
+        handler.postDelayed(verifyRunnable, VERIFY_INTERVAL);
+    }
+
+    private final Runnable verifyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            for (DirNode root : new ArrayList<>(roots)) {
+                walk(root);
+            }
+            scheduleSnapshot();
+            Handler h = handler;
+            if (h != null) h.postDelayed(this, VERIFY_INTERVAL);
+        }
+    };
+
+    private final Runnable dirtyRunnable = new Runnable() {
+        @Override
+        public void run() {
+            List<DirNode> dirs;
+            synchronized (dirtyDirs) {
+                dirs = new ArrayList<>(dirtyDirs);
+                dirtyDirs.clear();
+            }
+            for (DirNode dir : dirs) {
+                if (dir.removed) continue;
+                for (DirNode sub : scanDir(dir)) {
+                    walk(sub);
+                }
+            }
+            scheduleSnapshot();
+        }
+    };
+
+    private final Runnable snapshotRunnable = new Runnable() {
+        @Override
+        public void run() {
+            saveSnapshot();
+        }
+    };
+
+    private void scheduleSnapshot() {
+        Handler h = handler;
+        if (h == null) return;
+        h.removeCallbacks(snapshotRunnable);
+        h.postDelayed(snapshotRunnable, SNAPSHOT_DELAY);
+    }
+
+    private void onDirChanged(DirNode dir) {
+        synchronized (dirtyDirs) {
+            dirtyDirs.add(dir);
+        }
+        Handler h = handler;
+        if (h == null) return;
+        h.removeCallbacks(dirtyRunnable);
+        h.postDelayed(dirtyRunnable, EVENT_DEBOUNCE);
+    }
+
+    /**
+     * 获取所有已挂载存储卷的根目录
+     */
+    private List<String> getVolumePaths() {
+        List<String> paths = new ArrayList<>();
+        File primary = Environment.getExternalStorageDirectory();
+        if (primary != null && primary.canRead()) paths.add(primary.getAbsolutePath());
+        File[] dirs = context.getExternalFilesDirs(null);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (dir == null) continue;
+                String path = dir.getAbsolutePath();
+                int p = path.indexOf("/Android/data/");
+                if (p <= 0) continue;
+                path = path.substring(0, p);
+                if (!paths.contains(path) && new File(path).canRead()) paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    private DirNode findRoot(String path) {
+        for (DirNode root : roots) {
+            if (root.path.equals(path)) return root;
+        }
+        return null;
+    }
+
+    /**
+     * 遍历目录树，只重新列出修改时间有变化的目录
+     */
+    private void walk(DirNode root) {
+        ArrayDeque<DirNode> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            DirNode dir = stack.pop();
+            if (dir.removed) continue;
+            if (dir.mtime != new File(dir.path).lastModified()) {
+                scanDir(dir);
+            }
+            if (dir.observer == null && watchedDirs < MAX_WATCHED_DIRS) {
+                watch(dir);
+            }
+            for (DirNode sub : dir.subdirs) {
+                stack.push(sub);
+            }
+        }
+    }
+
+    /**
+     * 重新列出一个目录的文件，在锁外读取文件系统，在锁内合并变化
+     * @return 新发现的子目录
+     */
+    private List<DirNode> scanDir(DirNode dir) {
+        File file = new File(dir.path);
+        long mtime = file.lastModified();
+        File[] children = file.listFiles();
+        List<Stat> stats = new ArrayList<>(children == null ? 0 : children.length);
+        if (children != null) {
+            for (File child : children) {
+                String name = child.getName();
+                if (name.startsWith(".")) continue;
+                // Android/data 等应用私有目录不索引
+                if (dir.parent == null && name.equals("Android")) continue;
+                stats.add(new Stat(child));
+            }
+        }
+
+        List<DirNode> added = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            if (dir.removed) return added;
+            Map<String, FileEntry> oldFiles = new HashMap<>();
+            for (FileEntry entry : dir.files) oldFiles.put(entry.name, entry);
+            Map<String, DirNode> oldDirs = new HashMap<>();
+            for (DirNode sub : dir.subdirs) oldDirs.put(sub.name, sub);
+            dir.files.clear();
+            dir.subdirs.clear();
+
+            for (Stat stat : stats) {
+                if (stat.isDir) {
+                    DirNode sub = oldDirs.remove(stat.name);
+                    if (sub == null) {
+                        sub = new DirNode(dir, dir.path + File.separator + stat.name, stat.name);
+                        added.add(sub);
+                    }
+                    dir.subdirs.add(sub);
+                } else {
+                    FileEntry entry = oldFiles.remove(stat.name);
+                    if (entry == null) {
+                        if (liveFiles >= MAX_FILES) continue;
+                        entry = new FileEntry(dir, stat.name, stat.size, stat.mtime, getType(stat.name));
+                        addEntry(entry);
+                    } else {
+                        entry.size = stat.size;
+                        entry.mtime = stat.mtime;
+                    }
+                    dir.files.add(entry);
+                }
+            }
+            for (FileEntry entry : oldFiles.values()) removeEntry(entry);
+            for (DirNode sub : oldDirs.values()) removeDir(sub);
+            dir.mtime = mtime;
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return added;
+    }
+
+    private static byte getType(String name) {
+        if (FileUtils.isVideoFile(name)) return TYPE_VIDEO;
+        if (FileUtils.isMediaFile(name)) return TYPE_AUDIO;
+        if (FileUtils.isImageFile(name)) return TYPE_IMAGE;
+        return TYPE_OTHER;
+    }
+
+    private void watch(final DirNode dir) {
+        FileObserver observer = new FileObserver(dir.path, OBSERVER_MASK) {
+            @Override
+            public void onEvent(int event, String path) {
+                if ((event & OBSERVER_MASK) == 0) return;
+                if ((event & (FileObserver.DELETE_SELF | FileObserver.MOVE_SELF)) != 0) {
+                    if (dir.parent != null) onDirChanged(dir.parent);
+                } else {
+                    onDirChanged(dir);
+                }
+            }
+        };
+        observer.startWatching();
+        dir.observer = observer;
+        watchedDirs++;
+    }
+
+    private void stopObservers() {
+        ArrayDeque<DirNode> stack = new ArrayDeque<>(roots);
+        while (!stack.isEmpty()) {
+            DirNode dir = stack.pop();
+            if (dir.observer != null) {
+                dir.observer.stopWatching();
+                dir.observer = null;
+            }
+            for (DirNode sub : dir.subdirs) stack.push(sub);
+        }
+        watchedDirs = 0;
+    }
+
+    // 以下方法需持有写锁
+
+    private void addEntry(FileEntry entry) {
+        entry.id = entries.size();
+        entries.add(entry);
+        liveFiles++;
+        for (String token : tokenize(entry.lowerName)) {
+            IntList list = tokens.get(token);
+            if (list == null) {
+                list = new IntList();
+                tokens.put(token, list);
+            }
+            list.add(entry.id);
+        }
+    }
+
+    private void removeEntry(FileEntry entry) {
+        // 倒排列表中的id在压缩时才清理
+        entries.set(entry.id, null);
+        liveFiles--;
+    }
+
+    private void removeDir(DirNode dir) {
+        ArrayDeque<DirNode> stack = new ArrayDeque<>();
+        stack.push(dir);
+        while (!stack.isEmpty()) {
+            DirNode d = stack.pop();
+            d.removed = true;
+            if (d.observer != null) {
+                d.observer.stopWatching();
+                d.observer = null;
+                watchedDirs--;
+            }
+            for (FileEntry entry : d.files) removeEntry(entry);
+            for (DirNode sub : d.subdirs) stack.push(sub);
+        }
+    }
+
+    /**
+     * 删除的文件超过四分之一时重新编号并重建倒排表
+     */
+    private void compactIfNeeded() {
+        int dead = entries.size() - liveFiles;
+        if (dead < 1000 || dead < entries.size() / 4) return;
+        List<FileEntry> live = new ArrayList<>(liveFiles);
+        for (FileEntry entry : entries) {
+            if (entry != null) live.add(entry);
+        }
+        entries.clear();
+        tokens.clear();
+        liveFiles = 0;
+        for (FileEntry entry : live) addEntry(entry);
+    }
+
+    /**
+     * 拆分词项：连续的字母数字为一个词，中日韩文字每个字为一个词
+     */
+    static List<String> tokenize(String text) {
+        List<String> result = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (isIdeographic(c)) {
+                if (start >= 0) {
+                    result.add(text.substring(start, i));
+                    start = -1;
+                }
+                result.add(String.valueOf(c));
+            } else if (Character.isLetterOrDigit(c)) {
+                if (start < 0) start = i;
+            } else if (start >= 0) {
+                result.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        if (start >= 0) result.add(text.substring(start));
+        return result;
+    }
+
+    private static boolean isIdeographic(char c) {
+        return (c >= 0x2E80 && c <= 0x9FFF) || (c >= 0xAC00 && c <= 0xD7AF) || (c >= 0xF900 && c <= 0xFAFF);
+    }
+
+    /**
+     * 搜索文件
+     * @param query 关键字，多个词之间为"与"的关系，每个词按前缀匹配
+     * @param type 文件类型，小于0表示不限
+     * @param offset 分页起始位置
+     * @param limit 每页数量
+     */
+    public JSONObject search(String query, int type, int offset, int limit) throws JSONException {
+        long start = SystemClock.uptimeMillis();
+        String q = query == null ? "" : query.trim().toLowerCase();
+        offset = Math.max(0, Math.min(MAX_OFFSET, offset));
+        limit = Math.max(1, Math.min(MAX_LIMIT, limit));
+        String root = Environment.getExternalStorageDirectory().getPath();
+
+        JSONObject data = new JSONObject();
+        JSONArray files = new JSONArray();
+        int total = 0;
+        lock.readLock().lock();
+        try {
+            List<String> queryTokens = tokenize(q);
+            if (!queryTokens.isEmpty()) {
+                BitSet matched = null;
+                for (String token : new LinkedHashSet<>(queryTokens)) {
+                    BitSet set = new BitSet(entries.size());
+                    SortedMap<String, IntList> range = token.length() == 1 && isIdeographic(token.charAt(0))
+                            ? tokens.subMap(token, token + "\0")
+                            : tokens.subMap(token, token + Character.MAX_VALUE);
+                    for (IntList list : range.values()) {
+                        for (int i = 0; i < list.size; i++) set.set(list.values[i]);
+                    }
+                    if (matched == null) {
+                        matched = set;
+                    } else {
+                        matched.and(set);
+                    }
+                    if (matched.isEmpty()) break;
+                }
+
+                // 只保留前 offset+limit 个结果
+                int keep = offset + limit;
+                PriorityQueue<Match> top = new PriorityQueue<>(keep + 1, Collections.<Match>reverseOrder());
+                for (int id = matched.nextSetBit(0); id >= 0; id = matched.nextSetBit(id + 1)) {
+                    FileEntry entry = entries.get(id);
+                    if (entry == null) continue;
+                    if (type >= 0 && entry.type != type) continue;
+                    total++;
+                    top.add(new Match(entry, score(entry, q)));
+                    if (top.size() > keep) top.poll();
+                }
+                List<Match> sorted = new ArrayList<>(top);
+                Collections.sort(sorted);
+                for (int i = offset; i < sorted.size(); i++) {
+                    FileEntry entry = sorted.get(i).entry;
+                    JSONObject item = new JSONObject();
+                    String path = entry.getPath();
+                    item.put("name", entry.name);
+                    if (path.startsWith(root + File.separator)) item.put("path", path.substring(root.length()));
+                    item.put("fullPath", path);
+                    item.put("size", entry.size);
+                    item.put("mtime", entry.mtime);
+                    item.put("isMedia", entry.type == TYPE_VIDEO || entry.type == TYPE_AUDIO);
+                    item.put("thumb", entry.type == TYPE_VIDEO || entry.type == TYPE_IMAGE);
+                    files.put(item);
+                }
+            }
+            data.put("indexedFiles", liveFiles);
+        } finally {
+            lock.readLock().unlock();
+        }
+        data.put("total", total);
+        data.put("offset", offset);
+        data.put("limit", limit);
+        data.put("indexing", indexing);
+        data.put("files", files);
+        data.put("took", SystemClock.uptimeMillis() - start);
+        return data;
+    }
+
+    private static int score(FileEntry entry, String q) {
+        String name = entry.lowerName;
+        int score = 0;
+        if (name.equals(q)) {
+            score += 1000;
+        } else if (name.startsWith(q)) {
+            score += 500;
+        } else if (name.contains(q)) {
+            score += 200;
+        }
+        if (entry.type != TYPE_OTHER) score += 50;
+        // 名称越短越接近关键字
+        return score - Math.min(100, name.length());
+    }
+
+    /**
+     * 将请求中的类型名称转换为类型值
+     */
+    public static int parseType(String type) {
+        if (TextUtils.isEmpty(type)) return -1;
+        switch (type) {
+            case "video":
+                return TYPE_VIDEO;
+            case "audio":
+                return TYPE_AUDIO;
+            case "image":
+                return TYPE_IMAGE;
+            case "other":
+                return TYPE_OTHER;
+            default:
+                return -1;
+        }
+    }
+
+    private File getSnapshotFile() {
+        return new File(context.getFilesDir(), SNAPSHOT_NAME);
+    }
+
+    /**
+     * 保存快照：目录按先序排列，每个目录记录父目录序号及其文件
+     * 只在工作线程中调用，工作线程是唯一的修改者，读取时不需要加锁
+     */
+    private void saveSnapshot() {
+        File file = getSnapshotFile();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+            List<DirNode> dirs = new ArrayList<>();
+            Map<DirNode, Integer> dirIndex = new HashMap<>();
+            ArrayDeque<DirNode> stack = new ArrayDeque<>();
+            for (int i = roots.size() - 1; i >= 0; i--) stack.push(roots.get(i));
+            while (!stack.isEmpty()) {
+                DirNode dir = stack.pop();
+                dirIndex.put(dir, dirs.size());
+                dirs.add(dir);
+                for (int i = dir.subdirs.size() - 1; i >= 0; i--) stack.push(dir.subdirs.get(i));
+            }
+
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(dirs.size());
+            for (DirNode dir : dirs) {
+                out.writeInt(dir.parent == null ? -1 : dirIndex.get(dir.parent));
+                out.writeUTF(dir.parent == null ? dir.path : dir.name);
+                out.writeLong(dir.mtime);
+                out.writeInt(dir.files.size());
+                for (FileEntry entry : dir.files) {
+                    out.writeUTF(entry.name);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.mtime);
+                    out.writeByte(entry.type);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(IMEService.TAG, "保存文件索引快照出错", e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) tmp.delete();
+    }
+
+    private boolean loadSnapshot() {
+        File file = getSnapshotFile();
+        if (!file.isFile()) return false;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) return false;
+            int dirCount = in.readInt();
+            List<DirNode> dirs = new ArrayList<>(dirCount);
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < dirCount; i++) {
+                    int parentIndex = in.readInt();
+                    String name = in.readUTF();
+                    DirNode dir;
+                    if (parentIndex < 0) {
+                        dir = new DirNode(null, name, name);
+                        roots.add(dir);
+                    } else {
+                        DirNode parent = dirs.get(parentIndex);
+                        dir = new DirNode(parent, parent.path + File.separator + name, name);
+                        parent.subdirs.add(dir);
+                    }
+                    dir.mtime = in.readLong();
+                    int fileCount = in.readInt();
+                    for (int j = 0; j < fileCount; j++) {
+                        FileEntry entry = new FileEntry(dir, in.readUTF(), in.readLong(), in.readLong(), in.readByte());
+                        addEntry(entry);
+                        dir.files.add(entry);
+                    }
+                    dirs.add(dir);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(IMEService.TAG, "加载文件索引快照出错", e);
+            lock.writeLock().lock();
+            try {
+                roots.clear();
+                entries.clear();
+                tokens.clear();
+                liveFiles = 0;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            return false;
+        }
+    }
+}
@@ -28,6 +28,11 @@ import fi.iki.elonen.NanoHTTPD;
  * - GET  /mouse/status    - 获取鼠标状态和辅助功能服务状态
  * - POST /mouse/show      - 显示鼠标光标
  * - POST /mouse/hide      - 隐藏鼠标光标
+ * - POST /mouse/drag/start - 在光标处按下开始拖拽 (Android 8.0+)
+ * - POST /mouse/drag/move  - 拖拽移动 (参数: dx, dy)
+ * - POST /mouse/drag/end   - 结束拖拽
+ * - POST /mouse/scroll/stream - 流式滚动，手指保持按下连续移动 (参数: dy)
+ * - POST /mouse/scroll/end    - 结束流式滚动
  */
 public class MouseRequestProcesser implements RequestProcesser {
     private static final String TAG = "MouseRequestProcesser";
@@ -51,6 +56,11 @@ public class MouseRequestProcesser implements RequestProcesser {
                 case "/mouse/longclick":
                 case "/mouse/show":
                 case "/mouse/hide":
+                case "/mouse/drag/start":
+                case "/mouse/drag/move":
+                case "/mouse/drag/end":
+                case "/mouse/scroll/stream":
+                case "/mouse/scroll/end":
                     return true;
             }
         } else if (session.getMethod() == NanoHTTPD.Method.GET) {
@@ -95,6 +105,18 @@ public class MouseRequestProcesser implements RequestProcesser {
                 return handleShowCursor(service);
             case "/mouse/hide":
                 return handleHideCursor(service);
+            case "/mouse/drag/start":
+                return handleDragStart(service);
+            case "/mouse/drag/move":
+                return handleDragMove(params, service);
+            case "/mouse/drag/end":
+                return handleDragEnd(service);
+            case "/mouse/scroll/stream":
+                return handleScrollStream(params, service);
+            case "/mouse/scroll/end":
+                service.scrollStreamEnd();
+                return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                        "{\"status\":\"ok\"}");
             default:
                 return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND,
                         "Error 404, file not found.");
@@ -109,10 +131,13 @@ public class MouseRequestProcesser implements RequestProcesser {
         MouseAccessibilityService service = MouseAccessibilityService.getInstance();
 
         int mouseX = 0, mouseY = 0;
+        boolean continuousStroke = false, strokeActive = false;
         if (service != null) {
             int[] pos = service.getMousePosition();
             mouseX = pos[0];
             mouseY = pos[1];
+            continuousStroke = service.isContinuousStrokeSupported();
+            strokeActive = service.isStrokeActive();
         }
 
         // 获取屏幕尺寸
@@ -128,8 +153,8 @@ public class MouseRequestProcesser implements RequestProcesser {
         }
 
         String json = String.format(
-            "{\"serviceEnabled\":%b,\"mouseX\":%d,\"mouseY\":%d,\"screenWidth\":%d,\"screenHeight\":%d,\"apiLevel\":%d}",
-            serviceEnabled, mouseX, mouseY, screenWidth, screenHeight, Build.VERSION.SDK_INT
+            "{\"serviceEnabled\":%b,\"mouseX\":%d,\"mouseY\":%d,\"screenWidth\":%d,\"screenHeight\":%d,\"apiLevel\":%d,\"continuousStroke\":%b,\"strokeActive\":%b}",
+            serviceEnabled, mouseX, mouseY, screenWidth, screenHeight, Build.VERSION.SDK_INT, continuousStroke, strokeActive
         );
 
         return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, json);
@@ -317,4 +342,80 @@ public class MouseRequestProcesser implements RequestProcesser {
                     "{\"status\":\"error\",\"message\":\"invalid params\"}");
         }
     }
+
+    /**
+     * 开始拖拽
+     */
+    private NanoHTTPD.Response handleDragStart(MouseAccessibilityService service) {
+        if (!service.isContinuousStrokeSupported()) {
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                    "{\"status\":\"error\",\"message\":\"需要Android 8.0或更高版本\"}");
+        }
+        if (service.dragStart()) {
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                    "{\"status\":\"ok\"}");
+        } else {
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                    "{\"status\":\"error\",\"message\":\"drag start failed\"}");
+        }
+    }
+
+    /**
+     * 拖拽移动
+     * 参数: dx, dy (相对移动距离)
+     */
+    private NanoHTTPD.Response handleDragMove(Map<String, String> params, MouseAccessibilityService service) {
+        try {
+            int dx = Integer.parseInt(params.getOrDefault("dx", "0"));
+            int dy = Integer.parseInt(params.getOrDefault("dy", "0"));
+
+            int[] newPos = service.dragMove(dx, dy);
+            if (newPos == null) {
+                return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                        "{\"status\":\"error\",\"message\":\"not dragging\"}");
+            }
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                    String.format("{\"status\":\"ok\",\"x\":%d,\"y\":%d}", newPos[0], newPos[1]));
+        } catch (NumberFormatException e) {
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                    "{\"status\":\"error\",\"message\":\"invalid params\"}");
+        }
+    }
+
+    /**
+     * 结束拖拽
+     */
+    private NanoHTTPD.Response handleDragEnd(MouseAccessibilityService service) {
+        service.dragEnd();
+        return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                "{\"status\":\"ok\"}");
+    }
+
+    /**
+     * 处理流式滚动
+     * 参数: dy (滚动距离，正数向下，负数向上)
+     */
+    private NanoHTTPD.Response handleScrollStream(Map<String, String> params, MouseAccessibilityService service) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                    "{\"status\":\"error\",\"message\":\"需要Android 7.0或更高版本\"}");
+        }
+
+        try {
+            int dy = Integer.parseInt(params.getOrDefault("dy", "0"));
+
+            boolean success = service.scrollStream(dy);
+
+            if (success) {
+                return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                        "{\"status\":\"ok\"}");
+            } else {
+                return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                        "{\"status\":\"error\",\"message\":\"scroll failed\"}");
+            }
+        } catch (NumberFormatException e) {
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                    "{\"status\":\"error\",\"message\":\"invalid params\"}");
+        }
+    }
 }
@@ -8,6 +8,11 @@ import android.text.TextUtils;
 
 import com.android.tvremoteime.AppPackagesHelper;
 import com.android.tvremoteime.VideoPlayHelper;
+import com.android.tvremoteime.adb.AdbHelper;
+import com.android.tvremoteime.util.BufferPool;
+
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import java.io.File;
 import java.util.Map;
@@ -31,6 +36,7 @@ public class OtherGetRequestProcesser implements RequestProcesser {
             switch (fileName) {
                 case "/version":
                 case "/sdcard_stat":
+                case "/temp_stat":
                     return true;
             }
         }
@@ -44,11 +50,29 @@ public class OtherGetRequestProcesser implements RequestProcesser {
                 return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.OK, AppPackagesHelper.getCurrentPackageVersion(this.context) );
             case "/sdcard_stat":
                 return getSDCardStatResponse();
+            case "/temp_stat":
+                return getTempStatResponse();
             default:
                 return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND, "Error 404, file not found.");
         }
     }
 
+    private NanoHTTPD.Response getTempStatResponse(){
+        try {
+            JSONObject data = RemoteServerFileManager.getTempStats();
+            BufferPool pool = RemoteServer.getBodyBufferPool();
+            data.put("memoryBodies", RemoteServer.getMemoryBodyCount());
+            data.put("bodyBuffersPooled", pool.getPooledCount());
+            data.put("bodyBuffersAllocated", pool.getAllocatedCount());
+            data.put("thumbnails", ThumbnailCache.getInstance().getStats());
+            data.put("videoCache", VideoCache.getInstance().getStats());
+            if(AdbHelper.getInstance() != null) data.put("adbShell", AdbHelper.getInstance().getShellStats());
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, data.toString());
+        }catch (JSONException ex){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR,  "SERVER INTERNAL ERROR: JSONException: " + ex.getMessage());
+        }
+    }
+
     private NanoHTTPD.Response getSDCardStatResponse(){
         File path = Environment.getExternalStorageDirectory();
         StatFs stat = new StatFs(path.getPath());
@@ -1,9 +1,15 @@
 package com.android.tvremoteime.server;
 
 import android.content.Context;
+import android.text.TextUtils;
 
 import com.android.tvremoteime.AppPackagesHelper;
+import com.android.tvremoteime.adb.AdbHelper;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
 import java.util.Map;
 
 import fi.iki.elonen.NanoHTTPD;
@@ -24,6 +30,7 @@ public class OtherPostRequestProcesser implements RequestProcesser {
         if(session.getMethod() == NanoHTTPD.Method.POST){
             switch (fileName) {
                 case "/clearCache":
+                case "/adb/benchmark":
                     return true;
             }
         }
@@ -35,9 +42,33 @@ public class OtherPostRequestProcesser implements RequestProcesser {
         switch (fileName) {
             case "/clearCache":
                 RemoteServerFileManager.clearAllFiles();
+                VideoCache.getInstance().reset();
                 return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.OK,"ok");
+            case "/adb/benchmark":
+                return getAdbBenchmarkResponse(params.get("count"));
             default:
                 return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND, "Error 404, file not found.");
         }
     }
+
+    /**
+     * 比较常驻注入进程和input命令的输入延迟 (参数: count - 每种方式的次数，默认10，最多100)
+     */
+    private NanoHTTPD.Response getAdbBenchmarkResponse(String count){
+        AdbHelper adbHelper = AdbHelper.getInstance();
+        if(adbHelper == null || !adbHelper.isRunning()){
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, "{\"success\":false,\"error\":\"adb not running\"}");
+        }
+        try {
+            int n = TextUtils.isEmpty(count) ? 10 : Math.max(1, Math.min(100, Integer.parseInt(count)));
+            JSONObject data = adbHelper.benchmarkInput(n);
+            data.put("success", true);
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, data.toString());
+        }catch (IOException | InterruptedException | NumberFormatException ex){
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                    "{\"success\":false,\"error\":" + JSONObject.quote(String.valueOf(ex.getMessage())) + "}");
+        }catch (JSONException ex){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR,  "SERVER INTERNAL ERROR: JSONException: " + ex.getMessage());
+        }
+    }
 }
@@ -42,7 +42,10 @@ public class PlayRequestProcesser implements RequestProcesser {
         switch (fileName) {
             case "/play":
                 if (!TextUtils.isEmpty(params.get("playUrl"))) {
-                    VideoPlayHelper.playUrl(this.context, params.get("playUrl"), 0,
+                    // Route network videos through the local caching proxy unless cache=false
+                    String playUrl = "false".equalsIgnoreCase(params.get("cache"))
+                        ? params.get("playUrl") : VideoProxyRequestProcesser.getProxyUrl(params.get("playUrl"));
+                    VideoPlayHelper.playUrl(this.context, playUrl, 0,
                         "true".equalsIgnoreCase(params.get("useSystem")));
                 }
                 return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.OK, "ok");
@@ -8,8 +8,10 @@ import android.util.Log;
 import com.android.tvremoteime.Environment;
 import com.android.tvremoteime.IMEService;
 import com.android.tvremoteime.R;
+import com.android.tvremoteime.util.BufferPool;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
@@ -18,6 +20,8 @@ import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import fi.iki.elonen.*;
 
@@ -43,12 +47,18 @@ public class RemoteServer extends NanoHTTPD
     }
 
     public static int serverPort = 9978;
+    //小于该长度的非multipart请求体直接读入内存缓冲区，不创建临时文件
+    private static final int MEMORY_BODY_LIMIT = 64 * 1024;
+    private static final BufferPool bodyBufferPool = new BufferPool(MEMORY_BODY_LIMIT, 4);
+    private static final AtomicLong memoryBodies = new AtomicLong();
     private boolean isStarted = false;
     private DataReceiver mDataReceiver = null;
     private Context mContext = null;
     private RemoteServerFileManager.Factory fileManagerFactory = new RemoteServerFileManager.Factory();
     private ArrayList<RequestProcesser> getRequestProcessers = new ArrayList<>();
     private ArrayList<RequestProcesser> postRequestProcessers = new ArrayList<>();
+    //在解析请求体之前处理的请求，由处理器自己从连接中读取请求体
+    private ArrayList<RequestProcesser> streamRequestProcessers = new ArrayList<>();
 
     public void setDataReceiver(DataReceiver receiver){
         mDataReceiver = receiver;
@@ -65,11 +75,14 @@ public class RemoteServer extends NanoHTTPD
         mContext = context;
         this.addGetRequestProcessers();
         this.addPostRequestProcessers();
+        this.addStreamRequestProcessers();
     }
 
     @Override
     public void start(int timeout, boolean daemon) throws IOException {
         isStarted = true;
+        fileManagerFactory.sweepOrphanFiles();
+        MediaIndex.getInstance(mContext).start();
         setTempFileManagerFactory(fileManagerFactory);
         super.start(timeout, daemon);
     }
@@ -77,6 +90,7 @@ public class RemoteServer extends NanoHTTPD
     @Override
     public void stop() {
         super.stop();
+        MediaIndex.getInstance(mContext).stop();
         isStarted = false;
     }
 
@@ -128,6 +142,75 @@ public class RemoteServer extends NanoHTTPD
         return newFixedLengthResponse(status, "application/json", text);
     }
 
+    /**
+     * 获取请求体长度
+     * @return 请求体长度，未提供时返回-1
+     */
+    public static long getContentLength(IHTTPSession session){
+        String contentLength = session.getHeaders().get("content-length");
+        if(contentLength == null) return -1;
+        try {
+            return Long.parseLong(contentLength.trim());
+        }catch (NumberFormatException e){
+            return -1;
+        }
+    }
+
+    /**
+     * 请求体内存缓冲统计信息
+     */
+    public static long getMemoryBodyCount(){
+        return memoryBodies.get();
+    }
+    public static BufferPool getBodyBufferPool(){
+        return bodyBufferPool;
+    }
+
+    /**
+     * 小的非multipart请求体直接在内存中解析，避免NanoHTTPD为超过1KB的请求体创建临时文件
+     * @return false 表示需要交给 parseBody 处理
+     */
+    private boolean parseSmallBody(IHTTPSession session, Map<String, String> files) throws IOException {
+        String contentType = session.getHeaders().get("content-type");
+        if(contentType != null && contentType.toLowerCase().contains("multipart/form-data")) return false;
+        long length = getContentLength(session);
+        if(length < 0 || length > MEMORY_BODY_LIMIT) return false;
+
+        byte[] buffer = bodyBufferPool.acquire();
+        try {
+            InputStream ins = session.getInputStream();
+            int read = 0;
+            while (read < length) {
+                int n = ins.read(buffer, read, (int) length - read);
+                if(n < 0) break;
+                read += n;
+            }
+            String body = new String(buffer, 0, read, "UTF-8").trim();
+            if(contentType != null && contentType.toLowerCase().startsWith("application/x-www-form-urlencoded")){
+                decodeFormParms(body, session.getParms());
+            }else if(body.length() != 0){
+                files.put("postData", body);
+            }
+        }finally {
+            bodyBufferPool.release(buffer);
+        }
+        memoryBodies.incrementAndGet();
+        return true;
+    }
+
+    private static void decodeFormParms(String body, Map<String, String> parms){
+        StringTokenizer st = new StringTokenizer(body, "&");
+        while (st.hasMoreTokens()) {
+            String e = st.nextToken();
+            int sep = e.indexOf('=');
+            if (sep >= 0) {
+                parms.put(decodePercent(e.substring(0, sep)).trim(), decodePercent(e.substring(sep + 1)));
+            } else {
+                parms.put(decodePercent(e).trim(), "");
+            }
+        }
+    }
+
     private void addGetRequestProcessers(){
         this.getRequestProcessers.add(new RawRequestProcesser(this.mContext, "/index.html", R.raw.index, NanoHTTPD.MIME_HTML));
         this.getRequestProcessers.add(new RawRequestProcesser(this.mContext, "/style.css", R.raw.style, "text/css"));
@@ -142,11 +225,13 @@ public class RemoteServer extends NanoHTTPD
         this.getRequestProcessers.add(new AppIconRequestProcesser(this.mContext));
         this.getRequestProcessers.add(new TVRequestProcesser(this.mContext));
         this.getRequestProcessers.add(new MouseRequestProcesser(this.mContext, this));
+        this.getRequestProcessers.add(new UiRequestProcesser(this.mContext));
         this.getRequestProcessers.add(new OtherGetRequestProcesser(this.mContext));
     }
     private void addPostRequestProcessers(){
         this.postRequestProcessers.add(new InputRequestProcesser(this.mContext, this));
         this.postRequestProcessers.add(new MouseRequestProcesser(this.mContext, this));
+        this.postRequestProcessers.add(new UiRequestProcesser(this.mContext));
         this.postRequestProcessers.add(new UploadRequestProcesser(this.mContext));
         this.postRequestProcessers.add(new AppRequestProcesser(this.mContext));
         this.postRequestProcessers.add(new PlayRequestProcesser(this.mContext));
@@ -155,6 +240,13 @@ public class RemoteServer extends NanoHTTPD
         this.postRequestProcessers.add(new TorrentRequestProcesser(this.mContext));
         this.postRequestProcessers.add(new OtherPostRequestProcesser(this.mContext));
     }
+    private void addStreamRequestProcessers(){
+        this.streamRequestProcessers.add(new InstallRequestProcesser(this.mContext));
+        this.streamRequestProcessers.add(new ExtractRequestProcesser(this.mContext));
+        this.streamRequestProcessers.add(new ResumableUploadRequestProcesser(this.mContext));
+        this.streamRequestProcessers.add(new DeltaSyncRequestProcesser(this.mContext));
+        this.streamRequestProcessers.add(new VideoProxyRequestProcesser(this.mContext));
+    }
 
 
     @Override
@@ -165,6 +257,11 @@ public class RemoteServer extends NanoHTTPD
             if (fileName.indexOf('?') >= 0) {
                 fileName = fileName.substring(0, fileName.indexOf('?'));
             }
+            for(RequestProcesser processer : this.streamRequestProcessers){
+                if(processer.isRequest(session, fileName)){
+                    return processer.doResponse(session, fileName, session.getParms(), null);
+                }
+            }
             if (session.getMethod() == Method.GET) {
                 for(RequestProcesser processer : this.getRequestProcessers){
                     if(processer.isRequest(session, fileName)){
@@ -174,7 +271,7 @@ public class RemoteServer extends NanoHTTPD
             } else if (session.getMethod() == Method.POST) {
                 Map<String, String> files = new HashMap<String, String>();
                 try {
-                    session.parseBody(files);
+                    if(!parseSmallBody(session, files)) session.parseBody(files);
                 } catch (IOException ioex) {
                     return createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR,  "SERVER INTERNAL ERROR: IOException: " + ioex.getMessage());
                 } catch (NanoHTTPD.ResponseException rex) {
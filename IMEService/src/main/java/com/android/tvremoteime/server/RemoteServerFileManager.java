@@ -10,6 +10,9 @@ import android.util.Log;
 
 import com.android.tvremoteime.IMEService;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -18,6 +21,7 @@ import java.io.OutputStream;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import fi.iki.elonen.*;
 
@@ -30,6 +34,15 @@ public class RemoteServerFileManager implements NanoHTTPD.TempFileManager {
     static File getPlayTorrentFile(){
         return new File(RemoteServerFileManager.baseDir, "play.torrent");
     }
+    static File getThumbnailDir(){
+        return new File(RemoteServerFileManager.baseDir, "thumbs");
+    }
+    static File getUploadStateDir(){
+        return new File(RemoteServerFileManager.baseDir, "uploads");
+    }
+    static File getVideoCacheDir(){
+        return new File(RemoteServerFileManager.playerCacheDir, "proxy");
+    }
     public static File getScreenShotFile(){
         return new File(RemoteServerFileManager.baseDir, "screenshot.png");
     }
@@ -58,9 +71,9 @@ public class RemoteServerFileManager implements NanoHTTPD.TempFileManager {
 
         public void delete() throws Exception {
             if(this.fstream != null) this.fstream.close();
-            //上传的文件不用删除
-            if(this.isTemp && !this.file.delete()) {
-                Log.e(IMEService.TAG, String.format("无法删除临时文件[%s]", this.getName()));
+            //上传的文件不用删除，临时文件交给后台线程删除
+            if(this.isTemp) {
+                TempFileJanitor.getInstance().delete(this.file);
             }
         }
 
@@ -99,10 +112,50 @@ public class RemoteServerFileManager implements NanoHTTPD.TempFileManager {
         }
         NanoHTTPD.TempFile tmpFile = new SDCardTempFile(fileName);
         tempFiles.add(tmpFile);
+        tempFilesCreated.incrementAndGet();
         return tmpFile;
     }
 
+    private static final AtomicLong tempFilesCreated = new AtomicLong();
+
+    /**
+     * 临时文件统计信息
+     */
+    public static JSONObject getTempStats() throws JSONException {
+        long tempBytes = 0;
+        int tempCount = 0;
+        File[] files = tmpDataDir.listFiles();
+        if(files != null){
+            for(File f : files){
+                if(f.isFile()){
+                    tempCount++;
+                    tempBytes += f.length();
+                }
+            }
+        }
+        TempFileJanitor janitor = TempFileJanitor.getInstance();
+        JSONObject data = new JSONObject();
+        data.put("tempFiles", tempCount);
+        data.put("tempBytes", tempBytes);
+        data.put("tempFilesCreated", tempFilesCreated.get());
+        data.put("pendingDeletes", janitor.getPendingCount());
+        data.put("deletedFiles", janitor.getDeletedFiles());
+        data.put("deletedBytes", janitor.getDeletedBytes());
+        data.put("failedDeletes", janitor.getFailedFiles());
+        data.put("sweptOrphans", janitor.getSweptFiles());
+        return data;
+    }
+
     public static class Factory implements NanoHTTPD.TempFileManagerFactory {
+        /**
+         * 清理上次运行遗留的临时文件（进程被杀时来不及删除）
+         */
+        public void sweepOrphanFiles() {
+            if(tmpDataDir.exists()) {
+                TempFileJanitor.getInstance().sweep(tmpDataDir, "tmp-", System.currentTimeMillis());
+            }
+        }
+
         @Override
         public NanoHTTPD.TempFileManager create() {
             try{
@@ -117,7 +170,7 @@ public class RemoteServerFileManager implements NanoHTTPD.TempFileManager {
     public static void clearAllFiles(){
         try{
             if(filesDir.exists()) deleteDirFiles(filesDir);
-            if(tmpDataDir.exists()) deleteDirFiles(filesDir);
+            if(tmpDataDir.exists()) deleteDirFiles(tmpDataDir);
             if(playerCacheDir != null && playerCacheDir.exists()) deleteDirFiles(playerCacheDir);
             File torrentFile = getPlayTorrentFile();
             if(torrentFile.exists()) torrentFile.delete();
@@ -0,0 +1,366 @@
+package com.android.tvremoteime.server;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.android.tvremoteime.IMEService;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * 可续传的分块上传
+ * 先创建上传会话（目标目录中预分配一个隐藏的 .part 文件），之后按偏移量上传数据块（可并行），
+ * 数据块用 FileChannel 按位置写入；已收到的区间保存在会话状态文件中，服务重启后仍可继续上传，
+ * 全部收到后改名为目标文件
+ */
+public class ResumableUploadManager {
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // 每写入多少字节同步一次数据并保存已收到的区间，连接中断时最多损失这么多数据
+    private static final long SYNC_STEP = 8 * 1024 * 1024;
+    // 超过该时间没有活动的会话会被清理
+    private static final long SESSION_EXPIRE = 7L * 24 * 60 * 60 * 1000;
+
+    private static ResumableUploadManager instance;
+
+    public static synchronized ResumableUploadManager getInstance() {
+        if (instance == null) {
+            instance = new ResumableUploadManager();
+        }
+        return instance;
+    }
+
+    /**
+     * 上传会话
+     */
+    public static class Session {
+        final String id;
+        final String name;
+        final long size;
+        final File partFile;
+        final File targetFile;
+        long lastActive;
+        // 已收到的区间，按起始位置排序且互不重叠，每项为 {start, end}
+        final List<long[]> ranges = new ArrayList<>();
+        private FileChannel channel;
+        private int writers = 0;
+
+        Session(String id, String name, long size, File partFile, File targetFile) {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.partFile = partFile;
+            this.targetFile = targetFile;
+            this.lastActive = System.currentTimeMillis();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public File getTargetFile() {
+            return targetFile;
+        }
+
+        synchronized long getReceived() {
+            long received = 0;
+            for (long[] range : ranges) received += range[1] - range[0];
+            return received;
+        }
+
+        synchronized boolean isComplete() {
+            return ranges.size() == 1 && ranges.get(0)[0] == 0 && ranges.get(0)[1] == size
+                    || size == 0;
+        }
+
+        /**
+         * 合并新收到的区间
+         */
+        synchronized void addRange(long start, long end) {
+            if (end <= start) return;
+            List<long[]> merged = new ArrayList<>(ranges.size() + 1);
+            boolean added = false;
+            for (long[] range : ranges) {
+                if (range[1] < start) {
+                    merged.add(range);
+                } else if (range[0] > end) {
+                    if (!added) {
+                        merged.add(new long[]{start, end});
+                        added = true;
+                    }
+                    merged.add(range);
+                } else {
+                    start = Math.min(start, range[0]);
+                    end = Math.max(end, range[1]);
+                }
+            }
+            if (!added) merged.add(new long[]{start, end});
+            ranges.clear();
+            ranges.addAll(merged);
+        }
+
+        synchronized JSONObject toJSONObject(boolean withMissing) throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("id", id);
+            obj.put("name", name);
+            obj.put("size", size);
+            obj.put("partFile", partFile.getPath());
+            obj.put("targetFile", targetFile.getPath());
+            obj.put("lastActive", lastActive);
+            JSONArray received = new JSONArray();
+            for (long[] range : ranges) received.put(new JSONArray().put(range[0]).put(range[1]));
+            obj.put("ranges", received);
+            if (withMissing) {
+                JSONArray missing = new JSONArray();
+                long pos = 0;
+                for (long[] range : ranges) {
+                    if (range[0] > pos) missing.put(new JSONArray().put(pos).put(range[0]));
+                    pos = range[1];
+                }
+                if (pos < size) missing.put(new JSONArray().put(pos).put(size));
+                obj.put("missing", missing);
+                obj.put("received", getReceived());
+                obj.put("complete", isComplete());
+            }
+            return obj;
+        }
+
+        static Session fromJSONObject(JSONObject obj) throws JSONException {
+            Session session = new Session(obj.getString("id"), obj.getString("name"), obj.getLong("size"),
+                    new File(obj.getString("partFile")), new File(obj.getString("targetFile")));
+            session.lastActive = obj.getLong("lastActive");
+            JSONArray received = obj.getJSONArray("ranges");
+            for (int i = 0; i < received.length(); i++) {
+                JSONArray range = received.getJSONArray(i);
+                session.addRange(range.getLong(0), range.getLong(1));
+            }
+            return session;
+        }
+    }
+
+    private final Map<String, Session> sessions = new HashMap<>();
+    private boolean loaded = false;
+
+    private ResumableUploadManager() {
+    }
+
+    /**
+     * 加载保存的会话并清理过期的会话
+     */
+    private void ensureLoaded() {
+        if (loaded) return;
+        loaded = true;
+        File[] files = RemoteServerFileManager.getUploadStateDir().listFiles();
+        if (files == null) return;
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (!file.getName().endsWith(".json")) continue;
+            try {
+                Session session = Session.fromJSONObject(new JSONObject(readText(file)));
+                if (now - session.lastActive > SESSION_EXPIRE || !session.partFile.exists()) {
+                    session.partFile.delete();
+                    file.delete();
+                    continue;
+                }
+                sessions.put(session.id, session);
+            } catch (IOException | JSONException e) {
+                Log.e(IMEService.TAG, String.format("无法读取上传会话[%s]", file.getName()), e);
+                file.delete();
+            }
+        }
+        if (!sessions.isEmpty()) {
+            Log.i(IMEService.TAG, String.format("已恢复%d个未完成的上传会话", sessions.size()));
+        }
+    }
+
+    /**
+     * 创建上传会话并预分配文件空间
+     * @param dir 目标目录（已校验）
+     * @param targetFile 目标文件（已校验）
+     * @param size 文件大小
+     */
+    public synchronized Session create(File dir, File targetFile, long size) throws IOException {
+        ensureLoaded();
+        String id = UUID.randomUUID().toString().replace("-", "");
+        File partFile = new File(dir, "." + targetFile.getName() + "." + id + ".part");
+        try (RandomAccessFile raf = new RandomAccessFile(partFile, "rw")) {
+            try {
+                // 真正分配空间，空间不足时立即失败，而不是上传到一半才发现
+                if (size > 0) Os.posix_fallocate(raf.getFD(), 0, size);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOSPC) throw new IOException("存储空间不足", e);
+                // 文件系统不支持预分配
+                raf.setLength(size);
+            }
+        } catch (IOException e) {
+            partFile.delete();
+            throw e;
+        }
+        Session session = new Session(id, targetFile.getName(), size, partFile, targetFile);
+        sessions.put(id, session);
+        saveState(session);
+        Log.i(IMEService.TAG, String.format("已创建上传会话[%s]：%s，%d字节", id, targetFile.getPath(), size));
+        return session;
+    }
+
+    public synchronized Session get(String id) {
+        ensureLoaded();
+        return id == null ? null : sessions.get(id);
+    }
+
+    /**
+     * 写入一个数据块
+     * @param session 上传会话
+     * @param offset 数据块在文件中的位置
+     * @param in 数据块内容
+     * @param length 数据块长度
+     * @return 实际写入的字节数
+     */
+    public long writeChunk(Session session, long offset, InputStream in, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > session.size) {
+            throw new IOException("chunk out of range");
+        }
+        FileChannel channel = openChannel(session);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        long written = 0;
+        long synced = 0;
+        try {
+            while (written < length) {
+                int n = in.read(buffer.array(), 0, (int) Math.min(BUFFER_SIZE, length - written));
+                if (n < 0) break;
+                buffer.clear();
+                buffer.limit(n);
+                while (buffer.hasRemaining()) {
+                    written += channel.write(buffer, offset + written);
+                }
+                if (written - synced >= SYNC_STEP) {
+                    commit(session, channel, offset + synced, offset + written);
+                    synced = written;
+                }
+            }
+        } finally {
+            // 中断时已写入的部分同样记录下来，续传时不需要重新上传
+            if (written > synced) commit(session, channel, offset + synced, offset + written);
+            closeChannel(session);
+        }
+        if (written < length) throw new IOException(String.format("数据块不完整：%d/%d", written, length));
+        return written;
+    }
+
+    private void commit(Session session, FileChannel channel, long start, long end) throws IOException {
+        channel.force(false);
+        session.addRange(start, end);
+        session.lastActive = System.currentTimeMillis();
+        saveState(session);
+    }
+
+    private FileChannel openChannel(Session session) throws IOException {
+        synchronized (session) {
+            if (session.channel == null) {
+                if (!session.partFile.exists()) throw new IOException("part file missing");
+                session.channel = new RandomAccessFile(session.partFile, "rw").getChannel();
+            }
+            session.writers++;
+            return session.channel;
+        }
+    }
+
+    private void closeChannel(Session session) {
+        synchronized (session) {
+            if (--session.writers > 0 || session.channel == null) return;
+            try {
+                session.channel.close();
+            } catch (IOException ignored) {
+            }
+            session.channel = null;
+        }
+    }
+
+    /**
+     * 所有数据都已收到时改名为目标文件
+     * @param overwrite 目标文件已存在时是否覆盖
+     */
+    public synchronized File finish(Session session, boolean overwrite) throws IOException {
+        synchronized (session) {
+            if (session.writers > 0) throw new IOException("upload in progress");
+        }
+        if (!session.isComplete()) throw new IOException("upload incomplete");
+        File target = session.targetFile;
+        if (target.exists()) {
+            if (!overwrite || target.isDirectory() || !target.delete()) throw new IOException("target exists");
+        }
+        if (!session.partFile.renameTo(target)) throw new IOException("rename failed");
+        sessions.remove(session.id);
+        getStateFile(session).delete();
+        Log.i(IMEService.TAG, String.format("上传会话[%s]已完成：%s", session.id, target.getPath()));
+        return target;
+    }
+
+    /**
+     * 放弃上传会话，删除已上传的数据
+     */
+    public synchronized void abort(Session session) throws IOException {
+        synchronized (session) {
+            if (session.writers > 0) throw new IOException("upload in progress");
+        }
+        sessions.remove(session.id);
+        session.partFile.delete();
+        getStateFile(session).delete();
+    }
+
+    private static File getStateFile(Session session) {
+        return new File(RemoteServerFileManager.getUploadStateDir(), session.id + ".json");
+    }
+
+    private static void saveState(Session session) throws IOException {
+        File dir = RemoteServerFileManager.getUploadStateDir();
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("无法创建目录：" + dir.getPath());
+        File file = getStateFile(session);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        // 并行上传的数据块会同时保存状态
+        synchronized (session) {
+            try {
+                byte[] data = session.toJSONObject(false).toString().getBytes("UTF-8");
+                try (FileOutputStream out = new FileOutputStream(tmp)) {
+                    out.write(data);
+                }
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("无法保存上传会话状态");
+            }
+        }
+    }
+
+    private static String readText(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int n = in.read(data, offset, data.length - offset);
+                if (n < 0) break;
+                offset += n;
+            }
+        }
+        return new String(data, "UTF-8");
+    }
+}
@@ -0,0 +1,129 @@
+package com.android.tvremoteime.server;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.tvremoteime.IMEService;
+import com.android.tvremoteime.util.BoundedInputStream;
+import com.android.tvremoteime.util.FileUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * 可续传的分块上传
+ *
+ * 端点:
+ * - POST   /upload/session  - 创建上传会话 (参数: path - 目标目录, name - 文件名, size - 文件大小)
+ * - GET    /upload/session  - 查询会话，返回已收到和缺少的区间 (参数: id)
+ * - DELETE /upload/session  - 放弃上传 (参数: id)
+ * - PUT    /upload/chunk    - 上传数据块，请求体为数据块内容 (参数: id, offset - 数据块在文件中的位置)
+ * - POST   /upload/finish   - 完成上传，改名为目标文件 (参数: id, overwrite - 是否覆盖已有文件，默认false)
+ */
+public class ResumableUploadRequestProcesser implements RequestProcesser {
+    private Context context;
+    private SecurityManager securityManager;
+
+    public ResumableUploadRequestProcesser(Context context){
+        this.context = context;
+        this.securityManager = SecurityManager.getInstance();
+    }
+
+    @Override
+    public boolean isRequest(NanoHTTPD.IHTTPSession session, String fileName) {
+        switch (session.getMethod()){
+            case POST:
+                return "/upload/session".equals(fileName) || "/upload/finish".equals(fileName);
+            case GET:
+            case DELETE:
+                return "/upload/session".equals(fileName);
+            case PUT:
+                return "/upload/chunk".equals(fileName);
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public NanoHTTPD.Response doResponse(NanoHTTPD.IHTTPSession session, String fileName, Map<String, String> params, Map<String, String> files) {
+        long length = RemoteServer.getContentLength(session);
+        BoundedInputStream body = new BoundedInputStream(session.getInputStream(), Math.max(0, length));
+        ResumableUploadManager manager = ResumableUploadManager.getInstance();
+        try {
+            if(session.getMethod() == NanoHTTPD.Method.POST && "/upload/session".equals(fileName)){
+                return createSession(params);
+            }
+
+            ResumableUploadManager.Session upload = manager.get(params.get("id"));
+            if(upload == null){
+                return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND, "Error 404, file not found.");
+            }
+            switch (session.getMethod()){
+                case GET:
+                    return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, upload.toJSONObject(true).toString());
+                case DELETE:
+                    manager.abort(upload);
+                    return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, "{\"success\":true}");
+                case PUT:
+                    if(length < 0){
+                        return createError("Content-Length required");
+                    }
+                    long offset = Long.parseLong(params.get("offset"));
+                    manager.writeChunk(upload, offset, body, length);
+                    JSONObject data = upload.toJSONObject(true);
+                    data.put("success", true);
+                    return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, data.toString());
+                default:
+                    File target = manager.finish(upload, "true".equals(params.get("overwrite")));
+                    JSONObject result = new JSONObject();
+                    result.put("success", true);
+                    result.put("filePath", target.getPath());
+                    return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, result.toString());
+            }
+        }catch (IOException | NumberFormatException ex){
+            Log.e(IMEService.TAG, session.getMethod() + " " + fileName, ex);
+            return createError(String.valueOf(ex.getMessage()));
+        }catch (JSONException ex){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR,  "SERVER INTERNAL ERROR: JSONException: " + ex.getMessage());
+        }finally {
+            // 出错时读完剩余的请求体，保持连接可用
+            try {
+                body.drain();
+            }catch (IOException ignored){}
+        }
+    }
+
+    private NanoHTTPD.Response createSession(Map<String, String> params) throws IOException, JSONException {
+        // Validate path to prevent path traversal
+        File dir = securityManager.getSafeFile(params.get("path") == null ? "" : params.get("path"));
+        String name = FileUtils.getFileName(params.get("name"));
+        if(dir == null || !dir.isDirectory() || TextUtils.isEmpty(name)){
+            return createError("Invalid path");
+        }
+        File target = securityManager.getSafeEntryFile(dir, name);
+        if(target == null){
+            return createError("Invalid path");
+        }
+        long size = Long.parseLong(params.get("size"));
+        if(size < 0){
+            return createError("Invalid size");
+        }
+
+        ResumableUploadManager.Session upload = ResumableUploadManager.getInstance().create(dir, target, size);
+        JSONObject data = upload.toJSONObject(true);
+        data.put("success", true);
+        return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, data.toString());
+    }
+
+    private static NanoHTTPD.Response createError(String error){
+        return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                "{\"success\":false,\"error\":" + JSONObject.quote(error) + "}");
+    }
+}
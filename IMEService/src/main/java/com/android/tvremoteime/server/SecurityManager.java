@@ -1,10 +1,18 @@
 package com.android.tvremoteime.server;
 
 import android.os.Environment;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.android.tvremoteime.util.FileUtils;
+
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Simple security manager for TVRemoteIME HTTP server.
@@ -15,6 +23,17 @@ public class SecurityManager {
 
     private static SecurityManager instance;
 
+    private static final long DIR_CACHE_TTL = 10 * 1000;
+    private static final int MAX_CACHED_DIRS = 256;
+
+    private final Map<String, String> canonicalBases = new HashMap<>();
+    private final Map<String, CachedPath> canonicalDirs = new LinkedHashMap<String, CachedPath>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedPath> eldest) {
+            return size() > MAX_CACHED_DIRS;
+        }
+    };
+
     public static synchronized SecurityManager getInstance() {
         if (instance == null) {
             instance = new SecurityManager();
@@ -74,8 +93,8 @@ public class SecurityManager {
     public boolean isPathWithinBase(File file, File baseDir) {
         try {
             String canonicalFile = file.getCanonicalPath();
-            String canonicalBase = baseDir.getCanonicalPath();
-            return canonicalFile.startsWith(canonicalBase);
+            String canonicalBase = getCanonicalBase(baseDir);
+            return isWithin(canonicalFile, canonicalBase);
         } catch (IOException e) {
             Log.e(TAG, "Failed to validate path", e);
             return false;
@@ -92,13 +111,179 @@ public class SecurityManager {
         }
 
         File baseDir = Environment.getExternalStorageDirectory();
-        File requestedFile = new File(baseDir, sanitized);
+        try {
+            File requestedFile = resolve(sanitized, baseDir, getCanonicalBase(baseDir));
+            if (requestedFile == null) {
+                Log.w(TAG, "Path escape attempt: " + requestedPath);
+            }
+            return requestedFile;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to validate path", e);
+            return null;
+        }
+    }
+
+    /**
+     * Get safe file for an archive entry extracted below a directory of external storage.
+     * Entry names are taken literally (no URL decoding); absolute names are made relative.
+     * @return The resolved file or null if the entry would escape external storage
+     */
+    public File getSafeEntryFile(File targetDir, String entryName) {
+        if (entryName == null || entryName.contains("\0")) {
+            return null;
+        }
+        String normalized = normalize(entryName.replace('\\', '/'));
+        for (String segment : normalized.split("/")) {
+            if (segment.equals("..")) {
+                Log.w(TAG, "Path traversal attempt detected: " + entryName);
+                return null;
+            }
+        }
+
+        File baseDir = Environment.getExternalStorageDirectory();
+        String base = baseDir.getPath();
+        String dir = targetDir.getPath();
+        if (!dir.equals(base) && !dir.startsWith(base + "/")) {
+            return null;
+        }
+        try {
+            File file = resolve(dir.substring(base.length()) + "/" + normalized, baseDir, getCanonicalBase(baseDir));
+            if (file == null) {
+                Log.w(TAG, "Path escape attempt: " + entryName);
+            }
+            return file;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to validate path", e);
+            return null;
+        }
+    }
+
+    /**
+     * Validate a '|' separated list of paths in one pass.
+     * Invalid entries are skipped.
+     * @return The resolved files, in request order
+     */
+    public List<File> getSafeFiles(String requestedPaths) {
+        List<File> files = new ArrayList<>();
+        if (requestedPaths == null) {
+            return files;
+        }
+
+        File baseDir = Environment.getExternalStorageDirectory();
+        String canonicalBase;
+        try {
+            canonicalBase = getCanonicalBase(baseDir);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to validate path", e);
+            return files;
+        }
+        for (String p : requestedPaths.split("\\|")) {
+            if (p.isEmpty()) continue;
+            String sanitized = sanitizePath(p);
+            if (sanitized == null) continue;
+            try {
+                File file = resolve(sanitized, baseDir, canonicalBase);
+                if (file != null) {
+                    files.add(file);
+                } else {
+                    Log.w(TAG, "Path escape attempt: " + p);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to validate path", e);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Resolve a sanitized relative path below the base directory.
+     * The path is normalized lexically first; the filesystem is only asked for
+     * the canonical form of each distinct parent directory (cached) and for
+     * the final component when it is a symbolic link.
+     * @return The resolved file or null if it escapes the base directory
+     */
+    private File resolve(String sanitized, File baseDir, String canonicalBase) throws IOException {
+        String normalized = normalize(sanitized);
+        if (normalized.isEmpty()) {
+            return baseDir;
+        }
 
-        if (!isPathWithinBase(requestedFile, baseDir)) {
-            Log.w(TAG, "Path escape attempt: " + requestedPath);
+        File file = new File(baseDir, normalized);
+        File parent = file.getParentFile();
+        String canonicalParent = parent.getPath().equals(baseDir.getPath())
+                ? canonicalBase : getCanonicalDir(parent);
+        if (!isWithin(canonicalParent, canonicalBase)) {
             return null;
         }
+        if (FileUtils.isSymbolicLink(file) && !isWithin(file.getCanonicalPath(), canonicalBase)) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Collapse empty and "." segments. ".." has already been rejected by sanitizePath.
+     */
+    static String normalize(String path) {
+        StringBuilder sb = new StringBuilder(path.length());
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty() || segment.equals(".")) continue;
+            if (sb.length() > 0) sb.append('/');
+            sb.append(segment);
+        }
+        return sb.toString();
+    }
 
-        return requestedFile;
+    private static boolean isWithin(String canonicalFile, String canonicalBase) {
+        return canonicalFile.equals(canonicalBase)
+                || canonicalFile.startsWith(canonicalBase.endsWith("/") ? canonicalBase : canonicalBase + "/");
+    }
+
+    /**
+     * Canonical path of a storage volume root, computed once per volume.
+     */
+    private String getCanonicalBase(File baseDir) throws IOException {
+        String path = baseDir.getPath();
+        synchronized (canonicalBases) {
+            String canonical = canonicalBases.get(path);
+            if (canonical != null) {
+                return canonical;
+            }
+        }
+        String canonical = baseDir.getCanonicalPath();
+        synchronized (canonicalBases) {
+            canonicalBases.put(path, canonical);
+        }
+        return canonical;
+    }
+
+    /**
+     * Canonical path of a directory, cached for a short time so that batch
+     * operations on one folder only resolve it once.
+     */
+    private String getCanonicalDir(File dir) throws IOException {
+        String path = dir.getPath();
+        long now = SystemClock.uptimeMillis();
+        synchronized (canonicalDirs) {
+            CachedPath cached = canonicalDirs.get(path);
+            if (cached != null && now - cached.time < DIR_CACHE_TTL) {
+                return cached.canonical;
+            }
+        }
+        String canonical = dir.getCanonicalPath();
+        synchronized (canonicalDirs) {
+            canonicalDirs.put(path, new CachedPath(canonical, now));
+        }
+        return canonical;
+    }
+
+    private static class CachedPath {
+        final String canonical;
+        final long time;
+
+        CachedPath(String canonical, long time) {
+            this.canonical = canonical;
+            this.time = time;
+        }
     }
 }
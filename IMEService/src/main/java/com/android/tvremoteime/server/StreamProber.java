@@ -0,0 +1,191 @@
+package com.android.tvremoteime.server;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.tvremoteime.IMEService;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 直播源可用性检测
+ * 在固定数量的线程中并行检测，先发HEAD请求，服务器不支持HEAD时改为GET并读取开头的少量数据；
+ * 每个地址的结果（是否可用、响应码、延迟）缓存一段时间
+ */
+public class StreamProber {
+    private static final int PROBE_READ_BYTES = 1024;
+    private static final long RESULT_EXPIRE = 10 * 60 * 1000;
+
+    private static StreamProber instance;
+
+    public static synchronized StreamProber getInstance() {
+        if (instance == null) {
+            instance = new StreamProber(8, 5000);
+        }
+        return instance;
+    }
+
+    /**
+     * 一个地址的检测结果
+     */
+    public static class Health {
+        final boolean ok;
+        final int status;
+        final long latency;
+        final long time;
+        final String error;
+
+        Health(boolean ok, int status, long latency, String error) {
+            this.ok = ok;
+            this.status = status;
+            this.latency = latency;
+            this.time = System.currentTimeMillis();
+            this.error = error;
+        }
+
+        public boolean isOk() {
+            return ok;
+        }
+
+        public long getLatency() {
+            return latency;
+        }
+
+        JSONObject toJSONObject() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("ok", ok);
+            obj.put("status", status);
+            obj.put("latency", latency);
+            obj.put("time", time);
+            if (error != null) obj.put("error", error);
+            return obj;
+        }
+    }
+
+    private final int timeout;
+    private final ExecutorService executor;
+    private final Map<String, Health> results = new ConcurrentHashMap<>();
+    private final Set<String> pending = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param concurrency 同时检测的地址数
+     * @param timeout 连接和读取超时（毫秒）
+     */
+    public StreamProber(int concurrency, int timeout) {
+        this.timeout = timeout;
+        this.executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "StreamProbe-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 在后台检测多个地址，正在检测或结果未过期的地址会被跳过；
+     * 只检测http(s)地址，RTMP、RTSP、P2P等地址没有检测结果，页面上保持原样
+     * @param force 是否忽略未过期的结果
+     * @return 加入检测的地址数
+     */
+    public int probe(Collection<String> urls, boolean force) {
+        int queued = 0;
+        long now = System.currentTimeMillis();
+        for (final String url : urls) {
+            if (!isProbeable(url)) continue;
+            Health health = results.get(url);
+            if (!force && health != null && now - health.time < RESULT_EXPIRE) continue;
+            if (!pending.add(url)) continue;
+            queued++;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results.put(url, probeNow(url));
+                    } finally {
+                        pending.remove(url);
+                    }
+                }
+            });
+        }
+        return queued;
+    }
+
+    public Health getHealth(String url) {
+        return results.get(url);
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    private static boolean isProbeable(String url) {
+        return url.startsWith("http://") || url.startsWith("https://");
+    }
+
+    /**
+     * 立即检测一个地址
+     * @return 检测结果，不是http(s)地址时返回null（状态未知）
+     */
+    public Health probeNow(String url) {
+        if (!isProbeable(url)) return null;
+        long start = SystemClock.uptimeMillis();
+        try {
+            int status = request(url, "HEAD");
+            // 很多直播服务器不支持HEAD
+            if (status == HttpURLConnection.HTTP_BAD_METHOD || status == HttpURLConnection.HTTP_NOT_IMPLEMENTED
+                    || status == HttpURLConnection.HTTP_FORBIDDEN || status == HttpURLConnection.HTTP_BAD_REQUEST) {
+                start = SystemClock.uptimeMillis();
+                status = request(url, "GET");
+            }
+            long latency = SystemClock.uptimeMillis() - start;
+            return new Health(status >= 200 && status < 400, status, latency, null);
+        } catch (IOException e) {
+            Log.d(IMEService.TAG, String.format("直播源[%s]检测失败：%s", url, e.getMessage()));
+            return new Health(false, -1, SystemClock.uptimeMillis() - start, String.valueOf(e.getMessage()));
+        }
+    }
+
+    private int request(String url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setInstanceFollowRedirects(true);
+            connection.setRequestMethod(method);
+            connection.setRequestProperty("User-Agent", "TVRemoteIME");
+            if ("GET".equals(method)) {
+                connection.setRequestProperty("Range", "bytes=0-" + (PROBE_READ_BYTES - 1));
+            }
+            int status = connection.getResponseCode();
+            if ("GET".equals(method) && status >= 200 && status < 300) {
+                // 能读到数据才算可用
+                try (InputStream in = connection.getInputStream()) {
+                    byte[] buffer = new byte[PROBE_READ_BYTES];
+                    if (in.read(buffer) < 0) throw new IOException("empty response");
+                }
+            }
+            return status;
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
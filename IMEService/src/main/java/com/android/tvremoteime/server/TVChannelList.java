@@ -0,0 +1,443 @@
+package com.android.tvremoteime.server;
+
+import android.util.Log;
+
+import com.android.tvremoteime.IMEService;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 电视直播源列表
+ * tv.txt 解析后保存在内存中，按编号、名称和分组建立索引，增删改只更新受影响的频道，
+ * 修改后写入临时文件再改名替换 tv.txt；文件在外部被修改时自动重新加载
+ *
+ * tv.txt 格式:
+ * #group=分组名     - 之后的频道属于该分组（网页端会忽略#开头的行）
+ * [频道名]
+ * 线路名=播放地址
+ *
+ * 也可以导入M3U格式（#EXTM3U），同一分组内同名的频道合并为多条线路
+ */
+public class TVChannelList {
+    private static final String GROUP_PREFIX = "#group=";
+
+    private static TVChannelList instance;
+
+    public static synchronized TVChannelList getInstance() {
+        if (instance == null) {
+            instance = new TVChannelList(new File(RemoteServerFileManager.baseDir, "tv.txt"));
+        }
+        return instance;
+    }
+
+    /**
+     * 一条播放线路
+     */
+    public static class Source {
+        final String name;
+        final String url;
+
+        Source(String name, String url) {
+            this.name = name;
+            this.url = url;
+        }
+    }
+
+    /**
+     * 一个频道
+     */
+    public static class Channel {
+        int id;
+        String group;
+        String name;
+        List<Source> sources;
+
+        Channel(String group, String name, List<Source> sources) {
+            this.group = group;
+            this.name = name;
+            this.sources = sources;
+        }
+
+        JSONObject toJSONObject(StreamProber prober) throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("id", id);
+            obj.put("group", group);
+            obj.put("name", name);
+            JSONArray items = new JSONArray();
+            for (Source source : sources) {
+                JSONObject item = new JSONObject();
+                item.put("name", source.name);
+                item.put("url", source.url);
+                StreamProber.Health health = prober == null ? null : prober.getHealth(source.url);
+                if (health != null) item.put("health", health.toJSONObject());
+                items.put(item);
+            }
+            obj.put("sources", items);
+            return obj;
+        }
+    }
+
+    private final File file;
+    private final List<Channel> channels = new ArrayList<>();
+    private final Map<Integer, Channel> byId = new HashMap<>();
+    // 分组名+频道名（小写）
+    private final Map<String, Channel> byName = new HashMap<>();
+    private final LinkedHashMap<String, List<Channel>> byGroup = new LinkedHashMap<>();
+    private int nextId = 1;
+    private long loadedMtime = -1;
+    private String text;
+
+    TVChannelList(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 文件不存在或在外部被修改时重新加载
+     */
+    private void ensureLoaded() {
+        long mtime = file.lastModified();
+        if (mtime == loadedMtime) return;
+        loadedMtime = mtime;
+        clear();
+        if (!file.isFile()) return;
+        try {
+            String raw = readText(file);
+            for (Channel channel : parse(raw)) {
+                put(channel);
+            }
+            // 返回文件原文，直到列表被逐项修改
+            text = raw;
+        } catch (IOException e) {
+            Log.e(IMEService.TAG, "读取直播源出错", e);
+        }
+    }
+
+    private void clear() {
+        channels.clear();
+        byId.clear();
+        byName.clear();
+        byGroup.clear();
+        text = null;
+    }
+
+    private static String nameKey(String group, String name) {
+        return group.toLowerCase(Locale.ROOT) + "\n" + name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * 加入频道，同一分组内已有同名频道时合并线路
+     * @return 新增或合并后的频道
+     */
+    private Channel put(Channel channel) {
+        Channel existing = byName.get(nameKey(channel.group, channel.name));
+        if (existing != null) {
+            for (Source source : channel.sources) {
+                if (!containsUrl(existing, source.url)) existing.sources.add(source);
+            }
+            return existing;
+        }
+        channel.id = nextId++;
+        channels.add(channel);
+        index(channel);
+        return channel;
+    }
+
+    private void index(Channel channel) {
+        byId.put(channel.id, channel);
+        byName.put(nameKey(channel.group, channel.name), channel);
+        List<Channel> list = byGroup.get(channel.group);
+        if (list == null) {
+            list = new ArrayList<>();
+            byGroup.put(channel.group, list);
+        }
+        list.add(channel);
+    }
+
+    private void unindex(Channel channel) {
+        byId.remove(channel.id);
+        byName.remove(nameKey(channel.group, channel.name));
+        List<Channel> list = byGroup.get(channel.group);
+        if (list != null) {
+            list.remove(channel);
+            if (list.isEmpty()) byGroup.remove(channel.group);
+        }
+    }
+
+    private static boolean containsUrl(Channel channel, String url) {
+        for (Source source : channel.sources) {
+            if (source.url.equals(url)) return true;
+        }
+        return false;
+    }
+
+    public synchronized String getText() {
+        ensureLoaded();
+        if (text == null) text = format(channels);
+        return text;
+    }
+
+    public synchronized JSONArray getGroups() throws JSONException {
+        ensureLoaded();
+        JSONArray groups = new JSONArray();
+        for (Map.Entry<String, List<Channel>> entry : byGroup.entrySet()) {
+            groups.put(new JSONObject().put("name", entry.getKey()).put("count", entry.getValue().size()));
+        }
+        return groups;
+    }
+
+    /**
+     * @param group 只返回该分组的频道，为null时返回全部
+     */
+    public synchronized JSONArray getChannels(String group, StreamProber prober) throws JSONException {
+        ensureLoaded();
+        JSONArray items = new JSONArray();
+        List<Channel> list = group == null ? channels : byGroup.get(group);
+        if (list != null) {
+            for (Channel channel : list) items.put(channel.toJSONObject(prober));
+        }
+        return items;
+    }
+
+    /**
+     * @param id 频道编号，小于等于0时返回全部
+     */
+    public synchronized List<String> getUrls(int id) {
+        ensureLoaded();
+        List<String> urls = new ArrayList<>();
+        for (Channel channel : channels) {
+            if (id > 0 && channel.id != id) continue;
+            for (Source source : channel.sources) urls.add(source.url);
+        }
+        return urls;
+    }
+
+    /**
+     * 替换整个列表，文本原样保存（包括注释和无法识别的行），再从中重建频道索引
+     */
+    public synchronized void replace(String text) throws IOException {
+        write(text);
+        clear();
+        for (Channel channel : parse(text)) put(channel);
+        this.text = text;
+    }
+
+    /**
+     * 导入频道（tv.txt或M3U格式），与已有频道合并
+     * @return 导入后新增的频道数
+     */
+    public synchronized int importText(String text) throws IOException {
+        ensureLoaded();
+        int count = channels.size();
+        for (Channel channel : parse(text)) put(channel);
+        save();
+        return channels.size() - count;
+    }
+
+    public synchronized JSONObject add(String group, String name, String sources) throws IOException, JSONException {
+        ensureLoaded();
+        Channel channel = put(new Channel(cleanName(group), cleanName(name), parseSources(sources)));
+        save();
+        return channel.toJSONObject(null);
+    }
+
+    /**
+     * 修改频道，参数为null的字段保持不变
+     * @return 修改后的频道，频道不存在时返回null
+     */
+    public synchronized JSONObject update(int id, String group, String name, String sources) throws IOException, JSONException {
+        ensureLoaded();
+        Channel channel = byId.get(id);
+        if (channel == null) return null;
+        String newGroup = group == null ? channel.group : cleanName(group);
+        String newName = name == null ? channel.name : cleanName(name);
+        Channel other = byName.get(nameKey(newGroup, newName));
+        if (other != null && other != channel) throw new IOException("channel exists");
+        unindex(channel);
+        channel.group = newGroup;
+        channel.name = newName;
+        if (sources != null) channel.sources = parseSources(sources);
+        index(channel);
+        save();
+        return channel.toJSONObject(null);
+    }
+
+    public synchronized boolean remove(int id) throws IOException {
+        ensureLoaded();
+        Channel channel = byId.get(id);
+        if (channel == null) return false;
+        unindex(channel);
+        channels.remove(channel);
+        save();
+        return true;
+    }
+
+    private void save() throws IOException {
+        text = format(channels);
+        write(text);
+    }
+
+    private void write(String text) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8")) {
+            out.write(text);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("无法保存直播源");
+        }
+        loadedMtime = file.lastModified();
+    }
+
+    private static String cleanName(String name) {
+        return name == null ? "" : name.replace('\r', ' ').replace('\n', ' ').replace('[', '(').replace(']', ')').trim();
+    }
+
+    /**
+     * 解析线路列表，每行为“线路名=地址”或只有地址
+     */
+    private static List<Source> parseSources(String text) {
+        List<Source> sources = new ArrayList<>();
+        if (text == null) return sources;
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            int p = line.indexOf('=');
+            // 地址中的=属于参数，不是名称分隔符
+            if (p > 0 && !line.substring(0, p).contains("://")) {
+                String url = line.substring(p + 1).trim();
+                if (!url.isEmpty()) sources.add(new Source(line.substring(0, p).trim(), url));
+            } else {
+                sources.add(new Source("线路" + (sources.size() + 1), line));
+            }
+        }
+        return sources;
+    }
+
+    static List<Channel> parse(String text) {
+        if (text.startsWith("\uFEFF")) text = text.substring(1);
+        return text.trim().startsWith("#EXTM3U") ? parseM3U(text) : parseText(text);
+    }
+
+    private static List<Channel> parseText(String text) {
+        List<Channel> result = new ArrayList<>();
+        String group = "";
+        Channel current = null;
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.startsWith(GROUP_PREFIX)) {
+                group = cleanName(line.substring(GROUP_PREFIX.length()));
+            } else if (line.length() > 2 && line.startsWith("[") && line.endsWith("]")) {
+                current = new Channel(group, line.substring(1, line.length() - 1).trim(), new ArrayList<Source>());
+                result.add(current);
+            } else if (current != null && line.length() > 1 && !line.startsWith("#")) {
+                int p = line.indexOf('=');
+                if (p > 0) {
+                    String name = line.substring(0, p).trim();
+                    String url = line.substring(p + 1).trim();
+                    if (!name.isEmpty() && !url.isEmpty()) current.sources.add(new Source(name, url));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<Channel> parseM3U(String text) {
+        List<Channel> result = new ArrayList<>();
+        Map<String, Channel> merged = new HashMap<>();
+        String name = null;
+        String group = "";
+        for (String line : text.split("\n")) {
+            line = line.trim();
+            if (line.startsWith("#EXTINF:")) {
+                name = cleanName(extinfName(line));
+                group = cleanName(extinfAttribute(line, "group-title"));
+                if (name.isEmpty()) name = cleanName(extinfAttribute(line, "tvg-name"));
+            } else if (!line.isEmpty() && !line.startsWith("#") && name != null) {
+                if (!name.isEmpty()) {
+                    String key = nameKey(group, name);
+                    Channel channel = merged.get(key);
+                    if (channel == null) {
+                        channel = new Channel(group, name, new ArrayList<Source>());
+                        merged.put(key, channel);
+                        result.add(channel);
+                    }
+                    if (!containsUrl(channel, line)) {
+                        channel.sources.add(new Source("线路" + (channel.sources.size() + 1), line));
+                    }
+                }
+                name = null;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * #EXTINF 行中最后一个不在引号内的逗号之后是频道名
+     */
+    private static String extinfName(String line) {
+        boolean quoted = false;
+        int comma = -1;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') quoted = !quoted;
+            else if (c == ',' && !quoted) comma = i;
+        }
+        return comma < 0 ? "" : line.substring(comma + 1);
+    }
+
+    private static String extinfAttribute(String line, String key) {
+        int p = line.indexOf(key + "=\"");
+        if (p < 0) return "";
+        int start = p + key.length() + 2;
+        int end = line.indexOf('"', start);
+        return end < 0 ? "" : line.substring(start, end);
+    }
+
+    static String format(List<Channel> channels) {
+        StringBuilder sb = new StringBuilder();
+        String group = "";
+        for (Channel channel : channels) {
+            if (!channel.group.equals(group)) {
+                group = channel.group;
+                sb.append(GROUP_PREFIX).append(group).append('\n');
+            }
+            sb.append('[').append(channel.name).append("]\n");
+            for (Source source : channel.sources) {
+                sb.append(source.name.replace('=', '-')).append('=').append(source.url).append('\n');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String readText(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int n = in.read(data, offset, data.length - offset);
+                if (n < 0) break;
+                offset += n;
+            }
+        }
+        return new String(data, "UTF-8");
+    }
+}
@@ -1,23 +1,36 @@
 package com.android.tvremoteime.server;
 
 import android.content.Context;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.tvremoteime.IMEService;
 import com.android.tvremoteime.R;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
 import java.util.Map;
 
 import fi.iki.elonen.NanoHTTPD;
 
 /**
  * Created by kingt on 2018/3/3.
+ *
+ * 端点:
+ * - GET  /tv.txt                - 直播源文本
+ * - POST /tv.txt                - 替换全部直播源，文本原样保存 (参数: text - tv.txt或M3U格式)
+ * - GET  /tv/groups             - 分组列表
+ * - GET  /tv/channels           - 频道列表，包含各线路的检测结果 (参数: group - 分组（可选）)
+ * - POST /tv/channel/add        - 添加频道 (参数: group, name, sources - 每行一条“线路名=地址”或地址)
+ * - POST /tv/channel/edit       - 修改频道 (参数: id, group, name, sources，未传的字段不变)
+ * - POST /tv/channel/delete     - 删除频道 (参数: id)
+ * - POST /tv/import             - 导入并合并频道 (参数: text - tv.txt或M3U格式)
+ * - POST /tv/probe              - 在后台检测直播源 (参数: id - 频道编号（可选，默认全部）, force - 是否忽略缓存的结果)
  */
 
 public class TVRequestProcesser implements RequestProcesser {
@@ -47,31 +60,89 @@ public class TVRequestProcesser implements RequestProcesser {
 
     @Override
     public boolean isRequest(NanoHTTPD.IHTTPSession session, String fileName) {
-        return "/tv.txt".equalsIgnoreCase(fileName);
+        if("/tv.txt".equalsIgnoreCase(fileName)) return true;
+        if(session.getMethod() == NanoHTTPD.Method.GET){
+            return "/tv/groups".equals(fileName) || "/tv/channels".equals(fileName);
+        }else if(session.getMethod() == NanoHTTPD.Method.POST){
+            return fileName.startsWith("/tv/channel/") || "/tv/import".equals(fileName) || "/tv/probe".equals(fileName);
+        }
+        return false;
     }
 
     @Override
     public NanoHTTPD.Response doResponse(NanoHTTPD.IHTTPSession session, String fileName, Map<String, String> params, Map<String, String> files) {
-        //if(!tvFile.exists()) return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.OK, "");
-        if(session.getMethod() == NanoHTTPD.Method.POST){
-            //edit
-            String text = params.get("text");
-            try {
-                OutputStreamWriter out = new OutputStreamWriter(new FileOutputStream(tvFile), "utf-8");
-                out.write(text == null ? "" : text);
-                out.close();
-                return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.OK, "ok");
-            }catch (IOException e) {
-                Log.e(IMEService.TAG, "POST /tv.txt", e);
+        TVChannelList channelList = TVChannelList.getInstance();
+        if("/tv.txt".equalsIgnoreCase(fileName)){
+            if(session.getMethod() == NanoHTTPD.Method.POST){
+                //edit
+                String text = params.get("text");
+                try {
+                    channelList.replace(text == null ? "" : text);
+                    return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.OK, "ok");
+                }catch (IOException e) {
+                    Log.e(IMEService.TAG, "POST /tv.txt", e);
+                }
+                return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.OK, "fail");
+            }else{
+                if(!tvFile.exists()){
+                    try {
+                        InputStream inputStream = context.getResources().openRawResource(R.raw.tv);
+                        return RemoteServer.newFixedLengthResponse(NanoHTTPD.Response.Status.OK, "text/plain; charset=utf-8", inputStream, (long) inputStream.available());
+                    } catch (IOException ioex) {
+                        return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioex.getMessage());
+                    }
+                }
+                return RemoteServer.newFixedLengthResponse(NanoHTTPD.Response.Status.OK, "text/plain; charset=utf-8", channelList.getText());
             }
-            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.OK, "fail");
-        }else{
-            try {
-                InputStream inputStream = tvFile.exists() ? new FileInputStream(tvFile) : context.getResources().openRawResource(R.raw.tv);
-                return RemoteServer.newFixedLengthResponse(NanoHTTPD.Response.Status.OK, "text/plain; charset=utf-8", inputStream, (long) inputStream.available());
-            } catch (IOException ioex) {
-                return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioex.getMessage());
+        }
+
+        try {
+            JSONObject data = new JSONObject();
+            switch (fileName){
+                case "/tv/groups":
+                    return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, channelList.getGroups().toString());
+                case "/tv/channels":
+                    return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                            channelList.getChannels(params.get("group"), StreamProber.getInstance()).toString());
+                case "/tv/channel/add":
+                    if(TextUtils.isEmpty(params.get("name")) || TextUtils.isEmpty(params.get("sources"))){
+                        return createError("name and sources required");
+                    }
+                    data.put("channel", channelList.add(params.get("group"), params.get("name"), params.get("sources")));
+                    break;
+                case "/tv/channel/edit":
+                    JSONObject channel = channelList.update(parseId(params.get("id")), params.get("group"), params.get("name"), params.get("sources"));
+                    if(channel == null) return createError("channel not found");
+                    data.put("channel", channel);
+                    break;
+                case "/tv/channel/delete":
+                    if(!channelList.remove(parseId(params.get("id")))) return createError("channel not found");
+                    break;
+                case "/tv/import":
+                    data.put("added", channelList.importText(params.get("text") == null ? "" : params.get("text")));
+                    break;
+                case "/tv/probe":
+                    data.put("queued", StreamProber.getInstance().probe(channelList.getUrls(parseId(params.get("id"))), "true".equals(params.get("force"))));
+                    break;
+                default:
+                    return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND, "Error 404, file not found.");
             }
+            data.put("success", true);
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, data.toString());
+        }catch (IOException | NumberFormatException ex){
+            Log.e(IMEService.TAG, session.getMethod() + " " + fileName, ex);
+            return createError(String.valueOf(ex.getMessage()));
+        }catch (JSONException ex){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR,  "SERVER INTERNAL ERROR: JSONException: " + ex.getMessage());
         }
     }
+
+    private static int parseId(String value){
+        return TextUtils.isEmpty(value) ? 0 : Integer.parseInt(value);
+    }
+
+    private static NanoHTTPD.Response createError(String error){
+        return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                "{\"success\":false,\"error\":" + JSONObject.quote(error) + "}");
+    }
 }
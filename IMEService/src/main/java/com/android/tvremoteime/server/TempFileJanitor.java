@@ -0,0 +1,130 @@
+package com.android.tvremoteime.server;
+
+import android.util.Log;
+
+import com.android.tvremoteime.IMEService;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 后台删除临时文件，避免在请求线程上同步删除；启动时清理上次遗留的临时文件
+ */
+public class TempFileJanitor {
+    private static TempFileJanitor instance;
+
+    public static synchronized TempFileJanitor getInstance() {
+        if (instance == null) {
+            instance = new TempFileJanitor();
+        }
+        return instance;
+    }
+
+    private final ExecutorService executor;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong deletedFiles = new AtomicLong();
+    private final AtomicLong deletedBytes = new AtomicLong();
+    private final AtomicLong failedFiles = new AtomicLong();
+    private final AtomicLong sweptFiles = new AtomicLong();
+
+    private TempFileJanitor() {
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "TempFileJanitor");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 异步删除文件
+     */
+    public void delete(final File file) {
+        pending.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deleteNow(file);
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * 异步清理目录中遗留的临时文件
+     * @param dir 临时文件目录
+     * @param prefix 临时文件名前缀
+     * @param before 只清理在该时间之前修改的文件
+     */
+    public void sweep(final File dir, final String prefix, final long before) {
+        pending.incrementAndGet();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    File[] files = dir.listFiles();
+                    if (files == null) return;
+                    int count = 0;
+                    for (File f : files) {
+                        if (f.isFile() && f.getName().startsWith(prefix) && f.lastModified() < before) {
+                            if (deleteNow(f)) count++;
+                        }
+                    }
+                    sweptFiles.addAndGet(count);
+                    if (count > 0) {
+                        Log.i(IMEService.TAG, String.format("已清理%d个遗留的临时文件", count));
+                    }
+                } finally {
+                    pending.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private boolean deleteNow(File file) {
+        // 上传的文件可能已经被移动走了
+        if (!file.exists()) return false;
+        long size = file.length();
+        try {
+            if (file.delete()) {
+                deletedFiles.incrementAndGet();
+                deletedBytes.addAndGet(size);
+                return true;
+            }
+        } catch (SecurityException ignored) {
+        }
+        failedFiles.incrementAndGet();
+        Log.e(IMEService.TAG, String.format("无法删除临时文件[%s]", file.getAbsolutePath()));
+        return false;
+    }
+
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    public long getDeletedFiles() {
+        return deletedFiles.get();
+    }
+
+    public long getDeletedBytes() {
+        return deletedBytes.get();
+    }
+
+    public long getFailedFiles() {
+        return failedFiles.get();
+    }
+
+    public long getSweptFiles() {
+        return sweptFiles.get();
+    }
+}
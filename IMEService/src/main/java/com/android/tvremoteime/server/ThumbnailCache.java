@@ -0,0 +1,388 @@
+package com.android.tvremoteime.server;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.media.MediaMetadataRetriever;
+import android.os.Build;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.android.tvremoteime.IMEService;
+import com.android.tvremoteime.util.FileUtils;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 文件缩略图缓存
+ * 缩略图在后台线程池中生成，结果保存在磁盘缓存中（按路径、修改时间、大小和宽度区分），
+ * 前面再加一层内存LRU缓存；同一缩略图的并发请求只生成一次
+ */
+public class ThumbnailCache {
+    public static final int DEFAULT_WIDTH = 160;
+    private static final int MIN_WIDTH = 32;
+    private static final int MAX_WIDTH = 512;
+    // 宽度按此步长向上取整，提高缓存命中率
+    private static final int WIDTH_STEP = 32;
+    private static final int JPEG_QUALITY = 80;
+    private static final int MEMORY_CACHE_SIZE = 4 * 1024 * 1024;
+    private static final long DISK_CACHE_SIZE = 64L * 1024 * 1024;
+    private static final int WORKER_COUNT = 2;
+    private static final int MAX_QUEUED = 64;
+    // 生成失败的文件用空数组占位，避免重复尝试
+    private static final byte[] FAILED = new byte[0];
+
+    private static ThumbnailCache instance;
+
+    public static synchronized ThumbnailCache getInstance() {
+        if (instance == null) {
+            instance = new ThumbnailCache();
+        }
+        return instance;
+    }
+
+    private final LruCache<String, byte[]> memoryCache = new LruCache<String, byte[]>(MEMORY_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return Math.max(1, value.length);
+        }
+    };
+    private final ConcurrentHashMap<String, Future<byte[]>> pending = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong diskCacheBytes = new AtomicLong(-1);
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong generated = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong joined = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private ThumbnailCache() {
+        executor = new ThreadPoolExecutor(WORKER_COUNT, WORKER_COUNT, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Thumbnail-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 是否可以为该文件生成缩略图
+     */
+    public static boolean isSupported(String fileName) {
+        return FileUtils.isImageFile(fileName) || FileUtils.isVideoFile(fileName);
+    }
+
+    /**
+     * 将请求的宽度规整到支持的范围和步长
+     */
+    public static int normalizeWidth(int width) {
+        width = Math.max(MIN_WIDTH, Math.min(MAX_WIDTH, width));
+        return (width + WIDTH_STEP - 1) / WIDTH_STEP * WIDTH_STEP;
+    }
+
+    /**
+     * 缓存键，文件被修改后键随之变化
+     */
+    public static String getKey(File file, int width) {
+        String source = file.getAbsolutePath() + "|" + file.lastModified() + "|" + file.length() + "|" + width;
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] digest = md.digest(source.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            return Integer.toHexString(source.hashCode()) + "_" + width;
+        }
+    }
+
+    /**
+     * 获取缩略图（JPEG数据）
+     * @param file 源文件
+     * @param width 已规整的宽度
+     * @param timeoutMillis 等待生成的最长时间
+     * @return 缩略图数据，无法生成、生成超时或队列已满时返回null
+     */
+    public byte[] get(final File file, final int width, long timeoutMillis) {
+        final String key = getKey(file, width);
+        byte[] data = memoryCache.get(key);
+        if (data != null) {
+            memoryHits.incrementAndGet();
+            return data == FAILED ? null : data;
+        }
+
+        FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                try {
+                    return load(key, file, width);
+                } finally {
+                    pending.remove(key);
+                }
+            }
+        });
+        Future<byte[]> future = pending.putIfAbsent(key, task);
+        if (future == null) {
+            future = task;
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException ex) {
+                pending.remove(key);
+                rejected.incrementAndGet();
+                return null;
+            }
+        } else {
+            joined.incrementAndGet();
+        }
+
+        try {
+            data = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return data == FAILED ? null : data;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // 超时的任务继续在后台完成，下次请求可直接命中缓存
+        }
+        return null;
+    }
+
+    private byte[] load(String key, File file, int width) {
+        byte[] data = memoryCache.get(key);
+        if (data != null) return data;
+
+        File cacheFile = new File(RemoteServerFileManager.getThumbnailDir(), key + ".jpg");
+        data = readFile(cacheFile);
+        if (data != null) {
+            diskHits.incrementAndGet();
+            memoryCache.put(key, data);
+            return data;
+        }
+
+        long start = System.currentTimeMillis();
+        Bitmap bitmap = null;
+        try {
+            if (FileUtils.isImageFile(file.getName())) {
+                bitmap = decodeImage(file, width);
+            } else {
+                bitmap = decodeVideoFrame(file, width);
+            }
+        } catch (Exception | OutOfMemoryError ex) {
+            Log.e(IMEService.TAG, String.format("生成缩略图[%s]出错", file.getAbsolutePath()), ex);
+        }
+        if (bitmap == null) {
+            failed.incrementAndGet();
+            memoryCache.put(key, FAILED);
+            return FAILED;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 * 1024);
+        bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        bitmap.recycle();
+        data = out.toByteArray();
+        generated.incrementAndGet();
+        memoryCache.put(key, data);
+        writeFile(cacheFile, data);
+        Log.d(IMEService.TAG, String.format("已生成缩略图[%s]，%d字节，耗时%dms",
+                file.getName(), data.length, System.currentTimeMillis() - start));
+        return data;
+    }
+
+    private static Bitmap decodeImage(File file, int width) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+        // 先按2的幂次降采样解码，避免把整张大图读入内存
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= width) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        if (bitmap == null) return null;
+
+        int rotation = 0;
+        try {
+            switch (new ExifInterface(file.getAbsolutePath()).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    rotation = 90;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    rotation = 180;
+                    break;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    rotation = 270;
+                    break;
+            }
+        } catch (IOException ignored) {
+        }
+        return scale(bitmap, width, rotation);
+    }
+
+    private static Bitmap decodeVideoFrame(File file, int width) {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try {
+            retriever.setDataSource(file.getAbsolutePath());
+            Bitmap bitmap;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+                bitmap = retriever.getScaledFrameAtTime(-1, MediaMetadataRetriever.OPTION_CLOSEST_SYNC, width, width);
+            } else {
+                bitmap = retriever.getFrameAtTime();
+            }
+            return bitmap == null ? null : scale(bitmap, width, 0);
+        } catch (RuntimeException ex) {
+            return null;
+        } finally {
+            try {
+                retriever.release();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    private static Bitmap scale(Bitmap bitmap, int width, int rotation) {
+        int srcWidth = rotation % 180 == 0 ? bitmap.getWidth() : bitmap.getHeight();
+        if (srcWidth <= width && rotation == 0) return bitmap;
+
+        float ratio = Math.min(1f, (float) width / srcWidth);
+        Matrix matrix = new Matrix();
+        matrix.postScale(ratio, ratio);
+        if (rotation != 0) matrix.postRotate(rotation);
+        Bitmap scaled = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        if (scaled != bitmap) bitmap.recycle();
+        return scaled;
+    }
+
+    private static byte[] readFile(File file) {
+        if (!file.isFile()) return null;
+        byte[] data = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int n = in.read(data, offset, data.length - offset);
+                if (n < 0) return null;
+                offset += n;
+            }
+            // 更新访问时间，磁盘缓存按此淘汰
+            file.setLastModified(System.currentTimeMillis());
+            return data;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private void writeFile(File file, byte[] data) {
+        File dir = file.getParentFile();
+        if (!dir.exists() && !dir.mkdirs()) return;
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data);
+        } catch (IOException e) {
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            return;
+        }
+        if (diskCacheBytes.get() < 0) {
+            diskCacheBytes.set(getDirSize(dir));
+        } else if (diskCacheBytes.addAndGet(data.length) > DISK_CACHE_SIZE) {
+            trimDiskCache(dir);
+        }
+    }
+
+    private static long getDirSize(File dir) {
+        long size = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) size += f.length();
+        }
+        return size;
+    }
+
+    /**
+     * 磁盘缓存超出上限时删除最久未使用的文件，直到降到上限的3/4
+     */
+    private void trimDiskCache(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File f1, File f2) {
+                long t1 = f1.lastModified(), t2 = f2.lastModified();
+                return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+            }
+        });
+        long size = getDirSize(dir);
+        int removed = 0;
+        for (File f : files) {
+            if (size <= DISK_CACHE_SIZE * 3 / 4) break;
+            long length = f.length();
+            if (f.delete()) {
+                size -= length;
+                removed++;
+            }
+        }
+        diskCacheBytes.set(size);
+        Log.i(IMEService.TAG, String.format("已清理%d个缩略图缓存文件", removed));
+    }
+
+    public JSONObject getStats() {
+        JSONObject data = new JSONObject();
+        try {
+            data.put("memoryHits", memoryHits.get());
+            data.put("diskHits", diskHits.get());
+            data.put("generated", generated.get());
+            data.put("failed", failed.get());
+            data.put("joined", joined.get());
+            data.put("rejected", rejected.get());
+            data.put("memoryBytes", memoryCache.size());
+            data.put("diskBytes", Math.max(0, diskCacheBytes.get()));
+            data.put("queued", executor.getQueue().size());
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return data;
+    }
+}
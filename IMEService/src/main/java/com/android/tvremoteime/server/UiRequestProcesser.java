@@ -0,0 +1,82 @@
+package com.android.tvremoteime.server;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.tvremoteime.mouse.MouseAccessibilityService;
+import com.android.tvremoteime.mouse.UiTreeModel;
+
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * 处理界面元素相关的 HTTP 请求，用于直接按元素遥控而不是逐像素移动光标
+ *
+ * 端点:
+ * - GET  /ui/snapshot - 当前窗口可点击/可获得焦点元素的快照
+ * - GET  /ui/delta    - 某版本之后的增量变化 (参数: since - 上次获取的版本号)
+ * - POST /ui/click    - 点击元素 (参数: id - 元素ID)
+ */
+public class UiRequestProcesser implements RequestProcesser {
+    private static final String TAG = "UiRequestProcesser";
+    private Context context;
+
+    public UiRequestProcesser(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public boolean isRequest(NanoHTTPD.IHTTPSession session, String fileName) {
+        if (session.getMethod() == NanoHTTPD.Method.GET) {
+            switch (fileName) {
+                case "/ui/snapshot":
+                case "/ui/delta":
+                    return true;
+            }
+        } else if (session.getMethod() == NanoHTTPD.Method.POST) {
+            return "/ui/click".equals(fileName);
+        }
+        return false;
+    }
+
+    @Override
+    public NanoHTTPD.Response doResponse(NanoHTTPD.IHTTPSession session, String fileName,
+                                          Map<String, String> params, Map<String, String> files) {
+        MouseAccessibilityService service = MouseAccessibilityService.getInstance();
+        UiTreeModel model = service == null ? null : service.getUiTreeModel();
+        if (model == null) {
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                    "{\"status\":\"error\",\"message\":\"请先在系统设置中启用辅助功能服务\",\"code\":\"accessibility_not_enabled\"}");
+        }
+
+        try {
+            switch (fileName) {
+                case "/ui/snapshot":
+                    return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, model.getSnapshot());
+                case "/ui/delta":
+                    long since = Long.parseLong(params.getOrDefault("since", "0"));
+                    return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK, model.getDelta(since));
+                case "/ui/click":
+                    int id = Integer.parseInt(params.getOrDefault("id", "0"));
+                    if (service.clickUiNode(id)) {
+                        return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                                "{\"status\":\"ok\"}");
+                    } else {
+                        return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                                "{\"status\":\"error\",\"message\":\"node not found\"}");
+                    }
+                default:
+                    return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND,
+                            "Error 404, file not found.");
+            }
+        } catch (NumberFormatException e) {
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,
+                    "{\"status\":\"error\",\"message\":\"invalid params\"}");
+        } catch (Exception e) {
+            Log.e(TAG, "ui request failed: " + fileName, e);
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR,
+                    "SERVER INTERNAL ERROR: " + e.getMessage());
+        }
+    }
+}
@@ -2,11 +2,16 @@ package com.android.tvremoteime.server;
 
 import android.content.Context;
 import android.text.TextUtils;
+import android.util.Log;
 
+import com.android.tvremoteime.ApkInstallHelper;
 import com.android.tvremoteime.AppPackagesHelper;
+import com.android.tvremoteime.IMEService;
 import com.android.tvremoteime.VideoPlayHelper;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.Map;
 
 import fi.iki.elonen.NanoHTTPD;
@@ -33,12 +38,13 @@ public class UploadRequestProcesser implements RequestProcesser {
         String uploadFileName  = params.get("file");
         Boolean autoInstall = "true".equalsIgnoreCase(params.get("autoInstall"));
         String localFilename = files.get("file");
+        String installResult = null;
         if(!TextUtils.isEmpty(uploadFileName)) {
             if (!TextUtils.isEmpty(localFilename)) {
                 if(autoInstall) {
                     if (localFilename.endsWith(".apk")) {
                         //执行安装
-                        AppPackagesHelper.installPackage(new File(localFilename), this.context);
+                        installResult = installPackage(new File(localFilename));
                     }
                     else if (FileUtils.isMediaFile(localFilename)){
                         //执行播放
@@ -50,7 +56,24 @@ public class UploadRequestProcesser implements RequestProcesser {
         if(TextUtils.isEmpty(localFilename)){
             return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,  "{\"success\":false}");
         }else{
-            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,  String.format("{\"success\":true, \"filePath\":\"%s\"}", localFilename.replaceAll("\\\\", "\\\\")));
+            return RemoteServer.createJSONResponse(NanoHTTPD.Response.Status.OK,  String.format("{\"success\":true, \"filePath\":\"%s\"%s}", localFilename.replaceAll("\\\\", "\\\\"),
+                    installResult == null ? "" : ", \"install\":" + installResult));
+        }
+    }
+
+    private String installPackage(File apkFile){
+        try {
+            FileInputStream ins = new FileInputStream(apkFile);
+            try {
+                return ApkInstallHelper.install(this.context, ins, apkFile.length(), apkFile.getName(), 0).toJSONObject().toString();
+            } finally {
+                ins.close();
+            }
+        }catch (IOException ex){
+            Log.e(IMEService.TAG, "POST /upload install", ex);
+            //回退到系统安装器
+            AppPackagesHelper.installPackageByIntent(apkFile, this.context);
+            return null;
         }
     }
 }
@@ -0,0 +1,604 @@
+package com.android.tvremoteime.server;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.tvremoteime.IMEService;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * 网络视频的本地分段缓存
+ * 远程文件按固定大小分段，用Range请求从源站下载，每段保存为缓存目录中的一个文件；
+ * 播放器读到某一段时同步下载该段，同时在后台用一个连接预读后面的几段。
+ * 同一段不会被重复下载，缓存总大小超过上限时按最近使用顺序删除分段
+ */
+public class VideoCache {
+    static final int SEGMENT_SIZE = 512 * 1024;
+    private static final int READ_AHEAD_SEGMENTS = 8;
+    private static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+    private static final int DEFAULT_TIMEOUT = 15000;
+    private static final String META_FILE = "meta.json";
+    private static final Pattern KEY_PATTERN = Pattern.compile("[0-9a-f]{16}");
+
+    // 源站不支持Range或长度未知（如直播流），不能缓存
+    static final long LENGTH_UNCACHEABLE = -2;
+    static final long LENGTH_UNKNOWN = -1;
+
+    private static VideoCache instance;
+
+    public static synchronized VideoCache getInstance() {
+        if (instance == null) {
+            instance = new VideoCache(RemoteServerFileManager.getVideoCacheDir(), DEFAULT_MAX_BYTES, DEFAULT_TIMEOUT);
+        }
+        return instance;
+    }
+
+    /**
+     * 一个远程文件
+     */
+    static class Resource {
+        final String key;
+        final String url;
+        final File dir;
+        volatile long length = LENGTH_UNKNOWN;
+        volatile String contentType;
+
+        Resource(String key, String url, File dir) {
+            this.key = key;
+            this.url = url;
+            this.dir = dir;
+        }
+
+        File getSegmentFile(int index) {
+            return new File(dir, String.valueOf(index));
+        }
+
+        int getSegmentCount() {
+            return (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        }
+    }
+
+    /**
+     * 正在下载的分段，其他需要该段的线程等待下载完成
+     */
+    private static class Fetch {
+        final CountDownLatch done = new CountDownLatch(1);
+    }
+
+    private final File cacheDir;
+    private final long maxBytes;
+    private final int readAheadSegments;
+    private final int timeout;
+    private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+    private final Map<String, Fetch> fetching = new ConcurrentHashMap<>();
+    // 所有分段按最近使用排序，用于淘汰
+    private final LinkedHashMap<String, Long> segments = new LinkedHashMap<>(256, 0.75f, true);
+    private long totalBytes = 0;
+    private boolean scanned = false;
+    private final ExecutorService readAhead;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hitBytes = new AtomicLong();
+    private final AtomicLong missBytes = new AtomicLong();
+    private final AtomicLong upstreamBytes = new AtomicLong();
+    private final AtomicLong upstreamMillis = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+
+    /**
+     * @param cacheDir 缓存目录
+     * @param maxBytes 缓存大小上限
+     * @param timeout 连接和读取源站的超时（毫秒）
+     */
+    VideoCache(File cacheDir, long maxBytes, int timeout) {
+        this.cacheDir = cacheDir;
+        this.maxBytes = maxBytes;
+        // 预读的数据不能把正在播放的分段挤出缓存
+        this.readAheadSegments = (int) Math.max(1, Math.min(READ_AHEAD_SEGMENTS, maxBytes / SEGMENT_SIZE / 4));
+        this.timeout = timeout;
+        this.readAhead = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "VideoReadAhead-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * 登记远程地址
+     * @return 缓存标识，用于构造代理地址
+     */
+    public String register(String url) throws IOException {
+        String key = md5(url).substring(0, 16);
+        Resource resource = resources.get(key);
+        if (resource == null) {
+            resource = new Resource(key, url, new File(cacheDir, key));
+            if (!resource.dir.isDirectory() && !resource.dir.mkdirs()) {
+                throw new IOException("无法创建目录：" + resource.dir.getPath());
+            }
+            loadMeta(resource);
+            saveMeta(resource);
+            resources.put(key, resource);
+        }
+        return key;
+    }
+
+    /**
+     * @return 缓存标识对应的远程文件，不存在或标识不合法时返回null
+     */
+    Resource getResource(String key) {
+        // 标识来自请求路径，只接受 register 生成的16位小写十六进制，防止 .. 等跳出缓存目录
+        if (key == null || !KEY_PATTERN.matcher(key).matches()) return null;
+        Resource resource = resources.get(key);
+        if (resource != null) return resource;
+        File meta = new File(new File(cacheDir, key), META_FILE);
+        if (!meta.isFile()) return null;
+        try {
+            JSONObject obj = new JSONObject(readText(meta));
+            resource = new Resource(key, obj.getString("url"), meta.getParentFile());
+            loadMeta(resource);
+            resources.put(key, resource);
+            return resource;
+        } catch (IOException | JSONException e) {
+            Log.e(IMEService.TAG, "读取视频缓存信息出错", e);
+            return null;
+        }
+    }
+
+    /**
+     * 取得文件长度，未知时下载包含 position 的分段
+     */
+    void ensureLength(Resource resource, long position) throws IOException {
+        if (resource.length != LENGTH_UNKNOWN) return;
+        ensureSegment(resource, (int) (position / SEGMENT_SIZE));
+    }
+
+    /**
+     * 打开 [start, end] 范围的数据，优先从缓存读取
+     */
+    InputStream open(Resource resource, long start, long end) {
+        requests.incrementAndGet();
+        return new SegmentInputStream(resource, start, end);
+    }
+
+    /**
+     * 确保分段已缓存
+     * @return 分段在调用前已缓存时返回true
+     */
+    private boolean ensureSegment(Resource resource, int index) throws IOException {
+        String id = resource.key + "/" + index;
+        boolean waited = false;
+        while (true) {
+            if (resource.length >= 0 && index >= resource.getSegmentCount()) {
+                throw new IOException("segment out of range");
+            }
+            if (resource.length >= 0 && resource.getSegmentFile(index).isFile()) {
+                touch(resource.getSegmentFile(index));
+                return !waited;
+            }
+            Fetch fetch = fetching.get(id);
+            if (fetch != null) {
+                // 等待其他线程下载完成，下载失败时由本线程重试
+                try {
+                    fetch.done.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                waited = true;
+                continue;
+            }
+            List<Integer> claimed = claimRun(resource, index, 1);
+            if (claimed.isEmpty()) continue;
+            fetchRun(resource, index, claimed);
+            return false;
+        }
+    }
+
+    /**
+     * 在后台预读 from 开始的若干分段
+     */
+    private void scheduleReadAhead(final Resource resource, final int from) {
+        if (resource.length < 0 || from >= resource.getSegmentCount()) return;
+        final List<Integer> claimed = claimRun(resource, from, readAheadSegments);
+        if (claimed.isEmpty()) return;
+        readAhead.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    fetchRun(resource, from, claimed);
+                } catch (IOException e) {
+                    Log.d(IMEService.TAG, String.format("预读视频[%s]第%d段出错：%s", resource.key, from, e.getMessage()));
+                }
+            }
+        });
+    }
+
+    /**
+     * 占用从 from 开始连续的、未缓存且没有在下载的分段
+     */
+    private List<Integer> claimRun(Resource resource, int from, int max) {
+        List<Integer> claimed = new ArrayList<>();
+        int count = resource.length >= 0 ? resource.getSegmentCount() : from + 1;
+        for (int index = from; index < count && claimed.size() < max; index++) {
+            if (resource.length >= 0 && resource.getSegmentFile(index).isFile()) break;
+            if (fetching.putIfAbsent(resource.key + "/" + index, new Fetch()) != null) break;
+            claimed.add(index);
+        }
+        return claimed;
+    }
+
+    private void release(Resource resource, int index) {
+        Fetch fetch = fetching.remove(resource.key + "/" + index);
+        if (fetch != null) fetch.done.countDown();
+    }
+
+    /**
+     * 用一个Range请求下载已占用的连续分段，完成一段就保存一段
+     */
+    private void fetchRun(Resource resource, int from, List<Integer> claimed) throws IOException {
+        if (claimed.isEmpty()) return;
+        int next = 0;
+        HttpURLConnection connection = null;
+        long start = SystemClock.uptimeMillis();
+        long received = 0;
+        try {
+            long offset = (long) from * SEGMENT_SIZE;
+            long last = offset + (long) claimed.size() * SEGMENT_SIZE - 1;
+            if (resource.length >= 0) last = Math.min(last, resource.length - 1);
+            connection = (HttpURLConnection) new URL(resource.url).openConnection();
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
+            connection.setRequestProperty("Range", "bytes=" + offset + "-" + last);
+            int status = connection.getResponseCode();
+            long total;
+            if (status == HttpURLConnection.HTTP_PARTIAL) {
+                total = parseTotalLength(connection.getHeaderField("Content-Range"), offset);
+            } else if (status == HttpURLConnection.HTTP_OK) {
+                // 不支持Range的源站（从中间开始请求时也返回200），不缓存，由代理重定向到源站
+                total = LENGTH_UNCACHEABLE;
+            } else {
+                throw new IOException("HTTP " + status);
+            }
+            updateMeta(resource, total, connection.getContentType());
+            if (total < 0) return;
+
+            byte[] buffer = new byte[SEGMENT_SIZE];
+            InputStream in = connection.getInputStream();
+            for (; next < claimed.size(); next++) {
+                int index = claimed.get(next);
+                long segmentStart = (long) index * SEGMENT_SIZE;
+                if (segmentStart >= total) break;
+                int length = (int) Math.min(SEGMENT_SIZE, total - segmentStart);
+                int read = 0;
+                while (read < length) {
+                    int n = in.read(buffer, read, length - read);
+                    if (n < 0) throw new IOException("upstream closed");
+                    read += n;
+                }
+                received += length;
+                saveSegment(resource, index, buffer, length);
+                release(resource, index);
+            }
+            in.close();
+        } finally {
+            for (int i = next; i < claimed.size(); i++) release(resource, claimed.get(i));
+            if (connection != null) connection.disconnect();
+            upstreamBytes.addAndGet(received);
+            upstreamMillis.addAndGet(SystemClock.uptimeMillis() - start);
+        }
+    }
+
+    /**
+     * 解析 Content-Range: bytes start-end/total
+     */
+    private static long parseTotalLength(String contentRange, long offset) throws IOException {
+        if (contentRange == null) throw new IOException("missing Content-Range");
+        int space = contentRange.indexOf(' ');
+        int dash = contentRange.indexOf('-');
+        int slash = contentRange.indexOf('/');
+        if (space < 0 || dash < space || slash < dash) throw new IOException("invalid Content-Range: " + contentRange);
+        try {
+            if (Long.parseLong(contentRange.substring(space + 1, dash).trim()) != offset) {
+                throw new IOException("unexpected Content-Range: " + contentRange);
+            }
+            String total = contentRange.substring(slash + 1).trim();
+            return "*".equals(total) ? LENGTH_UNCACHEABLE : Long.parseLong(total);
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid Content-Range: " + contentRange);
+        }
+    }
+
+    private void updateMeta(Resource resource, long length, String contentType) throws IOException {
+        if (resource.length == length && (contentType == null || contentType.equals(resource.contentType))) return;
+        if (resource.length >= 0 && resource.length != length) {
+            // 源站文件已变化，旧的分段作废
+            Log.i(IMEService.TAG, String.format("视频[%s]长度已变化，清除缓存", resource.key));
+            clearSegments(resource);
+        }
+        resource.length = length;
+        if (contentType != null) resource.contentType = contentType;
+        saveMeta(resource);
+    }
+
+    private void saveSegment(Resource resource, int index, byte[] data, int length) throws IOException {
+        File file = resource.getSegmentFile(index);
+        File tmp = new File(resource.dir, index + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data, 0, length);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("无法保存视频缓存");
+        }
+        synchronized (segments) {
+            ensureScanned();
+            Long old = segments.put(file.getPath(), (long) length);
+            totalBytes += length - (old == null ? 0 : old);
+            trim();
+        }
+    }
+
+    private void touch(File file) {
+        synchronized (segments) {
+            ensureScanned();
+            segments.get(file.getPath());
+        }
+    }
+
+    /**
+     * 缓存超过上限时删除最久未使用的分段
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> iterator = segments.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            // 正在读取的分段在删除后仍然可以读完
+            new File(entry.getKey()).delete();
+            totalBytes -= entry.getValue();
+            evictedBytes.addAndGet(entry.getValue());
+            iterator.remove();
+        }
+    }
+
+    private void clearSegments(Resource resource) {
+        File[] files = resource.dir.listFiles();
+        if (files == null) return;
+        synchronized (segments) {
+            ensureScanned();
+            for (File file : files) {
+                if (META_FILE.equals(file.getName())) continue;
+                Long size = segments.remove(file.getPath());
+                if (size != null) totalBytes -= size;
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * 首次使用时扫描缓存目录，按修改时间恢复使用顺序
+     */
+    private void ensureScanned() {
+        if (scanned) return;
+        scanned = true;
+        List<File> files = new ArrayList<>();
+        File[] dirs = cacheDir.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                File[] items = dir.listFiles();
+                if (items == null) continue;
+                for (File item : items) {
+                    if (META_FILE.equals(item.getName())) continue;
+                    if (item.getName().endsWith(".tmp")) {
+                        item.delete();
+                        continue;
+                    }
+                    files.add(item);
+                }
+            }
+        }
+        final Map<File, Long> mtimes = new LinkedHashMap<>();
+        for (File file : files) mtimes.put(file, file.lastModified());
+        File[] sorted = files.toArray(new File[files.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(mtimes.get(a), mtimes.get(b));
+            }
+        });
+        for (File file : sorted) {
+            segments.put(file.getPath(), file.length());
+            totalBytes += file.length();
+        }
+        trim();
+    }
+
+    private void loadMeta(Resource resource) {
+        File meta = new File(resource.dir, META_FILE);
+        if (!meta.isFile()) return;
+        try {
+            JSONObject obj = new JSONObject(readText(meta));
+            if (!resource.url.equals(obj.optString("url"))) return;
+            resource.length = obj.optLong("length", LENGTH_UNKNOWN);
+            resource.contentType = obj.optString("contentType", null);
+        } catch (IOException | JSONException e) {
+            Log.e(IMEService.TAG, "读取视频缓存信息出错", e);
+        }
+    }
+
+    private static void saveMeta(Resource resource) throws IOException {
+        File file = new File(resource.dir, META_FILE);
+        File tmp = new File(resource.dir, META_FILE + ".tmp");
+        try {
+            JSONObject obj = new JSONObject();
+            obj.put("url", resource.url);
+            obj.put("length", resource.length);
+            if (resource.contentType != null) obj.put("contentType", resource.contentType);
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(obj.toString().getBytes("UTF-8"));
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("无法保存视频缓存信息");
+        }
+    }
+
+    /**
+     * 缓存目录被清空后丢弃内存中的记录
+     */
+    public void reset() {
+        resources.clear();
+        synchronized (segments) {
+            segments.clear();
+            totalBytes = 0;
+            scanned = false;
+        }
+    }
+
+    public JSONObject getStats() {
+        JSONObject data = new JSONObject();
+        try {
+            long hits = hitBytes.get();
+            long misses = missBytes.get();
+            long millis = upstreamMillis.get();
+            data.put("requests", requests.get());
+            data.put("hitBytes", hits);
+            data.put("missBytes", misses);
+            data.put("hitRatio", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+            data.put("upstreamBytes", upstreamBytes.get());
+            data.put("upstreamKBps", millis == 0 ? 0 : upstreamBytes.get() * 1000 / 1024 / millis);
+            data.put("evictedBytes", evictedBytes.get());
+            synchronized (segments) {
+                data.put("cachedBytes", totalBytes);
+                data.put("cachedSegments", segments.size());
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+        }
+        return data;
+    }
+
+    /**
+     * 按分段读取指定范围，读到每个分段时确保它已缓存并触发预读
+     */
+    private class SegmentInputStream extends InputStream {
+        private final Resource resource;
+        private final long end;
+        private long position;
+        private RandomAccessFile current;
+        private long currentEnd = -1;
+        private boolean currentHit;
+
+        SegmentInputStream(Resource resource, long start, long end) {
+            this.resource = resource;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position > end) return -1;
+            if (current == null || position > currentEnd) openSegment();
+            int n = current.read(b, off, (int) Math.min(len, Math.min(end, currentEnd) - position + 1));
+            if (n < 0) throw new IOException("cache segment truncated");
+            position += n;
+            (currentHit ? hitBytes : missBytes).addAndGet(n);
+            return n;
+        }
+
+        private void openSegment() throws IOException {
+            closeSegment();
+            int index = (int) (position / SEGMENT_SIZE);
+            for (int retry = 0; current == null; retry++) {
+                currentHit = ensureSegment(resource, index);
+                try {
+                    current = new RandomAccessFile(resource.getSegmentFile(index), "r");
+                } catch (FileNotFoundException e) {
+                    // 分段刚好被淘汰，重新下载
+                    if (retry >= 2) throw e;
+                }
+            }
+            scheduleReadAhead(resource, index + 1);
+            current.seek(position - (long) index * SEGMENT_SIZE);
+            currentEnd = Math.min(resource.length, (long) (index + 1) * SEGMENT_SIZE) - 1;
+        }
+
+        private void closeSegment() {
+            if (current == null) return;
+            try {
+                current.close();
+            } catch (IOException ignored) {
+            }
+            current = null;
+        }
+
+        @Override
+        public void close() {
+            closeSegment();
+        }
+    }
+
+    private static String md5(String text) throws IOException {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(text.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String readText(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        try (FileInputStream in = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int n = in.read(data, offset, data.length - offset);
+                if (n < 0) break;
+                offset += n;
+            }
+        }
+        return new String(data, "UTF-8");
+    }
+}
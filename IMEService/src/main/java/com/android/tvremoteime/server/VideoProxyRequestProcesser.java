@@ -0,0 +1,112 @@
+package com.android.tvremoteime.server;
+
+import android.content.Context;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.tvremoteime.IMEService;
+
+import java.io.IOException;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * 本地视频缓存代理，播放器通过它播放网络视频，数据优先从 {@link VideoCache} 读取
+ *
+ * 端点:
+ * - GET/HEAD /proxy/&lt;标识&gt;/&lt;文件名&gt; - 支持Range请求；源站不支持Range时重定向到原地址
+ */
+public class VideoProxyRequestProcesser implements RequestProcesser {
+    private static final String PREFIX = "/proxy/";
+
+    private Context context;
+
+    public VideoProxyRequestProcesser(Context context){
+        this.context = context;
+    }
+
+    /**
+     * 取得播放地址对应的本地代理地址，不适合缓存的地址原样返回
+     */
+    public static String getProxyUrl(String url){
+        Uri uri = Uri.parse(url);
+        String scheme = uri.getScheme();
+        String path = uri.getLastPathSegment();
+        if(!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) return url;
+        // HLS播放列表中的分片是相对地址，经过代理会失效
+        if(path != null && (path.toLowerCase().endsWith(".m3u8") || path.toLowerCase().endsWith(".m3u"))) return url;
+        try {
+            String key = VideoCache.getInstance().register(url);
+            return "http://127.0.0.1:" + RemoteServer.serverPort + PREFIX + key + "/" + Uri.encode(TextUtils.isEmpty(path) ? "video" : path);
+        }catch (IOException e){
+            Log.e(IMEService.TAG, "无法使用视频缓存", e);
+            return url;
+        }
+    }
+
+    @Override
+    public boolean isRequest(NanoHTTPD.IHTTPSession session, String fileName) {
+        return (session.getMethod() == NanoHTTPD.Method.GET || session.getMethod() == NanoHTTPD.Method.HEAD)
+                && fileName.startsWith(PREFIX);
+    }
+
+    @Override
+    public NanoHTTPD.Response doResponse(NanoHTTPD.IHTTPSession session, String fileName, Map<String, String> params, Map<String, String> files) {
+        String key = fileName.substring(PREFIX.length());
+        if(key.indexOf('/') >= 0) key = key.substring(0, key.indexOf('/'));
+        VideoCache cache = VideoCache.getInstance();
+        VideoCache.Resource resource = cache.getResource(key);
+        if(resource == null){
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.NOT_FOUND, "Error 404, file not found.");
+        }
+
+        // Range: bytes=start-end / bytes=start- / bytes=-suffix
+        long start = 0, end = -1, suffix = -1;
+        boolean partial = false;
+        String range = session.getHeaders().get("range");
+        if(range != null && range.startsWith("bytes=") && range.indexOf(',') < 0){
+            String spec = range.substring("bytes=".length()).trim();
+            int dash = spec.indexOf('-');
+            try {
+                if(dash == 0){
+                    suffix = Long.parseLong(spec.substring(1));
+                }else if(dash > 0){
+                    start = Long.parseLong(spec.substring(0, dash));
+                    if(dash < spec.length() - 1) end = Long.parseLong(spec.substring(dash + 1));
+                }
+                partial = dash >= 0;
+            }catch (NumberFormatException ignored){
+            }
+        }
+
+        try {
+            cache.ensureLength(resource, suffix >= 0 ? 0 : start);
+        }catch (IOException e){
+            Log.e(IMEService.TAG, "视频缓存代理请求源站出错：" + resource.url, e);
+            return RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + e.getMessage());
+        }
+        long length = resource.length;
+        if(length < 0){
+            NanoHTTPD.Response response = RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.REDIRECT, "");
+            response.addHeader("Location", resource.url);
+            return response;
+        }
+        if(suffix >= 0) start = Math.max(0, length - suffix);
+        if(end < 0 || end >= length) end = length - 1;
+        if(start >= length || start > end){
+            NanoHTTPD.Response response = RemoteServer.createPlainTextResponse(NanoHTTPD.Response.Status.RANGE_NOT_SATISFIABLE, "");
+            response.addHeader("Content-Range", "bytes */" + length);
+            return response;
+        }
+
+        String contentType = TextUtils.isEmpty(resource.contentType) ? "application/octet-stream" : resource.contentType;
+        NanoHTTPD.Response response = RemoteServer.newFixedLengthResponse(
+                partial ? NanoHTTPD.Response.Status.PARTIAL_CONTENT : NanoHTTPD.Response.Status.OK,
+                contentType, cache.open(resource, start, end), end - start + 1);
+        response.addHeader("Accept-Ranges", "bytes");
+        if(partial) response.addHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+        return response;
+    }
+}
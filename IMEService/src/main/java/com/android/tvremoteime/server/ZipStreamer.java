@@ -0,0 +1,135 @@
+package com.android.tvremoteime.server;
+
+import android.util.Log;
+
+import com.android.tvremoteime.IMEService;
+import com.android.tvremoteime.util.BlockingPipe;
+import com.android.tvremoteime.util.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 将多个文件和目录边读边压缩成ZIP，直接输出到HTTP响应，不在存储上生成临时压缩包
+ * 已压缩过的媒体和压缩包文件不再压缩（压缩级别为0），其余文件正常压缩
+ */
+public class ZipStreamer implements Runnable {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // 管道中最多缓存的数据块数，限制内存占用
+    private static final int PIPE_CHUNKS = 8;
+
+    private final List<File> files;
+    private final BlockingPipe pipe = new BlockingPipe(PIPE_CHUNKS);
+    private final Set<String> entryNames = new HashSet<>();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private long totalBytes = 0;
+    private int totalFiles = 0;
+
+    public ZipStreamer(List<File> files) {
+        this.files = files;
+    }
+
+    /**
+     * 在后台线程中开始压缩
+     * @return 压缩数据流
+     */
+    public InputStream start() {
+        Thread thread = new Thread(this, "ZipStreamer");
+        thread.setDaemon(true);
+        thread.start();
+        return pipe.getInputStream();
+    }
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(pipe.getOutputStream(), BUFFER_SIZE));
+        try {
+            for (File file : files) {
+                String name = uniqueName(file.getName());
+                if (file.isDirectory()) {
+                    addDir(zip, file, name + "/");
+                } else {
+                    addFile(zip, file, name);
+                }
+            }
+            zip.close();
+            Log.i(IMEService.TAG, String.format("已打包%d个文件，共%d字节，耗时%dms",
+                    totalFiles, totalBytes, System.currentTimeMillis() - start));
+        } catch (IOException ex) {
+            if (pipe.isReaderClosed()) {
+                Log.i(IMEService.TAG, "客户端已断开，停止打包");
+            } else {
+                Log.e(IMEService.TAG, "打包文件出错", ex);
+            }
+            pipe.abort(ex);
+        }
+    }
+
+    /**
+     * 顶层同名文件加上序号，避免压缩包中出现重复的条目
+     */
+    private String uniqueName(String name) {
+        String unique = name;
+        for (int i = 2; !entryNames.add(unique); i++) {
+            unique = FileUtils.getFileNameWithoutExt(name) + " (" + i + ")" + FileUtils.getFileExt(name);
+        }
+        return unique;
+    }
+
+    private void addDir(ZipOutputStream zip, File dir, String prefix) throws IOException {
+        File[] children = dir.listFiles();
+        ZipEntry entry = new ZipEntry(prefix);
+        entry.setTime(dir.lastModified());
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(0);
+        entry.setCrc(0);
+        zip.putNextEntry(entry);
+        zip.closeEntry();
+        if (children == null) return;
+        for (File child : children) {
+            // 不跟随符号链接，避免打包存储以外的内容或陷入循环
+            if (FileUtils.isSymbolicLink(child)) continue;
+            if (child.isDirectory()) {
+                addDir(zip, child, prefix + child.getName() + "/");
+            } else {
+                addFile(zip, child, prefix + child.getName());
+            }
+        }
+    }
+
+    private void addFile(ZipOutputStream zip, File file, String name) throws IOException {
+        InputStream in;
+        try {
+            in = new FileInputStream(file);
+        } catch (IOException ex) {
+            // 无法读取的文件跳过，不影响其它文件
+            Log.w(IMEService.TAG, String.format("无法读取文件[%s]，已跳过", file.getPath()));
+            return;
+        }
+        try {
+            zip.setLevel(FileUtils.isCompressedFile(file.getName()) ? Deflater.NO_COMPRESSION : Deflater.DEFAULT_COMPRESSION);
+            ZipEntry entry = new ZipEntry(name);
+            entry.setTime(file.lastModified());
+            zip.putNextEntry(entry);
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                zip.write(buffer, 0, n);
+                totalBytes += n;
+            }
+            zip.closeEntry();
+            totalFiles++;
+        } finally {
+            in.close();
+        }
+    }
+}
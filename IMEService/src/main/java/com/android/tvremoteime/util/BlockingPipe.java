@@ -0,0 +1,141 @@
+package com.android.tvremoteime.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded in-memory pipe between a producer thread and the HTTP thread that
+ * sends a streamed response. Unlike {@link java.io.PipedInputStream} it holds
+ * at most a fixed number of chunks, fails the writer as soon as the reader
+ * goes away (client disconnected), and lets the writer abort the stream so the
+ * reader sees an error instead of a truncated but "complete" body.
+ */
+public class BlockingPipe {
+    private static final byte[] EOF = new byte[0];
+
+    private final ArrayBlockingQueue<byte[]> queue;
+    private volatile boolean readerClosed = false;
+    private volatile IOException writerError = null;
+
+    private final InputStream inputStream = new InputStream() {
+        private byte[] chunk = null;
+        private int pos = 0;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (chunk == null || pos == chunk.length) {
+                if (chunk == EOF) return finish();
+                try {
+                    chunk = queue.take();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                pos = 0;
+                if (chunk == EOF) return finish();
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        private int finish() throws IOException {
+            if (writerError != null) throw writerError;
+            return -1;
+        }
+
+        @Override
+        public void close() {
+            readerClosed = true;
+            queue.clear();
+        }
+    };
+
+    private final OutputStream outputStream = new OutputStream() {
+        private boolean closed = false;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Pipe closed");
+            if (len == 0) return;
+            byte[] chunk = new byte[len];
+            System.arraycopy(b, off, chunk, 0, len);
+            put(chunk);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            put(EOF);
+        }
+    };
+
+    /**
+     * @param maxChunks Number of written chunks that may be buffered before the writer blocks.
+     */
+    public BlockingPipe(int maxChunks) {
+        queue = new ArrayBlockingQueue<>(maxChunks);
+    }
+
+    private void put(byte[] chunk) throws IOException {
+        try {
+            while (!queue.offer(chunk, 1, TimeUnit.SECONDS)) {
+                if (readerClosed) throw new IOException("Reader closed");
+            }
+            if (readerClosed) throw new IOException("Reader closed");
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+
+    /**
+     * The side read by the HTTP response.
+     */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * The side written by the producer. Each write is handed over as one chunk,
+     * so wrap it in a BufferedOutputStream for small writes. Must be closed.
+     */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Whether the reader has closed its side.
+     */
+    public boolean isReaderClosed() {
+        return readerClosed;
+    }
+
+    /**
+     * Ends the stream with an error. The reader gets the exception after
+     * the data that was already written.
+     */
+    public void abort(IOException error) {
+        writerError = error;
+        try {
+            outputStream.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.android.tvremoteime.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * InputStream that reads at most a fixed number of bytes from the underlying stream
+ * and never closes it. Used to read an HTTP request body directly from the
+ * connection without consuming the next request on a keep-alive socket.
+ */
+public class BoundedInputStream extends FilterInputStream {
+    private long remaining;
+    private long bytesRead = 0;
+
+    public BoundedInputStream(InputStream in, long length) {
+        super(in);
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) return -1;
+        int b = in.read();
+        if (b >= 0) {
+            remaining--;
+            bytesRead++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (remaining <= 0) return -1;
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n > 0) {
+            remaining -= n;
+            bytesRead += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(Math.min(n, remaining));
+        if (skipped > 0) {
+            remaining -= skipped;
+            bytesRead += skipped;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Number of bytes read so far.
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * Number of bytes left before the limit is reached.
+     */
+    public long getRemaining() {
+        return remaining;
+    }
+
+    /**
+     * Reads and discards whatever is left of the body.
+     */
+    public void drain() throws IOException {
+        byte[] buf = new byte[8192];
+        while (read(buf, 0, buf.length) > 0) {
+            // discard
+        }
+    }
+
+    /**
+     * Does not close the underlying stream, it belongs to the HTTP connection.
+     */
+    @Override
+    public void close() {
+    }
+}
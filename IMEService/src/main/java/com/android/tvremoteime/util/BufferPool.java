@@ -0,0 +1,58 @@
+package com.android.tvremoteime.util;
+
+import java.util.ArrayDeque;
+
+/**
+ * A small pool of fixed-size byte buffers, so that short-lived request buffers
+ * are reused instead of being allocated for every request.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<byte[]> buffers = new ArrayDeque<>();
+    private long acquired = 0;
+    private long allocated = 0;
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Take a buffer from the pool, allocating a new one when the pool is empty.
+     */
+    public synchronized byte[] acquire() {
+        acquired++;
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            allocated++;
+            buffer = new byte[bufferSize];
+        }
+        return buffer;
+    }
+
+    /**
+     * Return a buffer obtained from {@link #acquire()}.
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize && buffers.size() < maxPooled) {
+            buffers.push(buffer);
+        }
+    }
+
+    public synchronized int getPooledCount() {
+        return buffers.size();
+    }
+
+    public synchronized long getAcquiredCount() {
+        return acquired;
+    }
+
+    public synchronized long getAllocatedCount() {
+        return allocated;
+    }
+}
@@ -1,5 +1,8 @@
 package com.android.tvremoteime.util;
 
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.text.TextUtils;
 
 import java.io.File;
@@ -47,6 +50,79 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Check if a file is an image file based on extension.
+     */
+    public static boolean isImageFile(String fileName) {
+        String ext = getFileExt(fileName);
+        switch (ext) {
+            case ".jpg":
+            case ".jpeg":
+            case ".png":
+            case ".gif":
+            case ".bmp":
+            case ".webp":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Check if a media file is a video (not audio or playlist) based on extension.
+     */
+    public static boolean isVideoFile(String fileName) {
+        if (!isMediaFile(fileName)) return false;
+        switch (getFileExt(fileName)) {
+            case ".m3u8":
+            case ".asx":
+            case ".mp3":
+            case ".wav":
+            case ".flac":
+            case ".aac":
+            case ".ogg":
+            case ".wma":
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Check if a file is already compressed (media or archive), so compressing it again is a waste of CPU.
+     */
+    public static boolean isCompressedFile(String fileName) {
+        if (isMediaFile(fileName) || isImageFile(fileName)) {
+            return !".wav".equals(getFileExt(fileName)) && !".bmp".equals(getFileExt(fileName));
+        }
+        switch (getFileExt(fileName)) {
+            case ".zip":
+            case ".apk":
+            case ".jar":
+            case ".rar":
+            case ".7z":
+            case ".gz":
+            case ".tgz":
+            case ".bz2":
+            case ".xz":
+            case ".torrent":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Check if a path is a symbolic link (without following it).
+     */
+    public static boolean isSymbolicLink(File file) {
+        try {
+            return OsConstants.S_ISLNK(Os.lstat(file.getPath()).st_mode);
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
     /**
      * Get file extension (lowercase, including dot).
      */
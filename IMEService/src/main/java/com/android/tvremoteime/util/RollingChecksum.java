@@ -0,0 +1,52 @@
+package com.android.tvremoteime.util;
+
+/**
+ * The rsync weak checksum: two 16-bit sums over a window of bytes that can be
+ * rolled forward one byte at a time, so a client can look for matching blocks
+ * at every offset of a file in linear time.
+ */
+public class RollingChecksum {
+    private int a;
+    private int b;
+    private int length;
+
+    /**
+     * Start a new window over the given bytes.
+     */
+    public void reset(byte[] data, int off, int len) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < len; i++) {
+            int v = data[off + i] & 0xff;
+            a += v;
+            b += (len - i) * v;
+        }
+        this.a = a & 0xffff;
+        this.b = b & 0xffff;
+        this.length = len;
+    }
+
+    /**
+     * Move the window forward by one byte.
+     * @param out The byte leaving the window
+     * @param in The byte entering the window
+     */
+    public void roll(byte out, byte in) {
+        int o = out & 0xff;
+        a = (a - o + (in & 0xff)) & 0xffff;
+        b = (b - length * o + a) & 0xffff;
+    }
+
+    public int getValue() {
+        return a | (b << 16);
+    }
+
+    /**
+     * Checksum of a single block.
+     */
+    public static int of(byte[] data, int off, int len) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, off, len);
+        return checksum.getValue();
+    }
+}
@@ -0,0 +1,263 @@
+package com.android.tvremoteime.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal sequential reader for tar streams (POSIX ustar, GNU long names and
+ * pax path/size records). Only regular files and directories are returned;
+ * links, devices and other special entries are skipped.
+ */
+public class TarStreamReader {
+    private static final int BLOCK_SIZE = 512;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * A file or directory entry.
+     */
+    public static class Entry {
+        private final String name;
+        private final long size;
+        private final long mtime;
+        private final boolean directory;
+
+        Entry(String name, long size, long mtime, boolean directory) {
+            this.name = name;
+            this.size = size;
+            this.mtime = mtime;
+            this.directory = directory;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Modification time in milliseconds.
+         */
+        public long getTime() {
+            return mtime;
+        }
+
+        public boolean isDirectory() {
+            return directory;
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] header = new byte[BLOCK_SIZE];
+    // data bytes of the current entry not read yet, plus its block padding
+    private long remaining = 0;
+    private long padding = 0;
+
+    private final InputStream entryStream = new InputStream() {
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n < 0) throw new IOException("Unexpected end of tar stream");
+            remaining -= n;
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    public TarStreamReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Skips to the next file or directory entry.
+     * @return The entry, or null at the end of the archive
+     */
+    public Entry getNextEntry() throws IOException {
+        String longName = null;
+        long paxSize = -1;
+        while (true) {
+            skipFully(remaining + padding);
+            remaining = 0;
+            padding = 0;
+            if (!readBlock(header)) return null;
+            if (isZeroBlock(header)) return null;
+
+            long size = parseNumber(header, 124, 12);
+            long mtime = parseNumber(header, 136, 12) * 1000;
+            char type = (char) header[156];
+            remaining = size;
+            padding = (BLOCK_SIZE - size % BLOCK_SIZE) % BLOCK_SIZE;
+
+            if (type == 'L') {
+                longName = trimNul(new String(readData(size), UTF8));
+                continue;
+            }
+            if (type == 'x') {
+                String[] pax = parsePax(readData(size));
+                if (pax[0] != null) longName = pax[0];
+                if (pax[1] != null) paxSize = Long.parseLong(pax[1]);
+                continue;
+            }
+            if (type == 'g') {
+                continue;
+            }
+
+            String name = longName;
+            if (name == null) {
+                name = readString(header, 0, 100);
+                if (readString(header, 257, 5).equals("ustar")) {
+                    String prefix = readString(header, 345, 155);
+                    if (!prefix.isEmpty()) name = prefix + "/" + name;
+                }
+            }
+            if (paxSize >= 0) {
+                remaining = paxSize;
+                padding = (BLOCK_SIZE - paxSize % BLOCK_SIZE) % BLOCK_SIZE;
+            }
+            longName = null;
+            paxSize = -1;
+
+            if (type == '5' || (type == '0' || type == '\0') && name.endsWith("/")) {
+                return new Entry(name, 0, mtime, true);
+            }
+            if (type == '0' || type == '\0' || type == '7') {
+                return new Entry(name, remaining, mtime, false);
+            }
+            // links and special files are skipped together with their data
+        }
+    }
+
+    /**
+     * Data of the current entry. Not closed by callers; unread data is skipped by {@link #getNextEntry()}.
+     */
+    public InputStream getEntryStream() {
+        return entryStream;
+    }
+
+    private byte[] readData(long size) throws IOException {
+        if (size > 1024 * 1024) throw new IOException("Tar header record too large");
+        byte[] data = new byte[(int) size];
+        int offset = 0;
+        while (offset < data.length) {
+            int n = in.read(data, offset, data.length - offset);
+            if (n < 0) throw new IOException("Unexpected end of tar stream");
+            offset += n;
+        }
+        remaining = 0;
+        return data;
+    }
+
+    /**
+     * @return {path, size} from a pax extended header, either may be null
+     */
+    private static String[] parsePax(byte[] data) {
+        String[] result = new String[2];
+        int pos = 0;
+        while (pos < data.length) {
+            int space = pos;
+            while (space < data.length && data[space] != ' ') space++;
+            if (space >= data.length) break;
+            int length;
+            try {
+                length = Integer.parseInt(new String(data, pos, space - pos, UTF8));
+            } catch (NumberFormatException e) {
+                break;
+            }
+            if (length <= 0 || pos + length > data.length) break;
+            String record = new String(data, space + 1, pos + length - space - 2, UTF8);
+            int eq = record.indexOf('=');
+            if (eq > 0) {
+                String key = record.substring(0, eq);
+                if (key.equals("path")) result[0] = record.substring(eq + 1);
+                else if (key.equals("size")) result[1] = record.substring(eq + 1);
+            }
+            pos += length;
+        }
+        return result;
+    }
+
+    private boolean readBlock(byte[] block) throws IOException {
+        int offset = 0;
+        while (offset < block.length) {
+            int n = in.read(block, offset, block.length - offset);
+            if (n < 0) {
+                if (offset == 0) return false;
+                throw new IOException("Unexpected end of tar stream");
+            }
+            offset += n;
+        }
+        return true;
+    }
+
+    private void skipFully(long n) throws IOException {
+        byte[] buf = null;
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                if (buf == null) buf = new byte[8192];
+                int r = in.read(buf, 0, (int) Math.min(buf.length, n));
+                if (r < 0) throw new IOException("Unexpected end of tar stream");
+                skipped = r;
+            }
+            n -= skipped;
+        }
+    }
+
+    private static boolean isZeroBlock(byte[] block) {
+        for (byte b : block) {
+            if (b != 0) return false;
+        }
+        return true;
+    }
+
+    private static String readString(byte[] block, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && block[end] != 0) end++;
+        return new String(block, offset, end - offset, UTF8);
+    }
+
+    private static String trimNul(String s) {
+        int p = s.indexOf('\0');
+        return p >= 0 ? s.substring(0, p) : s;
+    }
+
+    /**
+     * Octal number, or base-256 when the high bit of the first byte is set (GNU extension).
+     */
+    private static long parseNumber(byte[] block, int offset, int length) {
+        long value = 0;
+        if ((block[offset] & 0x80) != 0) {
+            for (int i = offset + 1; i < offset + length; i++) {
+                value = (value << 8) | (block[i] & 0xff);
+            }
+            return value;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            byte b = block[i];
+            if (b == 0 || b == ' ') {
+                if (value != 0) break;
+                continue;
+            }
+            if (b < '0' || b > '7') break;
+            value = (value << 3) + (b - '0');
+        }
+        return value;
+    }
+}
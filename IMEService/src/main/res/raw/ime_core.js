@@ -114,6 +114,15 @@ function postFileAction(action){
 		});
 	}
 }
+function downloadZip(){
+	if(selectedPaths.length == 0) return;
+	// 用表单提交，由浏览器直接保存下载的压缩包
+	var form = $('<form method="post" action="/file/zip" target="_blank" style="display:none"></form>');
+	form.append($('<input type="hidden" name="paths" />').val(selectedPaths.join('|')));
+	$('body').append(form);
+	form[0].submit();
+	form.remove();
+}
 function getDiskSpace(){
 	$.get("/sdcard_stat", null, function(data){
 		$('#diskSpace').html('存储总容量：' + formatSize(data.totalBytes) + '，可用容量：' + formatSize(data.availableBytes));
@@ -171,22 +180,7 @@ function loadFileList(path){
 			html.push('</div>');
 		}
 		for(var i=0;i<data.files.length;i++){
-			var file=data.files[i];
-			html.push('<div class="file-item"><div class="file-icon-panel">');
-			if(file.isMedia){
-				html.push('<img src="ic_dl_video.png" class="file-icon" border="0" onclick="playMedia(this)" uri="' + file.fullPath + '" />');
-			}else{
-				html.push('<img src="ic_dl_other.png" class="file-icon" border="0" />');
-			}
-			html.push('<div class="' + (file.isMedia ? 'media-size' : 'file-size') + '">' + formatSize(file.size) + '</div>');
-			html.push('</div><div class="file-name">'+file.name+'</div>');
-			html.push('<div class="app-btn">');
-			html.push('<a href="/file/download/' + file.path + '" target="_blank" class="' + (fileDeleteChecked ? ' hide' : '') + '">');
-			html.push('<input type="button" value="下载" class="fbtn1 app-btn1" />');	
-			html.push("</a>");
-			html.push('\t  <input type="button" value="选择" class="fbtn2 app-btn1' + (fileDeleteChecked ? '' : ' hide') + '" onclick="addFile(2,\''+file.name+'\',\''+file.path+'\');" />');
-			html.push("</div>");
-			html.push('</div>');
+			appendFileItem(html, data.files[i], fileDeleteChecked);
 		}
 		for(i=0;i<4;i++){
 			html.push('<div class="file-item item-empty"></div>');
@@ -194,6 +188,52 @@ function loadFileList(path){
 		fileList.html(html.join("\r\n"));
 	});
 }
+function appendFileItem(html, file, fileDeleteChecked){
+	html.push('<div class="file-item"><div class="file-icon-panel">');
+	// 搜索结果中不在内部存储的文件没有相对路径
+	if(file.thumb && file.path != undefined){
+		var thumbUrl = '/file/thumb' + encodeURI(file.path).replace(/#/g, '%23').replace(/\?/g, '%3F') + '?w=160';
+		var fallback = file.isMedia ? 'ic_dl_video.png' : 'ic_dl_other.png';
+		html.push('<img src="' + thumbUrl + '" class="file-icon" border="0" loading="lazy" onerror="this.onerror=null;this.src=\'' + fallback + '\';"' + (file.isMedia ? ' onclick="playMedia(this)" uri="' + file.fullPath + '"' : '') + ' />');
+	}else if(file.isMedia){
+		html.push('<img src="ic_dl_video.png" class="file-icon" border="0" onclick="playMedia(this)" uri="' + file.fullPath + '" />');
+	}else{
+		html.push('<img src="ic_dl_other.png" class="file-icon" border="0" />');
+	}
+	html.push('<div class="' + (file.isMedia ? 'media-size' : 'file-size') + '">' + formatSize(file.size) + '</div>');
+	html.push('</div><div class="file-name">'+file.name+'</div>');
+	html.push('<div class="app-btn">');
+	if(file.path != undefined){
+		html.push('<a href="/file/download/' + file.path + '" target="_blank" class="' + (fileDeleteChecked ? ' hide' : '') + '">');
+		html.push('<input type="button" value="下载" class="fbtn1 app-btn1" />');	
+		html.push("</a>");
+		html.push('\t  <input type="button" value="选择" class="fbtn2 app-btn1' + (fileDeleteChecked ? '' : ' hide') + '" onclick="addFile(2,\''+file.name+'\',\''+file.path+'\');" />');
+	}
+	html.push("</div>");
+	html.push('</div>');
+}
+function searchFiles(q){
+	if(q == ''){
+		loadFileList(curPath);
+		return;
+	}
+	$.get("/file/search", {q: q, limit: 100}, function(data){
+		$('#curPath').text('搜索：' + q + '（' + data.total + '）');
+		var html=[];
+		var fileDeleteChecked = $("#cbFileSelect")[0].checked;
+		html.push('<div class="file-item"><div class="file-icon-panel">');
+		html.push('<img src="/ic_dl_folder.png" class="file-icon" onclick="$(\'#fileSearch\').val(\'\');loadFileList(curPath);" />');
+		html.push('</div><div class="file-name">..</div>');
+		html.push('</div>');
+		for(var i=0;i<data.files.length;i++){
+			appendFileItem(html, data.files[i], fileDeleteChecked);
+		}
+		for(i=0;i<4;i++){
+			html.push('<div class="file-item item-empty"></div>');
+		}
+		$(".file-list").html(html.join("\r\n"));
+	});
+}
 function addFile(type, name, path){
 	for(var i=0; i<selectedPaths.length; i++){
 		if(selectedPaths[i] == path) return;
@@ -245,8 +285,35 @@ function loadTVList(){
 			html.push('</div>');
 		}
 		tvItems.html(html.join("\r\n"));
+		loadTVHealth();
 	}, "text");
 }
+function loadTVHealth(){
+	$.get("/tv/channels",null,function(data){
+		var health = {};
+		for(var i=0; i<data.length; i++){
+			for(var j=0; j<data[i].sources.length; j++){
+				if(data[i].sources[j].health) health[data[i].sources[j].url] = data[i].sources[j].health;
+			}
+		}
+		$(".tv-source").each(function(){
+			var h = health[$(this).attr("data-video")];
+			if(!h) return;
+			$(this).toggleClass("tv-source-bad", !h.ok);
+			$(this).attr("title", h.ok ? "延迟" + h.latency + "ms" : "不可用" + (h.error ? "：" + h.error : ""));
+		});
+	}, "json");
+}
+$('#btnTVProbe').on('click',function(){
+	$.post("/tv/probe",{force:true},function(data){
+		if(data.success){
+			//检测在后台进行，稍后刷新结果
+			setTimeout(loadTVHealth, 3000);
+			setTimeout(loadTVHealth, 10000);
+		}
+	}, "json");
+	return false;
+});
 $("#confirm").on("click",function(){
 	var $input=$("#inputarea");
 	var text=$input.val();
@@ -292,6 +359,11 @@ $('#btnShowTVEdit,#btnTVEdit,#btnTVCancel').on('click',function(){
 			break;
 	}
 });
+$("#fileSearch").on("keydown",function(e){
+	if(e.keyCode == 13){
+		searchFiles($.trim(this.value));
+	}
+})
 $("#cbFileSelect").on("click",function(){
 	if(this.checked){
 		$(".fbtn1").addClass("hide");
@@ -410,6 +482,88 @@ $("#btnClear").on("click", function() {
 		})
 	}
 })
+var RESUMABLE_THRESHOLD = 64 * 1024 * 1024;
+var RESUMABLE_CHUNK_SIZE = 8 * 1024 * 1024;
+var RESUMABLE_PARALLEL = 2;
+function resumableUpload(file, path, processbar, callback){
+	//同一文件未完成的会话保存在本地，重新选择该文件时继续上传
+	//键中包含修改时间，同名同大小的其他文件不会接着旧会话上传
+	var key = "upload:" + path + "/" + file.name + ":" + file.size + ":" + (file.lastModified || 0);
+	var storage = window.localStorage;
+	var showProgress = function(received){
+		var p = Math.floor(100 * received / file.size) + "%";
+		if(processbar) processbar.css({width: p}).text(p);
+	};
+	var start = function(session){
+		var missing = [];
+		for(var i = 0; i < session.missing.length; i++){
+			for(var pos = session.missing[i][0]; pos < session.missing[i][1]; pos += RESUMABLE_CHUNK_SIZE){
+				missing.push([pos, Math.min(pos + RESUMABLE_CHUNK_SIZE, session.missing[i][1])]);
+			}
+		}
+		var received = session.received, running = 0, failed = false;
+		showProgress(received);
+		//同时上传的分片不超过RESUMABLE_PARALLEL个，分片完成后再补上新的分片
+		var next = function(){
+			if(failed) return;
+			if(missing.length == 0){
+				if(running > 0) return;
+				$.post("/upload/finish?id=" + session.id + "&overwrite=true", null, function(data){
+					if(data.success && storage) storage.removeItem(key);
+					callback(data.success);
+				}, "json").fail(function(){ callback(false); });
+				return;
+			}
+			while(running < RESUMABLE_PARALLEL && missing.length > 0){
+				upload(missing.shift());
+			}
+		};
+		var upload = function(chunk){
+			var retries = 3;
+			running++;
+			var send = function(){
+				$.ajax({
+					type: "PUT",
+					url: "/upload/chunk?id=" + session.id + "&offset=" + chunk[0],
+					data: file.slice(chunk[0], chunk[1]),
+					processData: false,
+					contentType: "application/octet-stream",
+					dataType: "json",
+					success: function(data){
+						if(!data.success){ failed = true; callback(false); return; }
+						running--;
+						received += chunk[1] - chunk[0];
+						showProgress(received);
+						next();
+					},
+					error: function(){
+						if(--retries > 0){
+							setTimeout(send, 2000);
+						}else{
+							failed = true;
+							callback(false);
+						}
+					}
+				});
+			};
+			send();
+		};
+		next();
+	};
+	var create = function(){
+		$.post("/upload/session?path=" + encodeURIComponent(path) + "&name=" + encodeURIComponent(file.name) + "&size=" + file.size, null, function(data){
+			if(!data.success){ callback(false); return; }
+			if(storage) storage.setItem(key, data.id);
+			start(data);
+		}, "json").fail(function(){ callback(false); });
+	};
+	var id = storage ? storage.getItem(key) : null;
+	if(id){
+		$.get("/upload/session", {id: id}, function(data){ start(data); }, "json").fail(create);
+	}else{
+		create();
+	}
+}
 $("#upfile,#upfile2,#upfile3").change(function() {
 	var id = this.id;
 	var formData = new FormData;
@@ -424,13 +578,32 @@ $("#upfile,#upfile2,#upfile3").change(function() {
 		processbar = processbar1;
 	}
 	formData.append("file", file, encodeURI(file.uploadName || file.name));
+	//APK直接以请求体流式写入安装会话
+	var streamInstall = id == "upfile" && $('#cbAutoInstall')[0].checked && /\.apk$/i.test(file.name);
+	//压缩包直接以请求体流式上传并解压到当前目录
+	var streamExtract = id == "upfile2" && $('#cbExtract')[0].checked && /\.(zip|tar|tgz|tar\.gz)$/i.test(file.name);
+	var streamUrl = streamInstall ? "/install?name=" + encodeURIComponent(file.name) :
+	                streamExtract ? "/file/extract?path=" + encodeURIComponent(curPath) : null;
+	//大文件分块上传，网络中断后可以续传
+	if(id == "upfile2" && !streamExtract && file.size > RESUMABLE_THRESHOLD){
+		resumableUpload(file, curPath, processbar, function(ok){
+			$('#' + id).val("");
+			if(ok){
+				loadFileList(curPath);
+				alert("文件已成功上传到当前目录。");
+			}else{
+				alert("抱歉，文件上传失败！可以重新选择同一个文件继续上传。");
+			}
+		});
+		return;
+	}
 	$.ajax({
 		type: "POST",
-		url: id == "upfile2" ? "/file/upload" : (id == "upfile3" ? "/torrent/upload" : "/upload"),
+		url: streamUrl ? streamUrl : (id == "upfile2" ? "/file/upload" : (id == "upfile3" ? "/torrent/upload" : "/upload")),
 		dataType: "json",
-		data: formData,
+		data: streamUrl ? file : formData,
 		processData: false,
-		contentType: false,
+		contentType: streamInstall ? "application/vnd.android.package-archive" : (streamExtract ? "application/octet-stream" : false),
 		xhr: function() {
 			var xhr = $.ajaxSettings.xhr();
 			if(xhr.upload){
@@ -457,7 +630,11 @@ $("#upfile,#upfile2,#upfile3").change(function() {
 			if(data.success){
 				if(id == "upfile2"){
 					loadFileList(curPath);
-					alert("文件已成功上传到当前目录。");
+					if(streamExtract){
+						alert("压缩包已解压到当前目录，共" + data.extract.files + "个文件" + (data.extract.skipped > 0 ? "，跳过" + data.extract.skipped + "个" : "") + "。");
+					}else{
+						alert("文件已成功上传到当前目录。");
+					}
 				}else if(id == "upfile3"){
 					alert("种子文件已上传并解析，请选择要播放的视频文件。");
 					addTorrentItems(data);
@@ -663,7 +840,8 @@ function onTouchpadMove(e) {
 
 	if (Math.abs(dx) > 0.5 || Math.abs(dy) > 0.5) {
 		if (touchpad.fingers >= 2) {
-			// 双指滚动
+			// 双指滚动（手指保持按下的流式滚动）
+			touchpad.scrolling = true;
 			mouseScroll(Math.round(dy));
 		} else {
 			// 单指移动
@@ -691,6 +869,11 @@ function onTouchpadEnd(e) {
 		}
 	}
 
+	if (touchpad.scrolling) {
+		touchpad.scrolling = false;
+		$.post("/mouse/scroll/end");
+	}
+
 	touchpad.tracking = false;
 	touchpad.fingers = 0;
 }
@@ -726,7 +909,7 @@ function mouseClick(button) {
 // 发送鼠标滚动
 function mouseScroll(dy) {
 	if (dy === 0) return;
-	$.post("/mouse/scroll", { dy: dy }, function(data) {
+	$.post("/mouse/scroll/stream", { dy: dy }, function(data) {
 		console.log('scroll:', data);
 	});
 }